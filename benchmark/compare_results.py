@@ -0,0 +1,67 @@
+#!/usr/bin/env python
+# This file is part of OpenTSDB.
+# Copyright (C) 2026  The OpenTSDB Authors.
+#
+# This program is free software: you can redistribute it and/or modify it
+# under the terms of the GNU Lesser General Public License as published by
+# the Free Software Foundation, either version 2.1 of the License, or (at your
+# option) any later version.  This program is distributed in the hope that it
+# will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+# of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+# General Public License for more details.  You should have received a copy
+# of the GNU Lesser General Public License along with this program.  If not,
+# see <http://www.gnu.org/licenses/>.
+"""Compares two JMH JSON result files, e.g. from two commits.
+
+Usage: compare_results.py BASE.json CHANGE.json
+"""
+
+import json
+import sys
+
+
+def load(path):
+  """Returns the primary results of a run keyed by benchmark and params."""
+  with open(path) as f:
+    runs = json.load(f)
+  results = {}
+  for run in runs:
+    params = run.get("params") or {}
+    key = (run["benchmark"].replace("net.opentsdb.", ""),
+           ",".join("%s=%s" % (k, params[k]) for k in sorted(params)))
+    metric = run["primaryMetric"]
+    error = metric.get("scoreError")
+    if error in (None, "NaN"):
+      error = 0.0
+    results[key] = (metric["score"], float(error), metric["scoreUnit"],
+                    run.get("mode"))
+  return results
+
+
+def main(argv):
+  if len(argv) != 3:
+    sys.stderr.write(__doc__)
+    return 1
+  base = load(argv[1])
+  change = load(argv[2])
+  fmt = "%-50s %-40s %14s %14s %9s %s"
+  print(fmt % ("Benchmark", "Params", "Base", "Change", "Delta", "Unit"))
+  for key in sorted(set(base) | set(change)):
+    if key not in base or key not in change:
+      print(fmt % (key[0], key[1],
+                   "%.3f" % base[key][0] if key in base else "-",
+                   "%.3f" % change[key][0] if key in change else "-",
+                   "", (base.get(key) or change.get(key))[2]))
+      continue
+    b_score, b_error, unit, mode = base[key]
+    c_score, c_error = change[key][0], change[key][1]
+    delta = (c_score - b_score) / b_score * 100.0 if b_score else 0.0
+    # within the noise if the scores are closer than the combined error
+    flag = "" if abs(c_score - b_score) > b_error + c_error else " ~"
+    print(fmt % (key[0], key[1], "%.3f" % b_score, "%.3f" % c_score,
+                 "%+.1f%%%s" % (delta, flag), unit))
+  return 0
+
+
+if __name__ == "__main__":
+  sys.exit(main(sys.argv))
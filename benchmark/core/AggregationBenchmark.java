@@ -0,0 +1,93 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.BenchmarkData.Layout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Aggregating many series into one with a {@link SpanGroup}, i.e.
+ * {@code AggregationIterator} with optional downsampling, as a query without
+ * a group by does. The spans are built once so only the aggregation is
+ * measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregationBenchmark {
+
+  @Param({ "10", "100", "1000" })
+  int cardinality;
+
+  @Param({ "6" })
+  int hours;
+
+  /** Points per series per hour, 360 is a point every 10 seconds */
+  @Param({ "360" })
+  int points;
+
+  @Param({ "sum", "avg", "p99" })
+  String aggregator;
+
+  /** A downsampling specification or "none" */
+  @Param({ "none", "1m-avg", "1h-max" })
+  String downsample;
+
+  private TSDB tsdb;
+  private List<Span> spans;
+
+  @Setup
+  public void setup() throws Exception {
+    tsdb = BenchmarkData.newTsdb(null);
+    spans = new ArrayList<Span>(cardinality);
+    for (int i = 0; i < cardinality; i++) {
+      spans.add(BenchmarkData.span(tsdb, i, hours, points, false,
+          Layout.COMPACTED));
+    }
+  }
+
+  @Benchmark
+  public double aggregate() {
+    final long start = BenchmarkData.BASE_TIME;
+    final long end = start + hours * Const.MAX_TIMESPAN;
+    final SpanGroup group = new SpanGroup(tsdb, start, end, spans, false,
+        new RateOptions(), Aggregators.get(aggregator),
+        "none".equals(downsample) ? null
+            : new DownsamplingSpecification(downsample),
+        start * 1000, end * 1000, 0);
+    double sum = 0;
+    final SeekableView it = group.iterator();
+    while (it.hasNext()) {
+      sum += it.next().toDouble();
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,372 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.powermock.reflect.Whitebox;
+
+/**
+ * Synthetic data generators shared by the benchmarks. Rows are laid out
+ * exactly as they would be in the data table, the same cells {@link MockBase}
+ * would hand back for a scan or get, so the benchmarks exercise the real
+ * decoding and merging paths without a storage client.
+ * <p>
+ * Every series is {@link #METRIC} with a single {@code host} tag whose value
+ * is {@code web00000} through the cardinality requested. UIDs are placed
+ * straight into the UID caches so that lookups never go to storage.
+ * <p>
+ * All generators take a seed so that runs are repeatable across commits.
+ * @since 2.4
+ */
+public final class BenchmarkData {
+  /** The metric of every generated series */
+  public static final String METRIC = "sys.cpu.user";
+
+  /** The one tag key of every generated series */
+  public static final String TAGK = "host";
+
+  /** Base time of the first generated row, in seconds */
+  public static final long BASE_TIME = 1356998400L;
+
+  /** The histogram codec ID configured by {@link #newTsdb} */
+  public static final int HISTOGRAM_ID = 42;
+
+  /** The layouts a row may be stored in. */
+  public enum Layout {
+    /** One cell per data point, as written by puts */
+    RAW,
+    /** A single compacted cell */
+    COMPACTED,
+    /** A compacted cell followed by late, individually written cells */
+    COMPACTED_AND_LATE,
+    /** A single append cell */
+    APPEND,
+    /** One histogram cell per data point */
+    HISTOGRAM
+  }
+
+  private BenchmarkData() {
+    // Static methods only
+  }
+
+  /**
+   * Creates a TSDB that never talks to storage. Compactions are disabled and
+   * the simple histogram codec is registered with {@link #HISTOGRAM_ID}.
+   * @param overrides Additional config overrides, may be null.
+   * @return A TSDB instance.
+   * @throws Exception if the config couldn't be loaded.
+   */
+  public static TSDB newTsdb(final Map<String, String> overrides)
+      throws Exception {
+    return new TSDB(newConfig(overrides));
+  }
+
+  /**
+   * Creates the config of {@link #newTsdb}, for benchmarks that extend the
+   * TSDB.
+   * @param overrides Additional config overrides, may be null.
+   * @return A config instance.
+   * @throws Exception if the config couldn't be loaded.
+   */
+  public static Config newConfig(final Map<String, String> overrides)
+      throws Exception {
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.storage.enable_compaction", "false");
+    config.overrideConfig("tsd.core.histograms.config",
+        "{\"net.opentsdb.core.SimpleHistogramDecoder\": " + HISTOGRAM_ID + "}");
+    if (overrides != null) {
+      for (final Map.Entry<String, String> entry : overrides.entrySet()) {
+        config.overrideConfig(entry.getKey(), entry.getValue());
+      }
+    }
+    return config;
+  }
+
+  /**
+   * Places a name to UID mapping in the caches of the UniqueId instance.
+   * @param uid The UniqueId instance to populate.
+   * @param name The name of the UID.
+   * @param id The UID.
+   * @throws Exception if the mapping couldn't be cached.
+   */
+  public static void cacheUid(final UniqueId uid, final String name,
+      final byte[] id) throws Exception {
+    Whitebox.invokeMethod(uid, "cacheMapping", name, id);
+  }
+
+  /**
+   * Caches the metric, tag key and tag value UIDs for the series.
+   * @param tsdb The TSDB to populate.
+   * @param cardinality The number of series.
+   * @throws Exception if the mappings couldn't be cached.
+   */
+  public static void cacheSeries(final TSDB tsdb, final int cardinality)
+      throws Exception {
+    cacheUid(tsdb.metrics, METRIC, uid(tsdb.metrics.width(), 1));
+    cacheUid(tsdb.tag_names, TAGK, uid(tsdb.tag_names.width(), 1));
+    for (int i = 0; i < cardinality; i++) {
+      cacheUid(tsdb.tag_values, tagValue(i),
+          uid(tsdb.tag_values.width(), i + 1));
+    }
+  }
+
+  /**
+   * @param series The series index.
+   * @return The tags of the series.
+   */
+  public static Map<String, String> tags(final int series) {
+    final Map<String, String> tags = new HashMap<String, String>(1);
+    tags.put(TAGK, tagValue(series));
+    return tags;
+  }
+
+  /**
+   * @param series The series index.
+   * @return The host tag value of the series.
+   */
+  public static String tagValue(final int series) {
+    return String.format("web%05d", series);
+  }
+
+  /**
+   * Encodes a UID.
+   * @param width The width of the UID.
+   * @param id The numeric ID.
+   * @return The UID on width bytes.
+   */
+  public static byte[] uid(final int width, final long id) {
+    final byte[] uid = new byte[width];
+    for (int i = width - 1; i >= 0; i--) {
+      uid[i] = (byte) (id >>> ((width - 1 - i) * 8));
+    }
+    return uid;
+  }
+
+  /**
+   * Builds the row key of a series, salted if salting is enabled.
+   * @param tsdb The TSDB, used for the UID widths.
+   * @param series The series index.
+   * @param base_time The base time of the row in seconds.
+   * @return The row key.
+   */
+  public static byte[] rowKey(final TSDB tsdb, final int series,
+      final long base_time) {
+    final short metric_width = tsdb.metrics.width();
+    final short tagk_width = tsdb.tag_names.width();
+    final short tagv_width = tsdb.tag_values.width();
+    final byte[] key = new byte[Const.SALT_WIDTH() + metric_width
+        + Const.TIMESTAMP_BYTES + tagk_width + tagv_width];
+    int pos = Const.SALT_WIDTH();
+    System.arraycopy(uid(metric_width, 1), 0, key, pos, metric_width);
+    pos += metric_width;
+    Bytes.setInt(key, (int) base_time, pos);
+    pos += Const.TIMESTAMP_BYTES;
+    System.arraycopy(uid(tagk_width, 1), 0, key, pos, tagk_width);
+    pos += tagk_width;
+    System.arraycopy(uid(tagv_width, series + 1), 0, key, pos, tagv_width);
+    RowKey.prefixKeyWithSalt(key);
+    return key;
+  }
+
+  /**
+   * Generates the cells of an hour long row.
+   * @param tsdb The TSDB, used for the UID widths.
+   * @param key The row key.
+   * @param points The number of data points in the row, spread evenly.
+   * @param ms Whether or not to write millisecond timestamps.
+   * @param layout How the cells are laid out.
+   * @param seed The seed for the values.
+   * @return The cells sorted by qualifier as storage would return them.
+   */
+  public static ArrayList<KeyValue> row(final TSDB tsdb, final byte[] key,
+      final int points, final boolean ms, final Layout layout,
+      final long seed) {
+    final Random random = new Random(seed);
+    final long base_time = Bytes.getUnsignedInt(key,
+        Const.SALT_WIDTH() + tsdb.metrics.width());
+    final byte[][] qualifiers = new byte[points][];
+    final byte[][] values = new byte[points][];
+    for (int i = 0; i < points; i++) {
+      final long timestamp = ms
+          ? base_time * 1000 + (long) i * (Const.MAX_TIMESPAN * 1000L / points)
+          : base_time + (long) i * (Const.MAX_TIMESPAN / points);
+      if (layout == Layout.HISTOGRAM) {
+        qualifiers[i] = Internal.getQualifier(timestamp,
+            HistogramDataPoint.PREFIX);
+        values[i] = histogram(random);
+      } else if (random.nextInt(4) == 0) {
+        values[i] = Bytes.fromInt(Float.floatToRawIntBits(
+            random.nextFloat() * 100));
+        qualifiers[i] = Internal.buildQualifier(timestamp,
+            (short) (Const.FLAG_FLOAT | 0x3));
+      } else {
+        values[i] = longValue(random);
+        qualifiers[i] = Internal.buildQualifier(timestamp,
+            (short) (values[i].length - 1));
+      }
+    }
+
+    final byte[] family = TSDB.FAMILY();
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>(points);
+    switch (layout) {
+    case RAW:
+    case HISTOGRAM:
+      for (int i = 0; i < points; i++) {
+        row.add(new KeyValue(key, family, qualifiers[i], values[i]));
+      }
+      break;
+    case COMPACTED:
+      row.add(compact(key, family, qualifiers, values, 0, points));
+      break;
+    case COMPACTED_AND_LATE:
+      final int compacted = points - points / 10;
+      row.add(compact(key, family, qualifiers, values, 0, compacted));
+      for (int i = compacted; i < points; i++) {
+        row.add(new KeyValue(key, family, qualifiers[i], values[i]));
+      }
+      break;
+    case APPEND:
+      row.add(new KeyValue(key, family, AppendDataPoints.APPEND_COLUMN_QUALIFIER,
+          MockBase.concatByteArrays(interleave(qualifiers, values))));
+      break;
+    default:
+      throw new IllegalArgumentException("Unknown layout: " + layout);
+    }
+    sortByQualifier(row);
+    return row;
+  }
+
+  /**
+   * Generates a span of consecutive rows for a series.
+   * @param tsdb The TSDB to use.
+   * @param series The series index.
+   * @param hours The number of rows.
+   * @param points The number of data points per row.
+   * @param ms Whether or not to write millisecond timestamps.
+   * @param layout How the cells of each row are laid out.
+   * @return The span.
+   * @throws IllegalArgumentException if the layout is for histograms.
+   */
+  public static Span span(final TSDB tsdb, final int series, final int hours,
+      final int points, final boolean ms, final Layout layout) {
+    if (layout == Layout.HISTOGRAM) {
+      throw new IllegalArgumentException("Histograms are not stored in spans");
+    }
+    final Span span = new Span(tsdb);
+    for (int hour = 0; hour < hours; hour++) {
+      final byte[] key = rowKey(tsdb, series,
+          BASE_TIME + hour * Const.MAX_TIMESPAN);
+      final ArrayList<KeyValue> row = row(tsdb, key, points, ms, layout,
+          series * 31L + hour);
+      final KeyValue compacted = tsdb.compact(row,
+          new ArrayList<Annotation>(0),
+          new ArrayList<HistogramDataPoint>(0));
+      span.addRow(compacted);
+    }
+    return span;
+  }
+
+  /**
+   * Aggregates spans into a group without downsampling or rates, as a query
+   * would for one group by set.
+   * @param tsdb The TSDB to use.
+   * @param spans The spans to aggregate.
+   * @param aggregator The name of the aggregator.
+   * @param hours The number of hours from {@link #BASE_TIME} to cover.
+   * @param query_index The index of the sub query the group belongs to.
+   * @return The group.
+   */
+  public static DataPoints group(final TSDB tsdb, final List<Span> spans,
+      final String aggregator, final int hours, final int query_index) {
+    final long end = BASE_TIME + hours * Const.MAX_TIMESPAN;
+    return new SpanGroup(tsdb, BASE_TIME, end, spans, false, new RateOptions(),
+        Aggregators.get(aggregator), null, BASE_TIME * 1000, end * 1000,
+        query_index);
+  }
+
+  /**
+   * @param random The random number generator.
+   * @return An integer value on the smallest of 1, 2, 4 or 8 bytes.
+   */
+  private static byte[] longValue(final Random random) {
+    final long value = random.nextLong() >> (random.nextInt(4) * 16 + 1);
+    if (value == (byte) value) {
+      return new byte[] { (byte) value };
+    } else if (value == (short) value) {
+      return Bytes.fromShort((short) value);
+    } else if (value == (int) value) {
+      return Bytes.fromInt((int) value);
+    }
+    return Bytes.fromLong(value);
+  }
+
+  /** @return An encoded histogram with a handful of buckets. */
+  private static byte[] histogram(final Random random) {
+    final SimpleHistogram histogram = new SimpleHistogram(HISTOGRAM_ID);
+    for (int i = 0; i < 8; i++) {
+      histogram.addBucket((float) i, (float) i + 1,
+          (long) random.nextInt(1000));
+    }
+    return histogram.histogram(true);
+  }
+
+  /** @return A compacted cell for the given range of data points. */
+  private static KeyValue compact(final byte[] key, final byte[] family,
+      final byte[][] qualifiers, final byte[][] values, final int start,
+      final int end) {
+    final byte[][] quals = new byte[end - start][];
+    final byte[][] vals = new byte[end - start + 1][];
+    for (int i = start; i < end; i++) {
+      quals[i - start] = qualifiers[i];
+      vals[i - start] = values[i];
+    }
+    vals[end - start] = new byte[] { 0 };
+    return new KeyValue(key, family, MockBase.concatByteArrays(quals),
+        MockBase.concatByteArrays(vals));
+  }
+
+  /** @return The qualifiers and values interleaved for an append. */
+  private static byte[][] interleave(final byte[][] qualifiers,
+      final byte[][] values) {
+    final byte[][] interleaved = new byte[qualifiers.length * 2][];
+    for (int i = 0; i < qualifiers.length; i++) {
+      interleaved[i * 2] = qualifiers[i];
+      interleaved[i * 2 + 1] = values[i];
+    }
+    return interleaved;
+  }
+
+  /** Sorts cells by qualifier, as storage returns them. */
+  private static void sortByQualifier(final List<KeyValue> row) {
+    Collections.sort(row, new Comparator<KeyValue>() {
+      @Override
+      public int compare(final KeyValue a, final KeyValue b) {
+        return Bytes.memcmp(a.qualifier(), b.qualifier());
+      }
+    });
+  }
+}
@@ -0,0 +1,209 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.BenchmarkData.Layout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code AggregationIterator} vs. {@code BlockAggregationIterator} when
+ * aggregating series downsampled with a fill policy.
+ * <p>
+ * {@code iterator} and {@code block} aggregate series that are already
+ * downsampled into arrays so only the aggregation is measured.
+ * {@code group} runs a whole {@link SpanGroup} with "1m-avg-nan"
+ * downsampling, with block aggregation switched on or off.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockAggregationBenchmark {
+
+  @Param({ "10", "100", "1000" })
+  int cardinality;
+
+  @Param({ "sum", "avg", "max" })
+  String aggregator;
+
+  @Param({ "false", "true" })
+  boolean block;
+
+  /** One day of one minute intervals */
+  private static final int INTERVALS = 1440;
+
+  private static final int HOURS = 24;
+
+  private TSDB tsdb;
+  private List<Span> spans;
+  private long[] timestamps;
+  private double[][] values;
+
+  @Setup
+  public void setup() throws Exception {
+    final Map<String, String> overrides = new HashMap<String, String>();
+    overrides.put("tsd.query.aggregation.block.enable", Boolean.toString(block));
+    tsdb = BenchmarkData.newTsdb(overrides);
+    final Random random = new Random(42);
+    timestamps = new long[INTERVALS];
+    values = new double[cardinality][INTERVALS];
+    for (int j = 0; j < INTERVALS; j++) {
+      timestamps[j] = BenchmarkData.BASE_TIME * 1000 + j * 60000L;
+    }
+    for (int i = 0; i < cardinality; i++) {
+      for (int j = 0; j < INTERVALS; j++) {
+        values[i][j] = random.nextInt(20) == 0 ? Double.NaN
+            : random.nextDouble() * 100;
+      }
+    }
+    spans = new ArrayList<Span>(cardinality);
+    for (int i = 0; i < cardinality; i++) {
+      // a point a minute
+      spans.add(BenchmarkData.span(tsdb, i, HOURS, 60, false,
+          Layout.COMPACTED));
+    }
+  }
+
+  @Benchmark
+  public double iterator() {
+    final long end = timestamps[INTERVALS - 1];
+    return drain(AggregationIterator.createForTesting(views(),
+        timestamps[0], end, Aggregators.get(aggregator),
+        Aggregators.get(aggregator).interpolationMethod(), false));
+  }
+
+  @Benchmark
+  public double block() {
+    final long end = timestamps[INTERVALS - 1];
+    return drain(new BlockAggregationIterator(views(), timestamps[0], end,
+        Aggregators.get(aggregator)));
+  }
+
+  @Benchmark
+  public double group() {
+    final long start = BenchmarkData.BASE_TIME;
+    final long end = start + HOURS * Const.MAX_TIMESPAN;
+    final SpanGroup group = new SpanGroup(tsdb, start, end, spans, false,
+        new RateOptions(), Aggregators.get(aggregator),
+        new DownsamplingSpecification("1m-avg-nan"),
+        start * 1000, end * 1000, 0);
+    return drain(group.iterator());
+  }
+
+  private SeekableView[] views() {
+    final SeekableView[] views = new SeekableView[cardinality];
+    for (int i = 0; i < cardinality; i++) {
+      views[i] = new ArrayView(timestamps, values[i]);
+    }
+    return views;
+  }
+
+  private static double drain(final SeekableView it) {
+    double sum = 0;
+    while (it.hasNext()) {
+      sum += it.next().toDouble();
+    }
+    return sum;
+  }
+
+  /** A downsampled series in arrays */
+  private static final class ArrayView implements SeekableView, DataPoint {
+    private final long[] timestamps;
+    private final double[] values;
+    private int index = -1;
+
+    ArrayView(final long[] timestamps, final double[] values) {
+      this.timestamps = timestamps;
+      this.values = values;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return index + 1 < timestamps.length;
+    }
+
+    @Override
+    public DataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      ++index;
+      return this;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void seek(final long timestamp) {
+      index = -1;
+      while (index + 1 < timestamps.length &&
+          timestamps[index + 1] < timestamp) {
+        ++index;
+      }
+    }
+
+    @Override
+    public long timestamp() {
+      return timestamps[index];
+    }
+
+    @Override
+    public boolean isInteger() {
+      return false;
+    }
+
+    @Override
+    public long longValue() {
+      throw new ClassCastException();
+    }
+
+    @Override
+    public double doubleValue() {
+      return values[index];
+    }
+
+    @Override
+    public double toDouble() {
+      return values[index];
+    }
+
+    @Override
+    public long valueCount() {
+      return 1;
+    }
+  }
+}
@@ -0,0 +1,92 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.BenchmarkData.Layout;
+import net.opentsdb.utils.DateTime;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Calendar aligned downsampling of many series in a {@link SpanGroup}, with
+ * the shared boundary table switched on or off. Hourly intervals over a week
+ * in a DST observing timezone make the per interval calendar work dominate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalendarDownsampleBenchmark {
+
+  @Param({ "10", "100", "1000" })
+  int cardinality;
+
+  @Param({ "1hc-sum", "1hc-avg-nan", "1dc-max" })
+  String downsample;
+
+  @Param({ "false", "true" })
+  boolean table;
+
+  /** One week */
+  private static final int HOURS = 24 * 7;
+
+  private TSDB tsdb;
+  private List<Span> spans;
+
+  @Setup
+  public void setup() throws Exception {
+    tsdb = BenchmarkData.newTsdb(null);
+    spans = new ArrayList<Span>(cardinality);
+    for (int i = 0; i < cardinality; i++) {
+      // a point every 12 seconds
+      spans.add(BenchmarkData.span(tsdb, i, HOURS, 300, false,
+          Layout.COMPACTED));
+    }
+  }
+
+  @Benchmark
+  public double group() {
+    final long start = BenchmarkData.BASE_TIME;
+    final long end = start + HOURS * Const.MAX_TIMESPAN;
+    // a new spec per run as the table is memoized in it
+    final DownsamplingSpecification specification =
+        new DownsamplingSpecification(downsample);
+    specification.setTimezone(DateTime.timezones.get("America/Denver"));
+    specification.setCalendarTables(table);
+    final SpanGroup group = new SpanGroup(tsdb, start, end, spans, false,
+        new RateOptions(), Aggregators.SUM, specification,
+        start * 1000, end * 1000, 0);
+    double sum = 0;
+    final SeekableView it = group.iterator();
+    while (it.hasNext()) {
+      sum += it.next().toDouble();
+    }
+    return sum;
+  }
+}
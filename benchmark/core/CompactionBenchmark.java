@@ -0,0 +1,80 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.BenchmarkData.Layout;
+import net.opentsdb.meta.Annotation;
+
+import org.hbase.async.KeyValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compaction of a single row as done by the compaction queue and by queries
+ * that compact rows on the fly. Compactions are disabled in the TSDB so that
+ * nothing is written back.
+ * <p>
+ * {@code compact} runs the full compaction, {@code sortedMerge} only the
+ * allocation-light merge that handles well-formed rows and bails out on
+ * appends, histograms and duplicates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompactionBenchmark {
+
+  @Param({ "60", "3600" })
+  int points;
+
+  @Param({ "false", "true" })
+  boolean ms;
+
+  @Param({ "RAW", "COMPACTED_AND_LATE", "APPEND", "HISTOGRAM" })
+  Layout layout;
+
+  private TSDB tsdb;
+  private ArrayList<KeyValue> row;
+
+  @Setup
+  public void setup() throws Exception {
+    tsdb = BenchmarkData.newTsdb(null);
+    row = BenchmarkData.row(tsdb, BenchmarkData.rowKey(tsdb, 0,
+        BenchmarkData.BASE_TIME), points, ms, layout, 42);
+  }
+
+  @Benchmark
+  public KeyValue compact() {
+    return tsdb.compact(row, new ArrayList<Annotation>(0),
+        new ArrayList<HistogramDataPoint>(0));
+  }
+
+  @Benchmark
+  public KeyValue sortedMerge() {
+    return SortedColumnMerger.merge(row);
+  }
+}
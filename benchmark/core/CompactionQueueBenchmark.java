@@ -0,0 +1,143 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.BenchmarkData.Layout;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.KeyValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Time to drain a fixed backlog of rows with {@link CompactionQueue#flush()}
+ * as the number of shards grows. Each shard reads at most
+ * {@code tsd.storage.compaction.max_concurrent_flushes} rows at a time and the
+ * shards are flushed concurrently, so with reads taking {@code latency}
+ * microseconds more shards keep more reads in flight. The rows come back
+ * compacted and compactions are disabled so nothing is written back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CompactionQueueBenchmark {
+
+  @Param({ "1", "2", "4", "8" })
+  int shards;
+
+  @Param({ "100000" })
+  int backlog;
+
+  /** Rows read at a time per shard */
+  @Param({ "1000" })
+  int window;
+
+  /** Latency of a row read in microseconds */
+  @Param({ "500" })
+  int latency;
+
+  private ScheduledExecutorService storage;
+  private CompactionQueue queue;
+  private byte[][] rows;
+
+  @Setup
+  public void setup() throws Exception {
+    final Map<String, String> overrides = new HashMap<String, String>();
+    overrides.put("tsd.storage.compaction.shards", Integer.toString(shards));
+    overrides.put("tsd.storage.compaction.max_concurrent_flushes",
+        Integer.toString(window));
+    storage = Executors.newScheduledThreadPool(4);
+    final LaggingTsdb tsdb = new LaggingTsdb(
+        BenchmarkData.newConfig(overrides));
+    queue = new CompactionQueue(tsdb);
+    rows = new byte[backlog][];
+    for (int i = 0; i < backlog; i++) {
+      rows[i] = BenchmarkData.rowKey(tsdb, i, BenchmarkData.BASE_TIME);
+      tsdb.cells.put(rows[i], BenchmarkData.row(tsdb, rows[i], 1, false,
+          Layout.COMPACTED, i));
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void fill() {
+    for (final byte[] row : rows) {
+      queue.add(row);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    storage.shutdownNow();
+  }
+
+  /** @return The number of flushes it took to drain the queue. */
+  @Benchmark
+  public int flush() throws Exception {
+    int flushes = 0;
+    // a flush skips about a third of the rows at random, see flush()
+    while (queue.size() > 0) {
+      queue.flush().joinUninterruptibly();
+      flushes++;
+    }
+    return flushes;
+  }
+
+  /** A TSDB whose row reads complete on a timer after the latency. */
+  private final class LaggingTsdb extends TSDB {
+    /** The cells of each row, by row key instance */
+    final IdentityHashMap<byte[], ArrayList<KeyValue>> cells =
+        new IdentityHashMap<byte[], ArrayList<KeyValue>>();
+
+    LaggingTsdb(final Config config) {
+      super(config);
+    }
+
+    @Override
+    Deferred<ArrayList<KeyValue>> get(final byte[] key) {
+      final Deferred<ArrayList<KeyValue>> deferred =
+          new Deferred<ArrayList<KeyValue>>();
+      final ArrayList<KeyValue> row = cells.get(key);
+      storage.schedule(new Runnable() {
+        @Override
+        public void run() {
+          deferred.callback(row);
+        }
+      }, latency, TimeUnit.MICROSECONDS);
+      return deferred;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.BenchmarkData.Layout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Downsampling a single series, aggregating through the {@code Doubles}
+ * calls of the downsampling function vs. folding the values into the
+ * primitive state of an {@link IntervalAccumulator}. The span is read either
+ * from its rows or from its materialized arrays. Run with {@code -prof gc} to
+ * compare the allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DownsampleBenchmark {
+
+  @Param({ "1m-sum", "1m-avg-nan", "1h-max", "1m-median" })
+  String downsample;
+
+  @Param({ "false", "true" })
+  boolean materialized;
+
+  @Param({ "false", "true" })
+  boolean accumulator;
+
+  /** One day */
+  private static final int HOURS = 24;
+
+  private Span span;
+  private DownsamplingSpecification specification;
+
+  @Setup
+  public void setup() throws Exception {
+    final TSDB tsdb = BenchmarkData.newTsdb(null);
+    // a point every 10 seconds
+    span = BenchmarkData.span(tsdb, 0, HOURS, 360, false, Layout.COMPACTED);
+    if (materialized) {
+      span.materialize();
+    }
+    specification = new DownsamplingSpecification(downsample);
+    specification.setIntervalAccumulator(accumulator);
+  }
+
+  @Benchmark
+  public double downsample() {
+    final long start = BenchmarkData.BASE_TIME * 1000;
+    final long end = start + HOURS * Const.MAX_TIMESPAN * 1000L;
+    final Downsampler downsampler;
+    if (specification.getFillPolicy() == FillPolicy.NONE) {
+      downsampler = new Downsampler(span.spanIterator(), specification,
+          start, end);
+    } else {
+      downsampler = new FillingDownsampler(span.spanIterator(), start, end,
+          specification, start, end);
+    }
+    double sum = 0;
+    while (downsampler.hasNext()) {
+      sum += downsampler.next().toDouble();
+    }
+    return sum;
+  }
+}
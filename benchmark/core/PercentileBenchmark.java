@@ -0,0 +1,87 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The exact percentile aggregators vs. the sketch based ones on the values
+ * of one output point, i.e. one value per series of a group by or one value
+ * per raw point of a downsampling interval. The values are long tailed like
+ * latencies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PercentileBenchmark {
+
+  @Param({ "100", "1000", "10000" })
+  int values;
+
+  @Param({ "p99", "ep99r7", "sp99" })
+  String aggregator;
+
+  private double[] data;
+  private Aggregator agg;
+
+  @Setup
+  public void setup() {
+    final Random random = new Random(42);
+    data = new double[values];
+    for (int i = 0; i < values; i++) {
+      data[i] = Math.exp(random.nextGaussian() * 2 + 8);
+    }
+    agg = Aggregators.get(aggregator);
+  }
+
+  @Benchmark
+  public double run() {
+    return agg.runDouble(new ArrayDoubles(data));
+  }
+
+  /** Iterates over an array */
+  private static final class ArrayDoubles implements Aggregator.Doubles {
+    private final double[] values;
+    private int index;
+
+    ArrayDoubles(final double[] values) {
+      this.values = values;
+    }
+
+    @Override
+    public boolean hasNextValue() {
+      return index < values.length;
+    }
+
+    @Override
+    public double nextDoubleValue() {
+      return values[index++];
+    }
+  }
+}
@@ -0,0 +1,86 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hbase.async.Bytes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The CPU side of ingesting a data point: resolving the series to a row key
+ * template through the UID caches, or the row key cache when enabled, and
+ * building the qualifier. All UIDs are cached so nothing goes to storage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowKeyBenchmark {
+
+  @Param({ "false", "true" })
+  boolean row_key_cache;
+
+  @Param({ "1000", "100000" })
+  int cardinality;
+
+  private TSDB tsdb;
+  private Map<String, String>[] tags;
+  private int next;
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setup() throws Exception {
+    final Map<String, String> overrides = new HashMap<String, String>();
+    overrides.put("tsd.core.row_key_cache.enable",
+        Boolean.toString(row_key_cache));
+    tsdb = BenchmarkData.newTsdb(overrides);
+    BenchmarkData.cacheSeries(tsdb, cardinality);
+    tags = new Map[cardinality];
+    for (int i = 0; i < cardinality; i++) {
+      tags[i] = BenchmarkData.tags(i);
+    }
+  }
+
+  @Benchmark
+  public void rowKeyAndQualifier(final Blackhole blackhole) {
+    final int series = next;
+    if (++next == cardinality) {
+      next = 0;
+    }
+    final byte[] row = IncomingDataPoints.rowKeyTemplate(tsdb,
+        BenchmarkData.METRIC, tags[series]);
+    final long timestamp = BenchmarkData.BASE_TIME + series;
+    final long base_time = timestamp - (timestamp % Const.MAX_TIMESPAN);
+    Bytes.setInt(row, (int) base_time,
+        Const.SALT_WIDTH() + tsdb.metrics.width());
+    RowKey.prefixKeyWithSalt(row);
+    blackhole.consume(row);
+    blackhole.consume(Internal.buildQualifier(timestamp, (short) 7));
+  }
+}
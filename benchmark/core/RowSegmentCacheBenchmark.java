@@ -0,0 +1,89 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.BenchmarkData.Layout;
+import net.opentsdb.meta.Annotation;
+
+import org.hbase.async.KeyValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What a query pays for an immutable raw row that was already read by an
+ * earlier query: {@code compact} compacts the scanned cells again,
+ * {@code scanHit} validates them against the row cache instead and
+ * {@code keyOnlyHit} validates the cells of a key only scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowSegmentCacheBenchmark {
+
+  @Param({ "60", "3600" })
+  int points;
+
+  @Param({ "false", "true" })
+  boolean ms;
+
+  private TSDB tsdb;
+  private byte[] key;
+  private ArrayList<KeyValue> row;
+  private ArrayList<KeyValue> keys;
+  private RowSegmentCache cache;
+
+  @Setup
+  public void setup() throws Exception {
+    tsdb = BenchmarkData.newTsdb(null);
+    key = BenchmarkData.rowKey(tsdb, 0, BenchmarkData.BASE_TIME);
+    row = BenchmarkData.row(tsdb, key, points, ms, Layout.RAW, 42);
+    keys = new ArrayList<KeyValue>(row.size());
+    for (final KeyValue kv : row) {
+      keys.add(new KeyValue(key, kv.family(), kv.qualifier(), kv.timestamp(),
+          new byte[0]));
+    }
+    cache = new RowSegmentCache(64 * 1024 * 1024, 0, 1);
+    cache.put(key, row, compact());
+  }
+
+  @Benchmark
+  public KeyValue compact() {
+    return tsdb.compact(row, new ArrayList<Annotation>(0),
+        new ArrayList<HistogramDataPoint>(0));
+  }
+
+  @Benchmark
+  public KeyValue scanHit() {
+    return cache.get(key, row);
+  }
+
+  @Benchmark
+  public KeyValue keyOnlyHit() {
+    return cache.get(key, keys);
+  }
+}
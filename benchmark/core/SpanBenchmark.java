@@ -0,0 +1,135 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.BenchmarkData.Layout;
+import net.opentsdb.meta.Annotation;
+
+import org.hbase.async.KeyValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding a day of scanned rows for one series into a {@link Span} and
+ * iterating over the data points, as a query does after a scan.
+ * <p>
+ * {@code decode} starts from rows that were already compacted and measures
+ * {@code RowSeq.addRow} and iteration. {@code compactAndDecode} starts from
+ * the cells as stored and includes the on-the-fly compaction the scanner
+ * does for each row. {@code iterateTwice} and {@code materializeAndIterateTwice}
+ * compare reading a complete span twice, as expressions do, from the rows
+ * and from the arrays of a materialized span.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpanBenchmark {
+
+  @Param({ "24" })
+  int hours;
+
+  @Param({ "60", "3600" })
+  int points;
+
+  @Param({ "false", "true" })
+  boolean ms;
+
+  @Param({ "RAW", "COMPACTED", "APPEND" })
+  Layout layout;
+
+  private TSDB tsdb;
+  private List<ArrayList<KeyValue>> stored;
+  private List<KeyValue> compacted;
+
+  @Setup
+  public void setup() throws Exception {
+    tsdb = BenchmarkData.newTsdb(null);
+    stored = new ArrayList<ArrayList<KeyValue>>(hours);
+    compacted = new ArrayList<KeyValue>(hours);
+    for (int hour = 0; hour < hours; hour++) {
+      final byte[] key = BenchmarkData.rowKey(tsdb, 0,
+          BenchmarkData.BASE_TIME + hour * Const.MAX_TIMESPAN);
+      final ArrayList<KeyValue> row = BenchmarkData.row(tsdb, key, points, ms,
+          layout, hour);
+      stored.add(row);
+      compacted.add(compact(row));
+    }
+  }
+
+  @Benchmark
+  public double decode() {
+    final Span span = new Span(tsdb);
+    for (final KeyValue row : compacted) {
+      span.addRow(row);
+    }
+    return iterate(span);
+  }
+
+  @Benchmark
+  public double compactAndDecode() {
+    final Span span = new Span(tsdb);
+    for (final ArrayList<KeyValue> row : stored) {
+      span.addRow(compact(row));
+    }
+    return iterate(span);
+  }
+
+  @Benchmark
+  public double iterateTwice() {
+    final Span span = new Span(tsdb);
+    for (final KeyValue row : compacted) {
+      span.addRow(row);
+    }
+    return iterate(span) + iterate(span);
+  }
+
+  @Benchmark
+  public double materializeAndIterateTwice() {
+    final Span span = new Span(tsdb);
+    for (final KeyValue row : compacted) {
+      span.addRow(row);
+    }
+    span.materialize();
+    return iterate(span) + iterate(span);
+  }
+
+  private KeyValue compact(final ArrayList<KeyValue> row) {
+    return tsdb.compact(row, new ArrayList<Annotation>(0),
+        new ArrayList<HistogramDataPoint>(0));
+  }
+
+  private static double iterate(final Span span) {
+    double sum = 0;
+    final SeekableView it = span.iterator();
+    while (it.hasNext()) {
+      sum += it.next().toDouble();
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,186 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.BenchmarkData.Layout;
+
+import org.hbase.async.KeyValue;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding the compacted rows of a scan into spans the way {@link SaltScanner}
+ * does, either once all rows were scanned or after each batch as with
+ * "tsd.query.scan.streaming_decode".
+ * <p>
+ * The heap retained at the peak of each mode is measured once per trial and
+ * reported with {@code decode} as the {@code peak_heap_bytes} counter, next
+ * to the bytes of the column arrays and the estimate recorded as
+ * "peakBytesRetained" in the query stats. The rows are
+ * generated inside the measured region as the scanner would receive them.
+ * Decoded rows keep the column arrays so streaming only saves the KeyValues
+ * and the lists holding them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class StreamingDecodeBenchmark {
+
+  @Param({ "1000", "10000" })
+  int series;
+
+  @Param({ "24" })
+  int hours;
+
+  @Param({ "60" })
+  int points;
+
+  /** Rows per scanner batch, the default of "tsd.query.scanner.maxNumRows" */
+  @Param({ "128" })
+  int batch;
+
+  @Param({ "false", "true" })
+  boolean streaming;
+
+  private TSDB tsdb;
+  private List<KeyValue> rows;
+
+  /** The heap measured at the peak of the decode */
+  private long peak_heap_bytes;
+  private long column_bytes;
+  private long estimated_bytes;
+
+  /** What the decode holds at its peak, kept reachable while measuring */
+  private TreeMap<byte[], Span> held_spans;
+  private List<KeyValue> held_kvs;
+
+  @Setup
+  public void setup() throws Exception {
+    tsdb = BenchmarkData.newTsdb(null);
+    final int count = series * hours;
+
+    final long before = usedHeap();
+    held_spans = newSpans();
+    held_kvs = new ArrayList<KeyValue>();
+    long columns = 0;
+    for (int i = 0; i < count; i++) {
+      final KeyValue kv = row(i);
+      columns += kv.key().length + kv.qualifier().length + kv.value().length;
+      held_kvs.add(kv);
+      if (streaming && held_kvs.size() == batch && i < count - 1) {
+        decode(held_kvs, held_spans);
+        held_kvs.clear();
+      }
+    }
+    // without streaming the columns and the spans are held until the merge
+    decode(held_kvs, held_spans);
+    peak_heap_bytes = usedHeap() - before;
+    column_bytes = columns;
+    estimated_bytes = columns + held_kvs.size()
+        * (long) SaltScanner.KEY_VALUE_OVERHEAD
+        + count * (long) SaltScanner.ROW_SEQ_OVERHEAD;
+    held_spans = null;
+    held_kvs = null;
+
+    rows = new ArrayList<KeyValue>(count);
+    for (int i = 0; i < count; i++) {
+      rows.add(row(i));
+    }
+  }
+
+  @Benchmark
+  public TreeMap<byte[], Span> decode(final Heap heap) {
+    heap.peak_heap_bytes = peak_heap_bytes;
+    heap.column_bytes = column_bytes;
+    heap.estimated_bytes = estimated_bytes;
+    final TreeMap<byte[], Span> spans = newSpans();
+    final List<KeyValue> kvs = new ArrayList<KeyValue>();
+    for (final KeyValue kv : rows) {
+      kvs.add(kv);
+      if (streaming && kvs.size() == batch) {
+        decode(kvs, spans);
+        kvs.clear();
+      }
+    }
+    decode(kvs, spans);
+    return spans;
+  }
+
+  /**
+   * @param index The index of the row in scan order, series first.
+   * @return The compacted column of the row.
+   */
+  private KeyValue row(final int index) {
+    final int s = index / hours;
+    final int hour = index % hours;
+    final byte[] key = BenchmarkData.rowKey(tsdb, s,
+        BenchmarkData.BASE_TIME + hour * Const.MAX_TIMESPAN);
+    return BenchmarkData.row(tsdb, key, points, false, Layout.COMPACTED,
+        s * 31L + hour).get(0);
+  }
+
+  /** @return A span map keyed on the series as the query builds it. */
+  private TreeMap<byte[], Span> newSpans() {
+    return new TreeMap<byte[], Span>(
+        new TsdbQuery.SpanCmp(tsdb.metrics.width()));
+  }
+
+  private void decode(final List<KeyValue> kvs,
+      final TreeMap<byte[], Span> spans) {
+    for (final KeyValue kv : kvs) {
+      Span span = spans.get(kv.key());
+      if (span == null) {
+        span = new Span(tsdb);
+        spans.put(kv.key(), span);
+      }
+      span.addRow(kv);
+    }
+  }
+
+  /** The heap of the trial's decode, reported with each iteration */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Heap {
+    public long peak_heap_bytes;
+    public long column_bytes;
+    public long estimated_bytes;
+  }
+
+  /** @return The heap in use after a few rounds of garbage collection. */
+  private static long usedHeap() throws InterruptedException {
+    final Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,116 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.BenchmarkData;
+import net.opentsdb.core.Tags;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing telnet style {@code put} lines. {@code splitter} follows the
+ * default path of decoding the frame to a String, splitting it into words
+ * and parsing each word as {@code PutDataPointRpc} does. {@code decoder}
+ * uses the zero-copy {@link PutDataPointDecoder}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PutDecodeBenchmark {
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  @Param({ "1", "8" })
+  int tags;
+
+  @Param({ "1000" })
+  int cardinality;
+
+  @Param({ "false", "true" })
+  boolean floats;
+
+  private byte[][] lines;
+  private PutDataPointDecoder decoder;
+  private int next;
+
+  @Setup
+  public void setup() {
+    decoder = new PutDataPointDecoder();
+    lines = new byte[cardinality][];
+    for (int i = 0; i < cardinality; i++) {
+      final StringBuilder buf = new StringBuilder("put ")
+          .append(BenchmarkData.METRIC).append(' ')
+          .append(BenchmarkData.BASE_TIME + i).append(' ');
+      if (floats) {
+        buf.append(i * 1.25);
+      } else {
+        buf.append(i * 1000L);
+      }
+      buf.append(' ').append(BenchmarkData.TAGK).append('=')
+          .append(BenchmarkData.tagValue(i));
+      for (int j = 1; j < tags; j++) {
+        buf.append(" tagk").append(j).append("=tagv").append(j);
+      }
+      lines[i] = buf.toString().getBytes(CHARSET);
+    }
+  }
+
+  @Benchmark
+  public void splitter(final Blackhole blackhole) {
+    final String[] words = Tags.splitString(new String(nextLine(), CHARSET),
+        ' ');
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    for (int i = 4; i < words.length; i++) {
+      Tags.parse(tags, words[i]);
+    }
+    blackhole.consume(words[1]);
+    blackhole.consume(Tags.parseLong(words[2]));
+    if (Tags.looksLikeInteger(words[3])) {
+      blackhole.consume(Tags.parseLong(words[3]));
+    } else {
+      blackhole.consume(Float.parseFloat(words[3]));
+    }
+    blackhole.consume(tags);
+  }
+
+  @Benchmark
+  public Object decoder() {
+    final byte[] line = nextLine();
+    return decoder.parse(line, 0, line.length);
+  }
+
+  private byte[] nextLine() {
+    final byte[] line = lines[next];
+    if (++next == lines.length) {
+      next = 0;
+    }
+    return line;
+  }
+}
@@ -0,0 +1,114 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.BenchmarkData;
+import net.opentsdb.core.BenchmarkData.Layout;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.Span;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.core.TSSubQuery;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.QueryStats;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serializing query results to JSON with
+ * {@link HttpJsonSerializer#formatQueryAsyncV1}, one result per series as a
+ * query grouping by host would return. UIDs are cached so the name
+ * resolution doesn't go to storage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+  @Param({ "10", "1000" })
+  int cardinality;
+
+  @Param({ "6" })
+  int hours;
+
+  /** Points per series per hour, 360 is a point every 10 seconds */
+  @Param({ "360" })
+  int points;
+
+  @Param({ "false", "true" })
+  boolean arrays;
+
+  private HttpJsonSerializer serializer;
+  private TSQuery query;
+  private List<DataPoints[]> results;
+
+  @Setup
+  public void setup() throws Exception {
+    final TSDB tsdb = BenchmarkData.newTsdb(null);
+    BenchmarkData.cacheSeries(tsdb, cardinality);
+
+    final DataPoints[] groups = new DataPoints[cardinality];
+    for (int i = 0; i < cardinality; i++) {
+      final Span span = BenchmarkData.span(tsdb, i, hours, points, false,
+          Layout.COMPACTED);
+      groups[i] = BenchmarkData.group(tsdb, Collections.singletonList(span),
+          "sum", hours, 0);
+    }
+    results = new ArrayList<DataPoints[]>(1);
+    results.add(groups);
+
+    final TSSubQuery sub_query = new TSSubQuery();
+    sub_query.setMetric(BenchmarkData.METRIC);
+    sub_query.setAggregator("sum");
+    final ArrayList<TSSubQuery> sub_queries = new ArrayList<TSSubQuery>(1);
+    sub_queries.add(sub_query);
+    query = new TSQuery();
+    query.setStart(Long.toString(BenchmarkData.BASE_TIME));
+    query.setEnd(Long.toString(BenchmarkData.BASE_TIME + hours * 3600L));
+    query.setQueries(sub_queries);
+    query.validateAndSetQuery();
+    query.setQueryStats(new QueryStats("127.0.0.1", query, null));
+
+    serializer = new HttpJsonSerializer(new HttpQuery(tsdb,
+        new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+            "/api/query" + (arrays ? "?arrays=true" : "")), null));
+  }
+
+  @Benchmark
+  public ChannelBuffer formatQuery() throws Exception {
+    return serializer.formatQueryAsyncV1(query, results,
+        Collections.<Annotation>emptyList()).joinUninterruptibly();
+  }
+}
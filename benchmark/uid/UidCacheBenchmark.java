@@ -0,0 +1,128 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.opentsdb.core.BenchmarkData;
+import net.opentsdb.core.TSDB;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups against a fully populated UID cache for each of the cache
+ * implementations. The retained heap of the populated cache is measured once
+ * per trial and reported with each benchmark as the {@code footprint_bytes}
+ * and {@code bytes_per_mapping} counters, run with {@code -prof gc} to also
+ * see the garbage each lookup creates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class UidCacheBenchmark {
+
+  /** The cache implementation: "default", "lru" or "primitive" */
+  @Param({ "default", "lru", "primitive" })
+  String cache;
+
+  @Param({ "100000", "1000000" })
+  int size;
+
+  private UniqueId uid;
+  private String[] names;
+  private byte[][] ids;
+  private int next;
+
+  /** The heap retained by the populated cache, in total and per mapping */
+  private long footprint;
+  private long per_mapping;
+
+  @Setup
+  public void setup() throws Exception {
+    final Map<String, String> overrides = new HashMap<String, String>();
+    overrides.put("tsd.uid.lru.enable", Boolean.toString("lru".equals(cache)));
+    overrides.put("tsd.uid.primitive_cache.enable",
+        Boolean.toString("primitive".equals(cache)));
+    final TSDB tsdb = BenchmarkData.newTsdb(overrides);
+    names = new String[size];
+    ids = new byte[size][];
+    for (int i = 0; i < size; i++) {
+      names[i] = BenchmarkData.tagValue(i);
+      ids[i] = BenchmarkData.uid(3, i + 1);
+    }
+
+    final long before = usedHeap();
+    uid = new UniqueId(tsdb, tsdb.uidTable(), "tagv", 3, false);
+    for (int i = 0; i < size; i++) {
+      BenchmarkData.cacheUid(uid, names[i], ids[i]);
+    }
+    footprint = usedHeap() - before;
+    per_mapping = footprint / size;
+  }
+
+  @Benchmark
+  public byte[] getId(final Footprint counters) {
+    counters.footprint_bytes = footprint;
+    counters.bytes_per_mapping = per_mapping;
+    return uid.getId(names[nextIndex()]);
+  }
+
+  @Benchmark
+  public String getName(final Footprint counters) {
+    counters.footprint_bytes = footprint;
+    counters.bytes_per_mapping = per_mapping;
+    return uid.getName(ids[nextIndex()]);
+  }
+
+  private int nextIndex() {
+    final int index = next;
+    if (++next == size) {
+      next = 0;
+    }
+    return index;
+  }
+
+  /** The footprint of the trial's cache, reported with each iteration */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Footprint {
+    public long footprint_bytes;
+    public long bytes_per_mapping;
+  }
+
+  /** @return The heap in use after a few rounds of garbage collection. */
+  private static long usedHeap() throws InterruptedException {
+    final Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -15,3 +15,8 @@ if [ ! -d src-test ]; then
   mkdir src-test/net
   (cd src-test/net && ln -s ../../test opentsdb)
 fi
+if [ ! -d src-benchmark ]; then
+  mkdir src-benchmark
+  mkdir src-benchmark/net
+  (cd src-benchmark/net && ln -s ../../benchmark opentsdb)
+fi
@@ -0,0 +1,210 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * A bounded thread pool that aggregates the {@link SpanGroup}s of a query in
+ * parallel once the scan has completed. Each group is materialized on a pool
+ * thread so that serialization only walks arrays and the aggregation work no
+ * longer runs serially on the HBase client or Netty I/O thread that completed
+ * the scan.
+ * <p>
+ * The deferred returned by {@link #aggregate} is called back on the pool
+ * thread that finished the last group. If the pool's queue is full, groups
+ * are aggregated on the calling thread instead. The CPU time spent on the
+ * groups of a sub query is recorded as {@link QueryStat#AGGREGATION_CPU_TIME}
+ * when the JVM supports thread CPU time measurement.
+ * @since 2.4
+ */
+final class AggregationExecutor {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(AggregationExecutor.class);
+
+  /** The pool running the aggregations */
+  private final ThreadPoolExecutor pool;
+
+  /** Queries with fewer groups than this are aggregated during serialization */
+  private final int min_groups;
+
+  /** Used to measure the CPU time per thread, null if not supported */
+  private final ThreadMXBean thread_mx;
+
+  /** Number of groups aggregated */
+  private final AtomicLong groups = new AtomicLong();
+
+  /** Number of groups aggregated on the caller thread due to a full queue */
+  private final AtomicLong rejected = new AtomicLong();
+
+  /** CPU time, in nanoseconds, spent aggregating */
+  private final AtomicLong cpu_time = new AtomicLong();
+
+  /**
+   * Default ctor. Starts the thread pool.
+   * @param tsdb The TSDB we belong to.
+   * @throws IllegalArgumentException if the config was invalid.
+   */
+  AggregationExecutor(final TSDB tsdb) {
+    int threads = tsdb.getConfig().getInt(
+        "tsd.query.aggregation.parallel.threads");
+    final int max_pending = tsdb.getConfig().getInt(
+        "tsd.query.aggregation.parallel.max_pending");
+    min_groups = tsdb.getConfig().getInt(
+        "tsd.query.aggregation.parallel.min_groups");
+    if (threads < 1) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    if (max_pending < 1) {
+      throw new IllegalArgumentException(
+          "The aggregation max pending must be greater than zero");
+    }
+    pool = new ThreadPoolExecutor(threads, threads,
+        60000, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(max_pending), new AggThdFactory());
+
+    final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    if (mx.isCurrentThreadCpuTimeSupported()) {
+      if (!mx.isThreadCpuTimeEnabled()) {
+        mx.setThreadCpuTimeEnabled(true);
+      }
+      thread_mx = mx;
+    } else {
+      LOG.warn("Thread CPU time is not supported by this JVM, aggregation "
+          + "CPU time will not be reported");
+      thread_mx = null;
+    }
+    LOG.info("Aggregating query groups with " + threads + " threads");
+  }
+
+  /**
+   * Materializes the groups in parallel.
+   * @param results The groups of a sub query. Anything that isn't a
+   * {@link SpanGroup} is passed through as is.
+   * @param query_stats An optional stats object to record the CPU time to.
+   * @param query_index The index of the sub query for the stats.
+   * @return A deferred called back with the same array once every group was
+   * aggregated, or with the first exception thrown during aggregation.
+   */
+  Deferred<DataPoints[]> aggregate(final DataPoints[] results,
+      final QueryStats query_stats, final int query_index) {
+    if (results.length < min_groups) {
+      return Deferred.fromResult(results);
+    }
+    final Deferred<DataPoints[]> deferred = new Deferred<DataPoints[]>();
+    final AtomicInteger remaining = new AtomicInteger(results.length);
+    final AtomicLong query_cpu_time = new AtomicLong();
+    final AtomicReference<Exception> error = new AtomicReference<Exception>();
+
+    /** Materializes one group and completes the deferred after the last */
+    final class Task implements Runnable {
+      private final DataPoints dps;
+
+      Task(final DataPoints dps) {
+        this.dps = dps;
+      }
+
+      @Override
+      public void run() {
+        final long start = cpuTime();
+        try {
+          if (error.get() == null && dps instanceof SpanGroup) {
+            ((SpanGroup) dps).materialize();
+          }
+        } catch (Exception e) {
+          error.compareAndSet(null, e);
+        } finally {
+          query_cpu_time.addAndGet(cpuTime() - start);
+        }
+        if (remaining.decrementAndGet() == 0) {
+          groups.addAndGet(results.length);
+          cpu_time.addAndGet(query_cpu_time.get());
+          if (query_stats != null && thread_mx != null) {
+            query_stats.addStat(query_index, QueryStat.AGGREGATION_CPU_TIME,
+                query_cpu_time.get());
+          }
+          if (error.get() != null) {
+            deferred.callback(error.get());
+          } else {
+            deferred.callback(results);
+          }
+        }
+      }
+    }
+
+    for (final DataPoints dps : results) {
+      final Task task = new Task(dps);
+      try {
+        pool.execute(task);
+      } catch (RejectedExecutionException e) {
+        rejected.incrementAndGet();
+        task.run();
+      }
+    }
+    return deferred;
+  }
+
+  /** @return The CPU time of the current thread in nanoseconds or 0 */
+  private long cpuTime() {
+    return thread_mx == null ? 0 : thread_mx.getCurrentThreadCpuTime();
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("query.aggregation.groups", groups.get());
+    collector.record("query.aggregation.rejected", rejected.get());
+    collector.record("query.aggregation.cpu_time",
+        cpu_time.get() / 1000000);
+    collector.record("query.aggregation.queue.size", pool.getQueue().size());
+    collector.record("query.aggregation.active", pool.getActiveCount());
+  }
+
+  /** Stops the pool, aggregations already queued are still run. */
+  void shutdown() {
+    pool.shutdown();
+  }
+
+  /** Names the pool threads and keeps them from blocking the JVM exit */
+  private static final class AggThdFactory implements ThreadFactory {
+    private final AtomicInteger id = new AtomicInteger(0);
+
+    @Override
+    public Thread newThread(final Runnable r) {
+      final Thread thread = new Thread(r, "Aggregation #"
+          + id.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
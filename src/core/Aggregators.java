@@ -172,6 +172,29 @@ public final class Aggregators {
   public static final PercentileAgg ep50r7 = 
       new PercentileAgg(50d, "ep50r7", EstimationType.R_7);
 
+  /** Aggregator that returns the 99.9th percentile from a sketch. */
+  public static final SketchPercentileAgg sp999 =
+      new SketchPercentileAgg(99.9d, "sp999");
+  /** Aggregator that returns the 99th percentile from a sketch. */
+  public static final SketchPercentileAgg sp99 =
+      new SketchPercentileAgg(99d, "sp99");
+  /** Aggregator that returns the 95th percentile from a sketch. */
+  public static final SketchPercentileAgg sp95 =
+      new SketchPercentileAgg(95d, "sp95");
+  /** Aggregator that returns the 90th percentile from a sketch. */
+  public static final SketchPercentileAgg sp90 =
+      new SketchPercentileAgg(90d, "sp90");
+  /** Aggregator that returns the 75th percentile from a sketch. */
+  public static final SketchPercentileAgg sp75 =
+      new SketchPercentileAgg(75d, "sp75");
+  /** Aggregator that returns the 50th percentile from a sketch. */
+  public static final SketchPercentileAgg sp50 =
+      new SketchPercentileAgg(50d, "sp50");
+
+  /** A sketch per thread reused by the sketch percentile aggregators */
+  private static final ThreadLocal<QuantileSketch> sketches =
+      new ThreadLocal<QuantileSketch>();
+
   static {
     aggregators = new HashMap<String, Aggregator>(8);
     aggregators.put("sum", SUM);
@@ -200,6 +223,13 @@ public final class Aggregators {
     for (PercentileAgg agg : percentiles) {
         aggregators.put(agg.toString(), agg);
     }
+
+    final SketchPercentileAgg[] sketch_percentiles = {
+       sp999, sp99, sp95, sp90, sp75, sp50
+    };
+    for (final SketchPercentileAgg agg : sketch_percentiles) {
+      aggregators.put(agg.toString(), agg);
+    }
   }
 
   private Aggregators() {
@@ -227,6 +257,32 @@ public final class Aggregators {
     throw new NoSuchElementException("No such aggregator: " + name);
   }
 
+  /**
+   * Returns a sketch percentile aggregator with the given sketch settings.
+   * @param aggregator The aggregator to configure.
+   * @param relative_accuracy The relative accuracy of the quantiles, between
+   * 0 and 1 exclusive.
+   * @param max_buckets The maximum number of buckets for each sign.
+   * @return The aggregator itself if it isn't a sketch percentile or already
+   * has the settings, a copy with the settings otherwise.
+   * @throws IllegalArgumentException if the accuracy or number of buckets
+   * are invalid.
+   * @since 2.4
+   */
+  static Aggregator withSketchSettings(final Aggregator aggregator,
+      final double relative_accuracy, final int max_buckets) {
+    if (!(aggregator instanceof SketchPercentileAgg)) {
+      return aggregator;
+    }
+    final SketchPercentileAgg agg = (SketchPercentileAgg) aggregator;
+    if (agg.relative_accuracy == relative_accuracy && 
+        agg.max_buckets == max_buckets) {
+      return agg;
+    }
+    return new SketchPercentileAgg(agg.quantile * 100, agg.toString(), 
+        relative_accuracy, max_buckets);
+  }
+
 
   private static final class Sum extends Aggregator {
     public Sum(final Interpolation method, final String name) {
@@ -706,6 +762,67 @@ public final class Aggregators {
     }
 
   }
+
+  /**
+   * Percentile aggregator that counts the values in a {@link QuantileSketch}
+   * instead of sorting them. It runs in linear time with bounded memory and
+   * returns the value at rank {@code p * (n - 1)} within the relative
+   * accuracy of its sketches, see {@link #withSketchSettings}.
+   * @since 2.4
+   */
+  private static final class SketchPercentileAgg extends Aggregator {
+    private final double quantile;
+    private final double relative_accuracy;
+    private final int max_buckets;
+
+    public SketchPercentileAgg(final double percentile, final String name) {
+      this(percentile, name, QuantileSketch.DEFAULT_RELATIVE_ACCURACY,
+          QuantileSketch.DEFAULT_MAX_BUCKETS);
+    }
+
+    public SketchPercentileAgg(final double percentile, final String name,
+        final double relative_accuracy, final int max_buckets) {
+      super(Aggregators.Interpolation.LERP, name);
+      Preconditions.checkArgument(percentile > 0 && percentile <= 100, 
+          "Invalid percentile value");
+      QuantileSketch.validate(relative_accuracy, max_buckets);
+      this.quantile = percentile / 100;
+      this.relative_accuracy = relative_accuracy;
+      this.max_buckets = max_buckets;
+    }
+
+    @Override
+    public long runLong(final Longs values) {
+      final QuantileSketch sketch = sketch();
+      while (values.hasNextValue()) {
+        sketch.add(values.nextLongValue());
+      }
+      return (long) sketch.quantile(quantile);
+    }
+
+    @Override
+    public double runDouble(final Doubles values) {
+      final QuantileSketch sketch = sketch();
+      while (values.hasNextValue()) {
+        sketch.add(values.nextDoubleValue());
+      }
+      return sketch.quantile(quantile);
+    }
+
+    /** @return The cleared sketch of this thread with our settings */
+    private QuantileSketch sketch() {
+      QuantileSketch sketch = sketches.get();
+      if (sketch == null || sketch.relativeAccuracy() != relative_accuracy ||
+          sketch.maxBuckets() != max_buckets) {
+        sketch = new QuantileSketch(relative_accuracy, max_buckets);
+        sketches.set(sketch);
+      } else {
+        sketch.clear();
+      }
+      return sketch;
+    }
+  }
+
   public static final class MovingAverage extends Aggregator {
     private LinkedList<SumPoint> list = new LinkedList<SumPoint>();
     private final long numPoints;
@@ -0,0 +1,430 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import net.opentsdb.rollup.RollupQuery;
+
+/**
+ * Aggregates a group of downsampled series a block of timestamps at a time
+ * instead of one data point at a time like {@link AggregationIterator}.
+ * <p>
+ * When every series is downsampled to the same fixed interval with a fill
+ * policy, each of them yields a value at every interval of the query so
+ * their timestamps line up and nothing needs to be interpolated. The values
+ * of up to {@link #BLOCK_SIZE} intervals of each series are copied into
+ * primitive arrays and the aggregator is applied column-wise in tight loops
+ * over the block without a virtual call per value.
+ * <p>
+ * The results are identical to those of {@link AggregationIterator}: the
+ * values are accumulated in the same order with the same NaN handling as the
+ * {@link Aggregators} and infinite results throw the same way. Only the
+ * aggregators with a loop here are supported, see {@link #canAggregate}.
+ * @since 2.4
+ */
+final class BlockAggregationIterator implements SeekableView, DataPoint {
+
+  /** Number of intervals aggregated at once */
+  static final int BLOCK_SIZE = 256;
+
+  /** The aggregations implemented as loops over a block */
+  private enum Op { SUM, SQUARESUM, MIN, MAX, AVG, COUNT }
+
+  /** The downsampled series */
+  private final SeekableView[] iterators;
+
+  /** Data points before this timestamp are ignored */
+  private final long start_time;
+
+  /** Data points after this timestamp are ignored */
+  private final long end_time;
+
+  /** The aggregation to run */
+  private final Op op;
+
+  /** The aggregator, for messages */
+  private final Aggregator aggregator;
+
+  /** The timestamps of the current block */
+  private final long[] timestamps = new long[BLOCK_SIZE];
+
+  /** The values of each series in the current block */
+  private final double[][] values;
+
+  /** The aggregated values of the current block */
+  private final double[] results = new double[BLOCK_SIZE];
+
+  /** The number of values per interval that weren't NaN */
+  private final int[] counts = new int[BLOCK_SIZE];
+
+  /** Whether or not each series has run past the end time */
+  private final boolean[] exhausted;
+
+  /** The number of intervals in the current block */
+  private int block_length;
+
+  /** The index of the current interval in the block, -1 before the first */
+  private int index;
+
+  /**
+   * Creates an iterator over already downsampled series.
+   * @param iterators The downsampled series, see {@link #canAggregate}.
+   * @param start_time Any data point strictly before this timestamp will be
+   * ignored.
+   * @param end_time Any data point strictly after this timestamp will be
+   * ignored.
+   * @param aggregator The aggregation function to use.
+   * @throws IllegalArgumentException if the aggregator isn't supported.
+   */
+  BlockAggregationIterator(final SeekableView[] iterators,
+      final long start_time, final long end_time,
+      final Aggregator aggregator) {
+    this.op = op(aggregator);
+    if (op == null) {
+      throw new IllegalArgumentException("Aggregator " + aggregator
+          + " cannot aggregate in blocks");
+    }
+    this.iterators = iterators;
+    this.start_time = start_time;
+    this.end_time = end_time;
+    this.aggregator = aggregator;
+    values = new double[iterators.length][BLOCK_SIZE];
+    exhausted = new boolean[iterators.length];
+    for (final SeekableView it : iterators) {
+      it.seek(start_time);
+    }
+    fill();
+  }
+
+  /**
+   * Creates an iterator for a {@link SpanGroup}.
+   * @param spans Spans in a group.
+   * @param start_time Any data point strictly before this timestamp will be
+   * ignored.
+   * @param end_time Any data point strictly after this timestamp will be
+   * ignored.
+   * @param aggregator The aggregation function to use.
+   * @param downsampler The downsampling specifier to use.
+   * @param query_start Start of the actual query.
+   * @param query_end End of the actual query.
+   * @return An iterator aggregating the downsampled spans or null if the
+   * downsampled spans wouldn't yield values at the same timestamps, in which
+   * case the group has to be aggregated by {@link AggregationIterator}.
+   */
+  static BlockAggregationIterator create(final List<Span> spans,
+      final long start_time, final long end_time,
+      final Aggregator aggregator,
+      final DownsamplingSpecification downsampler,
+      final long query_start, final long query_end) {
+    final SeekableView[] iterators = new SeekableView[spans.size()];
+    for (int i = 0; i < iterators.length; i++) {
+      final Downsampler ds = spans.get(i).downsampler(start_time, end_time,
+          downsampler, query_start, query_end);
+      if (!(ds instanceof FillingDownsampler) || (i > 0 && 
+          !((FillingDownsampler) ds).alignsWith(
+              (FillingDownsampler) iterators[0]))) {
+        return null;
+      }
+      iterators[i] = ds;
+    }
+    return new BlockAggregationIterator(iterators, start_time, end_time,
+        aggregator);
+  }
+
+  /**
+   * Whether or not a group can be aggregated in blocks with the same results
+   * as {@link AggregationIterator}. That's the case if the series are
+   * downsampled to a fixed interval with a fill policy, without rates or
+   * rollups, and the aggregator is one of sum, zimsum, pfsum, squareSum,
+   * min, mimmin, max, mimmax, avg or count.
+   * @param aggregator The aggregation function of the group.
+   * @param downsampler The downsampling specifier, may be null.
+   * @param rate Whether or not the group computes rates.
+   * @param rollup_query An optional rollup query.
+   * @return True if {@link #create} may be tried.
+   */
+  static boolean canAggregate(final Aggregator aggregator,
+      final DownsamplingSpecification downsampler, final boolean rate,
+      final RollupQuery rollup_query) {
+    return !rate && !RollupQuery.isValidQuery(rollup_query) &&
+        downsampler != null &&
+        downsampler != DownsamplingSpecification.NO_DOWNSAMPLER &&
+        downsampler.getInterval() > 0 && !downsampler.useCalendar() &&
+        downsampler.getFillPolicy() != FillPolicy.NONE &&
+        op(aggregator) != null;
+  }
+
+  /** @return The loop for the aggregator or null if there isn't one */
+  private static Op op(final Aggregator aggregator) {
+    if (aggregator == Aggregators.SUM || aggregator == Aggregators.ZIMSUM ||
+        aggregator == Aggregators.PFSUM) {
+      return Op.SUM;
+    } else if (aggregator == Aggregators.SQUARESUM) {
+      return Op.SQUARESUM;
+    } else if (aggregator == Aggregators.MIN ||
+        aggregator == Aggregators.MIMMIN) {
+      return Op.MIN;
+    } else if (aggregator == Aggregators.MAX ||
+        aggregator == Aggregators.MIMMAX) {
+      return Op.MAX;
+    } else if (aggregator == Aggregators.AVG) {
+      return Op.AVG;
+    } else if (aggregator == Aggregators.COUNT) {
+      return Op.COUNT;
+    }
+    return null;
+  }
+
+  /**
+   * Reads the next block from every series and aggregates it.
+   * @throws IllegalStateException if the series aren't aligned.
+   */
+  private void fill() {
+    index = -1;
+    block_length = 0;
+    if (iterators.length == 0) {
+      return;
+    }
+    for (int i = 0; i < iterators.length; i++) {
+      final int length = read(i);
+      if (i == 0) {
+        block_length = length;
+      } else if (length != block_length) {
+        throw new IllegalStateException("Series " + i + " has " + length
+            + " intervals in the block instead of " + block_length + " in "
+            + this);
+      }
+    }
+    if (block_length > 0) {
+      aggregate();
+    }
+  }
+
+  /**
+   * Copies up to a block of values from a series.
+   * @param i The index of the series.
+   * @return The number of values copied.
+   */
+  private int read(final int i) {
+    final SeekableView it = iterators[i];
+    final double[] block = values[i];
+    int length = 0;
+    while (length < BLOCK_SIZE && !exhausted[i] && it.hasNext()) {
+      final DataPoint dp = it.next();
+      final long timestamp = dp.timestamp();
+      if (timestamp < start_time) {
+        continue;
+      }
+      if (timestamp > end_time) {
+        exhausted[i] = true;
+        break;
+      }
+      if (i == 0) {
+        timestamps[length] = timestamp;
+      } else if (timestamps[length] != timestamp) {
+        throw new IllegalStateException("Series " + i + " has a value at "
+            + timestamp + " instead of " + timestamps[length] + " in " + this);
+      }
+      block[length++] = dp.toDouble();
+    }
+    return length;
+  }
+
+  /** Aggregates the current block column-wise */
+  private void aggregate() {
+    final int length = block_length;
+    final double[] results = this.results;
+    final int[] counts = this.counts;
+    switch (op) {
+    case SUM:
+    case AVG:
+    case COUNT:
+      // adding 0 instead of skipping a NaN keeps the sum identical as it
+      // starts from +0
+      for (int j = 0; j < length; j++) {
+        results[j] = 0.;
+        counts[j] = 0;
+      }
+      for (final double[] block : values) {
+        for (int j = 0; j < length; j++) {
+          final double value = block[j];
+          final boolean real = value == value;
+          results[j] += real ? value : 0.;
+          counts[j] += real ? 1 : 0;
+        }
+      }
+      for (int j = 0; j < length; j++) {
+        if (op == Op.COUNT) {
+          results[j] = counts[j];
+        } else if (counts[j] == 0) {
+          results[j] = Double.NaN;
+        } else if (op == Op.AVG) {
+          results[j] = results[j] / counts[j];
+        }
+      }
+      break;
+    case SQUARESUM:
+      for (int j = 0; j < length; j++) {
+        results[j] = 0.;
+        counts[j] = 0;
+      }
+      for (final double[] block : values) {
+        for (int j = 0; j < length; j++) {
+          final double value = block[j];
+          final boolean real = value == value;
+          results[j] += real ? value * value : 0.;
+          counts[j] += real ? 1 : 0;
+        }
+      }
+      for (int j = 0; j < length; j++) {
+        if (counts[j] == 0) {
+          results[j] = Double.NaN;
+        }
+      }
+      break;
+    case MIN:
+      // comparisons with NaN are false so they're skipped
+      for (int j = 0; j < length; j++) {
+        results[j] = Double.POSITIVE_INFINITY;
+      }
+      for (final double[] block : values) {
+        for (int j = 0; j < length; j++) {
+          final double value = block[j];
+          results[j] = value < results[j] ? value : results[j];
+        }
+      }
+      for (int j = 0; j < length; j++) {
+        if (results[j] == Double.POSITIVE_INFINITY) {
+          results[j] = Double.NaN;
+        }
+      }
+      break;
+    case MAX:
+      for (int j = 0; j < length; j++) {
+        results[j] = Double.NEGATIVE_INFINITY;
+      }
+      for (final double[] block : values) {
+        for (int j = 0; j < length; j++) {
+          final double value = block[j];
+          results[j] = value > results[j] ? value : results[j];
+        }
+      }
+      for (int j = 0; j < length; j++) {
+        if (results[j] == Double.NEGATIVE_INFINITY) {
+          results[j] = Double.NaN;
+        }
+      }
+      break;
+    default:
+      throw new IllegalStateException("Unhandled aggregation " + op);
+    }
+  }
+
+  // ------------------ //
+  // Iterator interface //
+  // ------------------ //
+
+  @Override
+  public boolean hasNext() {
+    if (index + 1 < block_length) {
+      return true;
+    }
+    if (block_length < BLOCK_SIZE) {
+      return false;
+    }
+    fill();
+    return block_length > 0;
+  }
+
+  @Override
+  public DataPoint next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException("no more elements in " + this);
+    }
+    ++index;
+    return this;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  // ---------------------- //
+  // SeekableView interface //
+  // ---------------------- //
+
+  @Override
+  public void seek(final long timestamp) {
+    for (final SeekableView it : iterators) {
+      it.seek(timestamp);
+    }
+    for (int i = 0; i < exhausted.length; i++) {
+      exhausted[i] = false;
+    }
+    fill();
+  }
+
+  // ------------------- //
+  // DataPoint interface //
+  // ------------------- //
+
+  @Override
+  public long timestamp() {
+    return timestamps[index];
+  }
+
+  @Override
+  public boolean isInteger() {
+    // downsampled values are always doubles
+    return false;
+  }
+
+  @Override
+  public long longValue() {
+    throw new ClassCastException("current value is a double: " + this);
+  }
+
+  @Override
+  public double doubleValue() {
+    final double value = results[index];
+    if (Double.isInfinite(value)) {
+      throw new IllegalStateException("Got Infinity: " + value + " in this "
+          + this);
+    }
+    return value;
+  }
+
+  @Override
+  public double toDouble() {
+    return doubleValue();
+  }
+
+  @Override
+  public long valueCount() {
+    // same as the AggregationIterator
+    return iterators.length * 2;
+  }
+
+  @Override
+  public String toString() {
+    return "BlockAggregationIterator(start_time=" + start_time
+        + ", end_time=" + end_time
+        + ", aggregator=" + aggregator
+        + ", series=" + iterators.length
+        + ", block_length=" + block_length
+        + ", index=" + index + ")";
+  }
+}
@@ -0,0 +1,413 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.hbase.async.Bytes.ByteMap;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.meta.Annotation;
+
+/**
+ * An immutable, fully resolved copy of a query result used by the
+ * {@link QueryResultCache}. The metric and tag names are resolved when the
+ * copy is made and the data points are kept in primitive arrays so that a
+ * cached result doesn't hold on to spans, row keys or UIDs.
+ * <p>
+ * As the names are already resolved, the UID accessors return empty results.
+ * @since 2.4
+ */
+final class CachedDataPoints implements DataPoints {
+
+  /** Rough fixed cost of an instance, used to weigh cache entries */
+  private static final int OVERHEAD = 128;
+
+  private final String metric;
+  private final Map<String, String> tags;
+  private final List<String> aggregated_tags;
+  private final List<String> tsuids;
+  private final List<Annotation> annotations;
+  private final int query_index;
+
+  /** The timestamps in milliseconds, sorted */
+  private final long[] timestamps;
+
+  /** The values, doubles are stored as their raw long bits */
+  private final long[] values;
+
+  /** Whether or not each value is an integer */
+  private final boolean[] integers;
+
+  CachedDataPoints(final String metric, final Map<String, String> tags,
+      final List<String> aggregated_tags, final List<String> tsuids,
+      final List<Annotation> annotations, final int query_index,
+      final long[] timestamps, final long[] values, final boolean[] integers) {
+    this.metric = metric;
+    this.tags = tags;
+    this.aggregated_tags = aggregated_tags;
+    this.tsuids = tsuids;
+    this.annotations = annotations;
+    this.query_index = query_index;
+    this.timestamps = timestamps;
+    this.values = values;
+    this.integers = integers;
+  }
+
+  /**
+   * Resolves the names of a result and copies its data points.
+   * @param dps The result to copy.
+   * @param start The first timestamp to copy, in milliseconds.
+   * @param end The last timestamp to copy, in milliseconds.
+   * @return A deferred resolving to the copy.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  static Deferred<CachedDataPoints> copyAsync(final DataPoints dps,
+      final long start, final long end) {
+    final List<Deferred<Object>> deferreds = new ArrayList<Deferred<Object>>(3);
+    deferreds.add((Deferred) dps.metricNameAsync());
+    deferreds.add((Deferred) dps.getTagsAsync());
+    deferreds.add((Deferred) dps.getAggregatedTagsAsync());
+
+    /** Copies the points once the names are resolved */
+    final class CopyCB implements Callback<CachedDataPoints, ArrayList<Object>> {
+      @Override
+      public CachedDataPoints call(final ArrayList<Object> names)
+          throws Exception {
+        int size = 0;
+        long[] timestamps = new long[Math.max(dps.size(), 16)];
+        long[] values = new long[timestamps.length];
+        boolean[] integers = new boolean[timestamps.length];
+        final SeekableView it = dps.iterator();
+        while (it.hasNext()) {
+          final DataPoint dp = it.next();
+          if (dp.timestamp() < start || dp.timestamp() > end) {
+            continue;
+          }
+          if (size == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+            integers = Arrays.copyOf(integers, size * 2);
+          }
+          timestamps[size] = dp.timestamp();
+          integers[size] = dp.isInteger();
+          values[size] = dp.isInteger() ? dp.longValue()
+              : Double.doubleToRawLongBits(dp.doubleValue());
+          size++;
+        }
+
+        final List<Annotation> notes = new ArrayList<Annotation>();
+        if (dps.getAnnotations() != null) {
+          for (final Annotation note : dps.getAnnotations()) {
+            final long ts = annotationTime(note);
+            if (ts >= start && ts <= end) {
+              notes.add(note);
+            }
+          }
+        }
+        final List<String> aggregated = (List<String>) names.get(2);
+        return new CachedDataPoints((String) names.get(0),
+            new HashMap<String, String>((Map<String, String>) names.get(1)),
+            aggregated == null ? Collections.<String>emptyList()
+                : new ArrayList<String>(aggregated),
+            dps.getTSUIDs() == null ? Collections.<String>emptyList()
+                : new ArrayList<String>(dps.getTSUIDs()),
+            notes, dps.getQueryIndex(),
+            Arrays.copyOf(timestamps, size), Arrays.copyOf(values, size),
+            Arrays.copyOf(integers, size));
+      }
+    }
+
+    return Deferred.groupInOrder(deferreds).addCallback(new CopyCB());
+  }
+
+  /**
+   * Returns the part of this result between two timestamps.
+   * @param start The first timestamp to include, in milliseconds.
+   * @param end The timestamp to stop at, exclusive, in milliseconds.
+   * @return A result sharing the names of this one. It may be empty.
+   */
+  CachedDataPoints slice(final long start, final long end) {
+    int from = Arrays.binarySearch(timestamps, start);
+    if (from < 0) {
+      from = -from - 1;
+    }
+    int to = Arrays.binarySearch(timestamps, end);
+    if (to < 0) {
+      to = -to - 1;
+    }
+    final List<Annotation> notes = new ArrayList<Annotation>();
+    for (final Annotation note : annotations) {
+      final long ts = annotationTime(note);
+      if (ts >= start && ts < end) {
+        notes.add(note);
+      }
+    }
+    return new CachedDataPoints(metric, tags, aggregated_tags, tsuids, notes,
+        query_index, Arrays.copyOfRange(timestamps, from, to),
+        Arrays.copyOfRange(values, from, to),
+        Arrays.copyOfRange(integers, from, to));
+  }
+
+  /**
+   * Joins the parts of one result that were fetched for consecutive time
+   * ranges. The tags of the joined result are those that all of the parts
+   * have in common and the other tags are reported as aggregated.
+   * @param parts The parts in time order, must not be empty.
+   * @return The joined result.
+   */
+  static CachedDataPoints join(final List<CachedDataPoints> parts) {
+    if (parts.size() == 1) {
+      return parts.get(0);
+    }
+    final CachedDataPoints first = parts.get(0);
+    final Map<String, String> tags = new HashMap<String, String>(first.tags);
+    final Set<String> aggregated = new TreeSet<String>();
+    final Set<String> tsuids = new LinkedHashSet<String>();
+    final List<Annotation> notes = new ArrayList<Annotation>();
+    int size = 0;
+    for (final CachedDataPoints part : parts) {
+      final Iterator<Map.Entry<String, String>> it =
+          tags.entrySet().iterator();
+      while (it.hasNext()) {
+        final Map.Entry<String, String> tag = it.next();
+        if (!tag.getValue().equals(part.tags.get(tag.getKey()))) {
+          aggregated.add(tag.getKey());
+          it.remove();
+        }
+      }
+      for (final String tagk : part.tags.keySet()) {
+        if (!tags.containsKey(tagk)) {
+          aggregated.add(tagk);
+        }
+      }
+      aggregated.addAll(part.aggregated_tags);
+      tsuids.addAll(part.tsuids);
+      notes.addAll(part.annotations);
+      size += part.timestamps.length;
+    }
+    aggregated.removeAll(tags.keySet());
+
+    final long[] timestamps = new long[size];
+    final long[] values = new long[size];
+    final boolean[] integers = new boolean[size];
+    int pos = 0;
+    for (final CachedDataPoints part : parts) {
+      final int length = part.timestamps.length;
+      System.arraycopy(part.timestamps, 0, timestamps, pos, length);
+      System.arraycopy(part.values, 0, values, pos, length);
+      System.arraycopy(part.integers, 0, integers, pos, length);
+      pos += length;
+    }
+    return new CachedDataPoints(first.metric, tags,
+        new ArrayList<String>(aggregated), new ArrayList<String>(tsuids), notes,
+        first.query_index, timestamps, values, integers);
+  }
+
+  /** @return An estimate of the heap used by this result in bytes */
+  long estimateBytes() {
+    long bytes = OVERHEAD + timestamps.length * 17L;
+    bytes += metric.length() * 2;
+    for (final Map.Entry<String, String> tag : tags.entrySet()) {
+      bytes += 64 + (tag.getKey().length() + tag.getValue().length()) * 2;
+    }
+    for (final String tagk : aggregated_tags) {
+      bytes += 48 + tagk.length() * 2;
+    }
+    for (final String tsuid : tsuids) {
+      bytes += 48 + tsuid.length() * 2;
+    }
+    bytes += annotations.size() * 256L;
+    return bytes;
+  }
+
+  /** @return The start time of the annotation in milliseconds */
+  private static long annotationTime(final Annotation note) {
+    final long ts = note.getStartTime();
+    return (ts & Const.SECOND_MASK) == 0 ? ts * 1000 : ts;
+  }
+
+  @Override
+  public String metricName() {
+    return metric;
+  }
+
+  @Override
+  public Deferred<String> metricNameAsync() {
+    return Deferred.fromResult(metric);
+  }
+
+  @Override
+  public byte[] metricUID() {
+    return null;
+  }
+
+  @Override
+  public Map<String, String> getTags() {
+    return Collections.unmodifiableMap(tags);
+  }
+
+  @Override
+  public Deferred<Map<String, String>> getTagsAsync() {
+    return Deferred.fromResult(getTags());
+  }
+
+  @Override
+  public ByteMap<byte[]> getTagUids() {
+    return new ByteMap<byte[]>();
+  }
+
+  @Override
+  public List<String> getAggregatedTags() {
+    return Collections.unmodifiableList(aggregated_tags);
+  }
+
+  @Override
+  public Deferred<List<String>> getAggregatedTagsAsync() {
+    return Deferred.fromResult(getAggregatedTags());
+  }
+
+  @Override
+  public List<byte[]> getAggregatedTagUids() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public List<String> getTSUIDs() {
+    return Collections.unmodifiableList(tsuids);
+  }
+
+  @Override
+  public List<Annotation> getAnnotations() {
+    return Collections.unmodifiableList(annotations);
+  }
+
+  @Override
+  public int size() {
+    return timestamps.length;
+  }
+
+  @Override
+  public int aggregatedSize() {
+    return timestamps.length;
+  }
+
+  @Override
+  public SeekableView iterator() {
+    return new View();
+  }
+
+  @Override
+  public long timestamp(final int i) {
+    return timestamps[i];
+  }
+
+  @Override
+  public boolean isInteger(final int i) {
+    return integers[i];
+  }
+
+  @Override
+  public long longValue(final int i) {
+    if (!integers[i]) {
+      throw new ClassCastException("value #" + i + " is not a long in " + this);
+    }
+    return values[i];
+  }
+
+  @Override
+  public double doubleValue(final int i) {
+    if (integers[i]) {
+      throw new ClassCastException("value #" + i + " is not a float in " + this);
+    }
+    return Double.longBitsToDouble(values[i]);
+  }
+
+  @Override
+  public int getQueryIndex() {
+    return query_index;
+  }
+
+  @Override
+  public boolean isPercentile() {
+    return false;
+  }
+
+  @Override
+  public float getPercentile() {
+    throw new UnsupportedOperationException("getPercentile not supported");
+  }
+
+  @Override
+  public String toString() {
+    return "CachedDataPoints(metric=" + metric + ", tags=" + tags
+        + ", aggregated_tags=" + aggregated_tags + ", size="
+        + timestamps.length + ")";
+  }
+
+  /** Iterates over the points, reusing one mutable data point */
+  private final class View implements SeekableView {
+    private final MutableDataPoint dp = new MutableDataPoint();
+    private int pos;
+
+    @Override
+    public boolean hasNext() {
+      return pos < timestamps.length;
+    }
+
+    @Override
+    public DataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("no more elements");
+      }
+      if (integers[pos]) {
+        dp.reset(timestamps[pos], values[pos]);
+      } else {
+        dp.reset(timestamps[pos], Double.longBitsToDouble(values[pos]));
+      }
+      pos++;
+      return dp;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void seek(final long timestamp) {
+      int i = Arrays.binarySearch(timestamps, pos, timestamps.length, timestamp);
+      if (i < 0) {
+        i = -i - 1;
+      } else {
+        // the first of any duplicates
+        while (i > pos && timestamps[i - 1] == timestamp) {
+          i--;
+        }
+      }
+      pos = Math.max(pos, i);
+    }
+  }
+}
@@ -0,0 +1,326 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import net.opentsdb.utils.DateTime;
+
+/**
+ * A table of calendar interval boundaries for a time range, computed once per
+ * query and shared by the downsamplers of all of its series so that they walk
+ * an array instead of calling {@link Calendar#add} for every interval.
+ * <p>
+ * The table is built by walking a calendar from the interval before the
+ * start of the range, the same way the downsamplers walk their calendars.
+ * Since the next boundary only depends on the current one, a downsampler
+ * whose first boundary is in the table gets the same boundaries from the
+ * table, including across DST transitions. Boundaries that aren't in the
+ * table, e.g. for data outside of the range, fall back to the calendar.
+ * <p>
+ * Tables are immutable once created, apart from a note of which intervals
+ * {@link #floor} found to match the calendar, and may be used concurrently.
+ * @since 2.4
+ */
+final class CalendarIntervals {
+  /** The largest number of boundaries we'll compute for a table */
+  static final int MAX_BOUNDARIES = 100000;
+
+  private final int interval;
+  private final int unit;
+  private final TimeZone timezone;
+
+  /** The range the table was computed for in milliseconds */
+  private final long start;
+  private final long end;
+
+  /** The boundaries in ascending order */
+  private final long[] boundaries;
+
+  /** Whether or not the interval starting at each boundary was checked
+   * against {@link DateTime#previousInterval}, see {@link #floor} */
+  private final byte[] checked;
+  private static final byte UNCHECKED = 0;
+  private static final byte MATCHES = 1;
+  private static final byte DIFFERS = 2;
+
+  /**
+   * Default ctor.
+   * @param interval The number of units per interval.
+   * @param unit The Calendar unit.
+   * @param timezone The timezone to align on.
+   * @param start The start of the range in milliseconds.
+   * @param end The end of the range in milliseconds.
+   * @param boundaries The boundaries in ascending order.
+   */
+  private CalendarIntervals(final int interval, final int unit,
+      final TimeZone timezone, final long start, final long end, 
+      final long[] boundaries) {
+    this.interval = interval;
+    this.unit = unit;
+    this.timezone = timezone;
+    this.start = start;
+    this.end = end;
+    this.boundaries = boundaries;
+    checked = new byte[boundaries.length];
+  }
+
+  /**
+   * Computes the boundaries from the interval before the one containing the
+   * start through two intervals after the one containing the end.
+   * @param interval The number of units per interval.
+   * @param unit The Calendar unit.
+   * @param timezone The timezone to align on.
+   * @param start The start of the range in milliseconds.
+   * @param end The end of the range in milliseconds.
+   * @return The table or null if the range is invalid or
+   * it has more than {@link #MAX_BOUNDARIES} intervals.
+   */
+  static CalendarIntervals create(final int interval, final int unit,
+      final TimeZone timezone, final long start, final long end) {
+    if (start < 0 || end < start || interval < 1 ||
+        (end - start) / (minimumMillis(unit) * interval) > MAX_BOUNDARIES) {
+      return null;
+    }
+    final Calendar calendar = DateTime.previousInterval(start, interval, unit,
+        timezone);
+    add(calendar, -interval, unit);
+
+    long[] boundaries = new long[64];
+    int size = 0;
+    int past_end = 0;
+    while (past_end < 3) {
+      if (size >= MAX_BOUNDARIES) {
+        return null;
+      }
+      if (size == boundaries.length) {
+        boundaries = Arrays.copyOf(boundaries, size * 2);
+      }
+      boundaries[size++] = calendar.getTimeInMillis();
+      if (calendar.getTimeInMillis() > end) {
+        ++past_end;
+      }
+      add(calendar, interval, unit);
+    }
+    return new CalendarIntervals(interval, unit, timezone, start, end,
+        Arrays.copyOf(boundaries, size));
+  }
+
+  /**
+   * @return Whether or not the table was computed for the interval and a
+   * range containing the given one.
+   */
+  boolean covers(final int interval, final int unit, final TimeZone timezone,
+      final long start, final long end) {
+    return this.interval == interval && this.unit == unit && 
+        (this.timezone == null ? timezone == null : 
+          this.timezone.equals(timezone)) &&
+        start >= this.start && end <= this.end;
+  }
+
+  /**
+   * Returns the start of the interval containing the timestamp as computed by
+   * {@link DateTime#previousInterval}. Inside the table this is a binary
+   * search of the boundaries. As {@code previousInterval} aligns on the start
+   * of a coarser unit, e.g. the top of the year for "5d", its intervals may
+   * not line up with the table's across such a start. So the first lookup in
+   * each interval checks that the calendar puts both ends of the interval in
+   * it, which holds for every timestamp in between as the floor never
+   * decreases. Intervals that differ and timestamps outside of the table use
+   * the calendar.
+   * <p>
+   * Racing lookups may check the same interval more than once, each with the
+   * same outcome.
+   * @param timestamp The timestamp in milliseconds.
+   * @return The start of the interval in milliseconds.
+   */
+  long floor(final long timestamp) {
+    if (timestamp >= boundaries[0] && 
+        timestamp < boundaries[boundaries.length - 1]) {
+      int index = Arrays.binarySearch(boundaries, timestamp);
+      if (index < 0) {
+        index = -index - 2;
+      }
+      byte state = checked[index];
+      if (state == UNCHECKED) {
+        state = previousInterval(boundaries[index]) == boundaries[index] && 
+            previousInterval(boundaries[index + 1] - 1) == boundaries[index] 
+            ? MATCHES : DIFFERS;
+        checked[index] = state;
+      }
+      if (state == MATCHES) {
+        return boundaries[index];
+      }
+    }
+    return previousInterval(timestamp);
+  }
+
+  /** @return The start of the interval containing the timestamp in 
+   * milliseconds as computed by {@link DateTime#previousInterval} */
+  private long previousInterval(final long timestamp) {
+    return DateTime.previousInterval(timestamp, interval, unit, timezone)
+        .getTimeInMillis();
+  }
+
+  /**
+   * @param boundary The first boundary.
+   * @return A cursor starting at the boundary.
+   */
+  Cursor cursor(final long boundary) {
+    return new Cursor(this, boundary, interval, unit, timezone);
+  }
+
+  /** @return The number of boundaries in the table */
+  int size() {
+    return boundaries.length;
+  }
+
+  /** @return The boundary at the index */
+  long get(final int index) {
+    return boundaries[index];
+  }
+
+  /** @return The index of the boundary or -1 if it's not in the table */
+  int indexOf(final long boundary) {
+    final int index = Arrays.binarySearch(boundaries, boundary);
+    return index < 0 ? -1 : index;
+  }
+
+  /**
+   * @param boundary A boundary in milliseconds.
+   * @param amount The number of units to move by, may be negative.
+   * @param unit The Calendar unit.
+   * @param timezone The timezone to align on.
+   * @return The boundary moved by the amount of units.
+   */
+  static long add(final long boundary, final int amount, final int unit,
+      final TimeZone timezone) {
+    final Calendar calendar = newCalendar(timezone);
+    calendar.setTimeInMillis(boundary);
+    add(calendar, amount, unit);
+    return calendar.getTimeInMillis();
+  }
+
+  /** @return A lower bound of the length of the unit in milliseconds, 
+   * allowing for DST transitions */
+  private static long minimumMillis(final int unit) {
+    switch (unit) {
+    case Calendar.MILLISECOND:
+      return 1;
+    case Calendar.SECOND:
+      return 1000;
+    case Calendar.MINUTE:
+      return 60000;
+    case Calendar.HOUR_OF_DAY:
+      return 3600000;
+    case Calendar.DAY_OF_MONTH:
+      return 22 * 3600000L;
+    case Calendar.DAY_OF_WEEK:
+    case Calendar.WEEK_OF_YEAR:
+      return 7 * 22 * 3600000L;
+    case Calendar.MONTH:
+      return 27 * 86400000L;
+    default:
+      return 364 * 86400000L;
+    }
+  }
+
+  /** @return A calendar for the timezone, UTC if null */
+  private static Calendar newCalendar(final TimeZone timezone) {
+    return Calendar.getInstance(timezone == null ?
+        DateTime.timezones.get(DateTime.UTC_ID) : timezone);
+  }
+
+  /**
+   * Moves the calendar by a number of units, treating weeks as 7 days as the
+   * downsamplers do.
+   * @param calendar The calendar to move.
+   * @param amount The number of units, may be negative.
+   * @param unit The Calendar unit.
+   */
+  static void add(final Calendar calendar, final int amount, final int unit) {
+    if (unit == Calendar.DAY_OF_WEEK) {
+      calendar.add(Calendar.DAY_OF_MONTH, amount * 7);
+    } else {
+      calendar.add(unit, amount);
+    }
+  }
+
+  /**
+   * Walks the boundaries from a starting one. Reads from the table while the
+   * boundaries are in it and uses a calendar otherwise.
+   */
+  static final class Cursor {
+    private final CalendarIntervals table;
+    private final int interval;
+    private final int unit;
+    private final TimeZone timezone;
+
+    /** The index in the table or -1 when walking the calendar */
+    private int index;
+
+    /** The calendar when not walking the table, created on demand */
+    private Calendar calendar;
+
+    /** The current boundary */
+    private long time;
+
+    /**
+     * Default ctor.
+     * @param table An optional table to read the boundaries from.
+     * @param boundary The first boundary in milliseconds.
+     * @param interval The number of units per interval.
+     * @param unit The Calendar unit.
+     * @param timezone The timezone to align on.
+     */
+    Cursor(final CalendarIntervals table, final long boundary,
+        final int interval, final int unit, final TimeZone timezone) {
+      this.table = table;
+      this.interval = interval;
+      this.unit = unit;
+      this.timezone = timezone;
+      time = boundary;
+      index = table == null ? -1 : table.indexOf(boundary);
+    }
+
+    /** @return The current boundary in milliseconds */
+    long time() {
+      return time;
+    }
+
+    /** Moves to the next boundary */
+    void next() {
+      if (index >= 0 && index + 1 < table.size()) {
+        time = table.get(++index);
+        return;
+      }
+      if (calendar == null) {
+        calendar = newCalendar(timezone);
+        calendar.setTimeInMillis(time);
+      }
+      add(calendar, interval, unit);
+      time = calendar.getTimeInMillis();
+      if (table != null && time >= table.get(0) &&
+          time <= table.get(table.size() - 1)) {
+        index = table.indexOf(time);
+        if (index >= 0) {
+          calendar = null;
+        }
+      } else {
+        index = -1;
+      }
+    }
+  }
+}
@@ -17,6 +17,7 @@ import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -53,16 +54,22 @@ import net.opentsdb.utils.Pair;
  * This process is effective because in HBase the row key is repeated for
  * every single cell.  And because there is no way to efficiently append bytes
  * at the end of a cell, we have to do this instead.
+ * <p>
+ * The queue is partitioned into {@code tsd.storage.compaction.shards} shards
+ * by a hash of the row key to reduce contention on inserts, and the shards
+ * are flushed by {@code tsd.storage.compaction.flush_threads} threads.  Each
+ * shard is flushed independently using the same adaptive scheme, so the
+ * maximum number of concurrent flushes applies per shard.
  */
-final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
+final class CompactionQueue {
 
   private static final Logger LOG = LoggerFactory.getLogger(CompactionQueue.class);
 
-  /**
-   * How many items are currently in the queue.
-   * Because {@link ConcurrentSkipListMap#size} has O(N) complexity.
-   */
-  private final AtomicInteger size = new AtomicInteger();
+  /** The shards of the queue, each sorted by timestamp then row key. */
+  private final Shard[] shards;
+
+  /** How many threads are flushing the shards. */
+  private final int flush_threads;
 
   private final AtomicLong duplicates_different = new AtomicLong();
   private final AtomicLong duplicates_same = new AtomicLong();
@@ -93,28 +100,63 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    * @param tsdb The TSDB we belong to.
    */
   public CompactionQueue(final TSDB tsdb) {
-    super(new Cmp(tsdb));
     this.tsdb = tsdb;
     metric_width = tsdb.metrics.width();
     flush_interval = tsdb.config.getInt("tsd.storage.compaction.flush_interval");
     min_flush_threshold = tsdb.config.getInt("tsd.storage.compaction.min_flush_threshold");
     max_concurrent_flushes = tsdb.config.getInt("tsd.storage.compaction.max_concurrent_flushes");
     flush_speed = tsdb.config.getInt("tsd.storage.compaction.flush_speed");
+    final int num_shards = 
+        Math.max(1, tsdb.config.getInt("tsd.storage.compaction.shards"));
+    flush_threads = Math.min(num_shards, 
+        Math.max(1, tsdb.config.getInt("tsd.storage.compaction.flush_threads")));
+
+    final Cmp cmp = new Cmp(tsdb);
+    shards = new Shard[num_shards];
+    for (int i = 0; i < num_shards; i++) {
+      shards[i] = new Shard(cmp);
+    }
 
     if (tsdb.config.enable_compactions()) {
-      startCompactionThread();
+      for (int i = 0; i < flush_threads; i++) {
+        startCompactionThread(i);
+      }
     }
   }
 
-  @Override
+  /** @return The total number of rows waiting to be compacted. */
   public int size() {
-    return size.get();
+    int size = 0;
+    for (final Shard shard : shards) {
+      size += shard.size.get();
+    }
+    return size;
   }
 
   public void add(final byte[] row) {
-    if (super.put(row, Boolean.TRUE) == null) {
-      size.incrementAndGet();  // We added a new entry, count it.
+    final Shard shard = shardFor(row);
+    if (shard.put(row, Boolean.TRUE) == null) {
+      shard.size.incrementAndGet();  // We added a new entry, count it.
+    }
+  }
+
+  /** @return The number of shards in the queue. */
+  int shardCount() {
+    return shards.length;
+  }
+
+  /**
+   * Returns the shard a row belongs to.
+   * @param row The row key.
+   * @return The shard that holds or will hold the row.
+   */
+  private Shard shardFor(final byte[] row) {
+    if (shards.length == 1) {
+      return shards[0];
     }
+    int hash = Arrays.hashCode(row);
+    hash ^= hash >>> 16;
+    return shards[(hash & Integer.MAX_VALUE) % shards.length];
   }
 
   /**
@@ -130,7 +172,34 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       LOG.info("Flushing all old outstanding rows out of " + size + " rows");
     }
     final long now = System.currentTimeMillis();
-    return flush(now / 1000 - Const.MAX_TIMESPAN - 1, Integer.MAX_VALUE);
+    if (shards.length == 1) {
+      return flush(shards[0], now / 1000 - Const.MAX_TIMESPAN - 1, 
+          Integer.MAX_VALUE);
+    }
+    final ArrayList<Deferred<ArrayList<Object>>> ds = 
+        new ArrayList<Deferred<ArrayList<Object>>>(shards.length);
+    for (final Shard shard : shards) {
+      ds.add(flush(shard, now / 1000 - Const.MAX_TIMESPAN - 1, 
+          Integer.MAX_VALUE));
+    }
+
+    /** Flattens the results from each shard. */
+    final class GroupCB implements Callback<ArrayList<Object>, 
+        ArrayList<ArrayList<Object>>> {
+      @Override
+      public ArrayList<Object> call(final ArrayList<ArrayList<Object>> results) {
+        final ArrayList<Object> flattened = new ArrayList<Object>();
+        for (final ArrayList<Object> result : results) {
+          flattened.addAll(result);
+        }
+        return flattened;
+      }
+      @Override
+      public String toString() {
+        return "Group shard flushes";
+      }
+    }
+    return Deferred.group(ds).addCallback(new GroupCB());
   }
 
   /**
@@ -145,7 +214,16 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       return;
     }
     // The remaining stats only make sense with compactions enabled.
-    collector.record("compaction.queue.size", size);
+    collector.record("compaction.queue.size", size());
+    if (shards.length > 1) {
+      final long now = System.currentTimeMillis() / 1000;
+      for (int i = 0; i < shards.length; i++) {
+        collector.record("compaction.queue.shard.size", shards[i].size.get(),
+            "shard=" + i);
+        collector.record("compaction.queue.shard.age", shards[i].age(now),
+            "shard=" + i);
+      }
+    }
     collector.record("compaction.errors", handle_read_error.errors, "rpc=read");
     collector.record("compaction.errors", handle_write_error.errors, "rpc=put");
     collector.record("compaction.errors", handle_delete_error.errors,
@@ -155,17 +233,19 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   }
 
   /**
-   * Flushes all the rows in the compaction queue older than the cutoff time.
+   * Flushes all the rows in the shard older than the cutoff time.
+   * @param shard The shard to flush.
    * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
    * @param maxflushes How many rows to flush off the queue at once.
    * This integer is expected to be strictly positive.
    * @return A deferred that will be called back once everything has been
    * flushed.
    */
-  private Deferred<ArrayList<Object>> flush(final long cut_off, int maxflushes) {
+  private Deferred<ArrayList<Object>> flush(final Shard shard, 
+      final long cut_off, int maxflushes) {
     assert maxflushes > 0: "maxflushes must be > 0, but I got " + maxflushes;
     // We can't possibly flush more entries than size().
-    maxflushes = Math.min(maxflushes, size());
+    maxflushes = Math.min(maxflushes, shard.size.get());
     if (maxflushes == 0) {  // Because size() might be 0.
       return Deferred.fromResult(new ArrayList<Object>(0));
     }
@@ -173,7 +253,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       new ArrayList<Deferred<Object>>(Math.min(maxflushes, max_concurrent_flushes));
     int nflushes = 0;
     int seed = (int) (System.nanoTime() % 3);
-    for (final byte[] row : this.keySet()) {
+    for (final byte[] row : shard.keySet()) {
       if (maxflushes == 0) {
         break;
       }
@@ -193,12 +273,12 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       // and then call remove() on the iterator to "unlink" the element
       // directly from where the iterator is at, but no, the JDK implements
       // it by calling remove(key) so it has to lookup the key again anyway.
-      if (super.remove(row) == null) {  // We didn't remove anything.
+      if (shard.remove(row) == null) {  // We didn't remove anything.
         continue;  // So someone else already took care of this entry.
       }
       nflushes++;
       maxflushes--;
-      size.decrementAndGet();
+      shard.size.decrementAndGet();
       ds.add(tsdb.get(row).addCallbacks(compactcb, handle_read_error));
     }
     final Deferred<ArrayList<Object>> group = Deferred.group(ds);
@@ -211,7 +291,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
                                                   ArrayList<Object>> {
         @Override
         public Deferred<ArrayList<Object>> call(final ArrayList<Object> arg) {
-          return flush(cut_off, maxflushez);
+          return flush(shard, cut_off, maxflushez);
         }
         @Override
         public String toString() {
@@ -344,32 +424,59 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       }
 
       compactedKVTimestamp = Long.MIN_VALUE;
-      // go through all the columns, process annotations, and
-      heap = new PriorityQueue<ColumnDatapointIterator>(nkvs);
-      int tot_values = buildHeapProcessAnnotations();
-
-      // if there are no datapoints or only one that needs no fixup, we are done
-      if (noMergesOrFixups()) {
-        // return the single non-annotation entry if requested
-        if (compacted != null && heap.size() == 1) {
-          compacted[0] = findFirstDatapointColumn();
+      KeyValue compact = null;
+      if (!tsdb.getConfig().use_otsdb_timestamp()) {
+        // try the allocation-light merge first, it handles the common case of
+        // well-formed, sorted columns without duplicates or fixups
+        compact = SortedColumnMerger.merge(row);
+        if (compact != null) {
+          if (nkvs == 1 && compact == row.get(0)) {
+            // a single data point, nothing to do
+            if (compacted != null) {
+              compacted[0] = compact;
+            }
+            return null;
+          }
+          compaction_count.incrementAndGet();
+          for (final KeyValue kv : row) {
+            if (longest == null ||
+                longest.qualifier().length < kv.qualifier().length) {
+              longest = kv;
+            }
+            compactedKVTimestamp = Math.max(compactedKVTimestamp, kv.timestamp());
+            to_delete.add(kv);
+          }
         }
-        return null;
       }
 
-      // merge the datapoints, ordered by timestamp and removing duplicates
-      final ByteBufferList compacted_qual = new ByteBufferList(tot_values);
-      final ByteBufferList compacted_val = new ByteBufferList(tot_values);
-      compaction_count.incrementAndGet();
-      mergeDatapoints(compacted_qual, compacted_val);
+      if (compact == null) {
+        // go through all the columns, process annotations, and
+        heap = new PriorityQueue<ColumnDatapointIterator>(nkvs);
+        int tot_values = buildHeapProcessAnnotations();
 
-      // if we wound up with no data in the compacted column, we are done
-      if (compacted_qual.segmentCount() == 0) {
-        return null;
-      }
+        // if there are no datapoints or only one that needs no fixup, we are done
+        if (noMergesOrFixups()) {
+          // return the single non-annotation entry if requested
+          if (compacted != null && heap.size() == 1) {
+            compacted[0] = findFirstDatapointColumn();
+          }
+          return null;
+        }
+
+        // merge the datapoints, ordered by timestamp and removing duplicates
+        final ByteBufferList compacted_qual = new ByteBufferList(tot_values);
+        final ByteBufferList compacted_val = new ByteBufferList(tot_values);
+        compaction_count.incrementAndGet();
+        mergeDatapoints(compacted_qual, compacted_val);
 
-      // build the compacted columns
-      final KeyValue compact = buildCompactedColumn(compacted_qual, compacted_val);
+        // if we wound up with no data in the compacted column, we are done
+        if (compacted_qual.segmentCount() == 0) {
+          return null;
+        }
+
+        // build the compacted columns
+        compact = buildCompactedColumn(compacted_qual, compacted_val);
+      }
 
       final boolean write = updateDeletesCheckForWrite(compact);
 
@@ -763,70 +870,48 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
   }
 
-  static final long serialVersionUID = 1307386642;
-
-  /** Starts a compaction thread.  Only one such thread is needed.  */
-  private void startCompactionThread() {
-    final Thrd thread = new Thrd();
+  /**
+   * Starts a compaction thread for the shards assigned to the worker.
+   * @param worker The index of the worker, from 0 to flush_threads - 1.
+   */
+  private void startCompactionThread(final int worker) {
+    final Thrd thread = new Thrd(worker);
     thread.setDaemon(true);
     thread.start();
   }
 
-
-
   /**
-   * Background thread to trigger periodic compactions.
+   * Background thread to trigger periodic compactions.  Each thread handles
+   * the shards whose index modulo the number of threads matches its own.
    */
   final class Thrd extends Thread {
-    public Thrd() {
-      super("CompactionThread");
+    private final int worker;
+
+    public Thrd(final int worker) {
+      super(flush_threads > 1 ? "CompactionThread-" + worker 
+          : "CompactionThread");
+      this.worker = worker;
     }
 
     @Override
     public void run() {
+      // split the flush threshold so that the queue as a whole behaves as
+      // it did with a single shard.
+      final int threshold = Math.max(1, min_flush_threshold / shards.length);
       while (true) {
         try {
-          final int size = size();
-          // Flush if  we have too many rows to recompact.
-          // Note that in we might not be able to actually
-          // flush anything if the rows aren't old enough.
-          if (size > min_flush_threshold) {
-            // How much should we flush during this iteration?  This scheme is
-            // adaptive and flushes at a rate that is proportional to the size
-            // of the queue, so we flush more aggressively if the queue is big.
-            // Let's suppose MAX_TIMESPAN = 1h.  We have `size' rows to compact,
-            // and we better compact them all in less than 1h, otherwise we're
-            // going to "fall behind" when after a new hour starts (as we'll be
-            // inserting a ton of new rows then).  So slice MAX_TIMESPAN using
-            // FLUSH_INTERVAL to compute what fraction of `size' we need to
-            // flush at each iteration.  Note that `size' will usually account
-            // for many rows that can't be flushed yet (not old enough) so we're
-            // overshooting a bit (flushing more aggressively than necessary).
-            // This isn't a problem at all.  The only thing that matters is that
-            // the rate at which we flush stuff is proportional to how much work
-            // is sitting in the queue.  The multiplicative factor FLUSH_SPEED
-            // is added to make flush even faster than we need.  For example, if
-            // FLUSH_SPEED is 2, then instead of taking 1h to flush what we have
-            // for the previous hour, we'll take only 30m.  This is desirable so
-            // that we evict old entries from the queue a bit faster.
-            final int maxflushes = Math.max(min_flush_threshold,
-              size * flush_interval * flush_speed / Const.MAX_TIMESPAN);
-            final long now = System.currentTimeMillis();
-            flush(now / 1000 - Const.MAX_TIMESPAN - 1, maxflushes);
-            if (LOG.isDebugEnabled()) {
-              final int newsize = size();
-              LOG.debug("flush() took " + (System.currentTimeMillis() - now)
-                        + "ms, new queue size=" + newsize
-                        + " (" + (newsize - size) + ')');
-            }
+          for (int i = worker; i < shards.length; i += flush_threads) {
+            flushShard(shards[i], threshold);
           }
         } catch (Exception e) {
           LOG.error("Uncaught exception in compaction thread", e);
         } catch (OutOfMemoryError e) {
           // Let's free up some memory by throwing away the compaction queue.
-          final int sz = size.get();
-          CompactionQueue.super.clear();
-          size.set(0);
+          int sz = 0;
+          for (int i = worker; i < shards.length; i += flush_threads) {
+            sz += shards[i].size.getAndSet(0);
+            shards[i].clear();
+          }
           LOG.error("Discarded the compaction queue, size=" + sz, e);
         } catch (Throwable e) {
           LOG.error("Uncaught *Throwable* in compaction thread", e);
@@ -844,18 +929,97 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
             LOG.error("Compaction thread interrupted in error handling", i);
             return;  // Don't flush, we're truly hopeless.
           }
-          startCompactionThread();
+          startCompactionThread(worker);
           return;
         }
         try {
           Thread.sleep(flush_interval * 1000);
         } catch (InterruptedException e) {
           LOG.error("Compaction thread interrupted, doing one last flush", e);
-          flush();
+          final long now = System.currentTimeMillis();
+          for (int i = worker; i < shards.length; i += flush_threads) {
+            flush(shards[i], now / 1000 - Const.MAX_TIMESPAN - 1, 
+                Integer.MAX_VALUE);
+          }
           return;
         }
       }
     }
+
+    /**
+     * Flushes old rows from the shard if it has enough of them.
+     * @param shard The shard to flush.
+     * @param threshold The minimum number of rows to flush.
+     */
+    private void flushShard(final Shard shard, final int threshold) {
+      final int size = shard.size.get();
+      if (size > threshold) {
+        // How much should we flush during this iteration?  This scheme is
+        // adaptive and flushes at a rate that is proportional to the size
+        // of the queue, so we flush more aggressively if the queue is big.
+        // Let's suppose MAX_TIMESPAN = 1h.  We have `size' rows to compact,
+        // and we better compact them all in less than 1h, otherwise we're
+        // going to "fall behind" when after a new hour starts (as we'll be
+        // inserting a ton of new rows then).  So slice MAX_TIMESPAN using
+        // FLUSH_INTERVAL to compute what fraction of `size' we need to
+        // flush at each iteration.  Note that `size' will usually account
+        // for many rows that can't be flushed yet (not old enough) so we're
+        // overshooting a bit (flushing more aggressively than necessary).
+        // This isn't a problem at all.  The only thing that matters is that
+        // the rate at which we flush stuff is proportional to how much work
+        // is sitting in the queue.  The multiplicative factor FLUSH_SPEED
+        // is added to make flush even faster than we need.  For example, if
+        // FLUSH_SPEED is 2, then instead of taking 1h to flush what we have
+        // for the previous hour, we'll take only 30m.  This is desirable so
+        // that we evict old entries from the queue a bit faster.
+        final int maxflushes = Math.max(threshold,
+          size * flush_interval * flush_speed / Const.MAX_TIMESPAN);
+        final long now = System.currentTimeMillis();
+        flush(shard, now / 1000 - Const.MAX_TIMESPAN - 1, maxflushes);
+        if (LOG.isDebugEnabled()) {
+          final int newsize = shard.size.get();
+          LOG.debug("flush() took " + (System.currentTimeMillis() - now)
+                    + "ms, new queue size=" + newsize
+                    + " (" + (newsize - size) + ')');
+        }
+      }
+    }
+  }
+
+  /**
+   * A shard of the queue, effectively a sorted set of row keys.
+   */
+  private static final class Shard extends ConcurrentSkipListMap<byte[], Boolean> {
+
+    /**
+     * How many items are currently in the shard.
+     * Because {@link ConcurrentSkipListMap#size} has O(N) complexity.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** The offset of the base time in the row keys. */
+    private final short timestamp_pos;
+
+    Shard(final Cmp cmp) {
+      super(cmp);
+      timestamp_pos = cmp.timestamp_pos;
+    }
+
+    /**
+     * @param now The current time in seconds.
+     * @return The age in seconds of the oldest row in the shard, or 0 if the
+     * shard is empty.
+     */
+    long age(final long now) {
+      final Map.Entry<byte[], Boolean> first = firstEntry();
+      if (first == null) {
+        return 0;
+      }
+      return Math.max(0, now - Bytes.getUnsignedInt(first.getKey(), 
+          timestamp_pos));
+    }
+
+    static final long serialVersionUID = 1776880567;
   }
 
   /**
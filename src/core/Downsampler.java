@@ -12,13 +12,8 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Iterator;
-import java.util.List;
 import java.util.NoSuchElementException;
 
-import net.opentsdb.core.Aggregator.Doubles;
 import net.opentsdb.rollup.RollupQuery;
 import net.opentsdb.utils.DateTime;
 
@@ -65,6 +60,13 @@ public class Downsampler implements SeekableView, DataPoint {
   /** The unit to use with a calendar as a Calendar integer */
   protected final int unit;
   
+  /** The calendar boundaries shared with the other series of the query, may
+   * be null */
+  protected final CalendarIntervals calendar_intervals;
+  
+  /** The state the values of each interval are aggregated into */
+  protected final IntervalAccumulator accumulator;
+  
   /**
    * Ctor.
    * @param source The iterator to access the underlying data.
@@ -88,6 +90,8 @@ public class Downsampler implements SeekableView, DataPoint {
     query_end = 0;
     interval = unit = 0;
     run_all = false;
+    calendar_intervals = null;
+    accumulator = new IntervalAccumulator(downsampler);
   }
   
   /**
@@ -145,6 +149,34 @@ public class Downsampler implements SeekableView, DataPoint {
       run_all = false;
       interval = unit = 0;
     }
+    if (specification.useCalendar() && !run_all && query_end > query_start) {
+      calendar_intervals = specification.calendarIntervals(interval, unit, 
+          query_start, query_end);
+    } else {
+      calendar_intervals = null;
+    }
+    accumulator = new IntervalAccumulator(specification.getFunction());
+  }
+  
+  /**
+   * @param timestamp A timestamp in milliseconds.
+   * @return The start of the calendar interval containing the timestamp.
+   */
+  long calendarFloor(final long timestamp) {
+    if (calendar_intervals != null) {
+      return calendar_intervals.floor(timestamp);
+    }
+    return DateTime.previousInterval(timestamp, interval, unit, 
+        specification.getTimezone()).getTimeInMillis();
+  }
+  
+  /**
+   * @param boundary The start of a calendar interval in milliseconds.
+   * @return A cursor walking the calendar intervals from the boundary.
+   */
+  CalendarIntervals.Cursor calendarCursor(final long boundary) {
+    return new CalendarIntervals.Cursor(calendar_intervals, boundary, interval, 
+        unit, specification.getTimezone());
   }
   
   // ------------------ //
@@ -162,64 +194,7 @@ public class Downsampler implements SeekableView, DataPoint {
   @Override
   public DataPoint next() {
     if (hasNext()) {
-      if (rollup_query != null && 
-          (rollup_query.getRollupAgg() == Aggregators.AVG || 
-           rollup_query.getRollupAgg() == Aggregators.DEV)) {
-        if (rollup_query.getRollupAgg() == Aggregators.AVG) {
-          if (specification.getFunction() == Aggregators.AVG) {
-            double sum = 0;
-            long count = 0;
-            while (values_in_interval.hasNextValue()) {
-              count += values_in_interval.nextValueCount();
-              sum += values_in_interval.nextDoubleValue();
-            }
-            if (count == 0) { // avoid # / 0
-              value = 0;
-            } else {
-              value = sum / (double)count;
-            }
-          } else {
-            class Accumulator implements Doubles {
-              List<Double> values = new ArrayList<Double>();
-              Iterator<Double> iterator;
-              @Override
-              public boolean hasNextValue() {
-                return iterator.hasNext();
-              }
-              @Override
-              public double nextDoubleValue() {
-                return iterator.next();
-              }
-            }
-            
-            final Accumulator accumulator = new Accumulator();
-            while (values_in_interval.hasNextValue()) {
-              long count = values_in_interval.nextValueCount();
-              double sum = values_in_interval.nextDoubleValue();
-              if (count == 0) {
-                accumulator.values.add(0D);
-              } else {
-                accumulator.values.add(sum / (double) count);
-              }
-            }
-            accumulator.iterator = accumulator.values.iterator();
-            value = specification.getFunction().runDouble(accumulator);
-          }
-        } else if (rollup_query.getRollupAgg() == Aggregators.DEV) {
-          throw new UnsupportedOperationException("Standard deviation over "
-              + "rolled up data is not supported at this time");
-        }
-      } else if (rollup_query != null && 
-          specification.getFunction() == Aggregators.COUNT) {
-        double count = 0;
-        while (values_in_interval.hasNextValue()) {
-          count += values_in_interval.nextDoubleValue();
-        }
-        value = count;
-      } else {
-        value = specification.getFunction().runDouble(values_in_interval);
-      }
-      
+      value = aggregateInterval();
       timestamp = values_in_interval.getIntervalTimestamp();
       values_in_interval.moveToNextInterval();
       return this;
@@ -227,6 +202,55 @@ public class Downsampler implements SeekableView, DataPoint {
     throw new NoSuchElementException("no more data points in " + this);
   }
 
+  /**
+   * Runs the downsampling function over the values of the current interval,
+   * consuming them.
+   * @return The downsampled value.
+   */
+  protected double aggregateInterval() {
+    if (rollup_query != null && 
+        rollup_query.getRollupAgg() == Aggregators.DEV) {
+      throw new UnsupportedOperationException("Standard deviation over "
+          + "rolled up data is not supported at this time");
+    }
+    if (rollup_query != null && 
+        rollup_query.getRollupAgg() == Aggregators.AVG) {
+      if (specification.getFunction() == Aggregators.AVG) {
+        double sum = 0;
+        long count = 0;
+        while (values_in_interval.hasNextValue()) {
+          count += values_in_interval.nextValueCount();
+          sum += values_in_interval.nextDoubleValue();
+        }
+        if (count == 0) { // avoid # / 0
+          return 0;
+        }
+        return sum / (double)count;
+      }
+      
+      // run the function over the average of each rolled up data point
+      accumulator.reset();
+      while (values_in_interval.hasNextValue()) {
+        final long count = values_in_interval.nextValueCount();
+        final double sum = values_in_interval.nextDoubleValue();
+        accumulator.add(count == 0 ? 0D : sum / (double) count);
+      }
+      return accumulator.result();
+    }
+    if (rollup_query != null && 
+        specification.getFunction() == Aggregators.COUNT) {
+      double count = 0;
+      while (values_in_interval.hasNextValue()) {
+        count += values_in_interval.nextDoubleValue();
+      }
+      return count;
+    }
+    if (accumulator.isPrimitive() && specification.intervalAccumulator()) {
+      return values_in_interval.accumulate(accumulator);
+    }
+    return specification.getFunction().runDouble(values_in_interval);
+  }
+
   @Override
   public void remove() {
     throw new UnsupportedOperationException();
@@ -291,11 +315,11 @@ public class Downsampler implements SeekableView, DataPoint {
   /** Iterates source values for an interval. */
   protected class ValuesInInterval implements Aggregator.Doubles {
 
-    /** An optional calendar set to the current timestamp for the data point */
-    private Calendar previous_calendar;
+    /** An optional cursor at the start of the current interval */
+    private CalendarIntervals.Cursor previous_interval;
     
-    /** An optional calendar set to the end of the interval timestamp */
-    private Calendar next_calendar;
+    /** An optional cursor at the end of the current interval */
+    private CalendarIntervals.Cursor next_interval;
     
     /** The end of the current interval. */
     private long timestamp_end_interval = Long.MIN_VALUE;
@@ -331,16 +355,11 @@ public class Downsampler implements SeekableView, DataPoint {
           moveToNextValue();
           if (!run_all) {
             if (specification.useCalendar()) {
-              previous_calendar = DateTime.previousInterval(next_dp.timestamp(), 
-                  interval, unit, specification.getTimezone());
-              next_calendar = DateTime.previousInterval(next_dp.timestamp(), 
-                  interval, unit, specification.getTimezone());
-              if (unit == WEEK_UNIT) {
-                next_calendar.add(DAY_UNIT, interval * WEEK_LENGTH);
-              } else {
-                next_calendar.add(unit, interval);
-              }
-              timestamp_end_interval = next_calendar.getTimeInMillis();
+              final long start = calendarFloor(next_dp.timestamp());
+              previous_interval = calendarCursor(start);
+              next_interval = calendarCursor(start);
+              next_interval.next();
+              timestamp_end_interval = next_interval.time();
             } else {
               timestamp_end_interval = alignTimestamp(next_dp.timestamp()) + 
                   specification.getInterval();
@@ -386,14 +405,9 @@ public class Downsampler implements SeekableView, DataPoint {
       if (has_next_value_from_source && !run_all) {
         if (specification.useCalendar()) {
           while (next_dp.timestamp() >= timestamp_end_interval) {
-            if (unit == WEEK_UNIT) {
-              previous_calendar.add(DAY_UNIT, interval * WEEK_LENGTH);
-              next_calendar.add(DAY_UNIT, interval * WEEK_LENGTH);
-            } else {
-              previous_calendar.add(unit, interval);
-              next_calendar.add(unit, interval);
-            }
-            timestamp_end_interval = next_calendar.getTimeInMillis();
+            previous_interval.next();
+            next_interval.next();
+            timestamp_end_interval = next_interval.time();
           }
         } else {
           timestamp_end_interval = alignTimestamp(next_dp.timestamp()) + 
@@ -402,6 +416,42 @@ public class Downsampler implements SeekableView, DataPoint {
       }
     }
 
+    /**
+     * Folds the values of the current interval into the accumulator without
+     * going through the {@link Aggregator.Doubles} calls for each value. 
+     * Arrays of a materialized source are walked directly.
+     * @param accumulator The accumulator to reset and fill.
+     * @return The aggregated value.
+     */
+    double accumulate(final IntervalAccumulator accumulator) {
+      initializeIfNotDone();
+      accumulator.reset();
+      if (run_all) {
+        while (has_next_value_from_source) {
+          accumulator.add(next_dp.toDouble());
+          moveToNextValue();
+        }
+      } else if (has_next_value_from_source && 
+          next_dp instanceof MaterializedDataPoints.Iterator) {
+        has_next_value_from_source = ((MaterializedDataPoints.Iterator) next_dp)
+            .accumulate(timestamp_end_interval, accumulator);
+      } else {
+        while (has_next_value_from_source && 
+            next_dp.timestamp() < timestamp_end_interval) {
+          accumulator.add(next_dp.toDouble());
+          moveToNextValue();
+        }
+      }
+      return accumulator.result();
+    }
+
+    /** Consumes the values of the current interval. */
+    void skipInterval() {
+      while (hasNextValue()) {
+        nextDoubleValue();
+      }
+    }
+
     /** Moves to the next available interval. */
     void moveToNextInterval() {
       initializeIfNotDone();
@@ -417,16 +467,14 @@ public class Downsampler implements SeekableView, DataPoint {
       if (run_all) {
         source.seek(timestamp);
       } else if (specification.useCalendar()) {
-        final Calendar seek_calendar = DateTime.previousInterval(
-            timestamp, interval, unit, specification.getTimezone());
-        if (timestamp > seek_calendar.getTimeInMillis()) {
-          if (unit == WEEK_UNIT) {
-            seek_calendar.add(DAY_UNIT, interval * WEEK_LENGTH);
-          } else {
-            seek_calendar.add(unit, interval);
-          }
+        final long start = calendarFloor(timestamp);
+        if (timestamp > start) {
+          final CalendarIntervals.Cursor seek_interval = calendarCursor(start);
+          seek_interval.next();
+          source.seek(seek_interval.time());
+        } else {
+          source.seek(start);
         }
-        source.seek(seek_calendar.getTimeInMillis());
       } else {
         source.seek(alignTimestamp(timestamp + specification.getInterval() - 1));
       }
@@ -441,7 +489,7 @@ public class Downsampler implements SeekableView, DataPoint {
       if (run_all) {
         return timestamp_end_interval;
       } else if (specification.useCalendar()) {
-        return previous_calendar.getTimeInMillis();
+        return previous_interval.time();
       } else {
         return alignTimestamp(timestamp_end_interval - 
             specification.getInterval());
@@ -496,10 +544,10 @@ public class Downsampler implements SeekableView, DataPoint {
          .append(", timestamp_end_interval=").append(timestamp_end_interval)
          .append(", has_next_value_from_source=")
          .append(has_next_value_from_source)
-         .append(", previousCalendar=")
-         .append(previous_calendar == null ? "null" : previous_calendar)
-         .append(", nextCalendar=")
-         .append(next_calendar == null ? "null" : next_calendar);
+         .append(", previousInterval=")
+         .append(previous_interval == null ? "null" : previous_interval.time())
+         .append(", nextInterval=")
+         .append(next_interval == null ? "null" : next_interval.time());
       if (has_next_value_from_source) {
         buf.append(", nextValue=(").append(next_dp).append(')');
       }
@@ -14,6 +14,7 @@ package net.opentsdb.core;
 
 import java.util.NoSuchElementException;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.common.base.MoreObjects;
 import net.opentsdb.utils.DateTime;
@@ -44,8 +45,8 @@ public final class DownsamplingSpecification {
   //The string interval, e.g. 1h, 30d, etc
   private final String string_interval;
   
-  // Parsed downsampler function.
-  private final Aggregator function;
+  // Parsed downsampler function, may be reconfigured by the query.
+  private volatile Aggregator function;
   
   // Parsed fill policy: whether to interpolate or to fill.
   private final FillPolicy fill_policy;
@@ -58,6 +59,19 @@ public final class DownsamplingSpecification {
 
   private final HistogramAggregation hist_agg;
   
+  // Calendar boundaries shared by the downsamplers of the query, null until
+  // requested. Tables are immutable so a newer one may simply replace it.
+  private final AtomicReference<CalendarIntervals> calendar_intervals = 
+      new AtomicReference<CalendarIntervals>();
+
+  // Whether or not the downsamplers may share calendar tables, set by the
+  // query from the TSDB config
+  private volatile boolean calendar_tables = true;
+
+  // Whether or not the downsamplers may fold values into primitive state, set
+  // by the query from the TSDB config
+  private volatile boolean interval_accumulator = true;
+  
   /**
    * A specification indicating no downsampling is requested.
    */
@@ -206,6 +220,38 @@ public final class DownsamplingSpecification {
     this.timezone = timezone;
   }
   
+  /** @param calendar_tables Whether or not the downsamplers may share the
+   * calendar boundaries, see {@link #calendarIntervals}.
+   * @since 2.4 */
+  void setCalendarTables(final boolean calendar_tables) {
+    this.calendar_tables = calendar_tables;
+  }
+  
+  /** @param interval_accumulator Whether or not the downsamplers may fold
+   * the values of an interval into an {@link IntervalAccumulator}.
+   * @since 2.4 */
+  void setIntervalAccumulator(final boolean interval_accumulator) {
+    this.interval_accumulator = interval_accumulator;
+  }
+  
+  /** Applies the sketch settings to the function if it's a sketch
+   * percentile, see {@link Aggregators#withSketchSettings}.
+   * @param relative_accuracy The relative accuracy of the quantiles.
+   * @param max_buckets The maximum number of buckets for each sign.
+   * @since 2.4 */
+  void setSketchSettings(final double relative_accuracy, 
+      final int max_buckets) {
+    function = Aggregators.withSketchSettings(function, relative_accuracy, 
+        max_buckets);
+  }
+  
+  /** @return Whether or not the downsamplers may fold the values of an 
+   * interval into an {@link IntervalAccumulator}.
+   * @since 2.4 */
+  boolean intervalAccumulator() {
+    return interval_accumulator;
+  }
+  
   /**
    * Get the downsampling interval, in milliseconds.
    * @return the downsampling interval, in milliseconds.
@@ -252,6 +298,35 @@ public final class DownsamplingSpecification {
     return hist_agg;
   }
   
+  /**
+   * Returns the calendar interval boundaries for the range, computed by the
+   * first downsampler asking for them and shared with the other series.
+   * Downsamplers racing on the first request may each compute a table.
+   * @param interval The number of units per interval.
+   * @param unit The Calendar unit.
+   * @param start The start of the range in milliseconds.
+   * @param end The end of the range in milliseconds.
+   * @return The boundaries or null if they're disabled or aren't available.
+   * @since 2.4
+   */
+  CalendarIntervals calendarIntervals(final int interval, final int unit, 
+      final long start, final long end) {
+    if (!calendar_tables) {
+      return null;
+    }
+    final CalendarIntervals current = calendar_intervals.get();
+    if (current != null && 
+        current.covers(interval, unit, timezone, start, end)) {
+      return current;
+    }
+    final CalendarIntervals table = CalendarIntervals.create(interval, unit, 
+        timezone, start, end);
+    if (table != null) {
+      calendar_intervals.compareAndSet(current, table);
+    }
+    return table;
+  }
+  
   @Override
   public String toString() {
     return MoreObjects.toStringHelper(this)
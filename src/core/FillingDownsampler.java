@@ -12,15 +12,9 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Iterator;
-import java.util.List;
 import java.util.NoSuchElementException;
 
-import net.opentsdb.core.Aggregator.Doubles;
 import net.opentsdb.rollup.RollupQuery;
-import net.opentsdb.utils.DateTime;
 
 /**
  * A specialized downsampler that returns special values, based on the fill
@@ -34,11 +28,11 @@ public class FillingDownsampler extends Downsampler {
   /** Track when the downsampled data should end. */
   protected long end_timestamp;
   
-  /** An optional calendar set to the current timestamp for the data point */
-  private final Calendar previous_calendar;
+  /** An optional cursor at the start of the current interval */
+  private final CalendarIntervals.Cursor previous_interval;
   
-  /** An optional calendar set to the end of the interval timestamp */
-  private final Calendar next_calendar;
+  /** An optional cursor at the end of the current interval */
+  private final CalendarIntervals.Cursor next_interval;
 
   /** 
    * Create a new nulling downsampler.
@@ -109,36 +103,28 @@ public class FillingDownsampler extends Downsampler {
     if (run_all) {
       timestamp = start_time;
       end_timestamp = end_time;
-      previous_calendar = next_calendar = null;
+      previous_interval = next_interval = null;
     } else if (specification.useCalendar()) {
-      previous_calendar = DateTime.previousInterval(start_time, interval, unit, 
-          specification.getTimezone());
-      if (unit == WEEK_UNIT) {
-        previous_calendar.add(DAY_UNIT, -(interval * WEEK_LENGTH));
-      } else {
-        previous_calendar.add(unit, -interval);
-      }
-      next_calendar = DateTime.previousInterval(start_time, interval, unit, 
-          specification.getTimezone());
+      final long start = calendarFloor(start_time);
+      previous_interval = calendarCursor(CalendarIntervals.add(start, 
+          -interval, unit, specification.getTimezone()));
+      next_interval = calendarCursor(start);
       
-      final Calendar end_calendar = DateTime.previousInterval(
-          end_time, interval, unit, specification.getTimezone());
-      if (end_calendar.getTimeInMillis() == next_calendar.getTimeInMillis()) {
+      long end = calendarFloor(end_time);
+      if (end == start) {
         // advance once
-        if (unit == WEEK_UNIT) {
-          end_calendar.add(DAY_UNIT, interval * WEEK_LENGTH);
-        } else {
-          end_calendar.add(unit, interval);
-        }
+        final CalendarIntervals.Cursor end_interval = calendarCursor(end);
+        end_interval.next();
+        end = end_interval.time();
       }
-      timestamp = next_calendar.getTimeInMillis();
-      end_timestamp = end_calendar.getTimeInMillis();
+      timestamp = start;
+      end_timestamp = end;
     } else {
       // Use the values-in-interval object to align the timestamps at which we
       // expect data to arrive for the first and last intervals.
       timestamp = values_in_interval.alignTimestamp(start_time);
       end_timestamp = values_in_interval.alignTimestamp(end_time);
-      previous_calendar = next_calendar = null;
+      previous_interval = next_interval = null;
     }
   }
 
@@ -183,7 +169,7 @@ public class FillingDownsampler extends Downsampler {
           && actual < timestamp) {
         // The actual timestamp precedes our expected, so there's data in the
         // values-in-interval object that we wish to ignore.
-        specification.getFunction().runDouble(values_in_interval);
+        values_in_interval.skipInterval();
         values_in_interval.moveToNextInterval();
         actual = values_in_interval.getIntervalTimestamp();
       }
@@ -194,61 +180,15 @@ public class FillingDownsampler extends Downsampler {
         // The calculated interval timestamp matches what we expect, so we can
         // do normal processing.
         if (rollup_query != null && 
-            (rollup_query.getRollupAgg() == Aggregators.AVG || 
-            rollup_query.getRollupAgg() == Aggregators.DEV)) {
-          if (rollup_query.getRollupAgg() == Aggregators.AVG) {
-            if (specification.getFunction() == Aggregators.AVG) {
-              double sum = 0;
-              long count = 0;
-              while (values_in_interval.hasNextValue()) {
-                count += values_in_interval.nextValueCount();
-                sum += values_in_interval.nextDoubleValue();
-              }
-              if (count == 0) { // avoid # / 0
-                value = 0;
-              } else {
-                value = sum / (double)count;
-              }
-            } else {
-              class Accumulator implements Doubles {
-                List<Double> values = new ArrayList<Double>();
-                Iterator<Double> iterator;
-                @Override
-                public boolean hasNextValue() {
-                  return iterator.hasNext();
-                }
-                @Override
-                public double nextDoubleValue() {
-                  return iterator.next();
-                }
-              }
-              
-              final Accumulator accumulator = new Accumulator();
-              while (values_in_interval.hasNextValue()) {
-                long count = values_in_interval.nextValueCount();
-                double sum = values_in_interval.nextDoubleValue();
-                if (count == 0) {
-                  accumulator.values.add(0D);
-                } else {
-                  accumulator.values.add(sum / (double) count);
-                }
-              }
-              accumulator.iterator = accumulator.values.iterator();
-              value = specification.getFunction().runDouble(accumulator);
-            }
-          } else if (specification.getFunction() == Aggregators.DEV) {
+            rollup_query.getRollupAgg() == Aggregators.DEV) {
+          // only a dev downsampler can't run over the rolled up deviations,
+          // any other function keeps the previous value
+          if (specification.getFunction() == Aggregators.DEV) {
             throw new UnsupportedOperationException("Standard deviation over "
                 + "rolled up data is not supported at this time");
           }
-        } else if (rollup_query != null && 
-            specification.getFunction() == Aggregators.COUNT) {
-          double count = 0;
-          while (values_in_interval.hasNextValue()) {
-            count += values_in_interval.nextDoubleValue();
-          }
-          value = count;
         } else {
-          value = specification.getFunction().runDouble(values_in_interval);
+          value = aggregateInterval();
         }
         values_in_interval.moveToNextInterval();
       } else {
@@ -275,14 +215,9 @@ public class FillingDownsampler extends Downsampler {
       // Advance the expected timestamp to the next interval.
       if (!run_all) {
         if (specification.useCalendar()) {
-          if (unit == WEEK_UNIT) {
-            previous_calendar.add(DAY_UNIT, interval * WEEK_LENGTH);
-            next_calendar.add(DAY_UNIT, interval * WEEK_LENGTH);
-          } else {
-            previous_calendar.add(unit, interval);
-            next_calendar.add(unit, interval);
-          }
-          timestamp = next_calendar.getTimeInMillis();
+          previous_interval.next();
+          next_interval.next();
+          timestamp = next_interval.time();
         } else {
           timestamp += specification.getInterval();
         }
@@ -297,12 +232,27 @@ public class FillingDownsampler extends Downsampler {
     throw new NoSuchElementException("no more data points in " + this);
   }
 
+  /**
+   * Whether or not this downsampler yields a value at the same timestamps as
+   * another one, i.e. both fill the same fixed intervals over the same range
+   * and neither was iterated yet.
+   * @param other The downsampler to compare with.
+   * @return True if the values line up.
+   * @since 2.4
+   */
+  boolean alignsWith(final FillingDownsampler other) {
+    return !run_all && !other.run_all && 
+        !specification.useCalendar() && !other.specification.useCalendar() &&
+        specification.getInterval() == other.specification.getInterval() &&
+        timestamp == other.timestamp && end_timestamp == other.end_timestamp;
+  }
+
   @Override
   public long timestamp() {
     if (run_all) {
       return query_start;
     } else if (specification.useCalendar()) {
-      return previous_calendar.getTimeInMillis();
+      return previous_interval.time();
     }
     return timestamp - specification.getInterval();
   }
@@ -122,10 +122,25 @@ final class IncomingDataPoints implements WritableDataPoints {
 
   /**
    * Returns a partially initialized row key for this metric and these tags. The
-   * only thing left to fill in is the base timestamp.
+   * only thing left to fill in is the base timestamp. If the row key cache is
+   * enabled, a copy of the cached template is returned for known series.
    */
   static byte[] rowKeyTemplate(final TSDB tsdb, final String metric,
       final Map<String, String> tags) {
+    final RowKeyTemplateCache cache = tsdb.rowKeyTemplateCache();
+    long generation = 0;
+    if (cache != null) {
+      // read the generation before resolving so a concurrent rename or
+      // delete leaves a stale entry instead of a wrong one.
+      generation = tsdb.metrics.cacheGeneration()
+          + tsdb.tag_names.cacheGeneration()
+          + tsdb.tag_values.cacheGeneration();
+      final byte[] cached = cache.get(metric, tags, generation);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
     final short metric_width = tsdb.metrics.width();
     final short tag_name_width = tsdb.tag_names.width();
     final short tag_value_width = tsdb.tag_values.width();
@@ -148,6 +163,9 @@ final class IncomingDataPoints implements WritableDataPoints {
       copyInRowKey(row, pos, tag);
       pos += tag.length;
     }
+    if (cache != null) {
+      cache.put(metric, tags, row, generation);
+    }
     return row;
   }
 
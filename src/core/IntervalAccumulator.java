@@ -0,0 +1,206 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Reusable state for aggregating the values of one downsampling interval at a
+ * time. A downsampler owns one and resets it for every interval.
+ * <p>
+ * For the sum, min, max, avg, count, first and last families the values are
+ * folded into primitive fields as they are added, with the exact semantics of
+ * the aggregators' {@code runDouble}, including the handling of NaNs, so that
+ * the results are bit for bit identical. Any other aggregator gets the values
+ * buffered in an array that is reused across intervals and then run over it.
+ * @since 2.4
+ */
+final class IntervalAccumulator implements Aggregator.Doubles {
+  /** The families of aggregators with primitive state */
+  private enum Kind { SUM, MIN, MAX, AVG, COUNT, FIRST, LAST, BUFFERED }
+
+  private final Aggregator function;
+  private final Kind kind;
+
+  /** The primitive state */
+  private double result;
+  private long count;
+  private boolean empty;
+
+  /** The buffered values for other aggregators */
+  private double[] buffer;
+  private int size;
+  private int read;
+
+  /**
+   * Default ctor.
+   * @param function The aggregator to run on the values of each interval.
+   */
+  IntervalAccumulator(final Aggregator function) {
+    this.function = function;
+    kind = kindOf(function);
+    reset();
+  }
+
+  /** @return Whether or not the values are folded into primitive state
+   * instead of being buffered */
+  boolean isPrimitive() {
+    return kind != Kind.BUFFERED;
+  }
+
+  /** Clears the state for the next interval */
+  void reset() {
+    result = 0;
+    count = 0;
+    empty = true;
+    size = 0;
+    read = 0;
+    switch (kind) {
+    case MIN:
+      result = Double.POSITIVE_INFINITY;
+      break;
+    case MAX:
+      result = Double.NEGATIVE_INFINITY;
+      break;
+    default:
+      break;
+    }
+  }
+
+  /**
+   * Adds a value of the interval.
+   * @param value The value, may be NaN.
+   */
+  void add(final double value) {
+    switch (kind) {
+    case SUM:
+    case AVG:
+      if (!Double.isNaN(value)) {
+        result += value;
+        ++count;
+      }
+      break;
+    case MIN:
+      if (!Double.isNaN(value) && value < result) {
+        result = value;
+      }
+      break;
+    case MAX:
+      if (!Double.isNaN(value) && value > result) {
+        result = value;
+      }
+      break;
+    case COUNT:
+      if (!Double.isNaN(value)) {
+        result++;
+      }
+      break;
+    case FIRST:
+      if (empty) {
+        result = value;
+      }
+      break;
+    case LAST:
+      result = value;
+      break;
+    default:
+      if (buffer == null) {
+        buffer = new double[16];
+      } else if (size == buffer.length) {
+        buffer = Arrays.copyOf(buffer, size * 2);
+      }
+      buffer[size++] = value;
+      break;
+    }
+    empty = false;
+  }
+
+  /**
+   * @return The aggregated value of the values added since the last reset.
+   * @throws NoSuchElementException if the aggregator needs at least one value
+   * and none were added.
+   */
+  double result() {
+    switch (kind) {
+    case SUM:
+      return count == 0 ? Double.NaN : result;
+    case AVG:
+      return count == 0 ? Double.NaN : result / (int) count;
+    case MIN:
+      return result == Double.POSITIVE_INFINITY ? Double.NaN : result;
+    case MAX:
+      return result == Double.NEGATIVE_INFINITY ? Double.NaN : result;
+    case COUNT:
+      return result;
+    case FIRST:
+    case LAST:
+      if (empty) {
+        throw new NoSuchElementException("no values in the interval");
+      }
+      return result;
+    default:
+      read = 0;
+      return function.runDouble(this);
+    }
+  }
+
+  // ----------------- //
+  // Doubles interface //
+  // ----------------- //
+
+  @Override
+  public boolean hasNextValue() {
+    return read < size;
+  }
+
+  @Override
+  public double nextDoubleValue() {
+    if (read >= size) {
+      throw new NoSuchElementException("no more buffered values");
+    }
+    return buffer[read++];
+  }
+
+  /** @return The family of the aggregator */
+  private static Kind kindOf(final Aggregator function) {
+    if (function == Aggregators.SUM || function == Aggregators.ZIMSUM ||
+        function == Aggregators.PFSUM) {
+      return Kind.SUM;
+    }
+    if (function == Aggregators.MIN || function == Aggregators.MIMMIN) {
+      return Kind.MIN;
+    }
+    if (function == Aggregators.MAX || function == Aggregators.MIMMAX) {
+      return Kind.MAX;
+    }
+    if (function == Aggregators.AVG) {
+      return Kind.AVG;
+    }
+    if (function == Aggregators.COUNT) {
+      return Kind.COUNT;
+    }
+    if (function == Aggregators.FIRST) {
+      return Kind.FIRST;
+    }
+    if (function == Aggregators.LAST) {
+      return Kind.LAST;
+    }
+    return Kind.BUFFERED;
+  }
+
+  @Override
+  public String toString() {
+    return "IntervalAccumulator(function=" + function + ", kind=" + kind + ')';
+  }
+}
@@ -0,0 +1,294 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A sequence of data points decoded into parallel primitive arrays: the
+ * timestamps, the values with doubles stored as their raw long bits and a
+ * bitmap flagging the floating point values. Value counts are only kept if
+ * one of them is not 1.
+ * <p>
+ * Used by {@link Span} and {@link SpanGroup} once they have been materialized
+ * so that iterating is an array walk, seeking a binary search and random
+ * access O(1). Instances are immutable once built.
+ * @since 2.4
+ */
+final class MaterializedDataPoints {
+
+  /** Timestamps in milliseconds, sorted */
+  private final long[] timestamps;
+
+  /** Integer values or raw bits of the floating point values */
+  private final long[] values;
+
+  /** Bitmap with one bit per data point, set if the value is a float */
+  private final long[] float_bitmap;
+
+  /** Value counts for rolled up data, null if every count is 1 */
+  private final long[] value_counts;
+
+  /** Number of data points */
+  private final int size;
+
+  private MaterializedDataPoints(final long[] timestamps, final long[] values,
+      final long[] float_bitmap, final long[] value_counts, final int size) {
+    this.timestamps = timestamps;
+    this.values = values;
+    this.float_bitmap = float_bitmap;
+    this.value_counts = value_counts;
+    this.size = size;
+  }
+
+  /**
+   * Copies the data points out of the view until it's exhausted.
+   * @param it The view to read from.
+   * @param size_hint The expected number of data points, the arrays grow if
+   * needed.
+   * @return The materialized data points.
+   */
+  static MaterializedDataPoints fromView(final SeekableView it,
+      final int size_hint) {
+    int capacity = Math.max(size_hint, 8);
+    long[] timestamps = new long[capacity];
+    long[] values = new long[capacity];
+    long[] float_bitmap = new long[(capacity + 63) >>> 6];
+    long[] value_counts = null;
+    int i = 0;
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      if (i == capacity) {
+        capacity += capacity >>> 1;
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        values = Arrays.copyOf(values, capacity);
+        float_bitmap = Arrays.copyOf(float_bitmap, (capacity + 63) >>> 6);
+        if (value_counts != null) {
+          value_counts = Arrays.copyOf(value_counts, capacity);
+        }
+      }
+      timestamps[i] = dp.timestamp();
+      if (dp.isInteger()) {
+        values[i] = dp.longValue();
+      } else {
+        values[i] = Double.doubleToRawLongBits(dp.doubleValue());
+        float_bitmap[i >>> 6] |= 1L << i;
+      }
+      final long count = dp.valueCount();
+      if (count != 1 && value_counts == null) {
+        value_counts = new long[capacity];
+        Arrays.fill(value_counts, 0, i, 1);
+      }
+      if (value_counts != null) {
+        value_counts[i] = count;
+      }
+      i++;
+    }
+    return new MaterializedDataPoints(timestamps, values, float_bitmap,
+        value_counts, i);
+  }
+
+  /** @return The number of data points */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @param i The index of the data point.
+   * @return The timestamp in milliseconds.
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   */
+  long timestamp(final int i) {
+    checkIndex(i);
+    return timestamps[i];
+  }
+
+  /**
+   * @param i The index of the data point.
+   * @return Whether or not the value is an integer.
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   */
+  boolean isInteger(final int i) {
+    checkIndex(i);
+    return (float_bitmap[i >>> 6] & (1L << i)) == 0;
+  }
+
+  /**
+   * @param i The index of the data point.
+   * @return The integer value.
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   * @throws ClassCastException if the value is a float
+   */
+  long longValue(final int i) {
+    if (!isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a long in " + this);
+    }
+    return values[i];
+  }
+
+  /**
+   * @param i The index of the data point.
+   * @return The floating point value.
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   * @throws ClassCastException if the value is an integer
+   */
+  double doubleValue(final int i) {
+    if (isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a float in " + this);
+    }
+    return Double.longBitsToDouble(values[i]);
+  }
+
+  /** @return A new iterator over the data points */
+  SeekableView iterator() {
+    return new Iterator();
+  }
+
+  /** @throws IndexOutOfBoundsException if the index is out of bounds */
+  private void checkIndex(final int i) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException("index " + i + " out of bounds for "
+          + size + " data points");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MaterializedDataPoints(size=" + size + ", counts="
+        + (value_counts != null) + ')';
+  }
+
+  /** Iterator over the arrays. Seeking is a binary search. */
+  final class Iterator implements SeekableView, DataPoint {
+
+    /** Index of the current data point, -1 before the first call to next. */
+    private int index = -1;
+
+    // ------------------ //
+    // Iterator interface //
+    // ------------------ //
+
+    @Override
+    public boolean hasNext() {
+      return index < size - 1;
+    }
+
+    @Override
+    public DataPoint next() {
+      if (index >= size - 1) {
+        throw new NoSuchElementException("no more elements");
+      }
+      index++;
+      return this;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    // ---------------------- //
+    // SeekableView interface //
+    // ---------------------- //
+
+    @Override
+    public void seek(final long timestamp) {
+      // find the first data point at or after the timestamp
+      int lo = 0;
+      int hi = size;
+      while (lo < hi) {
+        final int mid = (lo + hi) >>> 1;
+        if (timestamps[mid] < timestamp) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      index = lo - 1;  // so that next() returns it
+    }
+
+    /**
+     * Adds the values from the current data point on that are before the end
+     * to the accumulator and moves to the first data point at or after the
+     * end. Must be called with a current data point.
+     * @param end The end of the interval in milliseconds, exclusive.
+     * @param accumulator The accumulator to add the values to.
+     * @return True if the iterator stopped on a data point at or after the
+     * end, false if all of the data points were consumed.
+     */
+    boolean accumulate(final long end, final IntervalAccumulator accumulator) {
+      int i = index;
+      while (i < size && timestamps[i] < end) {
+        accumulator.add((float_bitmap[i >>> 6] & (1L << i)) == 0 ? values[i] 
+            : Double.longBitsToDouble(values[i]));
+        i++;
+      }
+      if (i < size) {
+        index = i;
+        return true;
+      }
+      index = size - 1;
+      return false;
+    }
+
+    // ------------------- //
+    // DataPoint interface //
+    // ------------------- //
+
+    @Override
+    public long timestamp() {
+      return timestamps[index];
+    }
+
+    @Override
+    public boolean isInteger() {
+      return (float_bitmap[index >>> 6] & (1L << index)) == 0;
+    }
+
+    @Override
+    public long longValue() {
+      if (!isInteger()) {
+        throw new ClassCastException("value #" + index + " is not a long in "
+            + this);
+      }
+      return values[index];
+    }
+
+    @Override
+    public double doubleValue() {
+      if (isInteger()) {
+        throw new ClassCastException("value #" + index + " is not a float in "
+            + this);
+      }
+      return Double.longBitsToDouble(values[index]);
+    }
+
+    @Override
+    public double toDouble() {
+      return isInteger() ? values[index] : Double.longBitsToDouble(values[index]);
+    }
+
+    @Override
+    public long valueCount() {
+      return value_counts == null ? 1 : value_counts[index];
+    }
+
+    @Override
+    public String toString() {
+      return "MaterializedDataPoints.Iterator(index=" + index + ", dps="
+          + MaterializedDataPoints.this + ')';
+    }
+
+  }
+}
@@ -15,6 +15,7 @@ package net.opentsdb.core;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -39,6 +40,7 @@ import com.stumbleupon.async.Deferred;
 import org.hbase.async.Bytes;
 import org.hbase.async.GetRequest;
 import org.hbase.async.GetResultOrException;
+import org.hbase.async.HRegionLocation;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.hbase.async.KeyValue;
 
@@ -47,6 +49,7 @@ import net.opentsdb.rollup.RollupInterval;
 import net.opentsdb.rollup.RollupQuery;
 import net.opentsdb.rollup.RollupSpan;
 import net.opentsdb.rollup.RollupUtils;
+import net.opentsdb.stats.Histogram;
 import net.opentsdb.stats.QueryStats;
 import net.opentsdb.stats.QueryStats.QueryStat;
 import net.opentsdb.uid.UniqueId;
@@ -123,6 +126,23 @@ public class MultiGetQuery {
 
   private final int batch_size;
 
+  /** Whether or not each region server keeps a sliding window of gets in
+   * flight and rows are merged into the spans as they arrive. */
+  private final boolean pipelined;
+
+  /** The number of task lists, one per region server when pipelined, set
+   * once the regions of the gets were located */
+  private int lanes;
+
+  /** The number of gets in flight per lane */
+  private final int window;
+
+  /** The region server of each lane, null if not pipelined */
+  private List<String> lane_servers;
+
+  /** The latencies of the gets per lane in ms, null if not pipelined */
+  private Histogram[] lane_latencies;
+
   /** Whether or not to fetch all possible salts for the rows in case the 
    * salting has changed during the TSD's run. */
   private final boolean get_all_salts;
@@ -142,6 +162,9 @@ public class MultiGetQuery {
   private final int rollup_agg_id;
   private final int rollup_count_id;
   
+  /** The shared cache of compacted rows, null if disabled */
+  private final RowSegmentCache row_cache;
+  
   public MultiGetQuery(final TSDB tsdb, 
       final TsdbQuery query,
       final byte[] metric, 
@@ -170,6 +193,8 @@ public class MultiGetQuery {
     this.query_stats = query_stats;
     this.query_index = query_index;
     this.multiget_no_meta = multiget_no_meta;
+    row_cache = RollupQuery.isValidQuery(rollup_query) ? 
+        null : tsdb.rowSegmentCache();
 
     if (tags == null) {
       throw new IllegalArgumentException("Tags list cannot be null or empty");
@@ -184,11 +209,23 @@ public class MultiGetQuery {
 
     concurrency_multi_get = tsdb.config
         .getInt("tsd.query.multi_get.concurrent");
-    batch_size = tsdb.config.getInt("tsd.query.multi_get.batch_size");
     get_all_salts = tsdb.config.getBoolean("tsd.query.multi_get.get_all_salts");
-    multi_get_tasks = new ArrayList<List<MultiGetTask>>(concurrency_multi_get);
-    multi_get_indexs = new ArrayList<AtomicInteger>(concurrency_multi_get);
-    for (int i = 0; i < concurrency_multi_get; ++i) {
+    pipelined = tsdb.config.getBoolean("tsd.query.multi_get.pipeline.enable");
+    if (pipelined) {
+      // the lanes are the region servers hosting the rows, added as the
+      // regions of the gets are located
+      lanes = 0;
+      window = Math.max(1, 
+          tsdb.config.getInt("tsd.query.multi_get.pipeline.window"));
+      batch_size = tsdb.config.getInt("tsd.query.multi_get.pipeline.batch_size");
+    } else {
+      lanes = concurrency_multi_get;
+      window = 1;
+      batch_size = tsdb.config.getInt("tsd.query.multi_get.batch_size");
+    }
+    multi_get_tasks = new ArrayList<List<MultiGetTask>>(lanes);
+    multi_get_indexs = new ArrayList<AtomicInteger>(lanes);
+    for (int i = 0; i < lanes; ++i) {
       multi_get_tasks.add(new ArrayList<MultiGetTask>());
       multi_get_indexs.add(new AtomicInteger(-1));
     }
@@ -297,6 +334,9 @@ public class MultiGetQuery {
     // how many bytes fetched from hbase
     private long mul_get_number_byte_fetched = 0;
 
+    // how many rows didn't need compacting thanks to the row cache
+    private long mul_get_rows_from_cache = 0;
+
     /** The exception thrown by this get request set */
     private Exception get_exception;
 
@@ -432,12 +472,25 @@ public class MultiGetQuery {
       KeyValue compacted = null;
       try {
         final long compaction_start = DateTime.nanoTime();
-        compacted = tsdb.compact(row, notes, hists);
-        
-        // histogram row
-        if (hists.size() > 0) {
-          histograms.add(new SimpleEntry<byte[], List<HistogramDataPoint>>(key, hists));
-          mul_get_dps_post_filter += hists.size();
+        // the cached compaction is only used if the cells still match it
+        if (row_cache != null) {
+          compacted = row_cache.get(key, row);
+        }
+        if (compacted != null) {
+          ++mul_get_rows_from_cache;
+        } else {
+          compacted = tsdb.compact(row, notes, hists);
+          
+          // histogram row
+          if (hists.size() > 0) {
+            histograms.add(new SimpleEntry<byte[], List<HistogramDataPoint>>(key, hists));
+            mul_get_dps_post_filter += hists.size();
+          }
+          
+          if (row_cache != null && compacted != null && hists.isEmpty() && 
+              (notes == null || notes.isEmpty())) {
+            row_cache.put(key, row, compacted);
+          }
         }
 
         mul_get_compaction_time += (DateTime.nanoTime() - compaction_start);
@@ -551,6 +604,13 @@ public class MultiGetQuery {
             + ", cells: " + mul_get_number_column_fetched + ", mget time(ms): " 
             + mul_get_time / 1000000 + " and " + ok);
       }
+      
+      if (lane_latencies != null) {
+        final Histogram latencies = lane_latencies[concurrency_index];
+        synchronized (latencies) {
+          latencies.add((int) (mul_get_time / 1000000));
+        }
+      }
   
       if (query_stats != null) {
         query_stats.addScannerStat(query_index, seq_id, QueryStat.SCANNER_TIME,
@@ -582,6 +642,8 @@ public class MultiGetQuery {
             mul_get_uids_resolved);
         query_stats.addScannerStat(query_index, seq_id, QueryStat.COMPACTION_TIME, 
             mul_get_compaction_time);
+        query_stats.addScannerStat(query_index, seq_id, QueryStat.ROW_CACHE_HITS, 
+            mul_get_rows_from_cache);
       }
 
       if (ok) {
@@ -630,34 +692,65 @@ public class MultiGetQuery {
    * Start the work of firing up X concurrent get requests.
    */
   private void startFetch() {
-    prepareConcurrentMultiGetTasks();
+    /** Fires off the first gets of each lane once the tasks are ready */
+    class StartCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object ignored) throws Exception {
+        // set the time of starting
+        fetch_start_time = System.currentTimeMillis();
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Start to fetch data using multiget, there will be " 
+              + multi_get_wait_cnt + " multigets to call");
+        }
 
-    // set the time of starting
-    fetch_start_time = System.currentTimeMillis();
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("Start to fetch data using multiget, there will be " + multi_get_wait_cnt
-          + " multigets to call");
+        // each fetcher pulls the next task of its lane when it completes so
+        // a lane keeps up to "window" gets in flight until its tasks run out
+        for (int con_idx = 0; con_idx < lanes; ++con_idx) {
+          final List<MultiGetTask> con_mul_get_tasks = 
+              multi_get_tasks.get(con_idx);
+          for (int i = 0; i < window; ++i) {
+            final int task_index = 
+                multi_get_indexs.get(con_idx).incrementAndGet();
+            if (task_index >= con_mul_get_tasks.size()) {
+              break;
+            }
+            final MultiGetTask task = con_mul_get_tasks.get(task_index);
+            final MulGetCB mgcb = new MulGetCB(con_idx, task.getTSUIDs(), 
+                task.getGets());
+            mgcb.fetch();
+          }
+        } // end for
+        return null;
+      }
     }
 
-    for (int con_idx = 0; con_idx < concurrency_multi_get; ++con_idx) {
-      final List<MultiGetTask> con_mul_get_tasks = multi_get_tasks.get(con_idx);
-      final int task_index = multi_get_indexs.get(con_idx).incrementAndGet();
-
-      if (task_index < con_mul_get_tasks.size()) {
-        final MultiGetTask task = con_mul_get_tasks.get(task_index);
-        final MulGetCB mgcb = new MulGetCB(con_idx, task.getTSUIDs(), task.getGets());
-        mgcb.fetch();
+    /** Fails the query if the tasks couldn't be prepared */
+    class PrepareErrCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        LOG.error("Failed to prepare the multi gets", e);
+        if (!isHistogramScan()) {
+          results.callback(e);
+        } else {
+          histogramResults.callback(e);
+        }
+        return null;
       }
-    } // end for
+    }
+
+    prepareConcurrentMultiGetTasks().addCallback(new StartCB())
+        .addErrback(new PrepareErrCB());
   }
   
   /**
    * Compiles the list of TSUIDs and GetRequests to send to execute against
    * storage. Each batch will only have requests for one salt, i.e a batch
-   * will not have requests with multiple salts.
+   * will not have requests with multiple salts. When pipelined the batches
+   * are per region server, see {@link #prepareLaneTasks}.
+   * @return A deferred resolving to null once the tasks are ready.
    */
   @VisibleForTesting
-  void prepareConcurrentMultiGetTasks() {
+  Deferred<Object> prepareConcurrentMultiGetTasks() {
     multi_get_wait_cnt = 0;
     prepare_multi_get_start_time = DateTime.currentTimeMillis();
 
@@ -683,6 +776,9 @@ public class MultiGetQuery {
       all_tsuids_gets = prepareRequests(row_base_time_list, tags);
 
     }
+    if (pipelined) {
+      return prepareLaneTasks(all_tsuids_gets);
+    }
     // Iterate over all salts
     for (final Entry<byte[], ByteMap<List<GetRequest>>> salts_entry : all_tsuids_gets.entrySet()) {
       if (gets_to_prepare.size() > 0) { // if we have any gets_to_prepare for previous salt, create a 
@@ -744,7 +840,135 @@ public class MultiGetQuery {
           + multi_get_wait_cnt + " tasks using "
           + (prepare_multi_get_end_time - prepare_multi_get_start_time) + "ms");
     }
+    return Deferred.fromResult(null);
+  }
 
+  /**
+   * Looks up the region server hosting the row of each get and splits the
+   * gets into batches per server, so that each server keeps a window of 
+   * batches in flight however the salt buckets are spread across the 
+   * servers. Gets whose region can't be located go to a lane for their salt
+   * bucket instead.
+   * @param all_tsuids_gets The gets per salt and TSUID.
+   * @return A deferred resolving to null once the tasks are ready.
+   */
+  private Deferred<Object> prepareLaneTasks(
+      final ByteMap<ByteMap<List<GetRequest>>> all_tsuids_gets) {
+    final List<GetRequest> requests = new ArrayList<GetRequest>();
+    final List<byte[]> request_tsuids = new ArrayList<byte[]>();
+    final List<Deferred<String>> servers = new ArrayList<Deferred<String>>();
+    
+    /** Names the region server hosting a row */
+    final class ServerCB implements Callback<String, HRegionLocation> {
+      @Override
+      public String call(final HRegionLocation location) throws Exception {
+        return location.getHostname() + ":" + location.getPort();
+      }
+    }
+    
+    /** Falls back to the salt bucket of a row that couldn't be located */
+    final class SaltCB implements Callback<String, Exception> {
+      private final byte[] key;
+      
+      SaltCB(final byte[] key) {
+        this.key = key;
+      }
+      
+      @Override
+      public String call(final Exception e) throws Exception {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Failed to locate the region of " + Bytes.pretty(key), e);
+        }
+        return "salt_" + saltOf(key);
+      }
+    }
+    
+    // the no-meta requests are all under one salt so we look at the keys
+    final ServerCB server_cb = new ServerCB();
+    for (final ByteMap<List<GetRequest>> salt_gets : all_tsuids_gets.values()) {
+      for (final Entry<byte[], List<GetRequest>> gets_entry : salt_gets) {
+        for (final GetRequest request : gets_entry.getValue()) {
+          requests.add(request);
+          request_tsuids.add(gets_entry.getKey());
+          servers.add(tsdb.getClient()
+              .locateRegion(table_to_fetch, request.key())
+              .addCallbacks(server_cb, new SaltCB(request.key())));
+        }
+      }
+    }
+    
+    /** Batches the gets per server once all of them were located */
+    final class GroupCB implements Callback<Object, ArrayList<String>> {
+      @Override
+      public Object call(final ArrayList<String> names) throws Exception {
+        final Map<String, Integer> indices = new HashMap<String, Integer>();
+        final List<String> lane_names = new ArrayList<String>();
+        final List<List<GetRequest>> lane_gets = 
+            new ArrayList<List<GetRequest>>();
+        final List<Set<byte[]>> lane_tsuids = new ArrayList<Set<byte[]>>();
+        for (int i = 0; i < requests.size(); ++i) {
+          Integer lane = indices.get(names.get(i));
+          if (lane == null) {
+            lane = lane_names.size();
+            indices.put(names.get(i), lane);
+            lane_names.add(names.get(i));
+            lane_gets.add(new ArrayList<GetRequest>(batch_size));
+            lane_tsuids.add(new ByteSet());
+            multi_get_tasks.add(new ArrayList<MultiGetTask>());
+            multi_get_indexs.add(new AtomicInteger(-1));
+          }
+          if (lane_gets.get(lane).size() >= batch_size) {
+            addLaneTask(lane, lane_tsuids.get(lane), lane_gets.get(lane));
+            lane_gets.set(lane, new ArrayList<GetRequest>(batch_size));
+            lane_tsuids.set(lane, new ByteSet());
+          }
+          lane_gets.get(lane).add(requests.get(i));
+          lane_tsuids.get(lane).add(request_tsuids.get(i));
+        }
+        for (int i = 0; i < lane_names.size(); ++i) {
+          if (lane_gets.get(i).size() > 0) {
+            addLaneTask(i, lane_tsuids.get(i), lane_gets.get(i));
+          }
+        }
+        
+        lane_servers = lane_names;
+        lane_latencies = new Histogram[lane_names.size()];
+        for (int i = 0; i < lane_latencies.length; ++i) {
+          lane_latencies[i] = new Histogram(16000, (short) 2, 100);
+        }
+        lanes = lane_names.size();
+        
+        prepare_multi_get_end_time = DateTime.currentTimeMillis();
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Finished preparing pipelined multi get tasks with " 
+              + multi_get_wait_cnt + " tasks over " + lanes + " servers using "
+              + (prepare_multi_get_end_time - prepare_multi_get_start_time) 
+              + "ms");
+        }
+        return null;
+      }
+    }
+    
+    return Deferred.group(servers).addCallback(new GroupCB());
+  }
+  
+  private void addLaneTask(final int lane, final Set<byte[]> tsuids, 
+      final List<GetRequest> gets) {
+    multi_get_tasks.get(lane).add(new MultiGetTask(tsuids, gets));
+    ++multi_get_wait_cnt;
+    multi_get_num_get_requests += gets.size();
+  }
+  
+  /**
+   * @param key The row key.
+   * @return The salt of the row key.
+   */
+  private static int saltOf(final byte[] key) {
+    int salt = 0;
+    for (int i = 0; i < Const.SALT_WIDTH(); i++) {
+      salt = (salt << 8) | (key[i] & 0xFF);
+    }
+    return salt;
   }
 
   private void validateMultigetData(List<KeyValue> kvs, 
@@ -752,10 +976,6 @@ public class MultiGetQuery {
       List<SimpleEntry<byte[], List<HistogramDataPoint>>> histograms) {
     int tasks = finished_multi_get_cnt.incrementAndGet();
 
-    if (kvs.size() > 0) {
-      kvsmap.put(tasks, kvs);
-    }
-
     if (annotMap != null) {
       for (byte[] key : annotations.keySet()) {
         List<Annotation> notes = annotations.get(key);
@@ -766,6 +986,15 @@ public class MultiGetQuery {
       }
     }
 
+    if (kvs.size() > 0) {
+      if (pipelined && !isHistogramScan()) {
+        // decode into the spans now instead of after the last get
+        mergeRows(kvs);
+      } else {
+        kvsmap.put(tasks, kvs);
+      }
+    }
+
     if (histograms.size() > 0) {
       histMap.put(tasks, histograms);
     }
@@ -826,6 +1055,14 @@ public class MultiGetQuery {
     if (query_stats != null) {
       query_stats.addStat(query_index, QueryStat.SCANNER_MERGE_TIME, 
           (DateTime.nanoTime() - merge_start));
+      if (lane_latencies != null) {
+        for (int i = 0; i < lanes; ++i) {
+          if (!multi_get_tasks.get(i).isEmpty()) {
+            query_stats.addGetLatencies(query_index, lane_servers.get(i), 
+                lane_latencies[i]);
+          }
+        }
+      }
     }
 
     if (!isHistogramScan()) {
@@ -902,6 +1139,36 @@ public class MultiGetQuery {
         LOG.error("Found a key value list that was null or empty");
         continue;
       }
+      mergeRows(kvs);
+    }
+
+    kvsmap.clear();
+
+    synchronized (spans) {
+      for (byte[] key : annotMap.keySet()) {
+        Span datapoints = (Span) spans.get(key);
+
+        if (datapoints == null) {
+          datapoints = new Span(tsdb);
+          spans.put(key, datapoints);
+        }
+
+        for (Annotation note : annotMap.get(key)) {
+          datapoints.getAnnotations().add(note);
+        }
+      }
+    }
+
+    annotMap.clear();
+  }
+  
+  /**
+   * Adds the compacted rows to their spans. Synchronized on the spans as 
+   * pipelined gets merge their rows as they complete.
+   * @param kvs The non-null list of rows to merge.
+   */
+  private void mergeRows(final List<KeyValue> kvs) {
+    synchronized (spans) {
       for (final KeyValue kv : kvs) {
 
         if (kv == null) {
@@ -943,23 +1210,6 @@ public class MultiGetQuery {
         }
       }
     }
-
-    kvsmap.clear();
-
-    for (byte[] key : annotMap.keySet()) {
-      Span datapoints = (Span) spans.get(key);
-
-      if (datapoints == null) {
-        datapoints = new Span(tsdb);
-        spans.put(key, datapoints);
-      }
-
-      for (Annotation note : annotMap.get(key)) {
-        datapoints.getAnnotations().add(note);
-      }
-    }
-
-    annotMap.clear();
   }
   boolean exception1;
   /**
@@ -0,0 +1,344 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable quantile sketch with relative accuracy guarantees, after
+ * DDSketch. Values are counted in logarithmically sized buckets so that any
+ * quantile is returned within the relative accuracy of the exact value at
+ * the same rank, using a bounded amount of memory regardless of the number of
+ * values added.
+ * <p>
+ * Each sign has its own array of bucket counts. When an array would exceed
+ * the maximum number of buckets, the buckets closest to zero are collapsed
+ * into one so that the accuracy of the upper quantiles is preserved. The
+ * minimum and maximum are tracked exactly, returned for the lowest and
+ * highest ranks and used to clamp the other results.
+ * <p>
+ * Instances are not thread safe.
+ * @since 2.4
+ */
+public final class QuantileSketch {
+  /** The default relative accuracy */
+  public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+  /** The default maximum number of buckets per sign */
+  public static final int DEFAULT_MAX_BUCKETS = 2048;
+
+  /** Values closer to zero than this are counted as zero */
+  private static final double MIN_INDEXABLE = 1e-300;
+
+  private final double relative_accuracy;
+  private final int max_buckets;
+
+  /** The logarithm of the ratio between consecutive bucket bounds */
+  private final double log_gamma;
+
+  /** The counts for positive and negative values by bucket index */
+  private final Store positive;
+  private final Store negative;
+
+  private long zero_count;
+  private long count;
+  private double min;
+  private double max;
+
+  /** Creates a sketch with the default accuracy and number of buckets */
+  public QuantileSketch() {
+    this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_BUCKETS);
+  }
+
+  /**
+   * Creates a sketch.
+   * @param relative_accuracy The relative accuracy of the quantiles, between
+   * 0 and 1 exclusive.
+   * @param max_buckets The maximum number of buckets for each sign.
+   * @throws IllegalArgumentException if the accuracy or number of buckets
+   * are invalid.
+   */
+  public QuantileSketch(final double relative_accuracy,
+      final int max_buckets) {
+    validate(relative_accuracy, max_buckets);
+    this.relative_accuracy = relative_accuracy;
+    this.max_buckets = max_buckets;
+    log_gamma = Math.log((1 + relative_accuracy) / (1 - relative_accuracy));
+    positive = new Store(max_buckets);
+    negative = new Store(max_buckets);
+    clear();
+  }
+
+  /** @return The relative accuracy of the quantiles */
+  public double relativeAccuracy() {
+    return relative_accuracy;
+  }
+
+  /** @return The maximum number of buckets for each sign */
+  public int maxBuckets() {
+    return max_buckets;
+  }
+
+  /** @return The number of values added */
+  public long count() {
+    return count;
+  }
+
+  /** Resets the sketch so it can be reused */
+  public void clear() {
+    positive.clear();
+    negative.clear();
+    zero_count = 0;
+    count = 0;
+    min = Double.POSITIVE_INFINITY;
+    max = Double.NEGATIVE_INFINITY;
+  }
+
+  /**
+   * Adds a value. NaNs and infinities are ignored.
+   * @param value The value to add.
+   */
+  public void add(final double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return;
+    }
+    if (value > MIN_INDEXABLE) {
+      positive.add(index(value), 1);
+    } else if (value < -MIN_INDEXABLE) {
+      negative.add(index(-value), 1);
+    } else {
+      ++zero_count;
+    }
+    ++count;
+    if (value < min) {
+      min = value;
+    }
+    if (value > max) {
+      max = value;
+    }
+  }
+
+  /**
+   * Adds the counts of another sketch to this one.
+   * @param other The sketch to merge, must have the same accuracy.
+   * @throws IllegalArgumentException if the accuracies differ.
+   */
+  public void merge(final QuantileSketch other) {
+    if (other.relative_accuracy != relative_accuracy) {
+      throw new IllegalArgumentException("Cannot merge a sketch with accuracy "
+          + other.relative_accuracy + " into one with " + relative_accuracy);
+    }
+    if (other.count == 0) {
+      return;
+    }
+    positive.merge(other.positive);
+    negative.merge(other.negative);
+    zero_count += other.zero_count;
+    count += other.count;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * Returns the approximate value at the given quantile, i.e. the value with
+   * the rank {@code quantile * (count - 1)} in the sorted values.
+   * @param quantile The quantile from 0 to 1 inclusive.
+   * @return The value or NaN if the sketch is empty.
+   * @throws IllegalArgumentException if the quantile is out of range.
+   */
+  public double quantile(final double quantile) {
+    if (quantile < 0 || quantile > 1) {
+      throw new IllegalArgumentException("Quantile must be from 0 to 1: "
+          + quantile);
+    }
+    if (count == 0) {
+      return Double.NaN;
+    }
+    final long rank = (long) (quantile * (count - 1));
+    if (rank == 0) {
+      return min;
+    }
+    if (rank == count - 1) {
+      return max;
+    }
+    final double value;
+    if (rank < negative.count) {
+      // most negative first, i.e. the highest index first
+      value = -bucketValue(negative.indexOfRank(negative.count - 1 - rank));
+    } else if (rank < negative.count + zero_count) {
+      value = 0;
+    } else {
+      value = bucketValue(positive.indexOfRank(
+          rank - negative.count - zero_count));
+    }
+    return Math.max(min, Math.min(max, value));
+  }
+
+  /** @return The bucket index for a positive value */
+  private int index(final double value) {
+    return (int) Math.ceil(Math.log(value) / log_gamma);
+  }
+
+  /** @return The value representing the bucket, within the accuracy of
+   * all the values counted in it */
+  private double bucketValue(final int index) {
+    return Math.exp(index * log_gamma) * (1 - relative_accuracy);
+  }
+
+  /**
+   * Checks the settings of a sketch.
+   * @param relative_accuracy The relative accuracy of the quantiles, between
+   * 0 and 1 exclusive.
+   * @param max_buckets The maximum number of buckets for each sign.
+   * @throws IllegalArgumentException if the accuracy or number of buckets
+   * are invalid.
+   */
+  static void validate(final double relative_accuracy,
+      final int max_buckets) {
+    if (!(relative_accuracy > 0 && relative_accuracy < 1)) {
+      throw new IllegalArgumentException(
+          "Relative accuracy must be between 0 and 1: " + relative_accuracy);
+    }
+    if (max_buckets < 2) {
+      throw new IllegalArgumentException(
+          "Max buckets must be at least 2: " + max_buckets);
+    }
+  }
+
+  /**
+   * Counts by bucket index in a contiguous array that grows as needed up to
+   * the maximum number of buckets, collapsing the lowest indices beyond that.
+   */
+  private static final class Store {
+    private final int max_buckets;
+
+    /** The counts, the first one for {@link #offset} */
+    private long[] counts;
+
+    /** The index of the first count */
+    private int offset;
+
+    /** The number of counts in use from the start of the array */
+    private int length;
+
+    /** The sum of the counts */
+    private long count;
+
+    Store(final int max_buckets) {
+      this.max_buckets = max_buckets;
+      counts = new long[Math.min(64, max_buckets)];
+    }
+
+    void clear() {
+      if (length > 0) {
+        Arrays.fill(counts, 0, length, 0);
+      }
+      length = 0;
+      offset = 0;
+      count = 0;
+    }
+
+    void add(int index, final long amount) {
+      if (length == 0) {
+        offset = index;
+        length = 1;
+      } else if (index < offset) {
+        if (offset + length - index > max_buckets) {
+          // collapse into the lowest bucket we can keep
+          index = offset + length - max_buckets;
+          if (index < offset) {
+            grow(index, offset + length - 1);
+          }
+        } else {
+          grow(index, offset + length - 1);
+        }
+      } else if (index >= offset + length) {
+        if (index - offset + 1 > max_buckets) {
+          collapse(index - max_buckets + 1);
+        }
+        grow(offset, index);
+      }
+      counts[index - offset] += amount;
+      count += amount;
+    }
+
+    void merge(final Store other) {
+      for (int i = 0; i < other.length; i++) {
+        if (other.counts[i] != 0) {
+          add(other.offset + i, other.counts[i]);
+        }
+      }
+    }
+
+    /** @return The bucket index containing the value of the given rank,
+     * from the lowest index */
+    int indexOfRank(final long rank) {
+      long seen = 0;
+      for (int i = 0; i < length; i++) {
+        seen += counts[i];
+        if (seen > rank) {
+          return offset + i;
+        }
+      }
+      return offset + length - 1;
+    }
+
+    /** Makes room for the indices from low to high inclusive */
+    private void grow(final int low, final int high) {
+      final int new_length = high - low + 1;
+      if (low == offset && new_length <= counts.length) {
+        length = new_length;
+        return;
+      }
+      final long[] array = new_length <= counts.length ? counts
+          : new long[Math.min(max_buckets,
+              Math.max(new_length, counts.length * 2))];
+      final int shift = offset - low;
+      System.arraycopy(counts, 0, array, shift, length);
+      if (array == counts) {
+        Arrays.fill(array, 0, shift, 0);
+      }
+      counts = array;
+      offset = low;
+      length = new_length;
+    }
+
+    /** Folds the counts below the index into the bucket at the index */
+    private void collapse(final int new_offset) {
+      if (new_offset <= offset) {
+        return;
+      }
+      if (new_offset >= offset + length) {
+        long sum = 0;
+        for (int i = 0; i < length; i++) {
+          sum += counts[i];
+        }
+        Arrays.fill(counts, 0, length, 0);
+        counts[0] = sum;
+        offset = new_offset;
+        length = 1;
+        return;
+      }
+      final int shift = new_offset - offset;
+      long sum = 0;
+      for (int i = 0; i <= shift; i++) {
+        sum += counts[i];
+      }
+      System.arraycopy(counts, shift, counts, 0, length - shift);
+      Arrays.fill(counts, length - shift, length, 0);
+      counts[0] = sum;
+      offset = new_offset;
+      length -= shift;
+    }
+  }
+}
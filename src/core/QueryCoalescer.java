@@ -0,0 +1,244 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Shares a single execution between identical queries that are in flight at
+ * the same time, e.g. when many users open the same dashboard at once.
+ * <p>
+ * The first query for a given key runs as usual. Identical queries arriving
+ * while it's still running don't touch storage; they wait for the running
+ * query and each get their own copy of its result list to serialize. The
+ * {@link DataPoints} themselves are shared and only read by the serializers;
+ * {@link SpanGroup} resolves its tag names once for all of them.
+ * Once the execution completes the key is released so the next query runs
+ * again.
+ * <p>
+ * Queries are identical if their user submitted parameters are, see
+ * {@link #flightKey}. Relative times are compared as given so a query
+ * for "1h-ago" joins one that started a moment earlier. Deletions and
+ * queries that override the storage limits always run on their own.
+ * @since 2.4
+ */
+public final class QueryCoalescer {
+
+  /** The executions currently in flight */
+  private final ConcurrentHashMap<String, Flight> in_flight =
+      new ConcurrentHashMap<String, Flight>();
+
+  /** Number of queries that were executed */
+  private final AtomicLong executions = new AtomicLong();
+
+  /** Number of queries that joined an execution in flight */
+  private final AtomicLong coalesced = new AtomicLong();
+
+  /**
+   * @param query The validated query.
+   * @return Whether or not the query may share an execution.
+   */
+  public boolean isCoalescable(final TSQuery query) {
+    return !query.getDelete() && !query.overrideByteLimit() &&
+        !query.overrideDataPointLimit();
+  }
+
+  /**
+   * Joins an identical query in flight or runs the query if there isn't one.
+   * @param query The validated query, see {@link #isCoalescable}.
+   * @param execution Runs a query and returns the results of each sub query
+   * in order. Only called if the query doesn't join another.
+   * @return A deferred resolving to the results of each sub query in order.
+   */
+  public Deferred<ArrayList<DataPoints[]>> runAsync(final TSQuery query,
+      final Callback<Deferred<ArrayList<DataPoints[]>>, TSQuery> execution) {
+    final String key = flightKey(query);
+    while (true) {
+      final Flight flight = new Flight(key);
+      final Flight running = in_flight.putIfAbsent(key, flight);
+      if (running == null) {
+        executions.incrementAndGet();
+        return flight.launch(query, execution);
+      }
+      final Deferred<ArrayList<DataPoints[]>> joined = running.join();
+      if (joined != null) {
+        coalesced.incrementAndGet();
+        final QueryStats stats = query.getQueryStats();
+        if (stats != null) {
+          stats.addStat(QueryStat.COALESCED, 1);
+        }
+        return joined;
+      }
+      // landed in the meantime, try again
+    }
+  }
+
+  /**
+   * Collects the stats of the coalescer.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("query.single-flight-execution", executions.get());
+    collector.record("query.single-flight-coalesced", coalesced.get());
+    collector.record("query.single-flight-in-flight", in_flight.size());
+  }
+
+  /** @return The number of queries that were executed. */
+  long executions() {
+    return executions.get();
+  }
+
+  /** @return The number of queries that joined an execution in flight. */
+  long coalesced() {
+    return coalesced.get();
+  }
+
+  /** @return The number of executions in flight. */
+  int inFlight() {
+    return in_flight.size();
+  }
+
+  /** One execution and the queries waiting for it */
+  private final class Flight {
+    private final String key;
+    private final List<Deferred<ArrayList<DataPoints[]>>> waiters =
+        new ArrayList<Deferred<ArrayList<DataPoints[]>>>();
+    private boolean landed;
+
+    Flight(final String key) {
+      this.key = key;
+    }
+
+    /** @return The deferred of the first query after starting execution */
+    Deferred<ArrayList<DataPoints[]>> launch(final TSQuery query,
+        final Callback<Deferred<ArrayList<DataPoints[]>>, TSQuery> execution) {
+      final Deferred<ArrayList<DataPoints[]>> first = join();
+
+      /** Hands the results to every waiting query */
+      final class LandCB implements 
+          Callback<Object, ArrayList<DataPoints[]>> {
+        @Override
+        public Object call(final ArrayList<DataPoints[]> results) {
+          land(results);
+          return null;
+        }
+      }
+
+      /** Hands the exception to every waiting query */
+      final class LandErrorCB implements Callback<Object, Exception> {
+        @Override
+        public Object call(final Exception e) {
+          land(e);
+          return null;
+        }
+      }
+
+      Deferred<ArrayList<DataPoints[]>> deferred;
+      try {
+        deferred = execution.call(query);
+      } catch (Exception e) {
+        deferred = Deferred.fromError(e);
+      }
+      deferred.addCallbacks(new LandCB(), new LandErrorCB());
+      return first;
+    }
+
+    /** @return A deferred for a waiting query or null if it has landed */
+    synchronized Deferred<ArrayList<DataPoints[]>> join() {
+      if (landed) {
+        return null;
+      }
+      final Deferred<ArrayList<DataPoints[]>> deferred =
+          new Deferred<ArrayList<DataPoints[]>>();
+      waiters.add(deferred);
+      return deferred;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void land(final Object result) {
+      in_flight.remove(key, this);
+      synchronized (this) {
+        landed = true;
+      }
+      for (final Deferred<ArrayList<DataPoints[]>> waiter : waiters) {
+        if (result instanceof Exception) {
+          waiter.callback(result);
+        } else {
+          waiter.callback(new ArrayList<DataPoints[]>(
+              (ArrayList<DataPoints[]>) result));
+        }
+      }
+    }
+  }
+
+  /**
+   * Builds the key of a query from its user submitted parameters. Filters
+   * are compared by their definition as most of them don't implement
+   * equality.
+   * @param query The validated query.
+   * @return A key that's equal for queries with the same results.
+   */
+  static String flightKey(final TSQuery query) {
+    final StringBuilder buf = new StringBuilder();
+    buf.append("start=").append(query.getStart())
+       .append(",end=").append(query.getEnd())
+       .append(",tz=").append(query.getTimezone())
+       .append(",calendar=").append(query.getUseCalendar())
+       .append(",padding=").append(query.getPadding())
+       .append(",notes=").append(!query.getNoAnnotations())
+       .append(",globals=").append(query.getGlobalAnnotations())
+       .append(",show_tsuids=").append(query.getShowTSUIDs())
+       .append(",ms=").append(query.getMsResolution())
+       .append(",options=").append(query.getOptions() == null ? null :
+           new TreeMap<String, ArrayList<String>>(query.getOptions()));
+    for (final TSSubQuery sub : query.getQueries()) {
+      buf.append("|agg=").append(sub.getAggregator())
+         .append(",metric=").append(sub.getMetric())
+         .append(",tsuids=").append(sub.getTsuids())
+         .append(",ds=").append(sub.getDownsample())
+         .append(",rate=").append(sub.getRate());
+      final RateOptions rate_options = sub.getRateOptions();
+      if (rate_options != null) {
+        buf.append(rate_options).append(rate_options.getDropResets());
+      }
+      final List<String> filters = new ArrayList<String>();
+      for (final TagVFilter filter : sub.getFilters()) {
+        filters.add(filter.getType() + ":" + filter.getTagk() + "="
+            + filter.getFilter() + (filter.isGroupBy() ? ":group" : ""));
+      }
+      Collections.sort(filters);
+      buf.append(",filters=").append(filters)
+         .append(",explicit=").append(sub.getExplicitTags())
+         .append(",pre_agg=").append(sub.isPreAggregate())
+         .append(",fuzzy=").append(sub.getUseFuzzyFilter())
+         .append(",multi_get=").append(sub.getUseMultiGets())
+         .append(",percentiles=").append(sub.getPercentiles())
+         .append(",buckets=").append(sub.getShowHistogramBuckets())
+         .append(",rollup=").append(sub.getRollupUsage());
+    }
+    return buf.toString();
+  }
+}
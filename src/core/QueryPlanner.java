@@ -0,0 +1,211 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.UniqueId;
+
+/**
+ * Picks how a sub query fetches its rows from storage based on estimates of
+ * the number of rows each strategy has to touch.
+ * <p>
+ * A multi-get fetches one row per tag value combination, hour and, if
+ * "tsd.query.multi_get.get_all_salts" is set, salt bucket whether or not the
+ * series exists. A scan reads every row of the metric in the time range. A
+ * fuzzy scan seeks from one matching row to the next. The number of series of
+ * a metric is learned from the queries that scanned all of its rows without
+ * any tag filter: the largest number of series such a query returned is a
+ * lower bound. Filtered queries only see the series they asked for and would
+ * make the metric look smaller than it is, so they aren't learned from. Until
+ * a metric has been scanned, the planner prefers multi-gets within the
+ * "tsd.query.multi_get.limit" as before.
+ * <p>
+ * Costs are in units of scanned rows. "tsd.query.planner.get_cost" is the
+ * cost of a single get and "tsd.query.planner.seek_cost" the cost of a row
+ * found by a fuzzy scan.
+ * @since 2.4
+ */
+public final class QueryPlanner {
+
+  /** The ways of fetching the rows of a sub query */
+  public static enum Strategy {
+    MULTI_GET,
+    FUZZY_SCAN,
+    SCAN
+  }
+
+  /** The largest number of series seen per metric UID */
+  private final ConcurrentHashMap<String, AtomicLong> known_series =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+  /** Number of sub queries planned per strategy */
+  private final AtomicLong[] planned =
+      new AtomicLong[Strategy.values().length];
+
+  private final long get_cost;
+  private final long seek_cost;
+  private final long multi_get_limit;
+  private final int salts_per_get;
+
+  /**
+   * Default ctor.
+   * @param tsdb The TSDB to load the config from.
+   */
+  public QueryPlanner(final TSDB tsdb) {
+    get_cost = tsdb.getConfig().getInt("tsd.query.planner.get_cost");
+    seek_cost = tsdb.getConfig().getInt("tsd.query.planner.seek_cost");
+    multi_get_limit = tsdb.getConfig().getInt("tsd.query.multi_get.limit");
+    salts_per_get = Const.SALT_WIDTH() > 0 &&
+        tsdb.getConfig().getBoolean("tsd.query.multi_get.get_all_salts") ?
+            Const.SALT_BUCKETS() : 1;
+    for (int i = 0; i < planned.length; i++) {
+      planned[i] = new AtomicLong();
+    }
+  }
+
+  /**
+   * Plans a sub query.
+   * @param metric The metric UID.
+   * @param combinations The number of tag value combinations of the row keys
+   * to match or 0 if they're not known.
+   * @param rows_per_series The number of rows a series has in the time range.
+   * @param can_multi_get Whether or not the row keys can be fetched with
+   * gets, i.e. only explicit tags with literal values.
+   * @param can_fuzzy Whether or not the scan can use the fuzzy filter.
+   * @return The plan for the query.
+   */
+  public Plan plan(final byte[] metric, final long combinations,
+      final long rows_per_series, final boolean can_multi_get,
+      final boolean can_fuzzy) {
+    final long series = knownSeries(metric);
+    final long multi_get_rows = combinations > 0 ?
+        multiply(multiply(combinations, rows_per_series), salts_per_get) :
+          Long.MAX_VALUE;
+    final boolean multi_get = can_multi_get &&
+        multi_get_rows <= multi_get_limit;
+    final boolean fuzzy = can_fuzzy && combinations > 0;
+
+    Strategy strategy;
+    if (series < 1) {
+      strategy = multi_get ? Strategy.MULTI_GET :
+        fuzzy ? Strategy.FUZZY_SCAN : Strategy.SCAN;
+    } else {
+      strategy = Strategy.SCAN;
+      long cost = multiply(series, rows_per_series);
+      if (fuzzy) {
+        final long fuzzy_cost = multiply(multiply(
+            Math.min(combinations, series), rows_per_series), seek_cost);
+        if (fuzzy_cost < cost) {
+          strategy = Strategy.FUZZY_SCAN;
+          cost = fuzzy_cost;
+        }
+      }
+      if (multi_get && multiply(multi_get_rows, get_cost) < cost) {
+        strategy = Strategy.MULTI_GET;
+      }
+    }
+    planned[strategy.ordinal()].incrementAndGet();
+
+    final long estimated_rows;
+    if (combinations > 0 && series > 0) {
+      estimated_rows = multiply(Math.min(combinations, series),
+          rows_per_series);
+    } else if (combinations > 0) {
+      estimated_rows = multiply(combinations, rows_per_series);
+    } else if (series > 0) {
+      estimated_rows = multiply(series, rows_per_series);
+    } else {
+      estimated_rows = -1;
+    }
+    return new Plan(strategy, estimated_rows);
+  }
+
+  /**
+   * Learns from the result of a query that scanned every series of the
+   * metric in its time range.
+   * @param metric The metric UID.
+   * @param series The number of series the query found.
+   */
+  public void observe(final byte[] metric, final long series) {
+    if (series < 1) {
+      return;
+    }
+    final String key = UniqueId.uidToString(metric);
+    AtomicLong known = known_series.get(key);
+    if (known == null) {
+      final AtomicLong existing = known_series.putIfAbsent(key,
+          known = new AtomicLong());
+      if (existing != null) {
+        known = existing;
+      }
+    }
+    long current = known.get();
+    while (series > current && !known.compareAndSet(current, series)) {
+      current = known.get();
+    }
+  }
+
+  /**
+   * @param metric The metric UID.
+   * @return The largest number of series seen for the metric, 0 if unknown.
+   */
+  public long knownSeries(final byte[] metric) {
+    final AtomicLong known = known_series.get(UniqueId.uidToString(metric));
+    return known == null ? 0 : known.get();
+  }
+
+  /**
+   * Collects the stats of the planner.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    for (final Strategy strategy : Strategy.values()) {
+      collector.record("query.plan", planned[strategy.ordinal()].get(),
+          "strategy=" + strategy.name().toLowerCase());
+    }
+    collector.record("query.plan.known-metrics", known_series.size());
+  }
+
+  /** @return The product or Long.MAX_VALUE if it overflows. */
+  private static long multiply(final long a, final long b) {
+    if (a != 0 && b > Long.MAX_VALUE / a) {
+      return Long.MAX_VALUE;
+    }
+    return a * b;
+  }
+
+  /** The strategy picked for a sub query and the rows it's expected to
+   * return */
+  public static final class Plan {
+    private final Strategy strategy;
+    private final long estimated_rows;
+
+    Plan(final Strategy strategy, final long estimated_rows) {
+      this.strategy = strategy;
+      this.estimated_rows = estimated_rows;
+    }
+
+    /** @return The strategy to fetch rows with. */
+    public Strategy strategy() {
+      return strategy;
+    }
+
+    /** @return The estimated number of rows with data, -1 if unknown. */
+    public long estimatedRows() {
+      return estimated_rows;
+    }
+  }
+}
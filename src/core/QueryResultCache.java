@@ -0,0 +1,581 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Caches the results of /api/query requests in fixed, aligned time slices so
+ * that dashboards refreshing the same queries over a sliding window only
+ * fetch the parts of the window that aren't cached yet.
+ * <p>
+ * A query is split at slice boundaries: results for the closed slices that
+ * are fully inside the query's time range come from the cache while the
+ * partial slices at either end and any slices that weren't cached yet are
+ * fetched from storage with copies of the query restricted to those ranges.
+ * The parts are then joined per series. Slices are only cached once they are
+ * older than "tsd.query.cache.settle_time" so that late writes are seen.
+ * <p>
+ * Splitting a query in time only yields the same result as running it over
+ * the whole range if no value depends on data outside of its slice. Hence a
+ * query is only cached if every sub query is downsampled without filling,
+ * using a fixed interval that the slice is a multiple of, without rates and
+ * with an aggregator that doesn't interpolate between data points. See
+ * {@link #isCacheable}.
+ * <p>
+ * Entries are keyed on a normalized form of the query without its time range
+ * and weighed by their estimated size so that the cache is bounded to
+ * "tsd.query.cache.max_bytes". The cache isn't invalidated on writes; use
+ * /api/dropcaches to flush it after backfilling old data.
+ * @since 2.4
+ */
+public final class QueryResultCache {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(QueryResultCache.class);
+
+  /**
+   * Aggregators for which substituting a missing value doesn't change the
+   * result, so a series missing from one slice doesn't affect the others.
+   */
+  private static final List<Aggregator> SLICEABLE_AGGREGATORS =
+      Arrays.asList(Aggregators.NONE, Aggregators.ZIMSUM,
+          Aggregators.MIMMIN, Aggregators.MIMMAX, Aggregators.SQUARESUM);
+
+  /** Rough fixed cost of a cached slice in bytes */
+  private static final long SLICE_OVERHEAD = 128;
+
+  /** The TSDB to run queries against */
+  private final TSDB tsdb;
+
+  /** The width of a slice in milliseconds */
+  private final long slice;
+
+  /** How long to wait before caching a slice, in milliseconds */
+  private final long settle_time;
+
+  /** The slices keyed on the query key and their start time */
+  private final Cache<String, Slice> cache;
+
+  /** Number of slices served from the cache */
+  private final AtomicLong hits = new AtomicLong();
+
+  /** Number of closed slices that had to be fetched from storage */
+  private final AtomicLong misses = new AtomicLong();
+
+  /** Number of cacheable queries that didn't cover a closed slice */
+  private final AtomicLong bypassed = new AtomicLong();
+
+  /** The estimated size of the cached slices */
+  private final AtomicLong bytes = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param tsdb The TSDB to run queries against.
+   * @throws IllegalArgumentException if the configured size or slice width
+   * is invalid.
+   */
+  public QueryResultCache(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    final long max_bytes = tsdb.getConfig().getLong("tsd.query.cache.max_bytes");
+    if (max_bytes < 1) {
+      throw new IllegalArgumentException("The query cache size must be "
+          + "greater than zero: " + max_bytes);
+    }
+    slice = DateTime.parseDuration(
+        tsdb.getConfig().getString("tsd.query.cache.slice"));
+    settle_time = DateTime.parseDuration(
+        tsdb.getConfig().getString("tsd.query.cache.settle_time"));
+    cache = CacheBuilder.newBuilder()
+        .maximumWeight(max_bytes)
+        .weigher(new Weigher<String, Slice>() {
+          @Override
+          public int weigh(final String key, final Slice value) {
+            return (int) Math.min(Integer.MAX_VALUE, value.bytes);
+          }
+        })
+        .removalListener(new RemovalListener<String, Slice>() {
+          @Override
+          public void onRemoval(
+              final RemovalNotification<String, Slice> notification) {
+            bytes.addAndGet(-notification.getValue().bytes);
+          }
+        })
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Whether or not the results of a query can be assembled from slices. The
+   * query must have been validated.
+   * @param query The query to check.
+   * @return True if the query can go through {@link #runAsync}.
+   */
+  public boolean isCacheable(final TSQuery query) {
+    if (query.getDelete() || query.getPadding() || query.getUseCalendar()) {
+      return false;
+    }
+    for (final TSSubQuery sub : query.getQueries()) {
+      if (sub.getRate() || sub.isHistogramQuery() ||
+          !SLICEABLE_AGGREGATORS.contains(sub.aggregator())) {
+        return false;
+      }
+      final DownsamplingSpecification ds = sub.downsamplingSpecification();
+      if (ds == DownsamplingSpecification.NO_DOWNSAMPLER ||
+          ds.getInterval() <= 0 || ds.useCalendar() ||
+          ds.getFillPolicy() != FillPolicy.NONE ||
+          slice % ds.getInterval() != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Runs a cacheable query, serving the closed slices it covers from the
+   * cache and caching the ones that were missing.
+   * @param query The validated query, see {@link #isCacheable}.
+   * @return A deferred resolving to the results of each sub query in order.
+   */
+  public Deferred<ArrayList<DataPoints[]>> runAsync(final TSQuery query) {
+    final String key = cacheKey(query);
+    final long start = query.startTime();
+    final long end = query.endTime();
+    final long first = ((start + slice - 1) / slice) * slice;
+    final long closed = (Math.min(end + 1,
+        DateTime.currentTimeMillis() - settle_time) / slice) * slice;
+    if (closed <= first) {
+      bypassed.incrementAndGet();
+      return runQueries(tsdb, query);
+    }
+
+    final List<ArrayList<List<CachedDataPoints>>> cached =
+        new ArrayList<ArrayList<List<CachedDataPoints>>>();
+    long cached_end = first;
+    while (cached_end < closed) {
+      final Slice entry = cache.getIfPresent(sliceKey(key, cached_end));
+      if (entry == null) {
+        break;
+      }
+      cached.add(entry.series);
+      cached_end += slice;
+    }
+    final long missed = (closed - cached_end) / slice;
+    hits.addAndGet(cached.size());
+    misses.addAndGet(missed);
+    final QueryStats query_stats = query.getQueryStats();
+    if (query_stats != null) {
+      query_stats.addStat(QueryStat.RESULT_CACHE_HITS, cached.size());
+      query_stats.addStat(QueryStat.RESULT_CACHE_MISSES, missed);
+    }
+
+    if (cached.isEmpty()) {
+      // nothing to join so hand back the results as they are
+      /** Caches copies of the closed slices, then returns the results */
+      class StoreCB implements Callback<Deferred<ArrayList<DataPoints[]>>,
+          ArrayList<DataPoints[]>> {
+        @Override
+        public Deferred<ArrayList<DataPoints[]>> call(
+            final ArrayList<DataPoints[]> results) {
+          return copyAll(results, first, closed - 1)
+              .addCallback(new StoreSlicesCB(key, first, closed))
+              .addCallbacks(new Callback<ArrayList<DataPoints[]>, Object>() {
+                @Override
+                public ArrayList<DataPoints[]> call(final Object ignored) {
+                  return results;
+                }
+              }, new Callback<ArrayList<DataPoints[]>, Exception>() {
+                @Override
+                public ArrayList<DataPoints[]> call(final Exception e) {
+                  LOG.warn("Failed to cache the results of " + query, e);
+                  return results;
+                }
+              });
+        }
+      }
+
+      return runQueries(tsdb, query).addCallbackDeferring(new StoreCB());
+    }
+
+    final List<Deferred<ArrayList<List<CachedDataPoints>>>> deferreds =
+        new ArrayList<Deferred<ArrayList<List<CachedDataPoints>>>>(2);
+    if (start < first) {
+      // a query can't cover a single millisecond so the head may have to
+      // run into the first slice, the copy drops whatever is in there.
+      deferreds.add(runQueries(tsdb, copyQuery(query, start,
+          Math.max(first - 1, start + 1)))
+            .addCallbackDeferring(new CopyCB(start, first - 1)));
+    }
+    if (cached_end <= end) {
+      final Deferred<ArrayList<List<CachedDataPoints>>> tail =
+          runQueries(tsdb, copyQuery(query, Math.min(cached_end, end - 1), end))
+            .addCallbackDeferring(new CopyCB(cached_end, end));
+      if (cached_end < closed) {
+        tail.addCallback(new StoreSlicesCB(key, cached_end, closed));
+      }
+      deferreds.add(tail);
+    }
+
+    /** Joins the parts in time order */
+    class JoinCB implements Callback<ArrayList<DataPoints[]>,
+        ArrayList<ArrayList<List<CachedDataPoints>>>> {
+      @Override
+      public ArrayList<DataPoints[]> call(
+          final ArrayList<ArrayList<List<CachedDataPoints>>> fetched) {
+        final List<ArrayList<List<CachedDataPoints>>> parts =
+            new ArrayList<ArrayList<List<CachedDataPoints>>>();
+        int next = 0;
+        if (start < first) {
+          parts.add(fetched.get(next++));
+        }
+        parts.addAll(cached);
+        if (next < fetched.size()) {
+          parts.add(fetched.get(next));
+        }
+        return join(query, parts);
+      }
+    }
+
+    return Deferred.groupInOrder(deferreds).addCallback(new JoinCB());
+  }
+
+  /** Drops every cached slice. */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Collects stats for the cache.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("query.result-cache-hit", hits.get());
+    collector.record("query.result-cache-miss", misses.get());
+    collector.record("query.result-cache-bypass", bypassed.get());
+    collector.record("query.result-cache-eviction",
+        cache.stats().evictionCount());
+    collector.record("query.result-cache-size", cache.size());
+    collector.record("query.result-cache-bytes", bytes.get());
+  }
+
+  /** @return The number of slices served from the cache. */
+  long hits() {
+    return hits.get();
+  }
+
+  /** @return The number of closed slices fetched from storage. */
+  long misses() {
+    return misses.get();
+  }
+
+  /** @return The estimated size of the cached slices in bytes. */
+  long bytes() {
+    return bytes.get();
+  }
+
+  /**
+   * Builds the part of the cache key shared by every slice of a query. It
+   * covers everything that affects the values of the results except for
+   * the time range. Filters are sorted so that their order doesn't matter.
+   * @param query The validated query.
+   * @return The key.
+   */
+  static String cacheKey(final TSQuery query) {
+    final StringBuilder buf = new StringBuilder();
+    buf.append("notes=").append(!query.getNoAnnotations());
+    for (final TSSubQuery sub : query.getQueries()) {
+      final DownsamplingSpecification ds = sub.downsamplingSpecification();
+      buf.append("|agg=").append(sub.aggregator())
+         .append(",ds=").append(ds.getInterval()).append('-')
+         .append(ds.getFunction())
+         .append(",metric=").append(sub.getMetric());
+      if (sub.getTsuids() != null && !sub.getTsuids().isEmpty()) {
+        final List<String> tsuids = new ArrayList<String>(sub.getTsuids());
+        Collections.sort(tsuids);
+        buf.append(",tsuids=").append(tsuids);
+      }
+      final List<String> filters = new ArrayList<String>();
+      for (final TagVFilter filter : sub.getFilters()) {
+        filters.add(filter.getType() + ":" + filter.getTagk() + "="
+            + filter.getFilter() + (filter.isGroupBy() ? ":group" : ""));
+      }
+      Collections.sort(filters);
+      buf.append(",filters=").append(filters)
+         .append(",explicit=").append(sub.getExplicitTags())
+         .append(",pre_agg=").append(sub.isPreAggregate())
+         .append(",rollup=").append(sub.getRollupUsage());
+    }
+    return buf.toString();
+  }
+
+  /** @return The key of one slice of a query */
+  private static String sliceKey(final String key, final long start) {
+    return start + "@" + key;
+  }
+
+  /**
+   * Copies a query for a different time range. The copy shares the stats
+   * of the original.
+   * @param query The validated query to copy.
+   * @param start The new start time in milliseconds.
+   * @param end The new end time in milliseconds.
+   * @return A validated copy.
+   */
+  static TSQuery copyQuery(final TSQuery query, final long start,
+      final long end) {
+    final TSQuery copy = new TSQuery();
+    copy.setStart(start + "ms");
+    copy.setEnd(end + "ms");
+    copy.setTimezone(query.getTimezone());
+    copy.setNoAnnotations(query.getNoAnnotations());
+    copy.setMsResolution(query.getMsResolution());
+    copy.setShowTSUIDs(query.getShowTSUIDs());
+    copy.setOverrideByteLimit(query.overrideByteLimit());
+    copy.setOverrideDataPointLimit(query.overrideDataPointLimit());
+    final List<TSSubQuery> subs =
+        new ArrayList<TSSubQuery>(query.getQueries().size());
+    for (final TSSubQuery sub : query.getQueries()) {
+      final TSSubQuery sub_copy = new TSSubQuery();
+      sub_copy.setAggregator(sub.getAggregator());
+      sub_copy.setMetric(sub.getMetric());
+      sub_copy.setTsuids(sub.getTsuids());
+      sub_copy.setDownsample(sub.getDownsample());
+      final List<TagVFilter> filters =
+          new ArrayList<TagVFilter>(sub.getFilters().size());
+      for (final TagVFilter filter : sub.getFilters()) {
+        filters.add(filter.getCopy());
+      }
+      sub_copy.setFilters(filters);
+      sub_copy.setExplicitTags(sub.getExplicitTags());
+      sub_copy.setUseFuzzyFilter(sub.getUseFuzzyFilter());
+      sub_copy.setUseMultiGets(sub.getUseMultiGets());
+      sub_copy.setPreAggregate(sub.isPreAggregate());
+      if (sub.getRollupUsage() != null) {
+        sub_copy.setRollupUsage(sub.getRollupUsage().name());
+      }
+      subs.add(sub_copy);
+    }
+    copy.setQueries(subs);
+    copy.validateAndSetQuery();
+    copy.setQueryStats(query.getQueryStats());
+    return copy;
+  }
+
+  /**
+   * Compiles and runs the sub queries of a non-histogram query.
+   * @param tsdb The TSDB to run the query against.
+   * @param query The validated query.
+   * @return A deferred resolving to the results of each sub query in order.
+   */
+  static Deferred<ArrayList<DataPoints[]>> runQueries(final TSDB tsdb,
+      final TSQuery query) {
+
+    /** Runs the compiled queries */
+    final class RunCB implements Callback<Deferred<ArrayList<DataPoints[]>>,
+        Query[]> {
+      @Override
+      public Deferred<ArrayList<DataPoints[]>> call(final Query[] queries) {
+        final ArrayList<Deferred<DataPoints[]>> deferreds =
+            new ArrayList<Deferred<DataPoints[]>>(queries.length);
+        for (final Query q : queries) {
+          deferreds.add(q.runAsync());
+        }
+        return Deferred.groupInOrder(deferreds);
+      }
+    }
+
+    return query.buildQueriesAsync(tsdb).addCallbackDeferring(new RunCB());
+  }
+
+  /**
+   * Copies the results of each sub query.
+   * @param results The results.
+   * @param start The first timestamp to copy, in milliseconds.
+   * @param end The last timestamp to copy, in milliseconds.
+   * @return A deferred resolving to the copies of each sub query in order.
+   */
+  static Deferred<ArrayList<List<CachedDataPoints>>> copyAll(
+      final ArrayList<DataPoints[]> results, final long start, final long end) {
+    final List<Deferred<CachedDataPoints>> deferreds =
+        new ArrayList<Deferred<CachedDataPoints>>();
+    for (final DataPoints[] dps : results) {
+      for (final DataPoints series : dps) {
+        deferreds.add(CachedDataPoints.copyAsync(series, start, end));
+      }
+    }
+
+    /** Puts the copies back into per sub query lists */
+    class GroupCB implements Callback<ArrayList<List<CachedDataPoints>>,
+        ArrayList<CachedDataPoints>> {
+      @Override
+      public ArrayList<List<CachedDataPoints>> call(
+          final ArrayList<CachedDataPoints> copies) {
+        final ArrayList<List<CachedDataPoints>> grouped =
+            new ArrayList<List<CachedDataPoints>>(results.size());
+        int next = 0;
+        for (final DataPoints[] dps : results) {
+          grouped.add(new ArrayList<CachedDataPoints>(
+              copies.subList(next, next + dps.length)));
+          next += dps.length;
+        }
+        return grouped;
+      }
+    }
+
+    return Deferred.groupInOrder(deferreds).addCallback(new GroupCB());
+  }
+
+  /**
+   * Joins the parts of each sub query's results. Parts of the same series
+   * are matched on their metric and group by tags, or on all of their tags
+   * if the series aren't aggregated.
+   * @param query The query the parts belong to.
+   * @param parts The parts in time order.
+   * @return The joined results of each sub query.
+   */
+  static ArrayList<DataPoints[]> join(final TSQuery query,
+      final List<ArrayList<List<CachedDataPoints>>> parts) {
+    final int nqueries = query.getQueries().size();
+    final ArrayList<DataPoints[]> results = new ArrayList<DataPoints[]>(nqueries);
+    for (int i = 0; i < nqueries; i++) {
+      final TSSubQuery sub = query.getQueries().get(i);
+      final Map<String, List<CachedDataPoints>> series =
+          new LinkedHashMap<String, List<CachedDataPoints>>();
+      for (final ArrayList<List<CachedDataPoints>> part : parts) {
+        for (final CachedDataPoints dps : part.get(i)) {
+          final String id = seriesId(sub, dps);
+          List<CachedDataPoints> pieces = series.get(id);
+          if (pieces == null) {
+            pieces = new ArrayList<CachedDataPoints>(parts.size());
+            series.put(id, pieces);
+          }
+          pieces.add(dps);
+        }
+      }
+      final DataPoints[] joined = new DataPoints[series.size()];
+      int next = 0;
+      for (final List<CachedDataPoints> pieces : series.values()) {
+        joined[next++] = CachedDataPoints.join(pieces);
+      }
+      results.add(joined);
+    }
+    return results;
+  }
+
+  /** @return The identity of a series across slices */
+  private static String seriesId(final TSSubQuery sub,
+      final CachedDataPoints dps) {
+    final Map<String, String> tags = new TreeMap<String, String>();
+    if (sub.aggregator() == Aggregators.NONE) {
+      tags.putAll(dps.getTags());
+    } else {
+      for (final TagVFilter filter : sub.getFilters()) {
+        if (filter.isGroupBy()) {
+          tags.put(filter.getTagk(), dps.getTags().get(filter.getTagk()));
+        }
+      }
+    }
+    return dps.metricName() + tags;
+  }
+
+  /** Copies the fetched results of a part of a query */
+  private static final class CopyCB implements Callback<
+      Deferred<ArrayList<List<CachedDataPoints>>>, ArrayList<DataPoints[]>> {
+    private final long start;
+    private final long end;
+
+    CopyCB(final long start, final long end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public Deferred<ArrayList<List<CachedDataPoints>>> call(
+        final ArrayList<DataPoints[]> results) {
+      return copyAll(results, start, end);
+    }
+  }
+
+  /** Caches the closed slices of copied results and passes them through */
+  private final class StoreSlicesCB implements Callback<
+      ArrayList<List<CachedDataPoints>>, ArrayList<List<CachedDataPoints>>> {
+    private final String key;
+    private final long start;
+    private final long end;
+
+    StoreSlicesCB(final String key, final long start, final long end) {
+      this.key = key;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public ArrayList<List<CachedDataPoints>> call(
+        final ArrayList<List<CachedDataPoints>> copies) {
+      for (long ts = start; ts < end; ts += slice) {
+        long size = SLICE_OVERHEAD;
+        final ArrayList<List<CachedDataPoints>> series =
+            new ArrayList<List<CachedDataPoints>>(copies.size());
+        for (final List<CachedDataPoints> results : copies) {
+          final List<CachedDataPoints> sliced =
+              new ArrayList<CachedDataPoints>();
+          for (final CachedDataPoints dps : results) {
+            final CachedDataPoints part = dps.slice(ts, ts + slice);
+            if (part.size() > 0 || !part.getAnnotations().isEmpty()) {
+              sliced.add(part);
+              size += part.estimateBytes();
+            }
+          }
+          series.add(sliced);
+        }
+        bytes.addAndGet(size);
+        cache.put(sliceKey(key, ts), new Slice(series, size));
+      }
+      return copies;
+    }
+  }
+
+  /** The results of every sub query of a query for one slice */
+  private static final class Slice {
+    private final ArrayList<List<CachedDataPoints>> series;
+    private final long bytes;
+
+    Slice(final ArrayList<List<CachedDataPoints>> series, final long bytes) {
+      this.series = series;
+      this.bytes = bytes;
+    }
+  }
+}
@@ -0,0 +1,171 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A bounded cache of row key templates, i.e. the row key with the metric and
+ * tag UIDs filled in but the salt and base time left empty, keyed on the
+ * metric name and tag map of the incoming series. A hit lets the write path
+ * skip resolving every metric, tag key and tag value through the UID caches.
+ * <p>
+ * Entries are stamped with the UID cache generation at the time the UIDs were
+ * resolved. A rename or delete of any UID bumps the generation so that stale
+ * templates are treated as misses and rebuilt.
+ * <p>
+ * Templates are copied on the way in and out as callers write the base time
+ * and salt into the array they're given.
+ * @since 2.4
+ */
+final class RowKeyTemplateCache {
+
+  /** The cached templates */
+  private final Cache<SeriesKey, Template> cache;
+
+  /** Number of lookups that returned a template */
+  private final AtomicLong hits = new AtomicLong();
+
+  /** Number of lookups that found nothing or a stale template */
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param max_size The maximum number of series to cache.
+   * @throws IllegalArgumentException if the size is less than 1.
+   */
+  RowKeyTemplateCache(final long max_size) {
+    if (max_size < 1) {
+      throw new IllegalArgumentException("The row key cache size must be "
+          + "greater than zero: " + max_size);
+    }
+    cache = CacheBuilder.newBuilder()
+        .maximumSize(max_size)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Returns a copy of the template for the series if present and current.
+   * @param metric The metric name.
+   * @param tags The tags of the series. Not modified or retained.
+   * @param generation The current UID cache generation.
+   * @return A copy of the row key template or null if it wasn't cached or is
+   * stale.
+   */
+  byte[] get(final String metric, final Map<String, String> tags,
+      final long generation) {
+    final SeriesKey key = new SeriesKey(metric, tags);
+    final Template template = cache.getIfPresent(key);
+    if (template == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    if (template.generation != generation) {
+      cache.invalidate(key);
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return template.row.clone();
+  }
+
+  /**
+   * Caches a copy of the template for the series.
+   * @param metric The metric name.
+   * @param tags The tags of the series. Copied.
+   * @param row The row key template.
+   * @param generation The UID cache generation read before the UIDs of the
+   * template were resolved.
+   */
+  void put(final String metric, final Map<String, String> tags,
+      final byte[] row, final long generation) {
+    cache.put(new SeriesKey(metric, new HashMap<String, String>(tags)),
+        new Template(row.clone(), generation));
+  }
+
+  /** Drops all of the cached templates. */
+  void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /** @return The number of lookups that returned a template. */
+  long hits() {
+    return hits.get();
+  }
+
+  /** @return The number of lookups that missed or found a stale entry. */
+  long misses() {
+    return misses.get();
+  }
+
+  /** @return The number of templates evicted due to the size limit. */
+  long evictions() {
+    return cache.stats().evictionCount();
+  }
+
+  /** @return The approximate number of cached templates. */
+  long size() {
+    return cache.size();
+  }
+
+  /**
+   * The identity of a series. Tag maps compare equal regardless of ordering
+   * so there's no need to sort the tags to build the key.
+   */
+  private static final class SeriesKey {
+    private final String metric;
+    private final Map<String, String> tags;
+    private final int hash;
+
+    SeriesKey(final String metric, final Map<String, String> tags) {
+      this.metric = metric;
+      this.tags = tags;
+      hash = metric.hashCode() * 31 + tags.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof SeriesKey)) {
+        return false;
+      }
+      final SeriesKey other = (SeriesKey) obj;
+      return hash == other.hash && metric.equals(other.metric)
+          && tags.equals(other.tags);
+    }
+  }
+
+  /** A cached template along with the UID generation it was built at. */
+  private static final class Template {
+    private final byte[] row;
+    private final long generation;
+
+    Template(final byte[] row, final long generation) {
+      this.row = row;
+      this.generation = generation;
+    }
+  }
+}
@@ -0,0 +1,536 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hbase.async.KeyValue;
+
+import net.opentsdb.utils.DateTime;
+
+/**
+ * A bounded cache of compacted data table rows shared by all queries, so
+ * that popular rows aren't fetched and compacted again by every query that
+ * reads them.
+ * <p>
+ * Only rows that are older than "tsd.query.row_cache.immutable_after" past
+ * the end of their hour are cached, as they aren't expected to change
+ * anymore. This includes rows that consist of a single, already compacted
+ * cell. Each entry remembers the newest HBase timestamp and the number of
+ * the cells it was compacted from. When a scan returns a cached row, the
+ * entry is only used if both still match so late writes and deletes are
+ * picked up. As only the qualifiers and timestamps are needed for that
+ * check, scans over immutable rows fetch just the keys and only get the
+ * rows that missed. As that costs a second round trip for the misses, a
+ * scan only fetches the keys if the recent lookups of the metric hit the
+ * cache at least "tsd.query.row_cache.key_only_hit_ratio" of the time on
+ * each day it covers.
+ * <p>
+ * The compacted cells are kept outside of the Java heap in an arena of
+ * direct buffers with a total size of "tsd.query.row_cache.max_bytes". The
+ * arena is cut into fixed size chunks and each row takes as many as it
+ * needs. The buffers are allocated once, as the arena fills up, and the
+ * chunks of evicted rows are reused for new ones. The least recently used
+ * rows are evicted when there aren't enough free chunks left.
+ * Rows with annotations or histograms are not cached.
+ * @since 2.4
+ */
+final class RowSegmentCache {
+
+  /** The size of a chunk of the arena in bytes */
+  static final int CHUNK_SIZE = 256;
+
+  /** The number of chunks in each direct buffer of the arena, i.e. 4MB */
+  private static final int SLAB_CHUNKS = 16384;
+
+  /** The cached rows in access order, guarded by this */
+  private final LinkedHashMap<Key, Segment> segments;
+
+  /** The direct buffers of the arena, allocated as they're first needed */
+  private final ByteBuffer[] slabs;
+
+  /** The number of chunks in the arena */
+  private final int total_chunks;
+
+  /** The number of metric and day ranges whose lookups are tracked */
+  static final int MAX_RANGES = 16384;
+
+  /** The lookups of a range needed before it's scanned for keys only */
+  static final int MIN_LOOKUPS = 32;
+
+  /** The lookups after which the counts of a range are halved */
+  static final int DECAY_LOOKUPS = 1024;
+
+  /** The time span of a range in seconds */
+  private static final long RANGE_SPAN = 86400;
+
+  /** A stack of the chunks released by evicted rows, guarded by this */
+  private final int[] free_chunks;
+
+  /** The number of chunks on the stack, guarded by this */
+  private int free_count;
+
+  /** The first chunk that was never handed out, guarded by this */
+  private int next_chunk;
+
+  /** How long after the end of its hour a row is treated as immutable, ms */
+  private final long immutable_after;
+
+  /** The minimum recent hit ratio for a scan to only fetch the keys */
+  private final double key_only_hit_ratio;
+
+  /** The recent lookups per metric and day in access order, guarded by this */
+  private final LinkedHashMap<Range, Lookups> lookups;
+
+  /** Number of lookups that returned a row, guarded by this */
+  private long hits;
+
+  /** Number of lookups for immutable rows that found nothing usable */
+  private long misses;
+
+  /** Number of rows evicted due to the size limit, guarded by this */
+  private long evictions;
+
+  /** Size of the chunks taken by cached rows, guarded by this */
+  private long bytes;
+
+  /** Size of the cells that didn't have to be fetched or compacted */
+  private long bytes_saved;
+
+  /**
+   * Default ctor.
+   * @param max_bytes The size of the arena holding the cached rows.
+   * @param immutable_after How long after the end of its hour a row is
+   * treated as immutable, in milliseconds.
+   * @param key_only_hit_ratio The minimum recent hit ratio of the rows a
+   * scan covers for it to only fetch the keys, from 0 to 1. Anything above
+   * 1 disables key only scans.
+   * @throws IllegalArgumentException if the size is less than one chunk.
+   */
+  RowSegmentCache(final long max_bytes, final long immutable_after, 
+      final double key_only_hit_ratio) {
+    if (max_bytes < CHUNK_SIZE) {
+      throw new IllegalArgumentException("The row cache size must be at "
+          + "least " + CHUNK_SIZE + " bytes: " + max_bytes);
+    }
+    if (max_bytes / CHUNK_SIZE > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("The row cache size is too large: "
+          + max_bytes);
+    }
+    this.immutable_after = immutable_after;
+    this.key_only_hit_ratio = key_only_hit_ratio;
+    total_chunks = (int) (max_bytes / CHUNK_SIZE);
+    slabs = new ByteBuffer[(total_chunks + SLAB_CHUNKS - 1) / SLAB_CHUNKS];
+    free_chunks = new int[total_chunks];
+    segments = new LinkedHashMap<Key, Segment>(16, 0.75f, true);
+    lookups = new LinkedHashMap<Range, Lookups>(16, 0.75f, true) {
+      private static final long serialVersionUID = -8069385468137934553L;
+      @Override
+      protected boolean removeEldestEntry(
+          final Map.Entry<Range, Lookups> eldest) {
+        return size() > MAX_RANGES;
+      }
+    };
+  }
+
+  /**
+   * @param key A data table row key.
+   * @return Whether or not the row is old enough to be cached.
+   */
+  boolean isImmutable(final byte[] key) {
+    final long row_end = (Internal.baseTime(key) + Const.MAX_TIMESPAN) * 1000L;
+    return row_end + immutable_after <= DateTime.currentTimeMillis();
+  }
+
+  /**
+   * @param end The exclusive end of a range of row base times in seconds.
+   * @return Whether or not all of the rows before the end are old enough to
+   * be cached.
+   */
+  boolean isImmutableBefore(final long end) {
+    return (end + Const.MAX_TIMESPAN) * 1000L + immutable_after <= 
+        DateTime.currentTimeMillis();
+  }
+
+  /**
+   * Whether or not a scan over the rows of a metric should only fetch the
+   * keys. That's the case if all of the rows are immutable and the recent
+   * lookups of the metric hit the cache often enough on each day the range
+   * covers, so the extra round trip for the misses pays off. Days without
+   * enough lookups, e.g. as the cache is cold or the rows were evicted, are
+   * scanned in full which caches them.
+   * @param metric The metric UID.
+   * @param start The inclusive start of the row base times in seconds.
+   * @param end The exclusive end of the row base times in seconds.
+   * @return True if the scan should only fetch the keys.
+   */
+  boolean keysOnly(final byte[] metric, final long start, final long end) {
+    if (start < 0 || end <= start || !isImmutableBefore(end)) {
+      return false;
+    }
+    final long metric_id = metricId(metric, 0);
+    synchronized (this) {
+      for (long day = start / RANGE_SPAN; day <= (end - 1) / RANGE_SPAN; 
+          day++) {
+        final Lookups range = lookups.get(new Range(metric_id, day));
+        if (range == null || range.total < MIN_LOOKUPS || 
+            range.hits < key_only_hit_ratio * range.total) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the cached compaction of a row if it was compacted from the same
+   * cells, as far as their number and timestamps tell. The cells may have
+   * been fetched without their values.
+   * @param key The row key.
+   * @param row The cells of the row as returned by storage.
+   * @return The compacted cell or null if the row isn't cached, has changed
+   * or isn't immutable yet.
+   */
+  KeyValue get(final byte[] key, final List<KeyValue> row) {
+    if (!isImmutable(key)) {
+      return null;
+    }
+    final long timestamp = newestTimestamp(row);
+    synchronized (this) {
+      final Segment segment = segments.get(new Key(key));
+      final boolean usable = segment != null && 
+          segment.timestamp == timestamp && segment.cells == row.size();
+      record(key, usable);
+      if (!usable) {
+        ++misses;
+        return null;
+      }
+      return hit(key, segment);
+    }
+  }
+
+  /**
+   * Caches the compaction of an immutable row. Rows that aren't immutable
+   * yet or that are larger than the whole arena are ignored.
+   * @param key The row key.
+   * @param row The cells of the row as returned by storage.
+   * @param compacted The compacted cell.
+   */
+  void put(final byte[] key, final List<KeyValue> row,
+      final KeyValue compacted) {
+    if (!isImmutable(key)) {
+      return;
+    }
+    long raw_bytes = 0;
+    for (final KeyValue kv : row) {
+      raw_bytes += kv.qualifier().length + kv.value().length;
+    }
+    final byte[] qualifier = compacted.qualifier();
+    final byte[] value = compacted.value();
+    final int length = qualifier.length + value.length;
+    final int needed = Math.max(1, (length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    if (needed > total_chunks) {
+      return;
+    }
+    final Key cache_key = new Key(Arrays.copyOf(key, key.length));
+    synchronized (this) {
+      final Segment previous = segments.remove(cache_key);
+      if (previous != null) {
+        release(previous);
+      }
+      final Iterator<Segment> eldest = segments.values().iterator();
+      while (free_count + (total_chunks - next_chunk) < needed) {
+        release(eldest.next());
+        eldest.remove();
+        ++evictions;
+      }
+      final int[] chunks = new int[needed];
+      for (int i = 0; i < needed; i++) {
+        chunks[i] = allocate();
+      }
+      final Segment segment = new Segment(chunks, qualifier.length, 
+          value.length, newestTimestamp(row), row.size(), raw_bytes);
+      write(chunks, 0, qualifier);
+      write(chunks, qualifier.length, value);
+      bytes += (long) needed * CHUNK_SIZE;
+      segments.put(cache_key, segment);
+    }
+  }
+
+  /** Drops all of the cached rows. The arena is kept for reuse. */
+  synchronized void invalidateAll() {
+    for (final Segment segment : segments.values()) {
+      release(segment);
+    }
+    segments.clear();
+  }
+
+  /** @return The number of lookups that returned a row. */
+  synchronized long hits() {
+    return hits;
+  }
+
+  /** @return The number of lookups for immutable rows that missed. */
+  synchronized long misses() {
+    return misses;
+  }
+
+  /** @return The number of rows evicted due to the size limit. */
+  synchronized long evictions() {
+    return evictions;
+  }
+
+  /** @return The number of cached rows. */
+  synchronized long size() {
+    return segments.size();
+  }
+
+  /** @return The size of the chunks taken by the cached rows in bytes. */
+  synchronized long bytes() {
+    return bytes;
+  }
+
+  /** @return The size of the cells served from the cache in bytes. */
+  synchronized long bytesSaved() {
+    return bytes_saved;
+  }
+
+  /**
+   * Records the outcome of a lookup for the metric and day of the row,
+   * halving the counts every {@link #DECAY_LOOKUPS} so they follow the
+   * recent lookups. Must be called while holding the lock.
+   * @param key The row key.
+   * @param hit Whether or not the lookup returned a row.
+   */
+  private void record(final byte[] key, final boolean hit) {
+    final Range range = new Range(metricId(key, Const.SALT_WIDTH()), 
+        Internal.baseTime(key) / RANGE_SPAN);
+    Lookups counts = lookups.get(range);
+    if (counts == null) {
+      counts = new Lookups();
+      lookups.put(range, counts);
+    }
+    if (counts.total >= DECAY_LOOKUPS) {
+      counts.total /= 2;
+      counts.hits /= 2;
+    }
+    ++counts.total;
+    if (hit) {
+      ++counts.hits;
+    }
+  }
+
+  /**
+   * @param bytes An array holding a metric UID.
+   * @param offset The offset of the UID in the array.
+   * @return The metric UID as a number.
+   */
+  private static long metricId(final byte[] bytes, final int offset) {
+    long id = 0;
+    for (int i = 0; i < TSDB.metrics_width(); i++) {
+      id = (id << 8) | (bytes[offset + i] & 0xFF);
+    }
+    return id;
+  }
+
+  /**
+   * Records a hit and copies the cached row out of the arena. Must be called
+   * while holding the lock.
+   * @param key The row key.
+   * @param segment The entry for the row.
+   * @return A new cell for the row.
+   */
+  private KeyValue hit(final byte[] key, final Segment segment) {
+    ++hits;
+    bytes_saved += segment.raw_bytes;
+    final byte[] qualifier = new byte[segment.qualifier_length];
+    final byte[] value = new byte[segment.value_length];
+    read(segment.chunks, 0, qualifier);
+    read(segment.chunks, qualifier.length, value);
+    return new KeyValue(key, TSDB.FAMILY(), qualifier, segment.timestamp, 
+        value);
+  }
+
+  /**
+   * Takes a chunk off the free stack or hands out a new one, allocating its
+   * direct buffer on first use. Must be called while holding the lock with a
+   * chunk available.
+   * @return The index of the chunk.
+   */
+  private int allocate() {
+    if (free_count > 0) {
+      return free_chunks[--free_count];
+    }
+    final int chunk = next_chunk++;
+    final int slab = chunk / SLAB_CHUNKS;
+    if (slabs[slab] == null) {
+      final int chunks = Math.min(SLAB_CHUNKS, total_chunks - 
+          (slab * SLAB_CHUNKS));
+      slabs[slab] = ByteBuffer.allocateDirect(chunks * CHUNK_SIZE);
+    }
+    return chunk;
+  }
+
+  /**
+   * Returns the chunks of an entry to the free stack. Must be called while
+   * holding the lock.
+   * @param segment The entry that was removed or is about to be.
+   */
+  private void release(final Segment segment) {
+    for (final int chunk : segment.chunks) {
+      free_chunks[free_count++] = chunk;
+    }
+    bytes -= (long) segment.chunks.length * CHUNK_SIZE;
+  }
+
+  /**
+   * Copies the source into the chunks starting at the given offset of the
+   * entry. Must be called while holding the lock.
+   */
+  private void write(final int[] chunks, final int offset, 
+      final byte[] source) {
+    int written = 0;
+    while (written < source.length) {
+      final int position = offset + written;
+      final int chunk = chunks[position / CHUNK_SIZE];
+      final int within = position % CHUNK_SIZE;
+      final int length = Math.min(source.length - written, 
+          CHUNK_SIZE - within);
+      final ByteBuffer slab = slabs[chunk / SLAB_CHUNKS];
+      slab.position(((chunk % SLAB_CHUNKS) * CHUNK_SIZE) + within);
+      slab.put(source, written, length);
+      written += length;
+    }
+  }
+
+  /**
+   * Copies the chunks starting at the given offset of the entry into the
+   * destination. Must be called while holding the lock.
+   */
+  private void read(final int[] chunks, final int offset, 
+      final byte[] destination) {
+    int read = 0;
+    while (read < destination.length) {
+      final int position = offset + read;
+      final int chunk = chunks[position / CHUNK_SIZE];
+      final int within = position % CHUNK_SIZE;
+      final int length = Math.min(destination.length - read, 
+          CHUNK_SIZE - within);
+      final ByteBuffer slab = slabs[chunk / SLAB_CHUNKS];
+      slab.position(((chunk % SLAB_CHUNKS) * CHUNK_SIZE) + within);
+      slab.get(destination, read, length);
+      read += length;
+    }
+  }
+
+  /** @return The newest HBase timestamp of the cells */
+  private static long newestTimestamp(final List<KeyValue> row) {
+    long timestamp = Long.MIN_VALUE;
+    for (final KeyValue kv : row) {
+      timestamp = Math.max(timestamp, kv.timestamp());
+    }
+    return timestamp;
+  }
+
+  /** A row key with value semantics */
+  private static final class Key {
+    private final byte[] key;
+    private final int hash;
+
+    Key(final byte[] key) {
+      this.key = key;
+      hash = Arrays.hashCode(key);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) obj;
+      return hash == other.hash && Arrays.equals(key, other.key);
+    }
+  }
+
+  /** A metric and a day of row base times */
+  private static final class Range {
+    private final long metric;
+    private final long day;
+
+    Range(final long metric, final long day) {
+      this.metric = metric;
+      this.day = day;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (metric * 31 + day);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Range)) {
+        return false;
+      }
+      final Range other = (Range) obj;
+      return metric == other.metric && day == other.day;
+    }
+  }
+
+  /** The recent lookups of a range */
+  private static final class Lookups {
+    private int total;
+    private int hits;
+  }
+
+  /** A compacted cell stored in the arena */
+  private static final class Segment {
+    /** The chunks holding the qualifier followed by the value, in order */
+    private final int[] chunks;
+    private final int qualifier_length;
+    private final int value_length;
+    /** The newest timestamp of the cells the row was compacted from */
+    private final long timestamp;
+    /** The number of cells the row was compacted from */
+    private final int cells;
+    /** The size of the cells the row was compacted from */
+    private final long raw_bytes;
+
+    Segment(final int[] chunks, final int qualifier_length, 
+        final int value_length, final long timestamp, final int cells, 
+        final long raw_bytes) {
+      this.chunks = chunks;
+      this.qualifier_length = qualifier_length;
+      this.value_length = value_length;
+      this.timestamp = timestamp;
+      this.cells = cells;
+      this.raw_bytes = raw_bytes;
+    }
+  }
+}
@@ -16,13 +16,18 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -41,7 +46,12 @@ import org.hbase.async.Bytes.ByteMap;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.hbase.async.Bytes;
 import org.hbase.async.DeleteRequest;
+import org.hbase.async.FilterList;
+import org.hbase.async.GetRequest;
+import org.hbase.async.GetResultOrException;
+import org.hbase.async.KeyOnlyFilter;
 import org.hbase.async.KeyValue;
+import org.hbase.async.ScanFilter;
 import org.hbase.async.Scanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,6 +65,12 @@ import com.stumbleupon.async.Deferred;
  * salt bucket when salting is enabled. Each scanner stores it's results in 
  * local maps and once everyone has reported in, then the maps are parsed and
  * combined into a proper set of spans to return to the {@link TsdbQuery} class.
+ * With "tsd.query.scan.streaming_decode" enabled, each scanner instead decodes
+ * its rows into its own spans after every batch so the {@link KeyValue}s can
+ * be released early, and the per scanner spans are merged at the end. Note
+ * that a decoded row keeps referencing the key, qualifier and value arrays of
+ * its column so streaming only saves the KeyValue objects and the lists
+ * holding them, not the column bytes.
  * 
  * Note that if one or more of the scanners throws an exception, then that 
  * exception will be returned to the caller in the deferred. Unfortunately we
@@ -77,13 +93,15 @@ public class SaltScanner {
   private final SortedMap<byte[], HistogramSpan> histSpans;
   
   /** The list of pre-configured scanners. One scanner should be created per
-   * salt bucket. */
+   * salt bucket and time partition, ordered by partition first. */
   private final List<Scanner> scanners;
   
-  /** Stores the compacted columns from each scanner as it completes. After all
-   * scanners are done, we process this into the span map above. */
+  /** Stores the compacted columns from each scanner as it completes, keyed
+   * on the scanner index. After all scanners are done, we process this into
+   * the span map above in index order so that the rows of time partitions
+   * are stitched together in time order. */
   private final Map<Integer, List<KeyValue>> kv_map = 
-          new ConcurrentHashMap<Integer, List<KeyValue>>();
+          new ConcurrentSkipListMap<Integer, List<KeyValue>>();
   
   /** Stores annotations from each scanner as it completes */
   private final Map<byte[], List<Annotation>> annotation_map = 
@@ -91,9 +109,31 @@ public class SaltScanner {
               new TreeMap<byte[], List<Annotation>>(new RowKey.SaltCmp()));
   
   private final Map<Integer, List<SimpleEntry<byte[], List<HistogramDataPoint>>>> 
-    histMap = new ConcurrentHashMap<Integer, List<SimpleEntry<byte[], 
+    histMap = new ConcurrentSkipListMap<Integer, List<SimpleEntry<byte[], 
     List<HistogramDataPoint>>>>();
   
+  /** When streaming, the spans decoded by each scanner as it completes, keyed
+   * on the scanner index. These are merged into the span map at the end. */
+  private final Map<Integer, TreeMap<byte[], Span>> partial_spans = 
+      new ConcurrentSkipListMap<Integer, TreeMap<byte[], Span>>();
+  
+  /** Whether or not scanners decode their rows into spans after each batch
+   * instead of holding the compacted columns until all scanners are done. */
+  private final boolean streaming;
+  
+  /** Estimated heap taken by a compacted column waiting to be decoded: the
+   * KeyValue object and its slot in the scanner's list, not the arrays. */
+  static final int KEY_VALUE_OVERHEAD = 48;
+  
+  /** Estimated heap taken by a decoded row: the RowSeq object and its slot
+   * in the span, not the arrays it shares with its column. */
+  static final int ROW_SEQ_OVERHEAD = 32;
+  
+  /** Estimated bytes held by the scanners as compacted columns or decoded
+   * rows, including the column arrays, and the peak */
+  private final AtomicLong bytes_retained = new AtomicLong();
+  private final AtomicLong peak_bytes_retained = new AtomicLong();
+  
   /** A deferred to call with the spans on completion */
   private final Deferred<SortedMap<byte[], Span>> results =
           new Deferred<SortedMap<byte[], Span>>();
@@ -141,6 +181,12 @@ public class SaltScanner {
   /** A list of filters to iterate over when processing rows */
   private final List<TagVFilter> filters;
   
+  /** The filters compiled to match on row key UIDs, null if they can't be */
+  private final TagUidMatcher uid_matcher;
+  
+  /** The shared cache of compacted rows, null if disabled */
+  private final RowSegmentCache row_cache;
+  
   /** A holder for storing the first exception thrown by a scanner if something
    * goes pear shaped. Make sure to synchronize on this object when checking
    * for null or assigning from a scanner's callback. */
@@ -195,6 +241,46 @@ public class SaltScanner {
                                       final TreeMap<byte[], HistogramSpan> histogramSpans,
                                       final long max_bytes,
                                       final long max_data_points) {
+    this(tsdb, metric, scanners, spans, filters, delete, rollup_query, 
+        query_stats, query_index, histogramSpans, max_bytes, max_data_points, 1);
+  }
+  
+  /**
+   * Ctor for scanning a time range split into partitions. Call {@link scan} 
+   * after construction to actually start fetching data.
+   * @param tsdb The TSDB to which we belong
+   * @param metric The metric we're expecting to fetch
+   * @param scanners A list of HBase scanners, one for each bucket and time
+   * partition. All buckets of the first partition come first, then those of
+   * the second and so on.
+   * @param spans The span map to store results in
+   * @param delete Whether or not to delete the queried data
+   * @param rollup_query An optional rollup query config. May be null.
+   * @param filters A list of filters for processing
+   * @param query_stats A stats object for tracking timing
+   * @param query_index The index of the sub query in the main query list
+   * @param histogramSpans The histo map to populate.
+   * @param max_bytes The maximum number of bytes pulled out from all scanners 
+   * combined.
+   * @param max_data_points The maximum number of data points pulled out from all
+   * scanners (estimated).
+   * @param partitions The number of time partitions the scan was split into.
+   * @throws IllegalArgumentException if any required data was missing or
+   * we had invalid parameters.
+   * @since 2.4
+   */
+  public SaltScanner(final TSDB tsdb, final byte[] metric, 
+                                      final List<Scanner> scanners, 
+                                      final TreeMap<byte[], Span> spans,
+                                      final List<TagVFilter> filters,
+                                      final boolean delete,
+                                      final RollupQuery rollup_query,
+                                      final QueryStats query_stats,
+                                      final int query_index,
+                                      final TreeMap<byte[], HistogramSpan> histogramSpans,
+                                      final long max_bytes,
+                                      final long max_data_points,
+                                      final int partitions) {
     if (tsdb == null) {
       throw new IllegalArgumentException("The TSDB argument was null.");
     }
@@ -211,13 +297,19 @@ public class SaltScanner {
       throw new IllegalArgumentException("Missing or empty scanners list. "
           + "Please provide a list of scanners for each salt.");
     }
-    if (Const.SALT_WIDTH() > 0 && scanners.size() != Const.SALT_BUCKETS()) {
+    if (partitions < 1) {
+      throw new IllegalArgumentException("The partition count must be "
+          + "greater than zero: " + partitions);
+    }
+    if (Const.SALT_WIDTH() > 0 && 
+        scanners.size() != Const.SALT_BUCKETS() * partitions) {
       throw new IllegalArgumentException("Not enough or too many scanners " + 
           scanners.size() + " when the salt bucket count is " + 
-          Const.SALT_BUCKETS());
-    } else if (Const.SALT_WIDTH() <= 0 && scanners.size() > 1) {
+          Const.SALT_BUCKETS() + " and the partition count is " + partitions);
+    } else if (Const.SALT_WIDTH() <= 0 && scanners.size() != partitions) {
       throw new IllegalArgumentException("Not enough or too many scanners " + 
-          scanners.size() + " when the salting is disabled.");
+          scanners.size() + " when the salting is disabled and the "
+          + "partition count is " + partitions);
     }
     if (metric == null) {
       throw new IllegalArgumentException("The metric array was null.");
@@ -233,7 +325,16 @@ public class SaltScanner {
     this.metric = metric;
     this.tsdb = tsdb;
     this.filters = filters;
+    if (filters != null && !filters.isEmpty() && 
+        tsdb.getConfig().getBoolean("tsd.query.filter.uid_match")) {
+      uid_matcher = TagUidMatcher.compile(tsdb, filters);
+    } else {
+      uid_matcher = null;
+    }
     this.delete = delete;
+    row_cache = delete ? null : tsdb.rowSegmentCache();
+    streaming = spans != null && 
+        tsdb.getConfig().getBoolean("tsd.query.scan.streaming_decode");
     this.rollup_query = rollup_query;
     this.query_stats = query_stats;
     this.query_index = query_index;
@@ -320,6 +421,8 @@ public class SaltScanner {
     if (query_stats != null) {
       query_stats.addStat(query_index, QueryStat.SCANNER_MERGE_TIME, 
           (DateTime.nanoTime() - merge_start));
+      query_stats.addStat(query_index, QueryStat.PEAK_BYTES_RETAINED, 
+          peak_bytes_retained.get());
     }
 
     if (!isHistogramScan()) {
@@ -396,8 +499,12 @@ public class SaltScanner {
    * stored then we'll return that instead.
    */
   private void mergeDataPoints() {
+    if (streaming) {
+      mergePartialSpans();
+    }
+    
     // Merge sorted spans together
-    final long merge_start = DateTime.nanoTime();
+    long decoded_rows = 0;
     for (final List<KeyValue> kvs : kv_map.values()) {
       if (kvs == null || kvs.isEmpty()) {
         LOG.warn("Found a key value list that was null or empty");
@@ -433,10 +540,14 @@ public class SaltScanner {
           LOG.error("Exception adding row to span", e);
           throw e;
         }
+        ++decoded_rows;
       }
     }
-     
+    
+    // the spans and the columns are both held until the map is cleared
+    retain(decoded_rows * ROW_SEQ_OVERHEAD);
     kv_map.clear();
+    retain(-decoded_rows * KEY_VALUE_OVERHEAD);
 
     for (final byte[] key : annotation_map.keySet()) {
       Span datapoints = spans.get(key);
@@ -452,6 +563,88 @@ public class SaltScanner {
     
     annotation_map.clear();
   }
+  
+  /**
+   * Merges the sorted span maps of the scanners with a k-way merge on the row
+   * keys. Spans of the same series from different time partitions are joined
+   * in scanner index order, i.e. in time order.
+   */
+  private void mergePartialSpans() {
+    final Comparator<? super byte[]> cmp = spans.comparator();
+    final PriorityQueue<PartialSpans> queue = new PriorityQueue<PartialSpans>(
+        Math.max(1, partial_spans.size()));
+    for (final Entry<Integer, TreeMap<byte[], Span>> entry : 
+        partial_spans.entrySet()) {
+      final PartialSpans partial = new PartialSpans(entry.getKey(), 
+          entry.getValue().entrySet().iterator(), cmp);
+      if (partial.next()) {
+        queue.add(partial);
+      }
+    }
+    
+    byte[] last_key = null;
+    Span last = null;
+    while (!queue.isEmpty()) {
+      final PartialSpans partial = queue.poll();
+      if (last != null && cmp.compare(last_key, partial.key) == 0) {
+        last.appendSpan(partial.span);
+      } else {
+        last_key = partial.key;
+        last = partial.span;
+        spans.put(last_key, last);
+      }
+      if (partial.next()) {
+        queue.add(partial);
+      }
+    }
+    partial_spans.clear();
+  }
+  
+  /** The cursor over the spans of one scanner used for the k-way merge */
+  private static final class PartialSpans implements Comparable<PartialSpans> {
+    private final int index;
+    private final Iterator<Entry<byte[], Span>> iterator;
+    private final Comparator<? super byte[]> cmp;
+    private byte[] key;
+    private Span span;
+    
+    PartialSpans(final int index, final Iterator<Entry<byte[], Span>> iterator,
+        final Comparator<? super byte[]> cmp) {
+      this.index = index;
+      this.iterator = iterator;
+      this.cmp = cmp;
+    }
+    
+    /** @return Whether or not the cursor moved to another span */
+    boolean next() {
+      if (!iterator.hasNext()) {
+        return false;
+      }
+      final Entry<byte[], Span> entry = iterator.next();
+      key = entry.getKey();
+      span = entry.getValue();
+      return true;
+    }
+    
+    @Override
+    public int compareTo(final PartialSpans other) {
+      final int c = cmp.compare(key, other.key);
+      return c != 0 ? c : index - other.index;
+    }
+  }
+  
+  /**
+   * Accounts for bytes held by the scanners as compacted columns or spans.
+   * @param delta The number of bytes added or, if negative, released.
+   */
+  private void retain(final long delta) {
+    final long retained = bytes_retained.addAndGet(delta);
+    long peak = peak_bytes_retained.get();
+    while (retained > peak && 
+        !peak_bytes_retained.compareAndSet(peak, retained)) {
+      peak = peak_bytes_retained.get();
+    }
+  }
 
   /**
   * Scanner callback executed recursively each time we get a set of data
@@ -491,10 +684,26 @@ public class SaltScanner {
     private long rows_pre_filter = 0;
     private long dps_post_filter = 0;
     private long rows_post_filter = 0;
+    private long rows_uid_filtered = 0;
+    private long rows_name_filtered = 0;
+    private long rows_from_cache = 0;
+    
+    /** The spans decoded so far when streaming, null otherwise */
+    private final TreeMap<byte[], Span> decoded = streaming ? 
+        new TreeMap<byte[], Span>(spans.comparator()) : null;
+    
+    /** Whether or not the scanner only fetches the keys of cacheable rows */
+    private final boolean key_only;
+    
+    /** Rows of a key only batch that weren't cached and have to be fetched */
+    private final List<GetRequest> misses = 
+        Collections.synchronizedList(new ArrayList<GetRequest>());
     
     public ScannerCB(final Scanner scanner, final int index) {
       this.scanner = scanner;
       this.index = index;
+      key_only = row_cache != null && !is_rollup && 
+          isKeyOnly(scanner.getFilter());
       if (query_stats != null) {
         query_stats.addScannerId(query_index, index, scanner.toString());
       }
@@ -523,6 +732,7 @@ public class SaltScanner {
       if (scanner_start < 0) {
         scanner_start = DateTime.nanoTime();
       }
+      decode();
       fetch_start = DateTime.nanoTime();
       return scanner.nextRows().addCallback(this).addErrback(new ErrorCb());
     }
@@ -559,36 +769,8 @@ public class SaltScanner {
         // kinda funky but we want to allow queries to sneak through that were
         // just a *tad* over the limits so that's why we don't check at the 
         // end of a scan call.
-        if (max_data_points > 0 && num_data_points.get() >= max_data_points) {
-          max_data_points_flag.getAndSet(true);
-          try {
-            close(false);
-            handleException(
-                new QueryException(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
-                "Sorry, you have attempted to fetch more than our limit of " 
-                    + max_data_points + " data points. Please try filtering "
-                    + "using more tags or decrease your time range."));
-            return false;
-          } catch (Exception e) {
-            LOG.error("Sorry, Scanner is closed: " + scanner, e);
-            return false;
-          }
-        }
-        
-        if (max_bytes > 0 && bytes_fetched.get() > max_bytes) {
-          max_data_points_flag.getAndSet(true);
-          try {
-            close(false);
-            handleException(
-                new QueryException(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
-                "Sorry, you have attempted to fetch more than our maximum "
-                    + "amount of " + (max_bytes / 1024 / 1024) + "MB from storage. " 
-                    + "Please try filtering using more tags or decrease your time range."));
-            return false;
-          } catch (Exception e) {
-            LOG.error("Sorry, Scanner is closed: " + scanner, e);
-            return false;
-          }
+        if (exceededLimits()) {
+          return false;
         }
                 
         rows_pre_filter += rows.size();
@@ -643,9 +825,35 @@ public class SaltScanner {
           // the row key UIDs to their names for string comparison. We'll
           // try to avoid the resolution with some sets but we may dupe
           // resolve a few times.
-          // TODO - more efficient resolution
-          // TODO - byte set instead of a string for the uid may be faster
-          if (filters != null && !filters.isEmpty()) {
+          if (uid_matcher != null) {
+            // tag values seen before are decided on the row key bytes, new
+            // ones are resolved once for the whole query
+            final Boolean matched = uid_matcher.match(key);
+            if (matched != null) {
+              ++rows_uid_filtered;
+              if (matched) {
+                processRow(key, row);
+              }
+              continue;
+            }
+            ++rows_name_filtered;
+            final long uid_start = DateTime.nanoTime();
+            
+            /** Processes the row if the filters matched the resolved values */
+            class UidMatchCB implements Callback<Object, Boolean> {
+              @Override
+              public Object call(final Boolean accepted) throws Exception {
+                uid_resolve_time += (DateTime.nanoTime() - uid_start);
+                if (accepted) {
+                  processRow(key, row);
+                }
+                return null;
+              }
+            }
+            lookups.add(uid_matcher.resolveAndMatch(key)
+                .addCallback(new UidMatchCB()));
+          } else if (filters != null && !filters.isEmpty()) {
+            ++rows_name_filtered;
             final String tsuid =
                 UniqueId.uidToString(UniqueId.getTSUIDFromKey(key, 
                 TSDB.metrics_width(), Const.TIMESTAMP_BYTES));
@@ -709,12 +917,12 @@ public class SaltScanner {
           class GroupCB implements Callback<Object, ArrayList<Object>> {
             @Override
             public Object call(final ArrayList<Object> group) throws Exception {
-              return scan();
+              return fetchMisses();
             }
           }
           return Deferred.group(lookups).addCallback(new GroupCB());
         } else {
-          return scan();
+          return fetchMisses();
         }
       } catch (final RuntimeException e) {
         LOG.error("Unexpected exception on scanner " + this, e);
@@ -724,13 +932,177 @@ public class SaltScanner {
       }
     }
     
+    /**
+     * Closes the scanner and fails the query if it fetched more data points
+     * or bytes than allowed.
+     * @return True if a limit was exceeded.
+     */
+    private boolean exceededLimits() {
+      if (max_data_points > 0 && num_data_points.get() >= max_data_points) {
+        max_data_points_flag.getAndSet(true);
+        try {
+          close(false);
+          handleException(
+              new QueryException(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+              "Sorry, you have attempted to fetch more than our limit of " 
+                  + max_data_points + " data points. Please try filtering "
+                  + "using more tags or decrease your time range."));
+        } catch (Exception e) {
+          LOG.error("Sorry, Scanner is closed: " + scanner, e);
+        }
+        return true;
+      }
+      
+      if (max_bytes > 0 && bytes_fetched.get() > max_bytes) {
+        max_data_points_flag.getAndSet(true);
+        try {
+          close(false);
+          handleException(
+              new QueryException(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+              "Sorry, you have attempted to fetch more than our maximum "
+                  + "amount of " + (max_bytes / 1024 / 1024) + "MB from storage. " 
+                  + "Please try filtering using more tags or decrease your time range."));
+        } catch (Exception e) {
+          LOG.error("Sorry, Scanner is closed: " + scanner, e);
+        }
+        return true;
+      }
+      return false;
+    }
+    
+    /**
+     * Fetches the rows of a key only batch that weren't found in the row cache
+     * with a single multi get, then continues the scan.
+     * @return The deferred of the next batch.
+     */
+    private Object fetchMisses() {
+      final List<GetRequest> gets;
+      synchronized (misses) {
+        if (misses.isEmpty()) {
+          return scan();
+        }
+        gets = new ArrayList<GetRequest>(misses);
+        misses.clear();
+      }
+      
+      /** Processes the fetched rows and continues the scan */
+      class MissesCB implements Callback<Object, List<GetResultOrException>> {
+        @Override
+        public Object call(final List<GetResultOrException> results) 
+            throws Exception {
+          fetch_time += DateTime.nanoTime() - fetch_start;
+          try {
+            // the key only scan didn't fetch the values so charge the rows
+            // in full before processing them
+            for (final GetResultOrException result : results) {
+              if (result.getException() != null) {
+                close(false);
+                handleException(result.getException());
+                return null;
+              }
+              final ArrayList<KeyValue> row = result.getCells();
+              if (row == null) {
+                continue;
+              }
+              for (final KeyValue kv : row) {
+                bytes_fetched.addAndGet(kv.key().length + 
+                    kv.qualifier().length + kv.value().length);
+              }
+            }
+            if (exceededLimits()) {
+              return null;
+            }
+            for (final GetResultOrException result : results) {
+              final ArrayList<KeyValue> row = result.getCells();
+              if (row == null || row.isEmpty()) {
+                continue;
+              }
+              processRow(row.get(0).key(), row, null);
+            }
+            return scan();
+          } catch (final RuntimeException e) {
+            LOG.error("Unexpected exception on scanner " + this, e);
+            close(false);
+            handleException(e);
+            return null;
+          }
+        }
+      }
+      
+      fetch_start = DateTime.nanoTime();
+      return tsdb.getClient().get(gets).addCallback(new MissesCB())
+          .addErrback(new ErrorCb());
+    }
+    
+    /**
+     * Adds a compacted column to the list to merge or decode.
+     * @param kv The column to add.
+     */
+    private void addKeyValue(final KeyValue kv) {
+      kvs.add(kv);
+      retain(kv.key().length + kv.qualifier().length + kv.value().length + 
+          KEY_VALUE_OVERHEAD);
+    }
+    
+    /**
+     * When streaming, decodes the compacted columns of the batches processed
+     * so far into this scanner's spans and releases the KeyValues. The column
+     * arrays stay accounted for as the decoded rows keep referencing them.
+     */
+    private void decode() {
+      if (decoded == null) {
+        return;
+      }
+      int rows = 0;
+      synchronized (kvs) {
+        for (final KeyValue kv : kvs) {
+          Span datapoints = decoded.get(kv.key());
+          if (datapoints == null) {
+            datapoints = RollupQuery.isValidQuery(rollup_query) ?
+                new RollupSpan(tsdb, rollup_query) : new Span(tsdb);
+            decoded.put(kv.key(), datapoints);
+          }
+          datapoints.addRow(kv);
+          ++rows;
+        }
+        kvs.clear();
+      }
+      retain((long) rows * (ROW_SEQ_OVERHEAD - KEY_VALUE_OVERHEAD));
+    }
+    
     /**
      * Finds or creates the span for this row, compacts it and stores it. Also
-     * fires off a delete request for the row if told to.
+     * fires off a delete request for the row if told to. Rows of a key only
+     * scanner are taken from the row cache, or fetched with the rest of the
+     * batch's misses if they weren't cached.
      * @param key The row key to use for fetching the span
      * @param row The row to add
      */
     void processRow(final byte[] key, final ArrayList<KeyValue> row) {
+      if (key_only) {
+        final KeyValue cached = row_cache.get(key, row);
+        if (cached == null) {
+          misses.add(new GetRequest(tsdb.dataTable(), key, TSDB.FAMILY()));
+          return;
+        }
+        final ArrayList<KeyValue> compacted = new ArrayList<KeyValue>(1);
+        compacted.add(cached);
+        processRow(key, compacted, cached);
+      } else {
+        processRow(key, row, row_cache != null && !is_rollup ? 
+            row_cache.get(key, row) : null);
+      }
+    }
+    
+    /**
+     * Stores a row, see {@link #processRow(byte[], ArrayList)}.
+     * @param key The row key to use for fetching the span
+     * @param row The row to add
+     * @param cached The compaction of the row from the row cache, null to
+     * compact the row.
+     */
+    private void processRow(final byte[] key, final ArrayList<KeyValue> row, 
+        final KeyValue cached) {
       ++rows_post_filter;
       if (delete) {
         final DeleteRequest del = new DeleteRequest(tsdb.dataTable(), key);
@@ -782,12 +1154,12 @@ public class SaltScanner {
                     qual[0] == (byte) rollup_count_id ||
                     Bytes.memcmp(RollupQuery.SUM, qual, 0, RollupQuery.SUM.length) == 0 ||
                     Bytes.memcmp(RollupQuery.COUNT, qual, 0, RollupQuery.COUNT.length) == 0) {
-                  kvs.add(kv);
+                  addKeyValue(kv);
                 }
               } else if (qual[0] == (byte) rollup_agg_id ||
                   Bytes.memcmp(rollup_query.getRollupAggPrefix(), 
                     qual, 0, rollup_query.getRollupAggPrefix().length) == 0) {
-                kvs.add(kv);
+                addKeyValue(kv);
               }
             }
           }
@@ -833,23 +1205,32 @@ public class SaltScanner {
         // the scanner
         final long compaction_start = DateTime.nanoTime();
         try {
-          final List<Annotation> notes = Lists.newArrayList();
-          compacted = tsdb.compact(row, notes, hists);
-          
-          // histogram row
-          if (hists.size() > 0) {
-            this.histograms.add(new SimpleEntry<byte[], List<HistogramDataPoint>>(key, hists));
-          }
-          
-          if (!notes.isEmpty()) {
-            synchronized (annotations) {
-              List<Annotation> map_notes = annotations.get(key);
-              if (map_notes == null) {
-                annotations.put(key, notes);
-              } else {
-                map_notes.addAll(notes);
+          if (cached != null) {
+            ++rows_from_cache;
+            compacted = cached;
+          } else {
+            final List<Annotation> notes = Lists.newArrayList();
+            compacted = tsdb.compact(row, notes, hists);
+            
+            // histogram row
+            if (hists.size() > 0) {
+              this.histograms.add(new SimpleEntry<byte[], List<HistogramDataPoint>>(key, hists));
+            }
+            
+            if (!notes.isEmpty()) {
+              synchronized (annotations) {
+                List<Annotation> map_notes = annotations.get(key);
+                if (map_notes == null) {
+                  annotations.put(key, notes);
+                } else {
+                  map_notes.addAll(notes);
+                }
               }
             }
+            if (row_cache != null && compacted != null && notes.isEmpty() && 
+                hists.isEmpty()) {
+              row_cache.put(key, row, compacted);
+            }
           }
         } catch (IllegalDataException idex) {
           compaction_time += (DateTime.nanoTime() - compaction_start);
@@ -859,7 +1240,7 @@ public class SaltScanner {
         }
         compaction_time += (DateTime.nanoTime() - compaction_start);
         if (compacted != null) { // Can be null if we ignored all KVs.
-          kvs.add(compacted);
+          addKeyValue(compacted);
         }
       }
     }
@@ -905,29 +1286,68 @@ public class SaltScanner {
             QueryStat.UID_PAIRS_RESOLVED, uids_resolved);
         query_stats.addScannerStat(query_index, index, 
             QueryStat.COMPACTION_TIME, compaction_time);
+        query_stats.addScannerStat(query_index, index, 
+            QueryStat.ROWS_FILTERED_BY_UID, rows_uid_filtered);
+        query_stats.addScannerStat(query_index, index, 
+            QueryStat.ROWS_FILTERED_BY_NAME, rows_name_filtered);
+        query_stats.addScannerStat(query_index, index, 
+            QueryStat.ROW_CACHE_HITS, rows_from_cache);
       }
       
       if (ok && exception == null) {
-        validateAndTriggerCallback(kvs, annotations, histograms);
+        if (decoded != null) {
+          try {
+            decode();
+          } catch (RuntimeException e) {
+            LOG.error("Exception adding row to span", e);
+            handleException(e);
+            return;
+          }
+          if (!decoded.isEmpty()) {
+            partial_spans.put(index, decoded);
+          }
+        }
+        validateAndTriggerCallback(index, kvs, annotations, histograms);
       } else {
         countdown.decrementAndGet();
       }
     }
   }
   
+  /**
+   * @param filter The filter of a scanner, may be null.
+   * @return Whether or not the scanner only fetches the row keys and cell
+   * qualifiers.
+   */
+  private static boolean isKeyOnly(final ScanFilter filter) {
+    if (filter instanceof KeyOnlyFilter) {
+      return true;
+    }
+    if (filter instanceof FilterList) {
+      for (final ScanFilter f : ((FilterList) filter).filters()) {
+        if (f instanceof KeyOnlyFilter) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+  
   /**
    * Called each time a scanner completes with valid or empty data.
+   * @param index The index of the scanner
    * @param kvs The compacted columns fetched by the scanner
    * @param annotations The annotations fetched by the scanners
    */
   private void validateAndTriggerCallback(
+      final int index,
       final List<KeyValue> kvs, 
       final Map<byte[], List<Annotation>> annotations,
       final List<SimpleEntry<byte[], List<HistogramDataPoint>>> histograms) {
 
     int scannersRunning = countdown.decrementAndGet();
     if (kvs.size() > 0) {
-      kv_map.put(scannersRunning, kvs);
+      kv_map.put(index, kvs);
     }
     
     for (final byte[] key : annotations.keySet()) {
@@ -939,7 +1359,7 @@ public class SaltScanner {
     }
     
     if (histograms.size() > 0) {
-      histMap.put(scannersRunning, histograms);
+      histMap.put(index, histograms);
     }
 
     if (scannersRunning <= 0) {
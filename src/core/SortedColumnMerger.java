@@ -0,0 +1,214 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.List;
+
+import org.hbase.async.KeyValue;
+
+/**
+ * Internal implementation detail for {@link CompactionQueue}. Merges the data
+ * point columns of a row straight out of the {@link KeyValue} backing arrays
+ * using index cursors, writing the compacted qualifier and value into arrays
+ * sized up front. No per-data point or per-column objects are created.
+ * <p>
+ * Only the common case is handled here: every column holds well formed data
+ * points in increasing time order, no column needs a fixup and there are no
+ * duplicate timestamps. For anything else, including annotations, appends and
+ * histograms, {@link #merge} returns null and the caller must fall back to the
+ * {@link ColumnDatapointIterator} based compaction, which also takes care of
+ * counting and resolving duplicates.
+ * <p>
+ * When the columns cover disjoint, ordered time ranges, as they do for a row
+ * written one point at a time, the merge is a straight copy. Otherwise the
+ * columns are merged with a binary heap of column indices.
+ * @since 2.4
+ */
+final class SortedColumnMerger {
+
+  private SortedColumnMerger() {
+    // Static methods only
+  }
+
+  /**
+   * Merges the data point columns of a row.
+   * @param row The columns of the row, must not be empty.
+   * @return The row itself if it holds a single column with a single data
+   * point, a new {@link KeyValue} with the compacted column, or null if the
+   * row has to go through the full compaction path.
+   */
+  static KeyValue merge(final List<KeyValue> row) {
+    final int ncols = row.size();
+    if (ncols == 0) {
+      return null;
+    }
+    final int[] first_ts = new int[ncols];
+    final int[] value_lengths = new int[ncols];
+    int npoints = 0;
+    int qual_bytes = 0;
+    int val_bytes = 0;
+    boolean sorted = true;
+    boolean ms_in_row = false;
+    boolean s_in_row = false;
+    int last_ts = -1;
+
+    // validate the columns and size the output
+    for (int i = 0; i < ncols; i++) {
+      final KeyValue kv = row.get(i);
+      final byte[] qual = kv.qualifier();
+      final byte[] value = kv.value();
+      if (qual.length == 0 || (qual.length & 1) != 0) {
+        return null;  // Annotation, append or some other extended format.
+      }
+      if (qual.length == 2 && (Internal.floatingPointValueToFix(qual[1], value)
+          || Internal.fixQualifierFlags(qual[1], value.length) != qual[1])) {
+        return null;
+      }
+      int prev_ts = -1;
+      int offset = 0;
+      int value_length = 0;
+      while (offset < qual.length) {
+        final boolean ms = Internal.inMilliseconds(qual[offset]);
+        final int qual_length = ms ? 4 : 2;
+        if (offset + qual_length > qual.length) {
+          return null;
+        }
+        final int ts = Internal.getOffsetFromQualifier(qual, offset);
+        if (ts <= prev_ts) {
+          return null;  // Out of order or duplicated within the column.
+        }
+        if (offset == 0) {
+          first_ts[i] = ts;
+          if (ts <= last_ts) {
+            sorted = false;
+          }
+        }
+        prev_ts = ts;
+        ms_in_row |= ms;
+        s_in_row |= !ms;
+        value_length += Internal.getValueLengthFromQualifier(qual, offset);
+        offset += qual_length;
+        npoints++;
+      }
+      if (value_length > value.length) {
+        return null;
+      }
+      last_ts = prev_ts;
+      value_lengths[i] = value_length;
+      qual_bytes += qual.length;
+      val_bytes += value_length;
+    }
+
+    if (ncols == 1 && npoints == 1) {
+      return row.get(0);
+    }
+
+    // metadata is a single byte for a multi-value column, otherwise nothing
+    final byte[] cq = new byte[qual_bytes];
+    final byte[] cv = new byte[val_bytes + (npoints > 1 ? 1 : 0)];
+    if (sorted) {
+      int qual_pos = 0;
+      int val_pos = 0;
+      for (int i = 0; i < ncols; i++) {
+        final KeyValue kv = row.get(i);
+        System.arraycopy(kv.qualifier(), 0, cq, qual_pos, kv.qualifier().length);
+        qual_pos += kv.qualifier().length;
+        System.arraycopy(kv.value(), 0, cv, val_pos, value_lengths[i]);
+        val_pos += value_lengths[i];
+      }
+    } else if (!heapMerge(row, first_ts, cq, cv)) {
+      return null;
+    }
+
+    if (npoints > 1) {
+      cv[cv.length - 1] = ms_in_row && s_in_row ? Const.MS_MIXED_COMPACT : 0;
+    }
+    final KeyValue first = row.get(0);
+    return new KeyValue(first.key(), first.family(), cq, cv);
+  }
+
+  /**
+   * Merges overlapping columns in time order.
+   * @param row The validated columns.
+   * @param ts The timestamp of the first data point of each column. Used as
+   * the current timestamp of each cursor.
+   * @param cq The output qualifier, sized to fit.
+   * @param cv The output value, sized to fit.
+   * @return False if a duplicate timestamp was found.
+   */
+  private static boolean heapMerge(final List<KeyValue> row, final int[] ts,
+      final byte[] cq, final byte[] cv) {
+    final int ncols = row.size();
+    final int[] qual_offsets = new int[ncols];
+    final int[] val_offsets = new int[ncols];
+    final int[] heap = new int[ncols];
+    for (int i = 0; i < ncols; i++) {
+      heap[i] = i;
+    }
+    int size = ncols;
+    for (int i = size / 2 - 1; i >= 0; i--) {
+      siftDown(heap, size, i, ts);
+    }
+
+    int qual_pos = 0;
+    int val_pos = 0;
+    int prev_ts = -1;
+    while (size > 0) {
+      final int col = heap[0];
+      if (ts[col] == prev_ts) {
+        return false;
+      }
+      prev_ts = ts[col];
+      final KeyValue kv = row.get(col);
+      final byte[] qual = kv.qualifier();
+      final int offset = qual_offsets[col];
+      final int qual_length = Internal.inMilliseconds(qual[offset]) ? 4 : 2;
+      final int value_length = Internal.getValueLengthFromQualifier(qual, offset);
+      System.arraycopy(qual, offset, cq, qual_pos, qual_length);
+      qual_pos += qual_length;
+      System.arraycopy(kv.value(), val_offsets[col], cv, val_pos, value_length);
+      val_pos += value_length;
+
+      qual_offsets[col] += qual_length;
+      val_offsets[col] += value_length;
+      if (qual_offsets[col] < qual.length) {
+        ts[col] = Internal.getOffsetFromQualifier(qual, qual_offsets[col]);
+      } else {
+        heap[0] = heap[--size];
+      }
+      siftDown(heap, size, 0, ts);
+    }
+    return true;
+  }
+
+  /** Restores the heap property from the given position down. */
+  private static void siftDown(final int[] heap, final int size, int pos,
+      final int[] ts) {
+    final int col = heap[pos];
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && ts[heap[child + 1]] < ts[heap[child]]) {
+        child++;
+      }
+      if (ts[heap[child]] >= ts[col]) {
+        break;
+      }
+      heap[pos] = heap[child];
+      pos = child;
+    }
+    heap[pos] = col;
+  }
+}
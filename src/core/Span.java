@@ -52,6 +52,10 @@ public class Span implements DataPoints {
    * first call to an iterator method
    */
   private boolean sorted;
+
+  /** The decoded data points once the span has been materialized, null
+   * otherwise. See {@link #materialize}. */
+  private MaterializedDataPoints materialized;
   
   /**
    * Default constructor.
@@ -139,6 +143,9 @@ public class Span implements DataPoints {
    * Unfortunately we must walk the entire array for every row as there may be a 
    * mix of second and millisecond timestamps */
   public int size() {
+    if (materialized != null) {
+      return materialized.size();
+    }
     int size = 0;
     for (final iRowSeq row : rows) {
       size += row.size();
@@ -175,6 +182,7 @@ public class Span implements DataPoints {
    * two different time series.
    */
   protected void addRow(final KeyValue row) {
+    dropMaterialized();
     long last_ts = 0;
     if (rows.size() != 0) {
       // Verify that we have the same metric id and tags.
@@ -219,6 +227,19 @@ public class Span implements DataPoints {
     rows.add(rowseq);
   }
 
+  /**
+   * Moves the rows and annotations of another span of the same time series,
+   * e.g. one decoded by the scanner of another time partition, into this one.
+   * @param other The span to take the rows from. Must not be used afterwards.
+   * @since 2.4
+   */
+  void appendSpan(final Span other) {
+    dropMaterialized();
+    rows.addAll(other.rows);
+    annotations.addAll(other.annotations);
+    sorted = false;
+  }
+
   /**
    * Package private helper to access the last timestamp in an HBase row.
    * @param metric_width The number of bytes on which metric IDs are stored.
@@ -246,6 +267,37 @@ public class Span implements DataPoints {
     return spanIterator();
   }
 
+  /**
+   * Decodes all of the data points in this span into primitive arrays so that
+   * iterating, seeking and random access no longer walk the row qualifiers.
+   * Worth calling once the span is complete when the data will be read more
+   * than once, e.g. by expressions. Adding a row afterwards drops the decoded
+   * arrays.
+   * @since 2.4
+   */
+  void materialize() {
+    if (materialized != null || rows.isEmpty()) {
+      return;
+    }
+    checkRowOrder();
+    materialized = MaterializedDataPoints.fromView(new Span.Iterator(), size());
+  }
+
+  /**
+   * Drops the arrays built by {@link #materialize}, must be called by
+   * implementations that override {@link #addRow}.
+   * @since 2.4
+   */
+  protected void dropMaterialized() {
+    materialized = null;
+  }
+
+  /** @return Whether or not the span was decoded by {@link #materialize}.
+   * @since 2.4 */
+  boolean isMaterialized() {
+    return materialized != null;
+  }
+
   /**
    * Finds the index of the row of the ith data point and the offset in the row.
    * @param i The index of the data point to find.
@@ -277,6 +329,9 @@ public class Span implements DataPoints {
    * @throws IndexOutOfBoundsException if the index would be out of bounds
    */
   public long timestamp(final int i) {
+    if (materialized != null) {
+      return materialized.timestamp(i);
+    }
     checkRowOrder();
     final long idxoffset = getIdxOffsetFor(i);
     final int idx = (int) (idxoffset >>> 32);
@@ -292,6 +347,9 @@ public class Span implements DataPoints {
    * @throws IndexOutOfBoundsException if the index would be out of bounds
    */
   public boolean isInteger(final int i) {
+    if (materialized != null) {
+      return materialized.isInteger(i);
+    }
     checkRowOrder();
     final long idxoffset = getIdxOffsetFor(i);
     final int idx = (int) (idxoffset >>> 32);
@@ -310,6 +368,9 @@ public class Span implements DataPoints {
    * @throws IllegalDataException if the data is malformed
    */
   public long longValue(final int i) {
+    if (materialized != null) {
+      return materialized.longValue(i);
+    }
     checkRowOrder();
     final long idxoffset = getIdxOffsetFor(i);
     final int idx = (int) (idxoffset >>> 32);
@@ -328,6 +389,9 @@ public class Span implements DataPoints {
    * @throws IllegalDataException if the data is malformed
    */
   public double doubleValue(final int i) {
+    if (materialized != null) {
+      return materialized.doubleValue(i);
+    }
     checkRowOrder();
     final long idxoffset = getIdxOffsetFor(i);
     final int idx = (int) (idxoffset >>> 32);
@@ -391,8 +455,12 @@ public class Span implements DataPoints {
     }
   }
   
-  /** Package private iterator method to access it as a Span.Iterator. */
-  Span.Iterator spanIterator() {
+  /** Package private iterator method to access it as a Span.Iterator or an
+   * iterator over the arrays if the span was materialized. */
+  SeekableView spanIterator() {
+    if (materialized != null) {
+      return materialized.iterator();
+    }
     if (!sorted) {
       Collections.sort(rows, new RowSeq.RowSeqComparator());
       sorted = true;
@@ -58,21 +58,27 @@ final class SpanGroup extends AbstractSpanGroup {
   /**
    * The tags of this group.
    * This is the intersection set between the tags of all the Spans
-   * in this group.
+   * in this group. Only set once all of the names are resolved.
    * @see #computeTags
    */
-  private Map<String, String> tags;
+  private volatile Map<String, String> tags;
   private ByteMap<byte[]> tag_uids;
 
+  /** The resolution of the tags if started, guarded by this */
+  private Deferred<Map<String, String>> tags_resolving;
+
   /**
    * The names of the tags that aren't shared by every single data point.
    * This is the symmetric difference between the tags of all the Spans
-   * in this group.
+   * in this group. Only set once all of the names are resolved.
    * @see #computeTags
    */
-  private List<String> aggregated_tags;
+  private volatile List<String> aggregated_tags;
   private Set<byte[]> aggregated_tag_uids;
 
+  /** The resolution of the aggregated tags if started, guarded by this */
+  private Deferred<List<String>> aggregated_tags_resolving;
+
   /** Spans in this group.  They must all be for the same metric. */
   private final ArrayList<Span> spans = new ArrayList<Span>();
 
@@ -106,6 +112,10 @@ final class SpanGroup extends AbstractSpanGroup {
   /** The group we belong to */
   private byte[] group;
 
+  /** The aggregated data points once the group has been materialized, null
+   * otherwise. See {@link #materialize}. */
+  private MaterializedDataPoints materialized;
+
   /**
    * Ctor.
    * @param tsdb The TSDB we belong to.
@@ -293,6 +303,7 @@ final class SpanGroup extends AbstractSpanGroup {
    * fall within our time range, this method will silently ignore that span.
    */
   void add(final Span span) {
+    materialized = null;
     if (tags != null) {
       throw new AssertionError("The set of tags has already been computed"
                                + ", you can't add more Spans to " + this);
@@ -345,7 +356,7 @@ final class SpanGroup extends AbstractSpanGroup {
    * On the first run, it will initialize the UID collections (which may be empty)
    * and subsequent calls will skip processing.
    */
-  private void computeTags() {
+  private synchronized void computeTags() {
     if (tag_uids != null && aggregated_tag_uids != null) {
       return;
     }
@@ -416,21 +427,38 @@ final class SpanGroup extends AbstractSpanGroup {
     }
   }
   
+  /**
+   * Resolves the tags shared by all of the spans. The names are only resolved
+   * once, even if the group is serialized by several queries at the same time,
+   * e.g. when the {@link QueryCoalescer} hands it to each of them.
+   * @return A deferred resolving to the tags. The map must not be modified.
+   */
   public Deferred<Map<String, String>> getTagsAsync() {
-    if (tags != null) {
-      return Deferred.fromResult(tags);
+    final Map<String, String> resolved = tags;
+    if (resolved != null) {
+      return Deferred.fromResult(resolved);
     }
     
-    if (spans.isEmpty()) {
-      tags = new HashMap<String, String>(0);
-      return Deferred.fromResult(tags);
-    }
-    
-    if (tag_uids == null) {
-      computeTags();
+    final Deferred<Map<String, String>> resolving;
+    synchronized (this) {
+      if (tags != null) {
+        return Deferred.fromResult(tags);
+      }
+      if (spans.isEmpty()) {
+        tags = new HashMap<String, String>(0);
+        return Deferred.fromResult(tags);
+      }
+      if (tags_resolving == null) {
+        computeTags();
+        tags_resolving = resolveTags(tag_uids);
+      }
+      resolving = tags_resolving;
     }
-    
-    return resolveTags(tag_uids);
+    // callbacks on the shared deferred would change its result for others
+    final Deferred<Map<String, String>> deferred = 
+        new Deferred<Map<String, String>>();
+    resolving.chain(deferred);
+    return deferred;
   }
 
   @Override
@@ -451,21 +479,36 @@ final class SpanGroup extends AbstractSpanGroup {
     }
   }
   
+  /**
+   * Resolves the tags that aren't shared by all of the spans. The names are
+   * only resolved once, see {@link #getTagsAsync}.
+   * @return A deferred resolving to the tag names. The list must not be
+   * modified.
+   */
   public Deferred<List<String>> getAggregatedTagsAsync() {
-    if (aggregated_tags != null) {
-      return Deferred.fromResult(aggregated_tags);
-    }
-    
-    if (spans.isEmpty()) {
-      aggregated_tags = new ArrayList<String>(0);
-      return Deferred.fromResult(aggregated_tags);
+    final List<String> resolved = aggregated_tags;
+    if (resolved != null) {
+      return Deferred.fromResult(resolved);
     }
     
-    if (aggregated_tag_uids == null) {
-      computeTags();
+    final Deferred<List<String>> resolving;
+    synchronized (this) {
+      if (aggregated_tags != null) {
+        return Deferred.fromResult(aggregated_tags);
+      }
+      if (spans.isEmpty()) {
+        aggregated_tags = new ArrayList<String>(0);
+        return Deferred.fromResult(aggregated_tags);
+      }
+      if (aggregated_tags_resolving == null) {
+        computeTags();
+        aggregated_tags_resolving = resolveAggTags(aggregated_tag_uids);
+      }
+      resolving = aggregated_tags_resolving;
     }
-    
-    return resolveAggTags(aggregated_tag_uids);
+    final Deferred<List<String>> deferred = new Deferred<List<String>>();
+    resolving.chain(deferred);
+    return deferred;
   }
   
   @Override
@@ -502,6 +545,9 @@ final class SpanGroup extends AbstractSpanGroup {
   }
 
   public int size() {
+    if (materialized != null) {
+      return materialized.size();
+    }
     // TODO(tsuna): There is a way of doing this way more efficiently by
     // inspecting the Spans and counting only data points that fall in
     // our time range.
@@ -523,6 +569,44 @@ final class SpanGroup extends AbstractSpanGroup {
   }
 
   public SeekableView iterator() {
+    if (materialized != null) {
+      return materialized.iterator();
+    }
+    return aggregationIterator();
+  }
+
+  /**
+   * Runs the aggregation once and keeps the results in primitive arrays so 
+   * that further iterations and random access don't aggregate again. Used to
+   * aggregate groups in parallel ahead of serialization, see
+   * {@link AggregationExecutor}.
+   * @since 2.4
+   */
+  void materialize() {
+    if (materialized == null) {
+      materialized = MaterializedDataPoints.fromView(aggregationIterator(), 64);
+    }
+  }
+
+  /** @return Whether or not the group was aggregated by {@link #materialize}.
+   * @since 2.4 */
+  boolean isMaterialized() {
+    return materialized != null;
+  }
+
+  /** @return A new iterator aggregating the spans */
+  private SeekableView aggregationIterator() {
+    if (tsdb != null && tsdb.blockAggregation() && 
+        BlockAggregationIterator.canAggregate(aggregator, downsampler, rate, 
+        rollup_query)) {
+      final BlockAggregationIterator block = BlockAggregationIterator.create(
+          spans, start_time, end_time, aggregator, downsampler, query_start, 
+          query_end);
+      // series that wouldn't line up are interpolated as usual
+      if (block != null) {
+        return block;
+      }
+    }
     return AggregationIterator.create(spans, start_time, end_time, aggregator,
                                   aggregator.interpolationMethod(),
                                   downsampler, query_start, query_end,
@@ -530,6 +614,9 @@ final class SpanGroup extends AbstractSpanGroup {
   }
 
   public long timestamp(final int i) {
+    if (materialized != null) {
+      return materialized.timestamp(i);
+    }
     return getDataPoint(i).timestamp();
   }
 
@@ -546,14 +633,23 @@ final class SpanGroup extends AbstractSpanGroup {
   }
 
   public boolean isInteger(final int i) {
+    if (materialized != null) {
+      return materialized.isInteger(i);
+    }
     return getDataPoint(i).isInteger();
   }
 
   public double doubleValue(final int i) {
+    if (materialized != null) {
+      return materialized.doubleValue(i);
+    }
     return getDataPoint(i).doubleValue();
   }
 
   public long longValue(final int i) {
+    if (materialized != null) {
+      return materialized.longValue(i);
+    }
     return getDataPoint(i).longValue();
   }
 
@@ -597,68 +693,81 @@ final class SpanGroup extends AbstractSpanGroup {
   }
   
   /**
-   * Resolves the set of tag keys to their string names.
+   * Resolves the set of tag keys to their string names and publishes them in
+   * {@link #aggregated_tags} once all are resolved. A failed resolution may be
+   * retried.
    * @param tagks The set of unique tag names
-   * @return a deferred to wait on for all of the tag keys to be resolved. The
-   * result should be null.
+   * @return a deferred to wait on for all of the tag keys to be resolved.
    */
   private Deferred<List<String>> resolveAggTags(final Set<byte[]> tagks) {
-    if (aggregated_tags != null) {
-      return Deferred.fromResult(null);
-    }
-    aggregated_tags = new ArrayList<String>(tagks.size());
-    
     final List<Deferred<String>> names = 
         new ArrayList<Deferred<String>>(tagks.size());
     for (final byte[] tagk : tagks) {
       names.add(tsdb.tag_names.getNameAsync(tagk));
     }
     
-    /** Adds the names to the aggregated_tags list */
+    /** Publishes the names */
     final class ResolveCB implements Callback<List<String>, ArrayList<String>> {
       @Override
       public List<String> call(final ArrayList<String> names) throws Exception {
-        for (final String name : names) {
-          aggregated_tags.add(name);
+        final List<String> resolved = new ArrayList<String>(names);
+        synchronized (SpanGroup.this) {
+          aggregated_tags = resolved;
         }
-        return aggregated_tags;
+        return resolved;
       }
     }
     
-    return Deferred.group(names).addCallback(new ResolveCB());
+    /** Lets the next call try again */
+    final class ErrorCB implements Callback<Exception, Exception> {
+      @Override
+      public Exception call(final Exception e) throws Exception {
+        synchronized (SpanGroup.this) {
+          aggregated_tags_resolving = null;
+        }
+        return e;
+      }
+    }
+    
+    return Deferred.group(names).addCallbacks(new ResolveCB(), new ErrorCB());
   }
   
   /**
-   * Resolves the tags to their names, loading them into {@link tags} after
-   * initializing that map.
+   * Resolves the tags to their names and publishes them in {@link #tags} once
+   * all pairs are resolved. A failed resolution may be retried.
    * @param tag_uids The tag UIDs
-   * @return A defeferred to wait on for resolution to complete, the result
-   * should be null.
+   * @return A defeferred to wait on for resolution to complete.
    */
   private Deferred<Map<String, String>> resolveTags(final ByteMap<byte[]> tag_uids) {
-    if (tags != null) {
-      return Deferred.fromResult(null);
-    }
-    tags = new HashMap<String, String>(tag_uids.size());
-    
-    final List<Deferred<Object>> deferreds = 
-        new ArrayList<Deferred<Object>>(tag_uids.size());
+    final List<Deferred<ArrayList<String>>> deferreds = 
+        new ArrayList<Deferred<ArrayList<String>>>(tag_uids.size());
     
-    /** Dumps the pairs into the map in the correct order */
-    final class PairCB implements Callback<Object, ArrayList<String>> {
+    /** Callback executed once all of the pairs are resolved */
+    final class GroupCB implements 
+        Callback<Map<String, String>, ArrayList<ArrayList<String>>> {
       @Override
-      public Object call(final ArrayList<String> pair) throws Exception {
-        tags.put(pair.get(0), pair.get(1));
-        return null;
+      public Map<String, String> call(final ArrayList<ArrayList<String>> pairs) 
+          throws Exception {
+        final Map<String, String> resolved = 
+            new HashMap<String, String>(pairs.size());
+        for (final ArrayList<String> pair : pairs) {
+          resolved.put(pair.get(0), pair.get(1));
+        }
+        synchronized (SpanGroup.this) {
+          tags = resolved;
+        }
+        return resolved;
       }
     }
     
-    /** Callback executed once all of the pairs are resolved and stored in the map */
-    final class GroupCB implements Callback<Map<String, String>, ArrayList<Object>> {
+    /** Lets the next call try again */
+    final class ErrorCB implements Callback<Exception, Exception> {
       @Override
-      public Map<String, String> call(final ArrayList<Object> group) 
-          throws Exception {
-        return tags;
+      public Exception call(final Exception e) throws Exception {
+        synchronized (SpanGroup.this) {
+          tags_resolving = null;
+        }
+        return e;
       }
     }
     
@@ -667,9 +776,10 @@ final class SpanGroup extends AbstractSpanGroup {
           new ArrayList<Deferred<String>>(2);
       resolve_pair.add(tsdb.tag_names.getNameAsync(tag_pair.getKey()));
       resolve_pair.add(tsdb.tag_values.getNameAsync(tag_pair.getValue()));
-      deferreds.add(Deferred.groupInOrder(resolve_pair).addCallback(new PairCB()));
+      deferreds.add(Deferred.groupInOrder(resolve_pair));
     }
     
-    return Deferred.group(deferreds).addCallback(new GroupCB());
+    return Deferred.group(deferreds).addCallbacks(new GroupCB(), 
+        new ErrorCB());
   }
 }
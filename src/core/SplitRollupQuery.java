@@ -15,6 +15,7 @@ package net.opentsdb.core;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 import net.opentsdb.rollup.RollupQuery;
+import net.opentsdb.stats.QueryStats.QueryStat;
 import net.opentsdb.uid.NoSuchUniqueName;
 import org.hbase.async.Bytes;
 import org.hbase.async.Bytes.ByteMap;
@@ -276,6 +277,9 @@ public class SplitRollupQuery extends AbstractQuery {
 
         rawQuery = new TsdbQuery(tsdb);
         rawResolution = rollupQuery.split(query, index, rawQuery);
+        if (query.getQueryStats() != null) {
+            query.getQueryStats().addStat(index, QueryStat.ROLLUP_SPLITS, 1);
+        }
 
         if (rollupQuery.getRollupQuery().getLastRollupTimestampSeconds() * 1000L < rollupQuery.getStartTime()) {
             // We're looking at a query that would normally hit a rollup table, but the table doesn't
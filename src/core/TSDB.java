@@ -53,6 +53,7 @@ import net.opentsdb.tsd.RTPublisher;
 import net.opentsdb.tsd.StorageExceptionHandler;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UidNameIndex;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.uid.UniqueIdFilterPlugin;
 import net.opentsdb.uid.UniqueId.UniqueIdType;
@@ -69,6 +70,7 @@ import net.opentsdb.query.QueryLimitOverride;
 import net.opentsdb.query.expression.ExpressionFactory;
 import net.opentsdb.query.filter.TagVFilter;
 import net.opentsdb.rollup.RollupConfig;
+import net.opentsdb.rollup.RollupEngine;
 import net.opentsdb.rollup.RollupInterval;
 import net.opentsdb.rollup.RollupUtils;
 import net.opentsdb.search.SearchPlugin;
@@ -142,6 +144,33 @@ public final class TSDB {
    */
   private final CompactionQueue compactionq;
 
+  /** Cache of row key templates for the write path, null if disabled */
+  private final RowKeyTemplateCache row_key_cache;
+
+  /** Cache of compacted rows for queries, null if disabled */
+  private final RowSegmentCache row_segment_cache;
+
+  /** Whether or not downsampled groups may be aggregated in blocks */
+  private final boolean block_aggregation;
+
+  /** Coalesces writes to the same row, null if disabled */
+  private final WriteCoalescer write_coalescer;
+
+  /** Aggregates query groups in parallel, null if disabled */
+  private final AggregationExecutor aggregation_executor;
+
+  /** Index of all tag value names for filter expansion, null if disabled */
+  private final UidNameIndex tagv_index;
+
+  /** Caches the results of closed time slices of queries, null if disabled */
+  private final QueryResultCache query_cache;
+
+  /** Shares executions between identical queries, null if disabled */
+  private final QueryCoalescer query_coalescer;
+
+  /** Picks multi-gets or scans for sub queries, null if disabled */
+  private final QueryPlanner query_planner;
+
   /** Authentication Plugin to use if configured */
   private Authentication authentication = null;
 
@@ -171,6 +200,9 @@ public final class TSDB {
   
   /** The default rollup interval. */
   private final RollupInterval default_interval;
+
+  /** Computes rollups from the raw data points, null if disabled */
+  private final RollupEngine rollup_engine;
   
   /** Name of the tag we use to determine aggregates */
   private final String agg_tag_key;
@@ -280,6 +312,23 @@ public final class TSDB {
     tag_names = new UniqueId(this, uidtable, TAG_NAME_QUAL, TAG_NAME_WIDTH, false);
     tag_values = new UniqueId(this, uidtable, TAG_VALUE_QUAL, TAG_VALUE_WIDTH, false);
     compactionq = new CompactionQueue(this);
+    if (config.getBoolean("tsd.core.row_key_cache.enable")) {
+      row_key_cache = new RowKeyTemplateCache(
+          config.getLong("tsd.core.row_key_cache.size"));
+    } else {
+      row_key_cache = null;
+    }
+    if (config.getBoolean("tsd.query.row_cache.enable")) {
+      row_segment_cache = new RowSegmentCache(
+          config.getLong("tsd.query.row_cache.max_bytes"),
+          DateTime.parseDuration(
+              config.getString("tsd.query.row_cache.immutable_after")),
+          config.getDouble("tsd.query.row_cache.key_only_hit_ratio"));
+    } else {
+      row_segment_cache = null;
+    }
+    block_aggregation = 
+        config.getBoolean("tsd.query.aggregation.block.enable");
 
     if (config.hasProperty("tsd.core.timezone")) {
       DateTime.setDefaultTimezone(config.getString("tsd.core.timezone"));
@@ -287,6 +336,24 @@ public final class TSDB {
 
     timer = Threads.newTimer("TSDB Timer");
 
+    if (config.getBoolean("tsd.storage.write_coalescing.enable")) {
+      if (config.use_otsdb_timestamp()) {
+        LOG.warn("Write coalescing is not compatible with "
+            + "tsd.storage.use_otsdb_timestamp and has been disabled.");
+        write_coalescer = null;
+      } else {
+        write_coalescer = new WriteCoalescer(this);
+      }
+    } else {
+      write_coalescer = null;
+    }
+
+    if (config.getBoolean("tsd.query.aggregation.parallel.enable")) {
+      aggregation_executor = new AggregationExecutor(this);
+    } else {
+      aggregation_executor = null;
+    }
+
     if (config.getBoolean("tsd.rollups.enable")) {
       String conf = config.getString("tsd.rollups.config");
       if (Strings.isNullOrEmpty(conf)) {
@@ -318,7 +385,14 @@ public final class TSDB {
       agg_tag_key = config.getString("tsd.rollups.agg_tag_key");
       raw_agg_tag_value = config.getString("tsd.rollups.raw_agg_tag_value");
       rollups_block_derived = config.getBoolean("tsd.rollups.block_derived");
-      rollups_split_queries = config.getBoolean("tsd.rollups.split_query.enable");
+      if (config.getBoolean("tsd.rollups.engine.enable")) {
+        rollup_engine = new RollupEngine(this);
+      } else {
+        rollup_engine = null;
+      }
+      // a complete engine's rollups trail the writes so the tail is read raw
+      rollups_split_queries = config.getBoolean("tsd.rollups.split_query.enable")
+          || (rollup_engine != null && rollup_engine.isComplete());
     } else {
       rollup_config = null;
       default_interval = null;
@@ -327,10 +401,15 @@ public final class TSDB {
       raw_agg_tag_value = null;
       rollups_block_derived = false;
       rollups_split_queries = false;
+      rollup_engine = null;
     }
     
     QueryStats.setEnableDuplicates(
         config.getBoolean("tsd.query.allow_simultaneous_duplicates"));
+    // fail at startup rather than on the first sketch percentile query
+    QuantileSketch.validate(
+        config.getDouble("tsd.query.percentile.sketch.relative_accuracy"),
+        config.getInt("tsd.query.percentile.sketch.max_buckets"));
 
     if (config.getBoolean("tsd.core.preload_uid_cache")) {
       final ByteMap<UniqueId> uid_cache_map = new ByteMap<UniqueId>();
@@ -340,6 +419,31 @@ public final class TSDB {
       UniqueId.preloadUidCache(this, uid_cache_map);
     }
 
+    if (config.getBoolean("tsd.query.filter.tagv_index.enable")) {
+      tagv_index = new UidNameIndex(this, tag_values);
+      tagv_index.start();
+    } else {
+      tagv_index = null;
+    }
+
+    if (config.getBoolean("tsd.query.cache.enable")) {
+      query_cache = new QueryResultCache(this);
+    } else {
+      query_cache = null;
+    }
+
+    if (config.getBoolean("tsd.query.single_flight.enable")) {
+      query_coalescer = new QueryCoalescer();
+    } else {
+      query_coalescer = null;
+    }
+
+    if (config.getBoolean("tsd.query.planner.enable")) {
+      query_planner = new QueryPlanner(this);
+    } else {
+      query_planner = null;
+    }
+
     if (config.getString("tsd.core.tag.allow_specialchars") != null) {
       Tags.setAllowSpecialChars(config.getString("tsd.core.tag.allow_specialchars"));
     }
@@ -799,6 +903,27 @@ public final class TSDB {
       throw new RuntimeException("Shouldn't be here", e);
     }
 
+    if (row_key_cache != null) {
+      collector.record("rowkey.cache-hit", row_key_cache.hits());
+      collector.record("rowkey.cache-miss", row_key_cache.misses());
+      collector.record("rowkey.cache-eviction", row_key_cache.evictions());
+      collector.record("rowkey.cache-size", row_key_cache.size());
+    }
+    if (row_segment_cache != null) {
+      final long hits = row_segment_cache.hits();
+      final long lookups = hits + row_segment_cache.misses();
+      collector.record("query.row-cache-hit", hits);
+      collector.record("query.row-cache-miss", row_segment_cache.misses());
+      collector.record("query.row-cache-hit-pct",
+          lookups == 0 ? 0 : hits * 100 / lookups);
+      collector.record("query.row-cache-eviction",
+          row_segment_cache.evictions());
+      collector.record("query.row-cache-size", row_segment_cache.size());
+      collector.record("query.row-cache-bytes", row_segment_cache.bytes());
+      collector.record("query.row-cache-bytes-saved",
+          row_segment_cache.bytesSaved());
+    }
+
     collector.record("uid.filter.rejected", rejected_dps.get(), "kind=raw");
     collector.record("uid.filter.rejected", rejected_aggregate_dps.get(),
         "kind=aggregate");
@@ -857,6 +982,27 @@ public final class TSDB {
         stats.idleConnectionsClosed());
 
     compactionq.collectStats(collector);
+    if (write_coalescer != null) {
+      write_coalescer.collectStats(collector);
+    }
+    if (rollup_engine != null) {
+      rollup_engine.collectStats(collector);
+    }
+    if (aggregation_executor != null) {
+      aggregation_executor.collectStats(collector);
+    }
+    if (tagv_index != null) {
+      tagv_index.collectStats(collector);
+    }
+    if (query_cache != null) {
+      query_cache.collectStats(collector);
+    }
+    if (query_coalescer != null) {
+      query_coalescer.collectStats(collector);
+    }
+    if (query_planner != null) {
+      query_planner.collectStats(collector);
+    }
     // Collect Stats from Plugins
     if (startup != null) {
       try {
@@ -950,6 +1096,63 @@ public final class TSDB {
         "kind=" + uid.kind());
   }
 
+  /** @return The row key template cache or null if it's disabled. */
+  RowKeyTemplateCache rowKeyTemplateCache() {
+    return row_key_cache;
+  }
+
+  /** @return The cache of compacted rows or null if it's disabled. */
+  RowSegmentCache rowSegmentCache() {
+    return row_segment_cache;
+  }
+
+  /** @return Whether or not downsampled groups may be aggregated in blocks.
+   * @since 2.4 */
+  boolean blockAggregation() {
+    return block_aggregation;
+  }
+
+  /** @return The parallel aggregation executor or null if it's disabled. */
+  AggregationExecutor aggregationExecutor() {
+    return aggregation_executor;
+  }
+
+  /**
+   * @return The index of tag value names used to expand filters into UIDs or
+   * null if it's disabled.
+   * @since 2.4
+   */
+  public UidNameIndex getTagValueIndex() {
+    return tagv_index;
+  }
+
+  /**
+   * @return The cache of query results for closed time slices or null if
+   * it's disabled.
+   * @since 2.4
+   */
+  public QueryResultCache getQueryResultCache() {
+    return query_cache;
+  }
+
+  /**
+   * @return The coalescer sharing executions between identical queries in
+   * flight or null if it's disabled.
+   * @since 2.4
+   */
+  public QueryCoalescer getQueryCoalescer() {
+    return query_coalescer;
+  }
+
+  /**
+   * @return The planner picking multi-gets or scans for sub queries or null
+   * if it's disabled.
+   * @since 2.4
+   */
+  public QueryPlanner getQueryPlanner() {
+    return query_planner;
+  }
+
   /** @return the width, in bytes, of metric UIDs */
   public static short metrics_width() {
     return METRICS_WIDTH;
@@ -1204,10 +1407,17 @@ public final class TSDB {
           if(config.use_otsdb_timestamp()) {
               LOG.error("Cannot use Date Tiered Compaction with AppendPoints. Please turn off either of them.");
           }
-          final AppendDataPoints kv = new AppendDataPoints(qualifier, value);
-          final AppendRequest point = new AppendRequest(table, row, FAMILY,
-                  AppendDataPoints.APPEND_COLUMN_QUALIFIER, kv.getBytes());
-          result = client.append(point);
+          if (write_coalescer != null) {
+            result = write_coalescer.add(row, qualifier, value);
+          } else {
+            final AppendDataPoints kv = new AppendDataPoints(qualifier, value);
+            final AppendRequest point = new AppendRequest(table, row, FAMILY,
+                    AppendDataPoints.APPEND_COLUMN_QUALIFIER, kv.getBytes());
+            result = client.append(point);
+          }
+        } else if (!isHistogram(qualifier) && write_coalescer != null) {
+          // compactions are scheduled when the batch is sent
+          result = write_coalescer.add(row, qualifier, value);
         } else if (!isHistogram(qualifier)) {
           scheduleForCompaction(row, (int) base_time);
           final PutRequest point = RequestBuilder.buildPutRequest(config, table, row, FAMILY, qualifier, value, timestamp);
@@ -1222,6 +1432,10 @@ public final class TSDB {
         // Will there be others? Well, something could call addPoint programatically right?
         datapoints_added.incrementAndGet();
 
+        if (rollup_engine != null && !isHistogram(qualifier)) {
+          rollup_engine.add(row, metric, timestamp, value, flags, tags);
+        }
+
         // TODO(tsuna): Add a callback to time the latency of HBase and store the
         // timing in a moving Histogram (once we have a class for this).
 
@@ -1609,6 +1823,13 @@ public final class TSDB {
    * recoverable by retrying, some are not.
    */
   public Deferred<Object> flush() throws HBaseException {
+    // writes the closed windows first so they're flushed below
+    final Deferred<Object> rolled = rollup_engine != null
+        ? rollup_engine.flush() : null;
+    // hands the pending batches to the client so they're flushed below
+    final Deferred<Object> coalesced = write_coalescer != null
+        ? write_coalescer.flush() : Deferred.fromResult(null);
+
     final class HClientFlush implements Callback<Object, ArrayList<Object>> {
 	public Object call(final ArrayList<Object> args) {
         return client.flush();
@@ -1618,9 +1839,29 @@ public final class TSDB {
       }
     }
 
-    return config.enable_compactions() && compactionq != null
+    final Deferred<Object> flushed = config.enable_compactions() 
+        && compactionq != null
       ? compactionq.flush().addCallback(new HClientFlush())
       : client.flush();
+    if (write_coalescer == null && rolled == null) {
+      return flushed;
+    }
+
+    final class PendingCB implements Callback<Object, ArrayList<Object>> {
+      public Object call(final ArrayList<Object> ignored) {
+        return null;
+      }
+      public String toString() {
+        return "wait for coalesced writes and rollups";
+      }
+    }
+    final List<Deferred<Object>> pending = new ArrayList<Deferred<Object>>(3);
+    pending.add(coalesced);
+    pending.add(flushed);
+    if (rolled != null) {
+      pending.add(rolled);
+    }
+    return Deferred.group(pending).addCallback(new PendingCB());
   }
 
   /**
@@ -1711,6 +1952,20 @@ public final class TSDB {
       }
     }
 
+    if (rollup_engine != null) {
+      LOG.info("Flushing rollup engine");
+      deferreds.add(rollup_engine.shutdown());
+    }
+    if (write_coalescer != null) {
+      LOG.info("Flushing write coalescer");
+      deferreds.add(write_coalescer.shutdown());
+    }
+    if (aggregation_executor != null) {
+      aggregation_executor.shutdown();
+    }
+    if (tagv_index != null) {
+      tagv_index.shutdown();
+    }
     if (config.enable_compactions()) {
       LOG.info("Flushing compaction queue");
       deferreds.add(compactionq.flush().addCallback(new CompactCB()));
@@ -1828,6 +2083,15 @@ public final class TSDB {
     metrics.dropCaches();
     tag_names.dropCaches();
     tag_values.dropCaches();
+    if (row_key_cache != null) {
+      row_key_cache.invalidateAll();
+    }
+    if (row_segment_cache != null) {
+      row_segment_cache.invalidateAll();
+    }
+    if (query_cache != null) {
+      query_cache.invalidateAll();
+    }
   }
 
   /**
@@ -2143,6 +2407,13 @@ public final class TSDB {
     return rollups_split_queries;
   }
 
+  /** @return The rollup engine computing rollups from the raw writes, null
+   * if disabled.
+   * @since 2.4 */
+  public RollupEngine getRollupEngine() {
+    return rollup_engine;
+  }
+
   /** @return The optional histogram manager registered to this TSD.
    * @since 2.4 */
   public HistogramCodecManager histogramManager() {
@@ -2198,8 +2469,11 @@ public final class TSDB {
   // HBase operations helpers //
   // ------------------------ //
 
-  /** Gets the entire given row from the data table. */
-  final Deferred<ArrayList<KeyValue>> get(final byte[] key) {
+  /** 
+   * Gets the entire given row from the data table. Not final so that the
+   * compaction queue benchmark can simulate storage latency.
+   */
+  Deferred<ArrayList<KeyValue>> get(final byte[] key) {
     return client.get(new GetRequest(table, key, FAMILY));
   }
 
@@ -108,6 +108,9 @@ public final class TSQuery {
   /** Override default max row count limit */
   private boolean override_data_point_limit;
   
+  /** Whether or not to decode spans into arrays before aggregation */
+  private boolean materialize_spans;
+  
   /**
    * Default constructor necessary for POJO de/serialization
    */
@@ -520,4 +523,22 @@ public final class TSQuery {
     this.override_data_point_limit = override_data_point_limit;
   }
 
+  /** @return Whether or not the spans should be decoded into arrays as the 
+   * results will be iterated more than once. Ignored during JSON 
+   * serialization.
+   * @since 2.4 */
+  @JsonIgnore
+  public boolean materializeSpans() {
+    return materialize_spans;
+  }
+
+  /** @param materialize_spans Whether or not the spans should be decoded into 
+   * arrays as the results will be iterated more than once, e.g. by 
+   * expressions. Set internally, not by clients.
+   * @since 2.4 */
+  @JsonIgnore
+  public void setMaterializeSpans(boolean materialize_spans) {
+    this.materialize_spans = materialize_spans;
+  }
+
 }
@@ -0,0 +1,353 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.uid.UniqueId.UniqueIdType;
+
+/**
+ * Evaluates post-scan tag value filters against row keys in UID space. For
+ * each filter the result is cached per tag value UID the first time the UID
+ * is seen, so that later rows with the same value are accepted or rejected by
+ * comparing the row key bytes without resolving any names or allocating.
+ * <p>
+ * Only filters whose result depends on their own tag's value alone can be
+ * compiled, see {@link TagVFilter#matchesOnTagValueOnly()}, and their tag key
+ * UID must have been resolved. One instance is shared by all of the scanners
+ * of a query and is thread safe.
+ * @since 2.4
+ */
+final class TagUidMatcher {
+
+  /** The tag value wasn't seen yet */
+  private static final byte UNKNOWN = 0;
+  /** The tag value matched the filter */
+  private static final byte MATCH = 1;
+  /** The tag value did not match the filter */
+  private static final byte NO_MATCH = 2;
+
+  /** The TSDB used for resolving tag value UIDs */
+  private final TSDB tsdb;
+
+  /** One entry per filter */
+  private final Entry[] entries;
+
+  /** Offset of the first tag in a row key */
+  private final int tags_offset;
+
+  /** Width of the tag key UIDs */
+  private final short tagk_width;
+
+  /** Width of the tag value UIDs */
+  private final short tagv_width;
+
+  private TagUidMatcher(final TSDB tsdb, final Entry[] entries) {
+    this.tsdb = tsdb;
+    this.entries = entries;
+    tags_offset = Const.SALT_WIDTH() + TSDB.metrics_width()
+        + Const.TIMESTAMP_BYTES;
+    tagk_width = TSDB.tagk_width();
+    tagv_width = TSDB.tagv_width();
+  }
+
+  /**
+   * Compiles the filters.
+   * @param tsdb The TSDB used for resolving tag value UIDs.
+   * @param filters The post-scan filters of a query.
+   * @return A matcher or null if there aren't any filters or if one of them
+   * can't be evaluated in UID space.
+   */
+  static TagUidMatcher compile(final TSDB tsdb,
+      final List<TagVFilter> filters) {
+    if (filters == null || filters.isEmpty() ||
+        TSDB.tagv_width() > 8) {
+      return null;
+    }
+    final Entry[] entries = new Entry[filters.size()];
+    for (int i = 0; i < entries.length; i++) {
+      final TagVFilter filter = filters.get(i);
+      if (!filter.matchesOnTagValueOnly() || filter.getTagkBytes() == null ||
+          filter.getTagkBytes().length != TSDB.tagk_width()) {
+        return null;
+      }
+      entries[i] = new Entry(filter);
+    }
+    return new TagUidMatcher(tsdb, entries);
+  }
+
+  /**
+   * Evaluates the filters against the cached results for the row's tag values.
+   * @param key The row key.
+   * @return {@link Boolean#TRUE} if every filter matched,
+   * {@link Boolean#FALSE} if any filter did not or null if a tag value has to
+   * be resolved with {@link #resolveAndMatch} first.
+   */
+  Boolean match(final byte[] key) {
+    boolean undecided = false;
+    for (final Entry entry : entries) {
+      final int offset = findTagv(key, entry.tagk);
+      final byte state;
+      if (offset < 0) {
+        state = entry.missing;
+      } else {
+        state = entry.results.get(uidToLong(key, offset));
+      }
+      if (state == NO_MATCH) {
+        return Boolean.FALSE;
+      }
+      if (state == UNKNOWN) {
+        undecided = true;
+      }
+    }
+    return undecided ? null : Boolean.TRUE;
+  }
+
+  /**
+   * Resolves the tag values of the row that weren't seen yet, runs the
+   * filters on them and caches the results.
+   * @param key The row key.
+   * @return A deferred resolving to whether or not every filter matched.
+   */
+  Deferred<Boolean> resolveAndMatch(final byte[] key) {
+    final List<Deferred<Object>> deferreds =
+        new ArrayList<Deferred<Object>>(entries.length);
+    for (final Entry entry : entries) {
+      final int offset = findTagv(key, entry.tagk);
+      if (offset < 0) {
+        if (entry.missing == UNKNOWN) {
+          deferreds.add(entry.filter.match(
+              Collections.<String, String>emptyMap())
+                .addCallback(new RecordMissingCB(entry)));
+        }
+        continue;
+      }
+      final long uid = uidToLong(key, offset);
+      if (entry.results.get(uid) == UNKNOWN) {
+        deferreds.add(tsdb.getUidName(UniqueIdType.TAGV,
+            Arrays.copyOfRange(key, offset, offset + tagv_width))
+              .addCallbackDeferring(new MatchNameCB(entry))
+              .addCallback(new RecordCB(entry, uid)));
+      }
+    }
+
+    /** Evaluates the row once every result was recorded */
+    class MatchCB implements Callback<Boolean, ArrayList<Object>> {
+      @Override
+      public Boolean call(final ArrayList<Object> ignored) throws Exception {
+        return match(key) == Boolean.TRUE;
+      }
+    }
+    return Deferred.group(deferreds).addCallback(new MatchCB());
+  }
+
+  /**
+   * Finds the tag value of the given tag key in the row key. Tags are sorted
+   * on their key UIDs so we can stop at the first greater key.
+   * @param key The row key.
+   * @param tagk The tag key UID.
+   * @return The offset of the tag value or -1 if the row lacks the tag key.
+   */
+  private int findTagv(final byte[] key, final byte[] tagk) {
+    for (int pos = tags_offset; pos + tagk_width + tagv_width <= key.length;
+        pos += tagk_width + tagv_width) {
+      int cmp = 0;
+      for (int i = 0; i < tagk_width && cmp == 0; i++) {
+        cmp = (key[pos + i] & 0xFF) - (tagk[i] & 0xFF);
+      }
+      if (cmp == 0) {
+        return pos + tagk_width;
+      }
+      if (cmp > 0) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  /** @return The tag value UID at the offset as a long */
+  private long uidToLong(final byte[] key, final int offset) {
+    long uid = 0;
+    for (int i = 0; i < tagv_width; i++) {
+      uid = (uid << 8) | (key[offset + i] & 0xFF);
+    }
+    return uid;
+  }
+
+  /** Runs the filter on the resolved tag value */
+  private static final class MatchNameCB
+      implements Callback<Deferred<Boolean>, String> {
+    private final Entry entry;
+
+    MatchNameCB(final Entry entry) {
+      this.entry = entry;
+    }
+
+    @Override
+    public Deferred<Boolean> call(final String tagv) throws Exception {
+      final Map<String, String> tags =
+          Collections.singletonMap(entry.filter.getTagk(), tagv);
+      return entry.filter.match(tags);
+    }
+  }
+
+  /** Caches the result for a tag value UID */
+  private static final class RecordCB implements Callback<Object, Boolean> {
+    private final Entry entry;
+    private final long uid;
+
+    RecordCB(final Entry entry, final long uid) {
+      this.entry = entry;
+      this.uid = uid;
+    }
+
+    @Override
+    public Object call(final Boolean matched) throws Exception {
+      entry.results.put(uid, matched ? MATCH : NO_MATCH);
+      return null;
+    }
+  }
+
+  /** Caches the result for rows without the tag key */
+  private static final class RecordMissingCB
+      implements Callback<Object, Boolean> {
+    private final Entry entry;
+
+    RecordMissingCB(final Entry entry) {
+      this.entry = entry;
+    }
+
+    @Override
+    public Object call(final Boolean matched) throws Exception {
+      entry.missing = matched ? MATCH : NO_MATCH;
+      return null;
+    }
+  }
+
+  /** The compiled state of one filter */
+  private static final class Entry {
+    /** The filter to run on new tag values */
+    final TagVFilter filter;
+    /** The tag key UID */
+    final byte[] tagk;
+    /** Results per tag value UID */
+    final UidStates results = new UidStates();
+    /** Result for rows that don't have the tag key */
+    volatile byte missing = UNKNOWN;
+
+    Entry(final TagVFilter filter) {
+      this.filter = filter;
+      tagk = filter.getTagkBytes();
+    }
+  }
+
+  /**
+   * A map from tag value UIDs to match states with open addressing over
+   * primitive arrays so lookups don't box. Writes only happen the first time
+   * a tag value is seen so a plain lock is cheap enough here.
+   */
+  static final class UidStates {
+    /** The UIDs, 0 marks an empty slot */
+    private long[] uids = new long[64];
+    /** The state of each UID */
+    private byte[] states = new byte[64];
+    /** State of the UID 0 as it can't be stored in the table */
+    private byte zero_state = UNKNOWN;
+    /** Number of UIDs in the table */
+    private int size;
+
+    /**
+     * @param uid The tag value UID.
+     * @return The state or {@link #UNKNOWN} if the UID wasn't seen yet.
+     */
+    synchronized byte get(final long uid) {
+      if (uid == 0) {
+        return zero_state;
+      }
+      final int mask = uids.length - 1;
+      for (int i = slot(uid, mask); ; i = (i + 1) & mask) {
+        if (uids[i] == uid) {
+          return states[i];
+        }
+        if (uids[i] == 0) {
+          return UNKNOWN;
+        }
+      }
+    }
+
+    /**
+     * @param uid The tag value UID.
+     * @param state The state to store for it.
+     */
+    synchronized void put(final long uid, final byte state) {
+      if (uid == 0) {
+        zero_state = state;
+        return;
+      }
+      if ((size + 1) * 2 > uids.length) {
+        grow();
+      }
+      if (insert(uids, states, uid, state)) {
+        ++size;
+      }
+    }
+
+    /** @return The number of UIDs stored */
+    synchronized int size() {
+      return size + (zero_state == UNKNOWN ? 0 : 1);
+    }
+
+    /** Doubles the table */
+    private void grow() {
+      final long[] new_uids = new long[uids.length * 2];
+      final byte[] new_states = new byte[states.length * 2];
+      for (int i = 0; i < uids.length; i++) {
+        if (uids[i] != 0) {
+          insert(new_uids, new_states, uids[i], states[i]);
+        }
+      }
+      uids = new_uids;
+      states = new_states;
+    }
+
+    /** @return True if the UID was added, false if it was updated */
+    private static boolean insert(final long[] uids, final byte[] states,
+        final long uid, final byte state) {
+      final int mask = uids.length - 1;
+      for (int i = slot(uid, mask); ; i = (i + 1) & mask) {
+        if (uids[i] == uid) {
+          states[i] = state;
+          return false;
+        }
+        if (uids[i] == 0) {
+          uids[i] = uid;
+          states[i] = state;
+          return true;
+        }
+      }
+    }
+
+    /** @return The first slot to probe for the UID */
+    private static int slot(final long uid, final int mask) {
+      return (int) ((uid * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+  }
+}
@@ -30,6 +30,7 @@ import org.hbase.async.Bytes;
 import org.hbase.async.CompareFilter;
 import org.hbase.async.FilterList;
 import org.hbase.async.HBaseException;
+import org.hbase.async.KeyOnlyFilter;
 import org.hbase.async.QualifierFilter;
 import org.hbase.async.ScanFilter;
 import org.hbase.async.Scanner;
@@ -183,6 +184,22 @@ final class TsdbQuery extends AbstractQuery {
   
   /** Whether or not to fall back on query failure. */
   private boolean search_query_failure;
+
+  /** How the query planner decided to fetch the rows, null if not planned */
+  private QueryPlanner.Plan plan;
+
+  /** Whether or not to decode the spans into arrays before grouping */
+  private boolean materialize_spans;
+
+  /** Whether or not the downsamplers may share calendar boundaries */
+  private boolean calendar_tables;
+
+  /** Whether or not the downsamplers may fold values into primitive state */
+  private boolean interval_accumulator;
+
+  /** The settings of the sketches of the sketch percentile aggregators */
+  private double sketch_relative_accuracy;
+  private int sketch_max_buckets;
   
   /** The maximum number of bytes allowed per query. */
   private long max_bytes = 0;
@@ -237,6 +254,16 @@ final class TsdbQuery extends AbstractQuery {
     enable_fuzzy_filter = tsdb.getConfig()
         .getBoolean("tsd.query.enable_fuzzy_filter");
     use_multi_gets = tsdb.getConfig().getBoolean("tsd.query.multi_get.enable");
+    materialize_spans = tsdb.getConfig()
+        .getBoolean("tsd.query.materialize_spans");
+    calendar_tables = tsdb.getConfig()
+        .getBoolean("tsd.query.downsample.calendar_table.enable");
+    interval_accumulator = tsdb.getConfig()
+        .getBoolean("tsd.query.downsample.accumulator.enable");
+    sketch_relative_accuracy = tsdb.getConfig()
+        .getDouble("tsd.query.percentile.sketch.relative_accuracy");
+    sketch_max_buckets = tsdb.getConfig()
+        .getInt("tsd.query.percentile.sketch.max_buckets");
   }
 
   /** Which rollup table it scanned to get the final result.
@@ -523,6 +550,9 @@ final class TsdbQuery extends AbstractQuery {
     explicit_tags = sub_query.getExplicitTags();
     override_fuzzy_filter = sub_query.getUseFuzzyFilter();
     override_multi_get = sub_query.getUseMultiGets();
+    if (query.materializeSpans()) {
+      materialize_spans = true;
+    }
     
     max_bytes = tsdb.getQueryByteLimits().getByteLimit(sub_query.getMetric());
     if (tsdb.getConfig().getBoolean("tsd.query.limits.bytes.allow_override") && 
@@ -575,6 +605,7 @@ final class TsdbQuery extends AbstractQuery {
         @Override
         public Object call(final ArrayList<byte[]> results) throws Exception {
           findGroupBys();
+          planFetch();
           return null;
         }
       }
@@ -740,8 +771,10 @@ final class TsdbQuery extends AbstractQuery {
           row_key_literals.put(current.getTagkBytes(), values);
           row_key_literals_count += values.length;
           
-          for (final TagVFilter filter : literal_filters) {
-            filter.setPostScan(false);
+          // the row key matches the union of the values so with more than
+          // one filter on the tag key we still have to check each of them
+          if (literal_filters.size() == 1) {
+            literal_filters.get(0).setPostScan(false);
           }
         }
       } else {
@@ -767,16 +800,122 @@ final class TsdbQuery extends AbstractQuery {
     }
   }
 
+  /**
+   * Lets the {@link QueryPlanner}, if enabled, pick multi-gets, a fuzzy scan
+   * or a plain scan once the filters have been resolved. Queries using the
+   * search plugin, rollups and deletions keep the static choice.
+   */
+  private void planFetch() {
+    final QueryPlanner planner = tsdb.getQueryPlanner();
+    if (planner == null || search_query_failure || multiget_with_search || 
+        delete || RollupQuery.isValidQuery(rollup_query) || 
+        row_key_literals == null || row_key_literals.isEmpty()) {
+      return;
+    }
+    
+    // the number of row keys if every tag key has literal values
+    long combinations = 1;
+    for (final TagVFilter filter : filters) {
+      final byte[][] values = row_key_literals.get(filter.getTagkBytes());
+      if (values == null) {
+        combinations = 0;
+        break;
+      }
+    }
+    if (combinations > 0) {
+      for (final byte[][] values : row_key_literals.values()) {
+        combinations = combinations > Long.MAX_VALUE / values.length ? 
+            Long.MAX_VALUE : combinations * values.length;
+      }
+    }
+    
+    // leave an open end time unset for the scanners
+    final long start = getScanStartTimeSeconds();
+    final long end = end_time == UNSET ? 
+        DateTime.currentTimeMillis() / 1000 : getScanEndTimeSeconds();
+    final long rows = Math.max(1, 
+        (end - start + Const.MAX_TIMESPAN - 1) / Const.MAX_TIMESPAN);
+    
+    final boolean can_multi_get = combinations > 0 && explicit_tags && 
+        override_multi_get;
+    final boolean can_fuzzy = combinations > 0 && explicit_tags && 
+        override_fuzzy_filter;
+    plan = planner.plan(metric, combinations, rows, can_multi_get, can_fuzzy);
+    
+    final QueryStat stat;
+    switch (plan.strategy()) {
+    case MULTI_GET:
+      use_multi_gets = true;
+      row_key_literals_list = new ArrayList<ByteMap<byte[][]>>(1);
+      row_key_literals_list.add(row_key_literals);
+      stat = QueryStat.PLANNED_MULTI_GET;
+      break;
+    case FUZZY_SCAN:
+      use_multi_gets = false;
+      enable_fuzzy_filter = true;
+      stat = QueryStat.PLANNED_FUZZY_SCAN;
+      break;
+    default:
+      use_multi_gets = false;
+      enable_fuzzy_filter = false;
+      stat = QueryStat.PLANNED_SCAN;
+    }
+    if (query_stats != null) {
+      query_stats.addStat(query_index, stat, 1);
+      if (plan.estimatedRows() >= 0) {
+        query_stats.addStat(query_index, QueryStat.ESTIMATED_ROWS, 
+            plan.estimatedRows());
+      }
+    }
+  }
+  
+  /** @return Whether or not the multi-get builds the row keys from the 
+   * literals instead of the search plugin's results. */
+  private boolean multiGetNoMeta() {
+    return search_query_failure || 
+        (plan != null && plan.strategy() == QueryPlanner.Strategy.MULTI_GET);
+  }
+  
+  /** Applies the TSDB's settings to the aggregator and the downsampling 
+   * specification. */
+  private void configureAggregation() {
+    aggregator = Aggregators.withSketchSettings(aggregator, 
+        sketch_relative_accuracy, sketch_max_buckets);
+    if (downsampler != null && 
+        downsampler != DownsamplingSpecification.NO_DOWNSAMPLER) {
+      downsampler.setCalendarTables(calendar_tables);
+      downsampler.setIntervalAccumulator(interval_accumulator);
+      downsampler.setSketchSettings(sketch_relative_accuracy, 
+          sketch_max_buckets);
+    }
+  }
+  
   @Override
   public Deferred<DataPoints[]> runAsync() throws HBaseException {
+    configureAggregation();
     Deferred<DataPoints[]> result = null;
 
-    if (use_multi_gets && override_multi_get) {
-      result = this.findSpansWithMultiGetter().addCallback(new GroupByAndAggregateCB());
+    Deferred<SortedMap<byte[], Span>> spans;
+    final boolean multi_get = use_multi_gets && override_multi_get;
+    if (multi_get) {
+      spans = this.findSpansWithMultiGetter();
     } else {
-      result = findSpans().addCallback(new GroupByAndAggregateCB());
+      spans = findSpans();
+    }
+    if (tsdb.getQueryPlanner() != null) {
+      spans = spans.addCallback(new PlannerFeedbackCB(multi_get));
     }
+    result = spans.addCallback(new GroupByAndAggregateCB());
 
+    final AggregationExecutor aggregation_executor = tsdb.aggregationExecutor();
+    if (aggregation_executor != null) {
+      result = result.addCallbackDeferring(new ParallelAggregationCB(
+          aggregation_executor));
+    }
+
+    if (RollupQuery.isValidQuery(rollup_query)) {
+      result.addCallback(new RollupHitCB());
+    }
     if (rollup_usage != null && rollup_usage.fallback()) {
       result.addCallback(new FallbackRollupOnEmptyResult());
     }
@@ -790,6 +929,7 @@ final class TsdbQuery extends AbstractQuery {
       throw new RuntimeException("Should never be here");
     }
     
+    configureAggregation();
     Deferred<DataPoints[]> result = null;
     if (use_multi_gets && override_multi_get) {
       result = findHistogramSpansWithMultiGetter()
@@ -820,7 +960,8 @@ final class TsdbQuery extends AbstractQuery {
    * Returns whether this query needs to be split. It does if
    * - splitting of queries is enabled globally AND
    * - it can be split (i.e. it's a valid rollups query) AND
-   * - the table it is hitting has an SLA configured that describes the blackout period AND
+   * - the table it is hitting has an SLA configured that describes the blackout period,
+   *   or is written by a rollup engine configured as complete, AND
    * - the query is actually looking at data from the time beyond the SLA
    *
    * @return whether this query needs to be split.
@@ -838,7 +979,7 @@ final class TsdbQuery extends AbstractQuery {
       return false;
     }
 
-    if (rollup_query.getRollupInterval().getMaximumLag() <= 0) {
+    if (rollup_query.getMaximumLag() <= 0) {
       // Don't split if the table doesn't have a maximum lag configured
       return false;
     }
@@ -862,6 +1003,9 @@ final class TsdbQuery extends AbstractQuery {
     final TreeMap<byte[], Span> spans = // The key is a row key from HBase.
       new TreeMap<byte[], Span>(new SpanCmp(
           (short)(Const.SALT_WIDTH() + metric_width)));
+    if (matchesNothing()) {
+      return Deferred.<SortedMap<byte[], Span>>fromResult(spans);
+    }
     
     // Copy only the filters that should trigger a tag resolution. If this list
     // is empty due to literals or a wildcard star, then we'll save a TON of
@@ -878,36 +1022,28 @@ final class TsdbQuery extends AbstractQuery {
       scanner_filters = null;
     }
     
-    if (Const.SALT_WIDTH() > 0) {
-      final List<Scanner> scanners = new ArrayList<Scanner>(Const.SALT_BUCKETS());
-      for (int i = 0; i < Const.SALT_BUCKETS(); i++) {
-        scanners.add(getScanner(i));
-      }
-      scan_start_time = DateTime.nanoTime();
-      return new SaltScanner(tsdb, metric, scanners, spans, scanner_filters,
-          delete, rollup_query, query_stats, query_index, null, 
-          max_bytes, max_data_points).scan();
-    } else {
-      final List<Scanner> scanners = new ArrayList<Scanner>(1);
-      scanners.add(getScanner(0));
-      scan_start_time = DateTime.nanoTime();
-      return new SaltScanner(tsdb, metric, scanners, spans, scanner_filters,
-          delete, rollup_query, query_stats, query_index, null, max_bytes, 
-          max_data_points).scan();
-    }
+    final long[] partitions = getScanPartitions();
+    final List<Scanner> scanners = getScanners(partitions);
+    scan_start_time = DateTime.nanoTime();
+    return new SaltScanner(tsdb, metric, scanners, spans, scanner_filters,
+        delete, rollup_query, query_stats, query_index, null, max_bytes, 
+        max_data_points, partitions.length - 1).scan();
   }
   
   private Deferred<SortedMap<byte[], Span>> findSpansWithMultiGetter() throws HBaseException {
     final short metric_width = tsdb.metrics.width();
     final TreeMap<byte[], Span> spans = // The key is a row key from HBase.
     new TreeMap<byte[], Span>(new SpanCmp(metric_width));
+    if (matchesNothing()) {
+      return Deferred.<SortedMap<byte[], Span>>fromResult(spans);
+    }
 
     scan_start_time = System.nanoTime();
 
     return new MultiGetQuery(tsdb, this, metric, row_key_literals_list,
         getScanStartTimeSeconds(), getScanEndTimeSeconds(),
         tableToBeScanned(), spans, null, 0, rollup_query, query_stats, query_index, 0,
-        false, search_query_failure).fetch();
+        false, multiGetNoMeta()).fetch();
   }
   
   /**
@@ -926,6 +1062,9 @@ final class TsdbQuery extends AbstractQuery {
   private Deferred<SortedMap<byte[], HistogramSpan>> findHistogramSpans() throws HBaseException {
     final short metric_width = tsdb.metrics.width();
     final TreeMap<byte[], HistogramSpan> histSpans = new TreeMap<byte[], HistogramSpan>(new SpanCmp(metric_width));
+    if (matchesNothing()) {
+      return Deferred.<SortedMap<byte[], HistogramSpan>>fromResult(histSpans);
+    }
     
     // Copy only the filters that should trigger a tag resolution. If this list
     // is empty due to literals or a wildcard star, then we'll save a TON of
@@ -942,36 +1081,75 @@ final class TsdbQuery extends AbstractQuery {
       scanner_filters = null;
     }
 
-    scan_start_time = System.nanoTime();
-    final List<Scanner> scanners;
-    if (Const.SALT_WIDTH() > 0) {
-      scanners = new ArrayList<Scanner>(Const.SALT_BUCKETS());
-      for (int i = 0; i < Const.SALT_BUCKETS(); i++) {
-        scanners.add(getScanner(i));
-      }
-      scan_start_time = DateTime.nanoTime();
-      return new SaltScanner(tsdb, metric, scanners, null, scanner_filters, 
-          delete, rollup_query, query_stats, query_index, histSpans, 
-          max_bytes, max_data_points).scanHistogram();
-    } else {
-      scanners = Lists.newArrayList(getScanner());
-      scan_start_time = DateTime.nanoTime();
-      return new SaltScanner(tsdb, metric, scanners, null, scanner_filters, 
-          delete, rollup_query, query_stats, query_index, histSpans, 
-          max_bytes, max_data_points).scanHistogram();
-    }
+    final long[] partitions = getScanPartitions();
+    final List<Scanner> scanners = getScanners(partitions);
+    scan_start_time = DateTime.nanoTime();
+    return new SaltScanner(tsdb, metric, scanners, null, scanner_filters, 
+        delete, rollup_query, query_stats, query_index, histSpans, 
+        max_bytes, max_data_points, partitions.length - 1).scanHistogram();
   }
   
   private Deferred<SortedMap<byte[], HistogramSpan>> findHistogramSpansWithMultiGetter() throws HBaseException {
     final short metric_width = tsdb.metrics.width();
     // The key is a row key from HBase
     final TreeMap<byte[], HistogramSpan> histSpans = new TreeMap<byte[], HistogramSpan>(new SpanCmp(metric_width));
+    if (matchesNothing()) {
+      return Deferred.<SortedMap<byte[], HistogramSpan>>fromResult(histSpans);
+    }
 
     scan_start_time = System.nanoTime();
     return new MultiGetQuery(tsdb, this, metric, row_key_literals_list, 
         getScanStartTimeSeconds(), getScanEndTimeSeconds(),
         tableToBeScanned(), null, histSpans, 0, rollup_query, query_stats, query_index, 0,
-        false, search_query_failure).fetchHistogram();
+        false, multiGetNoMeta()).fetchHistogram();
+  }
+  
+  /**
+   * @return True if a filter was expanded through the tag value index and
+   * matched no tag value, in which case there's nothing to fetch.
+   */
+  private boolean matchesNothing() {
+    if (filters == null) {
+      return false;
+    }
+    for (final TagVFilter filter : filters) {
+      if (filter.matchesNothing()) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Reports the number of series and rows fetched to the 
+   * {@link QueryPlanner} and the query stats.
+   */
+  private class PlannerFeedbackCB implements 
+    Callback<SortedMap<byte[], Span>, SortedMap<byte[], Span>> {
+    private final boolean multi_get;
+    
+    /** @param multi_get Whether or not the spans were fetched with gets */
+    PlannerFeedbackCB(final boolean multi_get) {
+      this.multi_get = multi_get;
+    }
+    
+    @Override
+    public SortedMap<byte[], Span> call(final SortedMap<byte[], Span> spans) {
+      // only a scan without tag or TSUID filters finds every series of the
+      // metric, anything else would make the metric look smaller than it is
+      if (!multi_get && (filters == null || filters.isEmpty()) && 
+          (tsuids == null || tsuids.isEmpty())) {
+        tsdb.getQueryPlanner().observe(metric, spans.size());
+      }
+      if (plan != null && query_stats != null) {
+        long rows = 0;
+        for (final Span span : spans.values()) {
+          rows += span.rows.size();
+        }
+        query_stats.addStat(query_index, QueryStat.ACTUAL_ROWS, rows);
+      }
+      return spans;
+    }
   }
   
   /**
@@ -1002,6 +1180,12 @@ final class TsdbQuery extends AbstractQuery {
         return NO_RESULT;
       }
       
+      if (materialize_spans) {
+        for (final Span span : spans.values()) {
+          span.materialize();
+        }
+      }
+      
       // The raw aggregator skips group bys and ignores downsampling
       if (aggregator == Aggregators.NONE) {
         final SpanGroup[] groups = new SpanGroup[spans.size()];
@@ -1113,6 +1297,30 @@ final class TsdbQuery extends AbstractQuery {
     }
   }
 
+  /**
+   * Callback attached after {@link GroupByAndAggregateCB} when parallel
+   * aggregation is enabled that hands the groups to the 
+   * {@link AggregationExecutor} so they're aggregated off of this thread.
+   */
+  private class ParallelAggregationCB implements 
+    Callback<Deferred<DataPoints[]>, DataPoints[]> {
+    private final AggregationExecutor executor;
+    
+    ParallelAggregationCB(final AggregationExecutor executor) {
+      this.executor = executor;
+    }
+    
+    @Override
+    public Deferred<DataPoints[]> call(final DataPoints[] groups) {
+      return executor.aggregate(groups, query_stats, query_index);
+    }
+    
+    @Override
+    public String toString() {
+      return "parallel aggregation";
+    }
+  }
+
   /**
    * Callback that should be attached the the output of
    * {@link TsdbQuery#findHistogramSpans} to group and sort the results.
@@ -1356,6 +1564,20 @@ final class TsdbQuery extends AbstractQuery {
     }
    }
   
+  /**
+   * Counts a rollup hit once the rollup scan returned data. Empty results
+   * are counted as misses if the query falls back to the raw table.
+   */
+  private class RollupHitCB implements Callback<DataPoints[], DataPoints[]> {
+    @Override
+    public DataPoints[] call(final DataPoints[] datapoints) throws Exception {
+      if (datapoints != null && datapoints.length > 0) {
+        addRollupStat(QueryStat.ROLLUP_HITS);
+      }
+      return datapoints;
+    }
+  }
+
   /**
    * Scan the tables again with the next best rollup match, on empty result set
    */
@@ -1385,6 +1607,7 @@ final class TsdbQuery extends AbstractQuery {
         //next best match and attach that to the rollup query
         if (rollup_usage == ROLLUP_USAGE.ROLLUP_FALLBACK_RAW) {
           transformRollupQueryToDownSampler();
+          addRollupStat(QueryStat.ROLLUP_MISSES);
           return runAsync();
         }
         else if (best_match_rollups != null && best_match_rollups.size() > 0) {
@@ -1392,9 +1615,10 @@ final class TsdbQuery extends AbstractQuery {
           
           if (interval.isDefaultInterval()) {
             transformRollupQueryToDownSampler();
+            addRollupStat(QueryStat.ROLLUP_MISSES);
           }
           else {
-            rollup_query = new RollupQuery(interval, 
+            rollup_query = newRollupQuery(interval, 
                   rollup_query.getRollupAgg(),
                   rollup_query.getSampleIntervalInMS(),
                   aggregator);
@@ -1433,7 +1657,107 @@ final class TsdbQuery extends AbstractQuery {
   protected Scanner getScanner() throws HBaseException {
     return getScanner(0);
   }
-  
+
+  /**
+   * Splits the range of rows to scan into partitions that are scanned
+   * concurrently within each salt bucket when
+   * "tsd.query.scan.partition.enable" is set. Boundaries are aligned on the
+   * row width so each row belongs to exactly one partition. The partition
+   * width comes from "tsd.query.scan.partition.interval" and is widened if
+   * the total number of scanners would exceed
+   * "tsd.query.scan.partition.max_scanners". Rollup scans aren't split as
+   * their rows span different widths.
+   * @return The row base times in seconds where each partition starts
+   * followed by the exclusive end of the last one, -1 if the scan runs until
+   * the end of the metric. Always at least two entries.
+   */
+  long[] getScanPartitions() {
+    final long start = getScanStartTimeSeconds();
+    if (!tsdb.getConfig().getBoolean("tsd.query.scan.partition.enable") ||
+        rollup_query != null) {
+      return new long[] { start,
+          end_time == UNSET ? -1 : getScanEndTimeSeconds() };
+    }
+    // the last partition of an open ended scan runs until the end so only
+    // split up to now, leaving the end time unset
+    final boolean open_ended = end_time == UNSET;
+    final long end = open_ended ? DateTime.currentTimeMillis() / 1000 :
+      getScanEndTimeSeconds();
+    final long last = open_ended ? -1 : end;
+    if (end <= start) {
+      return new long[] { start, last };
+    }
+
+    final long interval = DateTime.parseDuration(
+        tsdb.getConfig().getString("tsd.query.scan.partition.interval")) / 1000;
+    final int buckets = Const.SALT_WIDTH() > 0 ? Const.SALT_BUCKETS() : 1;
+    final int max_partitions = Math.max(1,
+        tsdb.getConfig().getInt("tsd.query.scan.partition.max_scanners") /
+        buckets);
+    final long range = end - start;
+    long width = Math.max(interval, (range + max_partitions - 1) /
+        max_partitions);
+    // round up to whole rows
+    width = ((width + Const.MAX_TIMESPAN - 1) / Const.MAX_TIMESPAN) *
+        Const.MAX_TIMESPAN;
+    final int partitions = (int) ((range + width - 1) / width);
+    if (partitions <= 1) {
+      return new long[] { start, last };
+    }
+
+    final long[] boundaries = new long[partitions + 1];
+    for (int i = 0; i < partitions; i++) {
+      boundaries[i] = start + (i * width);
+    }
+    boundaries[partitions] = last;
+    if (query_stats != null) {
+      query_stats.addStat(query_index, QueryStat.SCAN_PARTITIONS, partitions);
+    }
+    return boundaries;
+  }
+
+  /**
+   * Creates a scanner for each salt bucket and partition. The scanners of
+   * the first partition come first so that {@link SaltScanner} can merge the
+   * rows in time order. Partitions of immutable rows that the row cache has
+   * been serving well only fetch the keys, see
+   * {@link RowSegmentCache#keysOnly} and {@link SaltScanner}.
+   * @param partitions The partition boundaries from
+   * {@link #getScanPartitions}.
+   * @return A list of scanners to use for fetching data points
+   */
+  private List<Scanner> getScanners(final long[] partitions)
+      throws HBaseException {
+    final int buckets = Const.SALT_WIDTH() > 0 ? Const.SALT_BUCKETS() : 1;
+    final List<Scanner> scanners =
+        new ArrayList<Scanner>((partitions.length - 1) * buckets);
+    final RowSegmentCache row_cache = delete || 
+        RollupQuery.isValidQuery(rollup_query) ? null : tsdb.rowSegmentCache();
+    for (int i = 0; i < partitions.length - 1; i++) {
+      final int first = scanners.size();
+      for (int bucket = 0; bucket < buckets; bucket++) {
+        scanners.add(getScanner(bucket, partitions[i], partitions[i + 1]));
+      }
+      // the metric is only known once a scanner was set up
+      if (row_cache == null || 
+          !row_cache.keysOnly(metric, partitions[i], partitions[i + 1])) {
+        continue;
+      }
+      for (final Scanner scanner : scanners.subList(first, scanners.size())) {
+        final ScanFilter existing = scanner.getFilter();
+        if (existing == null) {
+          scanner.setFilter(new KeyOnlyFilter());
+        } else {
+          final List<ScanFilter> filters = new ArrayList<ScanFilter>(2);
+          filters.add(existing);
+          filters.add(new KeyOnlyFilter());
+          scanner.setFilter(new FilterList(filters, Operator.MUST_PASS_ALL));
+        }
+      }
+    }
+    return scanners;
+  }
+
   /**
    * Returns a scanner set for the given metric (from {@link #metric} or from
    * the first TSUID in the {@link #tsuids}s list. If one or more tags are 
@@ -1444,6 +1768,22 @@ final class TsdbQuery extends AbstractQuery {
    * @return A scanner to use for fetching data points
    */
   protected Scanner getScanner(final int salt_bucket) throws HBaseException {
+    return getScanner(salt_bucket, getScanStartTimeSeconds(), 
+        end_time == UNSET ? -1 : getScanEndTimeSeconds());
+  }
+  
+  /**
+   * Returns a scanner for the given salt bucket restricted to the rows with a
+   * base time in the given range. See {@link #getScanner(int)}.
+   * @param salt_bucket The salt bucket to scan over when salting is enabled.
+   * @param start The inclusive row base time to start at in seconds.
+   * @param end The exclusive row base time to stop at in seconds, -1 to scan
+   * until the end of the metric.
+   * @return A scanner to use for fetching data points
+   * @since 2.4
+   */
+  protected Scanner getScanner(final int salt_bucket, final long start, 
+      final long end) throws HBaseException {
     final short metric_width = tsdb.metrics.width();
     
     // set the metric UID based on the TSUIDs if given, or the metric UID
@@ -1462,9 +1802,7 @@ final class TsdbQuery extends AbstractQuery {
     // & end dates in order to do proper rate calculation or downsampling near
     // the "edges" of the graph.
     final Scanner scanner = QueryUtil.getMetricScanner(tsdb, salt_bucket, metric, 
-        (int) getScanStartTimeSeconds(), end_time == UNSET
-        ? -1  // Will scan until the end (0xFFF...).
-        : (int) getScanEndTimeSeconds(), 
+        (int) start, (int) end, // -1 will scan until the end (0xFFF...).
         tableToBeScanned(), 
         TSDB.FAMILY());
     if(tsdb.getConfig().use_otsdb_timestamp()) {
@@ -1739,12 +2077,32 @@ final class TsdbQuery extends AbstractQuery {
         try {
           best_match_rollups = tsdb.getRollupConfig().
               getRollupInterval(downsampler.getInterval() / 1000, str_interval);
+          if (downsampler.useCalendar()) {
+            // coarse rollups may straddle the local calendar boundaries
+            final long start = (getStartTime() & Const.SECOND_MASK) == 0 ? 
+                getStartTime() * 1000 : getStartTime();
+            final long end = (getEndTime() & Const.SECOND_MASK) == 0 ? 
+                getEndTime() * 1000 : getEndTime();
+            final Iterator<RollupInterval> it = best_match_rollups.iterator();
+            while (it.hasNext()) {
+              final RollupInterval interval = it.next();
+              if (!interval.isDefaultInterval() &&
+                  !RollupUtils.alignsWithCalendar(interval,
+                      downsampler.getStringInterval(), 
+                      downsampler.getTimezone(), start, end)) {
+                it.remove();
+              }
+            }
+            if (best_match_rollups.isEmpty()) {
+              throw new NoSuchRollupForIntervalException(str_interval);
+            }
+          }
           //It is thread safe as each thread will be working on unique 
           // TsdbQuery object
           //RollupConfig.getRollupInterval guarantees that, 
           //  it always return a non-empty list
           // TODO
-          rollup_query = new RollupQuery(best_match_rollups.remove(0), 
+          rollup_query = newRollupQuery(best_match_rollups.remove(0), 
                   downsampler.getFunction(), downsampler.getInterval(),
                   group_by);
         }
@@ -1754,16 +2112,49 @@ final class TsdbQuery extends AbstractQuery {
             + " sampling approach and it requires raw data scan." );
           //nullify the rollup_query if this api is called explicitly
           rollup_query = null;
+          addRollupStat(QueryStat.ROLLUP_MISSES);
           return;
         }
         
         if (rollup_query.getRollupInterval().isDefaultInterval()) {
           //Anyways it is a scan on raw data
           rollup_query = null;
+          addRollupStat(QueryStat.ROLLUP_MISSES);
         }
       }       
     }
   }
+
+  /**
+   * Creates a rollup query. When the interval has no SLA but is computed by
+   * a rollup engine that is configured as complete, the engine's delay is used
+   * as the maximum lag so that the recent tail is read from the raw table.
+   * With a partial engine the table may hold only some series and the lag
+   * would hide that, so it is left to the configured SLA.
+   * @param interval The rollup interval to read.
+   * @param rollup_agg The rollup aggregator.
+   * @param sample_interval_ms The downsampling interval in milliseconds.
+   * @param group_by The group by aggregator.
+   * @return The rollup query.
+   */
+  private RollupQuery newRollupQuery(final RollupInterval interval,
+      final Aggregator rollup_agg, final long sample_interval_ms,
+      final Aggregator group_by) {
+    final RollupQuery query = new RollupQuery(interval, rollup_agg,
+        sample_interval_ms, group_by);
+    if (query.getMaximumLag() <= 0 && tsdb.getRollupEngine() != null
+        && tsdb.getRollupEngine().isComplete()) {
+      query.setMaximumLag(tsdb.getRollupEngine().getMaximumLag(interval));
+    }
+    return query;
+  }
+
+  /** @param stat The rollup stat to count for this sub query */
+  private void addRollupStat(final QueryStat stat) {
+    if (query_stats != null) {
+      query_stats.addStat(query_index, stat, 1);
+    }
+  }
   
   /**
    * Transform rollup query to downsampler
@@ -0,0 +1,360 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.AppendRequest;
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.PutRequest;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * A write stage that sits between {@link TSDB#addPoint} and the HBase client
+ * and coalesces the data points written to the same row within a short window
+ * into a single multi-column put, or a single append when appends are
+ * enabled. This cuts down the number of RPCs sent to HBase and the number of
+ * times a row is handed to the {@link CompactionQueue}.
+ * <p>
+ * Batches are sent when the window expires or as soon as a row has
+ * {@code tsd.storage.write_coalescing.max_batch} points. The caller's
+ * deferred is called back once the batch holding its data point has been
+ * written. If more than {@code tsd.storage.write_coalescing.max_pending}
+ * points are waiting, writes fail with a {@link WriteQueueFullException} so
+ * that clients are told to throttle.
+ * <p>
+ * Within a batch, a put with the same qualifier as an earlier one replaces
+ * its value, just like sequential puts would.
+ * @since 2.4
+ */
+final class WriteCoalescer implements TimerTask {
+  private static final Logger LOG = LoggerFactory.getLogger(WriteCoalescer.class);
+
+  /** The TSDB we belong to */
+  private final TSDB tsdb;
+
+  /** Whether or not to write appends instead of puts */
+  private final boolean appends;
+
+  /** How long, in milliseconds, to hold points before sending them */
+  private final int interval;
+
+  /** Number of points in a row that will trigger an immediate write */
+  private final int max_batch;
+
+  /** Maximum number of points waiting to be written */
+  private final int max_pending;
+
+  /** The rows waiting to be written. Guarded by this. */
+  private ByteMap<Batch> batches = new ByteMap<Batch>();
+
+  /** Number of points waiting to be written. Guarded by this. */
+  private int pending;
+
+  /** Set once we're shutting down to stop the timer */
+  private volatile boolean shutdown;
+
+  /** Number of data points per RPC sent */
+  private final Histogram batch_sizes = new Histogram(16000, (short) 2, 100);
+
+  /** Time, in milliseconds, from the first point of a batch to the ack */
+  private final Histogram latency = new Histogram(16000, (short) 2, 100);
+
+  /** Number of data points written */
+  private final AtomicLong datapoints = new AtomicLong();
+
+  /** Number of RPCs sent to HBase */
+  private final AtomicLong rpcs = new AtomicLong();
+
+  /** Number of data points rejected due to a full queue */
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Default ctor. Starts the flush timer.
+   * @param tsdb The TSDB to write to.
+   * @throws IllegalArgumentException if the config was invalid.
+   */
+  WriteCoalescer(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    appends = tsdb.getConfig().enable_appends();
+    interval = tsdb.getConfig().getInt("tsd.storage.write_coalescing.interval");
+    max_batch = tsdb.getConfig().getInt(
+        "tsd.storage.write_coalescing.max_batch");
+    max_pending = tsdb.getConfig().getInt(
+        "tsd.storage.write_coalescing.max_pending");
+    if (interval < 1) {
+      throw new IllegalArgumentException(
+          "The write coalescing interval must be greater than zero");
+    }
+    if (max_batch < 1) {
+      throw new IllegalArgumentException(
+          "The write coalescing max batch must be greater than zero");
+    }
+    if (max_pending < 1) {
+      throw new IllegalArgumentException(
+          "The write coalescing max pending must be greater than zero");
+    }
+    tsdb.getTimer().newTimeout(this, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Queues a data point to be written with the other points of the row.
+   * @param row The full row key including the salt and base time.
+   * @param qualifier The column qualifier.
+   * @param value The column value.
+   * @return A deferred called back with the result of the write, or an error
+   * if the write failed. If too many points are waiting the deferred holds a
+   * {@link WriteQueueFullException}. Once shut down, the point is written
+   * immediately on its own.
+   */
+  Deferred<Object> add(final byte[] row, final byte[] qualifier,
+      final byte[] value) {
+    final Deferred<Object> deferred = new Deferred<Object>();
+    Batch full = null;
+    synchronized (this) {
+      if (shutdown) {
+        // nothing would flush a queued batch anymore
+        full = new Batch(row);
+        full.add(qualifier, value, deferred, !appends);
+      } else {
+        if (pending >= max_pending) {
+          rejected.incrementAndGet();
+          return Deferred.fromError(new WriteQueueFullException(
+              "Please throttle writes: " + pending
+              + " data points are waiting to be written"));
+        }
+        Batch batch = batches.get(row);
+        if (batch == null) {
+          batch = new Batch(row);
+          batches.put(row, batch);
+        }
+        batch.add(qualifier, value, deferred, !appends);
+        pending++;
+        if (batch.waiters.size() >= max_batch) {
+          batches.remove(row);
+          pending -= batch.waiters.size();
+          full = batch;
+        }
+      }
+    }
+    if (full != null) {
+      send(full);
+    }
+    return deferred;
+  }
+
+  /**
+   * Sends all of the pending batches to HBase.
+   * @return A deferred called back once all of the batches were written.
+   */
+  Deferred<Object> flush() {
+    final ByteMap<Batch> flushing;
+    synchronized (this) {
+      if (batches.isEmpty()) {
+        return Deferred.fromResult(null);
+      }
+      flushing = batches;
+      batches = new ByteMap<Batch>();
+      pending = 0;
+    }
+    final ArrayList<Deferred<Object>> deferreds =
+        new ArrayList<Deferred<Object>>(flushing.size());
+    for (final Batch batch : flushing.values()) {
+      deferreds.add(send(batch));
+    }
+
+    final class GroupCB implements Callback<Object, ArrayList<Object>> {
+      @Override
+      public Object call(final ArrayList<Object> ignored) {
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "write coalescer flush";
+      }
+    }
+    return Deferred.group(deferreds).addCallback(new GroupCB());
+  }
+
+  /**
+   * Stops the flush timer and sends any pending batches.
+   * @return A deferred called back once all of the batches were written.
+   */
+  Deferred<Object> shutdown() {
+    shutdown = true;
+    return flush();
+  }
+
+  @Override
+  public void run(final Timeout timeout) {
+    if (shutdown) {
+      return;
+    }
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      LOG.error("Unexpected exception flushing the write coalescer", e);
+    } finally {
+      if (!shutdown) {
+        tsdb.getTimer().newTimeout(this, interval, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /** @return The number of data points waiting to be written. */
+  synchronized int pending() {
+    return pending;
+  }
+
+  /**
+   * Collects the stats for the coalescing stage.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("storage.coalescer.queue.size", pending());
+    collector.record("storage.coalescer.datapoints", datapoints.get());
+    collector.record("storage.coalescer.rpcs", rpcs.get(),
+        appends ? "type=append" : "type=put");
+    collector.record("storage.coalescer.rejected", rejected.get());
+    synchronized (batch_sizes) {
+      collector.record("storage.coalescer.batch_size", batch_sizes, null);
+    }
+    synchronized (latency) {
+      collector.record("storage.coalescer.latency", latency, null);
+    }
+  }
+
+  /**
+   * Writes the batch and calls back the waiting deferreds.
+   * @param batch The batch to write.
+   * @return The deferred for the RPC.
+   */
+  private Deferred<Object> send(final Batch batch) {
+    final int points = batch.waiters.size();
+    synchronized (batch_sizes) {
+      batch_sizes.add(points);
+    }
+    datapoints.addAndGet(points);
+    rpcs.incrementAndGet();
+
+    /** Distributes the result of the RPC to the data points of the batch. */
+    final class BatchCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object result) {
+        final int elapsed = (int)
+            ((System.nanoTime() - batch.start) / 1000000);
+        synchronized (latency) {
+          latency.add(elapsed);
+        }
+        for (final Deferred<Object> waiter : batch.waiters) {
+          waiter.callback(result);
+        }
+        return result;
+      }
+      @Override
+      public String toString() {
+        return "write coalescer batch callback";
+      }
+    }
+
+    Deferred<Object> result;
+    try {
+      if (appends) {
+        result = tsdb.getClient().append(new AppendRequest(tsdb.dataTable(),
+            batch.row, TSDB.FAMILY, AppendDataPoints.APPEND_COLUMN_QUALIFIER,
+            batch.appendValue()));
+      } else {
+        tsdb.scheduleForCompaction(batch.row, (int) Bytes.getUnsignedInt(
+            batch.row, Const.SALT_WIDTH() + tsdb.metrics.width()));
+        result = tsdb.getClient().put(new PutRequest(tsdb.dataTable(),
+            batch.row, TSDB.FAMILY, batch.qualifiers(), batch.values()));
+      }
+    } catch (RuntimeException e) {
+      result = Deferred.fromError(e);
+    }
+    return result.addBoth(new BatchCB());
+  }
+
+  /** The data points waiting to be written to a single row. */
+  private static final class Batch {
+    private final byte[] row;
+    private final long start = System.nanoTime();
+    private final ArrayList<byte[]> qualifiers = new ArrayList<byte[]>();
+    private final ArrayList<byte[]> values = new ArrayList<byte[]>();
+    private final ArrayList<Deferred<Object>> waiters =
+        new ArrayList<Deferred<Object>>();
+
+    Batch(final byte[] row) {
+      this.row = row;
+    }
+
+    /**
+     * Adds the column to the batch.
+     * @param replace Whether or not a column with the same qualifier should
+     * be overwritten.
+     */
+    void add(final byte[] qualifier, final byte[] value,
+        final Deferred<Object> deferred, final boolean replace) {
+      waiters.add(deferred);
+      if (replace) {
+        for (int i = 0; i < qualifiers.size(); i++) {
+          if (Bytes.equals(qualifiers.get(i), qualifier)) {
+            values.set(i, value);
+            return;
+          }
+        }
+      }
+      qualifiers.add(qualifier);
+      values.add(value);
+    }
+
+    byte[][] qualifiers() {
+      return qualifiers.toArray(new byte[qualifiers.size()][]);
+    }
+
+    byte[][] values() {
+      return values.toArray(new byte[values.size()][]);
+    }
+
+    /** @return The qualifiers and values concatenated for an append. */
+    byte[] appendValue() {
+      int length = 0;
+      for (int i = 0; i < qualifiers.size(); i++) {
+        length += qualifiers.get(i).length + values.get(i).length;
+      }
+      final byte[] append = new byte[length];
+      int offset = 0;
+      for (int i = 0; i < qualifiers.size(); i++) {
+        final byte[] qualifier = qualifiers.get(i);
+        final byte[] value = values.get(i);
+        System.arraycopy(qualifier, 0, append, offset, qualifier.length);
+        offset += qualifier.length;
+        System.arraycopy(value, 0, append, offset, value.length);
+        offset += value.length;
+      }
+      return append;
+    }
+  }
+}
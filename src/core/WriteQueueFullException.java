@@ -0,0 +1,34 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+/**
+ * Thrown when the write coalescing stage has too many data points waiting to
+ * be sent to storage. Like HBase's {@code PleaseThrottleException}, callers
+ * should slow down and retry the write later.
+ * @since 2.4
+ */
+public final class WriteQueueFullException extends RuntimeException {
+
+  /**
+   * Constructor.
+   *
+   * @param msg Message describing the problem.
+   */
+  public WriteQueueFullException(final String msg) {
+    super(msg);
+  }
+
+  static final long serialVersionUID = 1776880561;
+
+}
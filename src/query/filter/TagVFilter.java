@@ -31,6 +31,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.opentsdb.core.TSDB;
+import net.opentsdb.uid.UidNameIndex;
 import net.opentsdb.uid.UniqueId.UniqueIdType;
 import net.opentsdb.utils.Config;
 import net.opentsdb.utils.Pair;
@@ -128,6 +129,9 @@ public abstract class TagVFilter implements Comparable<TagVFilter> {
   /** A flag to indicate whether or not we need to execute a post-scan lookup */
   protected boolean post_scan = true;
   
+  /** Set when the filter was expanded and no tag value matched */
+  protected boolean matches_nothing;
+  
   /**
    * Default Ctor needed for the service loader. Implementations must override
    * and set the filterName().
@@ -486,6 +490,87 @@ public abstract class TagVFilter implements Comparable<TagVFilter> {
     return Deferred.group(tagvs).addCallback(new ResolvedTagVCB());
   }
   
+  /**
+   * Expands the filter into the UIDs of every tag value it matches using the
+   * TSD's tag value index, if enabled and up to date, and stores them as the
+   * filter's tag value UIDs so that the query can build a row key filter or
+   * use multi-gets instead of scanning every row of the metric. If no value
+   * matches, {@link #matchesNothing} is set instead. Nothing is stored if the
+   * index couldn't be brought up to date or more than 
+   * "tsd.query.filter.expansion_limit" values match, or if the filter doesn't
+   * {@link #supportsIndexExpansion support} it.
+   * @param tsdb The TSDB to use for the lookup
+   * @param prefix A prefix that every matching value starts with. May be empty
+   * but narrows down the values to test if set.
+   * @return A deferred resolving to true if the filter was expanded, false if
+   * not.
+   * @since 2.4
+   */
+  protected Deferred<Boolean> expandTagValues(final TSDB tsdb, 
+      final String prefix) {
+    matches_nothing = false;
+    final UidNameIndex index = tsdb.getTagValueIndex();
+    if (index == null || !supportsIndexExpansion()) {
+      return Deferred.fromResult(false);
+    }
+    final int limit = tsdb.getConfig().getInt(
+        "tsd.query.filter.expansion_limit");
+    
+    /** Walks the index once it caught up with the UID table */
+    class ExpandCB implements Callback<Boolean, Boolean> {
+      @Override
+      public Boolean call(final Boolean current) throws Exception {
+        if (!current) {
+          return false;
+        }
+        final List<byte[]> uids = new ArrayList<byte[]>();
+        for (final Map.Entry<String, byte[]> entry : 
+            index.range(prefix).entrySet()) {
+          if (matchesTagValue(entry.getKey())) {
+            if (uids.size() >= limit) {
+              LOG.debug("Not expanding filter " + TagVFilter.this 
+                  + " as it matches more than " + limit + " tag values");
+              return false;
+            }
+            uids.add(entry.getValue());
+          }
+        }
+        if (uids.isEmpty()) {
+          matches_nothing = true;
+          return true;
+        }
+        Collections.sort(uids, Bytes.MEMCMP);
+        tagv_uids = uids;
+        return true;
+      }
+    }
+    return index.sync().addCallback(new ExpandCB());
+  }
+  
+  /**
+   * Whether or not the filter can be expanded into tag values with
+   * {@link #expandTagValues}. Filters that return true must implement
+   * {@link #matchesTagValue}.
+   * @return True if the filter implements {@link #matchesTagValue}, false
+   * by default.
+   * @since 2.4
+   */
+  protected boolean supportsIndexExpansion() {
+    return false;
+  }
+
+  /**
+   * Tests a single tag value against the filter. Used when expanding the
+   * filter with {@link #expandTagValues}.
+   * @param tagv The tag value to test.
+   * @return True if the value matches, false by default as filters aren't
+   * expanded unless they {@link #supportsIndexExpansion support} it.
+   * @since 2.4
+   */
+  protected boolean matchesTagValue(final String tagv) {
+    return false;
+  }
+  
   /** @return the tag key associated with this filter */
   public String getTagk() {
     return tagk;
@@ -536,6 +621,26 @@ public abstract class TagVFilter implements Comparable<TagVFilter> {
     return this.getClass().getSimpleName();
   }
 
+  /**
+   * Whether or not the result of {@link #match} only depends on the value of
+   * this filter's tag key in the map, or on its absence. If so, scanners may
+   * cache the result per tag value UID instead of resolving the tags of every
+   * row. Defaults to false so that plugins always get the full tag map.
+   * @return True if only this filter's tag value is considered.
+   * @since 2.4
+   */
+  public boolean matchesOnTagValueOnly() {
+    return false;
+  }
+  
+  /** @return Whether or not the filter was expanded through the tag value 
+   * index and no tag value matched, i.e. the query can't return data.
+   * @since 2.4 */
+  @JsonIgnore
+  public boolean matchesNothing() {
+    return matches_nothing;
+  }
+  
   /** @return Whether or not this filter should be executed against scan results */
   public boolean postScan() {
     return post_scan;
@@ -143,6 +143,11 @@ public class TagVLiteralOrFilter extends TagVFilter {
   public String getType() {
     return FILTER_NAME;
   }
+
+  @Override
+  public boolean matchesOnTagValueOnly() {
+    return true;
+  }
   
   /** @return a string describing the filter */
   public static String description() {
@@ -31,6 +31,11 @@ public class TagVNotKeyFilter extends TagVFilter {
     return FILTER_NAME;
   }
 
+  @Override
+  public boolean matchesOnTagValueOnly() {
+    return true;
+  }
+
   @Override
   public String debugInfo() {
     return "{}";
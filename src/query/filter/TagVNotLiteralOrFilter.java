@@ -100,6 +100,11 @@ public class TagVNotLiteralOrFilter extends TagVFilter {
   public String getType() {
     return FILTER_NAME;
   }
+
+  @Override
+  public boolean matchesOnTagValueOnly() {
+    return true;
+  }
   
   @Override
   public boolean equals(final Object obj) {
@@ -16,7 +16,10 @@ import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
+import net.opentsdb.core.TSDB;
+
 import com.google.common.base.Objects;
+import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
 /**
@@ -54,6 +57,57 @@ public class TagVRegexFilter extends TagVFilter {
     }
     return Deferred.fromResult(pattern.matcher(tagv).find());
   }
+  
+  /**
+   * Overridden to expand the expression into the matching tag value UIDs if
+   * the tag value index is enabled.
+   */
+  @Override
+  public Deferred<byte[]> resolveTagkName(final TSDB tsdb) {
+    class ExpandedCB implements Callback<Deferred<byte[]>, Boolean> {
+      @Override
+      public Deferred<byte[]> call(final Boolean expanded) {
+        return TagVRegexFilter.super.resolveTagkName(tsdb);
+      }
+    }
+    return expandTagValues(tsdb, literalPrefix(filter))
+        .addCallbackDeferring(new ExpandedCB());
+  }
+  
+  @Override
+  protected boolean supportsIndexExpansion() {
+    return true;
+  }
+
+  @Override
+  protected boolean matchesTagValue(final String tagv) {
+    return pattern.matcher(tagv).find();
+  }
+  
+  /**
+   * Extracts the literal characters an anchored expression starts with, e.g.
+   * "web" from "^web[0-9]+".
+   * @param regex The expression.
+   * @return The literal prefix, empty if the expression isn't anchored, has
+   * alternations or doesn't start with a literal.
+   */
+  static String literalPrefix(final String regex) {
+    // an alternation may not share the prefix, e.g. "^web|db"
+    if (regex.length() < 2 || regex.charAt(0) != '^' || 
+        regex.indexOf('|') >= 0) {
+      return "";
+    }
+    int end = 1;
+    while (end < regex.length() && 
+        "\\.[]{}()*+?^$|".indexOf(regex.charAt(end)) < 0) {
+      end++;
+    }
+    // a quantifier applies to the last literal so it can't be in the prefix
+    if (end < regex.length() && "*?{".indexOf(regex.charAt(end)) >= 0) {
+      end--;
+    }
+    return end > 1 ? regex.substring(1, end) : "";
+  }
 
   @Override
   public String debugInfo() {
@@ -91,6 +145,11 @@ public class TagVRegexFilter extends TagVFilter {
   public String getType() {
     return FILTER_NAME;
   }
+
+  @Override
+  public boolean matchesOnTagValueOnly() {
+    return true;
+  }
   
   /** @return a string describing the filter */
   public static String description() {
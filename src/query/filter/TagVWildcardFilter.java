@@ -15,10 +15,12 @@ package net.opentsdb.query.filter;
 import java.util.Arrays;
 import java.util.Map;
 
+import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.base.Objects;
+import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
 /**
@@ -112,30 +114,61 @@ public class TagVWildcardFilter extends TagVFilter {
 
   @Override
   public Deferred<Boolean> match(final Map<String, String> tags) {
-    String tagv = tags.get(tagk);
+    final String tagv = tags.get(tagk);
     if (tagv == null) {
       return Deferred.fromResult(false);
-    } else if (components.length == 1 && components[0].equals("*")) {
+    }
+    return Deferred.fromResult(matchesTagValue(tagv));
+  }
+  
+  /**
+   * Overridden to expand the wildcard into the matching tag value UIDs if
+   * the tag value index is enabled. Match-all filters are left alone.
+   */
+  @Override
+  public Deferred<byte[]> resolveTagkName(final TSDB tsdb) {
+    if (components.length == 1 && components[0].equals("*")) {
+      return super.resolveTagkName(tsdb);
+    }
+    class ExpandedCB implements Callback<Deferred<byte[]>, Boolean> {
+      @Override
+      public Deferred<byte[]> call(final Boolean expanded) {
+        return TagVWildcardFilter.super.resolveTagkName(tsdb);
+      }
+    }
+    // only a case sensitive prefix match can narrow down the index range
+    return expandTagValues(tsdb, has_prefix && !has_postfix && !case_insensitive 
+        ? components[0] : "").addCallbackDeferring(new ExpandedCB());
+  }
+  
+  @Override
+  protected boolean supportsIndexExpansion() {
+    return true;
+  }
+
+  @Override
+  protected boolean matchesTagValue(String tagv) {
+    if (components.length == 1 && components[0].equals("*")) {
       // match all
-      return Deferred.fromResult(true);
+      return true;
     } else if (case_insensitive) {
-      tagv = tags.get(tagk).toLowerCase();
+      tagv = tagv.toLowerCase();
     }
     if (has_postfix && !has_prefix && 
         !tagv.endsWith(components[components.length-1])) {
-      return Deferred.fromResult(false);
+      return false;
     }
     if (has_prefix && !has_postfix && !tagv.startsWith(components[0])) {
-      return Deferred.fromResult(false);
+      return false;
     }
     int idx = 0;
     for (int i = 0; i < components.length; i++) {
       if (tagv.indexOf(components[i], idx) < 0) {
-        return Deferred.fromResult(false);
+        return false;
       }
       idx += components[i].length();
     }
-    return Deferred.fromResult(true);
+    return true;
   }
 
   @Override
@@ -176,6 +209,11 @@ public class TagVWildcardFilter extends TagVFilter {
   public String getType() {
     return FILTER_NAME;
   }
+
+  @Override
+  public boolean matchesOnTagValueOnly() {
+    return true;
+  }
   
   /** @return a string describing the filter */
   public static String description() {
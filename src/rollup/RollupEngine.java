@@ -0,0 +1,849 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Computes rollups from the raw data points written to this TSD and stores
+ * them through {@link TSDB#addAggregatePoint} so that no external job has to
+ * compute and push them.
+ * <p>
+ * For every series and every configured, fixed width rollup interval the
+ * engine keeps a small ring of windows with the count, sum, min and max of
+ * the values. The windows live off heap in pages of direct buffers so that
+ * millions of series don't weigh on the garbage collector. New series are
+ * rejected once {@code tsd.rollups.engine.max_bytes} are in use.
+ * <p>
+ * A window is written once the watermark passes its end. The watermark trails
+ * the latest data point time, capped at the wall clock, by
+ * {@code tsd.rollups.engine.lateness}, and follows the wall clock when no data
+ * arrived for that long. Points for a window that was already written amend
+ * it and the window is written again, overwriting the earlier values. Points
+ * older than the oldest window in the ring are dropped. A window still holding
+ * unwritten data when the ring wraps around is copied and queued, and written
+ * with the next flush so that adding a point never waits on HBase.
+ * <p>
+ * Integer windows keep exact sums, mins and maxes as longs. A window switches
+ * to doubles with its first floating point value or if its sum would overflow.
+ * <p>
+ * A series whose windows were all written and whose latest window ended a
+ * lateness before the watermark is dropped and its windows are reused. Since
+ * the windows of a dropped series can't be amended any more, points for
+ * windows that closed before their series was (re)registered are dropped.
+ * <p>
+ * Each series must be rolled up by a single TSD. The engine only rolls up the
+ * metrics of its shard, {@code (metric.hashCode() & 0x7FFFFFFF) %
+ * tsd.rollups.engine.shard_count == tsd.rollups.engine.shard_id}, and counts
+ * the points of other metrics as foreign. Either run the engine on a single
+ * writer with the defaults, or route every metric to the one TSD running its
+ * shard. Two TSDs rolling up the same series overwrite each other's windows
+ * in the rollup tables with partial values.
+ * <p>
+ * Queries only read the tail a window behind the watermark from the raw table
+ * when {@code tsd.rollups.engine.complete} is set. Set it once every point
+ * reaches the TSD running its metric's shard, so that the rollup tables hold
+ * every series up to the engine's lag. Until then the tables may be missing
+ * series and the intervals' SLAs apply.
+ * <p>
+ * Only the sum, count, min and max aggregators mapped in the rollup config
+ * are written. Calendar intervals, i.e. months and years, are not supported.
+ * @since 2.4
+ */
+public final class RollupEngine implements TimerTask {
+  private static final Logger LOG = LoggerFactory.getLogger(RollupEngine.class);
+
+  /** The aggregators the windows can answer */
+  private static final String[] AGGREGATORS = { "sum", "count", "min", "max" };
+
+  /** Size of the direct buffers holding the windows */
+  static final int PAGE_BYTES = 1024 * 1024;
+
+  /** The layout of a window: start, count, sum, min, max and state. The sum,
+   * min and max are longs unless the state is {@link #FLOAT}. */
+  static final int WINDOW_BYTES = 48;
+  private static final int START = 0;
+  private static final int COUNT = 8;
+  private static final int SUM = 16;
+  private static final int MIN = 24;
+  private static final int MAX = 32;
+  private static final int STATE = 40;
+
+  /** Window states */
+  private static final int DIRTY = 1;
+  private static final int FLUSHED = 2;
+  private static final int FLOAT = 4;
+
+  /** The TSDB we belong to */
+  private final TSDB tsdb;
+
+  /** The intervals to compute */
+  private final RollupInterval[] intervals;
+
+  /** The width of each interval in seconds */
+  private final long[] widths;
+
+  /** The number of windows kept for each interval */
+  private final int[] rings;
+
+  /** Offset of the first window of each interval within a series */
+  private final int[] offsets;
+
+  /** The aggregators to write */
+  private final String[] aggregators;
+
+  /** How long, in seconds, to wait for late data before writing a window */
+  private final long lateness;
+
+  /** How often, in milliseconds, to write closed windows */
+  private final int flush_interval;
+
+  /** Bytes used by the windows of a series */
+  private final int stride;
+
+  /** Number of series per page */
+  private final int series_per_page;
+
+  /** Maximum number of series */
+  private final int max_series;
+
+  /** The shard of the metrics rolled up by this TSD and the shard count */
+  private final int shard_id;
+  private final int shard_count;
+
+  /** Whether all writes reach the TSDs of their shards */
+  private final boolean complete;
+
+  /** Where the metric and the tags are in a row key */
+  private final int metric_offset;
+  private final int tags_offset;
+
+  /** The pages, allocated as they're needed. Guarded by this. */
+  private final ByteBuffer[] pages;
+
+  /** The series by the metric and tag UIDs of their row keys */
+  private final ConcurrentHashMap<SeriesKey, Series> series =
+      new ConcurrentHashMap<SeriesKey, Series>();
+
+  /** Number of registered series. Guarded by this. */
+  private int series_count;
+
+  /** The first series slot never used and the slots of dropped series.
+   * Guarded by this. */
+  private int next_slot;
+  private int[] free_slots = new int[16];
+  private int free_count;
+
+  /** Copies of the unwritten windows replaced by newer ones, written by the
+   * next flush */
+  private final ConcurrentLinkedQueue<Window> evictions =
+      new ConcurrentLinkedQueue<Window>();
+
+  /** The latest data point time, in seconds */
+  private final AtomicLong max_timestamp = new AtomicLong();
+
+  /** Current watermark in seconds, windows ending before it are written */
+  private volatile long watermark;
+
+  /** Data point count and time, in ms, at which it last changed. Guarded
+   * by this. */
+  private long last_seen;
+  private long last_activity;
+
+  /** Set once we're shutting down to stop the timer */
+  private volatile boolean shutdown;
+
+  /** Delay, in seconds, from the end of a window to its write */
+  private final Histogram flush_lag = new Histogram(86400, (short) 10, 1800);
+
+  /** Counters */
+  private final AtomicLong datapoints = new AtomicLong();
+  private final AtomicLong late_amended = new AtomicLong();
+  private final AtomicLong late_dropped = new AtomicLong();
+  private final AtomicLong evicted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong foreign = new AtomicLong();
+  private final AtomicLong reclaimed = new AtomicLong();
+  private final AtomicLong flushed = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  /**
+   * Default ctor. Starts the flush timer.
+   * @param tsdb The TSDB to write the rollups to, with a rollup config.
+   * @throws IllegalArgumentException if the config was invalid or none of the
+   * rollup intervals or aggregators can be computed.
+   */
+  public RollupEngine(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    final Config config = tsdb.getConfig();
+    final RollupConfig rollup_config = tsdb.getRollupConfig();
+    if (rollup_config == null) {
+      throw new IllegalArgumentException("The rollup engine requires a "
+          + "rollup config");
+    }
+    lateness = DateTime.parseDuration(
+        config.getString("tsd.rollups.engine.lateness")) / 1000;
+    final int windows = config.getInt("tsd.rollups.engine.windows");
+    flush_interval = config.getInt("tsd.rollups.engine.flush_interval");
+    final long max_bytes = config.getLong("tsd.rollups.engine.max_bytes");
+    shard_id = config.getInt("tsd.rollups.engine.shard_id");
+    shard_count = config.getInt("tsd.rollups.engine.shard_count");
+    complete = config.getBoolean("tsd.rollups.engine.complete");
+    if (shard_count < 1 || shard_id < 0 || shard_id >= shard_count) {
+      throw new IllegalArgumentException("The rollup engine shard ID must be "
+          + "from 0 to the shard count minus one: " + shard_id + " of "
+          + shard_count);
+    }
+    if (windows < 2) {
+      throw new IllegalArgumentException(
+          "The rollup engine needs at least two windows per interval");
+    }
+    if (flush_interval < 1) {
+      throw new IllegalArgumentException(
+          "The rollup engine flush interval must be greater than zero");
+    }
+
+    final List<RollupInterval> computed = new ArrayList<RollupInterval>();
+    for (final RollupInterval interval : rollup_config.getIntervals()) {
+      if (interval.isDefaultInterval()) {
+        continue;
+      }
+      if (interval.getIntervalUnits() == 'n' ||
+          interval.getIntervalUnits() == 'y') {
+        LOG.warn("Calendar interval " + interval.getInterval()
+            + " is not supported by the rollup engine and will be skipped");
+        continue;
+      }
+      computed.add(interval);
+    }
+    if (computed.isEmpty()) {
+      throw new IllegalArgumentException("None of the rollup intervals can "
+          + "be computed by the rollup engine");
+    }
+    intervals = computed.toArray(new RollupInterval[computed.size()]);
+    widths = new long[intervals.length];
+    rings = new int[intervals.length];
+    offsets = new int[intervals.length];
+    int windows_per_series = 0;
+    for (int i = 0; i < intervals.length; i++) {
+      widths[i] = intervals[i].getIntervalSeconds();
+      // enough windows to still hold the oldest one the watermark keeps open
+      rings[i] = Math.max(windows,
+          (int) ((lateness + widths[i] - 1) / widths[i]) + 1);
+      offsets[i] = windows_per_series * WINDOW_BYTES;
+      windows_per_series += rings[i];
+    }
+    stride = windows_per_series * WINDOW_BYTES;
+    if (stride > PAGE_BYTES) {
+      throw new IllegalArgumentException("Too many rollup windows per series: "
+          + windows_per_series);
+    }
+
+    final List<String> aggs = new ArrayList<String>(AGGREGATORS.length);
+    for (final String agg : AGGREGATORS) {
+      if (rollup_config.getAggregationIds().containsKey(agg)) {
+        aggs.add(agg);
+      }
+    }
+    if (aggs.isEmpty()) {
+      throw new IllegalArgumentException("None of the rollup aggregators can "
+          + "be computed by the rollup engine");
+    }
+    aggregators = aggs.toArray(new String[aggs.size()]);
+
+    max_series = (int) Math.min(Integer.MAX_VALUE / 2, max_bytes / stride);
+    series_per_page = Math.max(1, Math.min(PAGE_BYTES / stride, max_series));
+    pages = new ByteBuffer[(max_series + series_per_page - 1) / series_per_page];
+
+    metric_offset = Const.SALT_WIDTH();
+    tags_offset = metric_offset + TSDB.metrics_width() + Const.TIMESTAMP_BYTES;
+
+    last_activity = System.currentTimeMillis();
+    LOG.info("Computing rollups for " + computed.size() + " intervals with "
+        + aggs + " and up to " + max_series + " series of shard " + shard_id
+        + " of " + shard_count);
+    tsdb.getTimer().newTimeout(this, flush_interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Adds a raw data point to the windows of its series.
+   * @param row The row key of the data point. Only the metric and tags are
+   * read and it's copied when the series is new.
+   * @param metric The metric name.
+   * @param timestamp The timestamp in seconds or milliseconds.
+   * @param value The encoded value.
+   * @param flags The flags describing the value.
+   * @param tags The tags of the series, copied when the series is new.
+   */
+  public void add(final byte[] row, final String metric, final long timestamp,
+      final byte[] value, final short flags, final Map<String, String> tags) {
+    if (shard_count > 1 && 
+        (metric.hashCode() & 0x7FFFFFFF) % shard_count != shard_id) {
+      foreign.incrementAndGet();
+      return;
+    }
+    final boolean is_float = (flags & Const.FLAG_FLOAT) != 0;
+    final long l = is_float ? 0 
+        : Internal.extractIntegerValue(value, 0, (byte) flags);
+    final double d = is_float 
+        ? Internal.extractFloatingPointValue(value, 0, (byte) flags) : l;
+    if (Double.isNaN(d) || Double.isInfinite(d)) {
+      return;
+    }
+    final long seconds = (timestamp & Const.SECOND_MASK) != 0
+        ? timestamp / 1000 : timestamp;
+
+    while (true) {
+      final Series ts = getOrCreate(row, metric, tags);
+      if (ts == null) {
+        rejected.incrementAndGet();
+        return;
+      }
+      synchronized (ts) {
+        if (ts.dropped) {
+          // reclaimed by a flush after we found it
+          continue;
+        }
+        for (int i = 0; i < intervals.length; i++) {
+          final long start = seconds - (seconds % widths[i]);
+          final int idx = ts.base + offsets[i]
+              + (int) ((start / widths[i]) % rings[i]) * WINDOW_BYTES;
+          final ByteBuffer page = ts.page;
+          int state = page.getInt(idx + STATE);
+          final long current = page.getLong(idx + START);
+          if (state != 0 && current > start) {
+            late_dropped.incrementAndGet();
+            continue;
+          }
+          if (state == 0 || current < start) {
+            if (start + widths[i] <= ts.since) {
+              // may have been written by an earlier registration
+              late_dropped.incrementAndGet();
+              continue;
+            }
+            if ((state & DIRTY) != 0) {
+              evictions.add(new Window(ts, i, page, idx));
+              evicted.incrementAndGet();
+            }
+            page.putLong(idx + START, start);
+            page.putLong(idx + COUNT, 0);
+            state = 0;
+          } else if ((state & FLUSHED) != 0 && (state & DIRTY) == 0) {
+            late_amended.incrementAndGet();
+          }
+          state = accumulate(page, idx, state, is_float, l, d);
+          page.putInt(idx + STATE, state | DIRTY);
+        }
+      }
+      break;
+    }
+    long max = max_timestamp.get();
+    while (seconds > max && !max_timestamp.compareAndSet(max, seconds)) {
+      max = max_timestamp.get();
+    }
+    datapoints.incrementAndGet();
+  }
+
+  /**
+   * Adds a value to a window, switching it to doubles if needed.
+   * @param page The page of the window.
+   * @param idx The index of the window in the page.
+   * @param state The state of the window.
+   * @param is_float Whether or not the value is a floating point value.
+   * @param l The integer value.
+   * @param d The value as a double.
+   * @return The new state of the window.
+   */
+  private static int accumulate(final ByteBuffer page, final int idx,
+      int state, final boolean is_float, final long l, final double d) {
+    final long count = page.getLong(idx + COUNT);
+    page.putLong(idx + COUNT, count + 1);
+    if (count == 0) {
+      if (is_float) {
+        page.putDouble(idx + SUM, d);
+        page.putDouble(idx + MIN, d);
+        page.putDouble(idx + MAX, d);
+        return state | FLOAT;
+      }
+      page.putLong(idx + SUM, l);
+      page.putLong(idx + MIN, l);
+      page.putLong(idx + MAX, l);
+      return state & ~FLOAT;
+    }
+    if ((state & FLOAT) == 0) {
+      final long sum = page.getLong(idx + SUM);
+      final long total = sum + l;
+      // the sign of the total only differs from both operands on overflow
+      if (!is_float && ((sum ^ total) & (l ^ total)) >= 0) {
+        page.putLong(idx + SUM, total);
+        page.putLong(idx + MIN, Math.min(l, page.getLong(idx + MIN)));
+        page.putLong(idx + MAX, Math.max(l, page.getLong(idx + MAX)));
+        return state;
+      }
+      page.putDouble(idx + SUM, (double) sum);
+      page.putDouble(idx + MIN, (double) page.getLong(idx + MIN));
+      page.putDouble(idx + MAX, (double) page.getLong(idx + MAX));
+      state |= FLOAT;
+    }
+    page.putDouble(idx + SUM, page.getDouble(idx + SUM) + d);
+    if (d < page.getDouble(idx + MIN)) {
+      page.putDouble(idx + MIN, d);
+    }
+    if (d > page.getDouble(idx + MAX)) {
+      page.putDouble(idx + MAX, d);
+    }
+    return state;
+  }
+
+  /**
+   * Writes the windows closed by the current watermark.
+   * @return A deferred called back once the windows were written.
+   */
+  public Deferred<Object> flush() {
+    return flush(System.currentTimeMillis(), false);
+  }
+
+  /**
+   * Stops the flush timer and writes all windows holding unwritten data.
+   * @return A deferred called back once the windows were written.
+   */
+  public Deferred<Object> shutdown() {
+    shutdown = true;
+    return flush(System.currentTimeMillis(), true);
+  }
+
+  /**
+   * Advances the watermark and writes the windows it closed along with the
+   * evicted ones.
+   * @param now The current time in milliseconds.
+   * @param all Whether or not to write every dirty window regardless of the
+   * watermark.
+   * @return A deferred called back once the windows were written.
+   */
+  Deferred<Object> flush(final long now, final boolean all) {
+    final long now_seconds = now / 1000;
+    final long mark;
+    synchronized (this) {
+      final long seen = datapoints.get();
+      if (seen != last_seen) {
+        last_seen = seen;
+        last_activity = now;
+      }
+      long event = Math.min(max_timestamp.get(), now_seconds);
+      if (now - last_activity >= lateness * 1000) {
+        // nothing came in for a while, so nothing late is expected either
+        event = now_seconds;
+      }
+      mark = Math.max(watermark, event - lateness);
+      watermark = mark;
+    }
+
+    final List<Window> closed = new ArrayList<Window>();
+    Window evicted_window;
+    while ((evicted_window = evictions.poll()) != null) {
+      closed.add(evicted_window);
+    }
+    final Iterator<Series> iterator = series.values().iterator();
+    while (iterator.hasNext()) {
+      final Series ts = iterator.next();
+      synchronized (ts) {
+        if (ts.dropped) {
+          // reclaimed by a concurrent flush, its windows may be reused
+          continue;
+        }
+        boolean dirty = false;
+        long last_end = 0;
+        for (int i = 0; i < intervals.length; i++) {
+          for (int w = 0; w < rings[i]; w++) {
+            final int idx = ts.base + offsets[i] + w * WINDOW_BYTES;
+            final int state = ts.page.getInt(idx + STATE);
+            if (state == 0) {
+              continue;
+            }
+            final long end = ts.page.getLong(idx + START) + widths[i];
+            last_end = Math.max(last_end, end);
+            if ((state & DIRTY) == 0) {
+              continue;
+            }
+            if (!all && end > mark) {
+              dirty = true;
+              continue;
+            }
+            closed.add(new Window(ts, i, ts.page, idx));
+            ts.page.putInt(idx + STATE, (state & ~DIRTY) | FLUSHED);
+          }
+        }
+        if (!all && !dirty && last_end + lateness <= mark) {
+          ts.dropped = true;
+          iterator.remove();
+          release(ts);
+        }
+      }
+    }
+    if (closed.isEmpty()) {
+      return Deferred.fromResult(null);
+    }
+    return write(closed, now_seconds);
+  }
+
+  @Override
+  public void run(final Timeout timeout) {
+    if (shutdown) {
+      return;
+    }
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      LOG.error("Unexpected exception flushing the rollup engine", e);
+    } finally {
+      if (!shutdown) {
+        tsdb.getTimer().newTimeout(this, flush_interval, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Tells how far behind the wall clock the rollups of an interval may be,
+   * i.e. the width of a window, the lateness and the flush interval.
+   * @param interval The rollup interval.
+   * @return The maximum lag in seconds, 0 if the interval isn't computed by
+   * the engine.
+   */
+  public int getMaximumLag(final RollupInterval interval) {
+    for (int i = 0; i < intervals.length; i++) {
+      if (intervals[i].getInterval().equals(interval.getInterval())) {
+        return (int) (widths[i] + lateness + (flush_interval + 999) / 1000);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return Whether the rollup tables are complete up to the engine's lag,
+   * i.e. "tsd.rollups.engine.complete" is set.
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /** @return The current watermark in seconds */
+  long watermark() {
+    return watermark;
+  }
+
+  /** @return The number of series with windows */
+  synchronized int seriesCount() {
+    return series_count;
+  }
+
+  /** @return The number of bytes allocated for windows */
+  synchronized long memory() {
+    return (long) ((next_slot + series_per_page - 1) / series_per_page)
+        * series_per_page * stride;
+  }
+
+  /**
+   * Collects the stats for the rollup engine.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("rollup.engine.series", seriesCount());
+    collector.record("rollup.engine.memory", memory());
+    collector.record("rollup.engine.watermark", watermark);
+    collector.record("rollup.engine.datapoints", datapoints.get());
+    collector.record("rollup.engine.late", late_amended.get(), "type=amended");
+    collector.record("rollup.engine.late", late_dropped.get(), "type=dropped");
+    collector.record("rollup.engine.evicted", evicted.get());
+    collector.record("rollup.engine.rejected", rejected.get());
+    collector.record("rollup.engine.foreign", foreign.get());
+    collector.record("rollup.engine.reclaimed", reclaimed.get());
+    collector.record("rollup.engine.flushed", flushed.get());
+    collector.record("rollup.engine.errors", errors.get());
+    synchronized (flush_lag) {
+      collector.record("rollup.engine.flush.lag", flush_lag, null);
+    }
+  }
+
+  /**
+   * Finds the series or registers it with the next free windows.
+   * @return The series or null if the table is full.
+   */
+  private Series getOrCreate(final byte[] row, final String metric,
+      final Map<String, String> tags) {
+    final SeriesKey probe = new SeriesKey(row, metric_offset, tags_offset);
+    final Series ts = series.get(probe);
+    if (ts != null) {
+      return ts;
+    }
+    synchronized (this) {
+      final Series existing = series.get(probe);
+      if (existing != null) {
+        return existing;
+      }
+      if (series_count >= max_series) {
+        return null;
+      }
+      final int slot = free_count > 0 ? free_slots[--free_count] : next_slot++;
+      final int page = slot / series_per_page;
+      if (pages[page] == null) {
+        pages[page] = ByteBuffer.allocateDirect(series_per_page * stride);
+      }
+      final int base = (slot % series_per_page) * stride;
+      for (int idx = base; idx < base + stride; idx += WINDOW_BYTES) {
+        pages[page].putInt(idx + STATE, 0);
+      }
+      final SeriesKey key = new SeriesKey(Arrays.copyOf(row, row.length),
+          metric_offset, tags_offset);
+      final Series created = new Series(metric,
+          new HashMap<String, String>(tags), pages[page], base, slot,
+          watermark);
+      series_count++;
+      series.put(key, created);
+      return created;
+    }
+  }
+
+  /** Returns the windows of a dropped series to the free slots. */
+  private synchronized void release(final Series ts) {
+    if (free_count == free_slots.length) {
+      free_slots = Arrays.copyOf(free_slots, free_count * 2);
+    }
+    free_slots[free_count++] = ts.slot;
+    series_count--;
+    reclaimed.incrementAndGet();
+  }
+
+  /**
+   * Writes the windows with each aggregator.
+   * @param windows The windows to write.
+   * @param now The current time in seconds.
+   * @return A deferred called back once the windows were written.
+   */
+  private Deferred<Object> write(final List<Window> windows, final long now) {
+    final ArrayList<Deferred<Object>> deferreds =
+        new ArrayList<Deferred<Object>>(windows.size() * aggregators.length);
+
+    /** Counts failed writes */
+    final class ErrCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) {
+        errors.incrementAndGet();
+        LOG.warn("Failed to write a rollup", e);
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "rollup engine write errback";
+      }
+    }
+
+    for (final Window window : windows) {
+      final RollupInterval interval = intervals[window.interval];
+      final long end = window.start + widths[window.interval];
+      synchronized (flush_lag) {
+        flush_lag.add((int) Math.max(0, now - end));
+      }
+      for (final String agg : aggregators) {
+        try {
+          final Deferred<Object> d;
+          // the tags may be modified by addAggregatePoint
+          final Map<String, String> tags =
+              new HashMap<String, String>(window.series.tags);
+          if (agg.equals("count")) {
+            d = tsdb.addAggregatePoint(window.series.metric, window.start,
+                window.count, tags, false, interval.getInterval(), agg, null);
+          } else if (window.is_float) {
+            final double value = agg.equals("sum") ? window.sum
+                : agg.equals("min") ? window.min : window.max;
+            d = tsdb.addAggregatePoint(window.series.metric, window.start,
+                value, tags, false, interval.getInterval(), agg, null);
+          } else {
+            final long value = agg.equals("sum") ? window.long_sum
+                : agg.equals("min") ? window.long_min : window.long_max;
+            d = tsdb.addAggregatePoint(window.series.metric, window.start,
+                value, tags, false, interval.getInterval(), agg, null);
+          }
+          deferreds.add(d.addErrback(new ErrCB()));
+          flushed.incrementAndGet();
+        } catch (RuntimeException e) {
+          errors.incrementAndGet();
+          LOG.warn("Failed to write the " + agg + " rollup of "
+              + window.series.metric + window.series.tags + " at "
+              + window.start, e);
+        }
+      }
+    }
+
+    final class GroupCB implements Callback<Object, ArrayList<Object>> {
+      @Override
+      public Object call(final ArrayList<Object> ignored) {
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "rollup engine flush";
+      }
+    }
+    return Deferred.group(deferreds).addCallback(new GroupCB());
+  }
+
+  /** A series and where its windows are */
+  private static final class Series {
+    private final String metric;
+    private final Map<String, String> tags;
+    private final ByteBuffer page;
+    private final int base;
+    private final int slot;
+    /** The watermark when the series was registered */
+    private final long since;
+    /** Set once the series was reclaimed. Guarded by this. */
+    private boolean dropped;
+
+    Series(final String metric, final Map<String, String> tags,
+        final ByteBuffer page, final int base, final int slot,
+        final long since) {
+      this.metric = metric;
+      this.tags = tags;
+      this.page = page;
+      this.base = base;
+      this.slot = slot;
+      this.since = since;
+    }
+  }
+
+  /**
+   * The metric and tag UIDs of a row key, i.e. its TSUID, compared in place
+   * so that looking up a series doesn't copy the key.
+   */
+  private static final class SeriesKey {
+    private final byte[] row;
+    private final int metric_offset;
+    private final int tags_offset;
+    private final int hash;
+
+    /**
+     * Default ctor.
+     * @param row The row key, not copied.
+     * @param metric_offset Where the metric UID starts.
+     * @param tags_offset Where the tags start, after the base time.
+     */
+    SeriesKey(final byte[] row, final int metric_offset, 
+        final int tags_offset) {
+      this.row = row;
+      this.metric_offset = metric_offset;
+      this.tags_offset = tags_offset;
+      int h = 1;
+      for (int i = metric_offset; i < tags_offset - Const.TIMESTAMP_BYTES; 
+          i++) {
+        h = 31 * h + row[i];
+      }
+      for (int i = tags_offset; i < row.length; i++) {
+        h = 31 * h + row[i];
+      }
+      hash = h;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof SeriesKey)) {
+        return false;
+      }
+      final SeriesKey other = (SeriesKey) obj;
+      if (hash != other.hash || row.length != other.row.length) {
+        return false;
+      }
+      final int metric_end = tags_offset - Const.TIMESTAMP_BYTES;
+      for (int i = metric_offset; i < metric_end; i++) {
+        if (row[i] != other.row[i]) {
+          return false;
+        }
+      }
+      for (int i = tags_offset; i < row.length; i++) {
+        if (row[i] != other.row[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** A copy of a window to write */
+  private static final class Window {
+    private final Series series;
+    private final int interval;
+    private final long start;
+    private final long count;
+    private final boolean is_float;
+    private final double sum;
+    private final double min;
+    private final double max;
+    private final long long_sum;
+    private final long long_min;
+    private final long long_max;
+
+    /** Copies the window at the index. Must hold the lock of the series. */
+    Window(final Series series, final int interval, final ByteBuffer page,
+        final int idx) {
+      this.series = series;
+      this.interval = interval;
+      start = page.getLong(idx + START);
+      count = page.getLong(idx + COUNT);
+      is_float = (page.getInt(idx + STATE) & FLOAT) != 0;
+      if (is_float) {
+        sum = page.getDouble(idx + SUM);
+        min = page.getDouble(idx + MIN);
+        max = page.getDouble(idx + MAX);
+        long_sum = long_min = long_max = 0;
+      } else {
+        long_sum = page.getLong(idx + SUM);
+        long_min = page.getLong(idx + MIN);
+        long_max = page.getLong(idx + MAX);
+        sum = min = max = 0;
+      }
+    }
+  }
+}
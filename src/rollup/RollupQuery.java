@@ -43,6 +43,9 @@ public class RollupQuery {
    * requested sampling rate. It is in milliseconds*/
   private final long sample_interval_ms;
 
+  /** How far behind the wall clock, in seconds, the rollups may be */
+  private int maximum_lag;
+
   /**
    * Default constructor
    * @param rollup_interval RollupInterval object
@@ -96,6 +99,7 @@ public class RollupQuery {
           this.group_by.toString());
     }
     this.sample_interval_ms = sample_interval_ms;
+    maximum_lag = rollup_interval.getMaximumLag();
   }
 
   @Override
@@ -187,6 +191,26 @@ public class RollupQuery {
     return this.rollup_interval.getIntervalSeconds() * 1000 < sample_interval_ms;
   }
 
+  /**
+   * @return How far behind the wall clock, in seconds, the rollups may be.
+   * Defaults to the SLA of the rollup interval, 0 if none.
+   * @since 2.4
+   */
+  public int getMaximumLag() {
+    return maximum_lag;
+  }
+
+  /**
+   * Overrides the SLA of the rollup interval, e.g. with the delay of the
+   * rollup engine when no SLA was configured.
+   * @param maximum_lag How far behind the wall clock, in seconds, the rollups
+   * may be.
+   * @since 2.4
+   */
+  public void setMaximumLag(final int maximum_lag) {
+    this.maximum_lag = maximum_lag;
+  }
+
   /**
    * Looks at the SLA configured for the table to be queried and determines the
    * timestamp of the latest data point that is guaranteed to be covered by the
@@ -194,7 +218,7 @@ public class RollupQuery {
    * @return last timestamp in seconds of the period guaranteed to be covered
    */
   public int getLastRollupTimestampSeconds() {
-    return (int) (DateTime.currentTimeMillis()/1000 - getRollupInterval().getMaximumLag());
+    return (int) (DateTime.currentTimeMillis()/1000 - maximum_lag);
   }
 
   /**
@@ -204,7 +228,7 @@ public class RollupQuery {
    * @return whether the timestamp is in the blackout period
    */
   public boolean isInBlackoutPeriod(long timestampMillis) {
-    long latestRollupPointTimestamp = DateTime.currentTimeMillis() - getRollupInterval().getMaximumLag()*1000L;
+    long latestRollupPointTimestamp = DateTime.currentTimeMillis() - maximum_lag*1000L;
 
     return timestampMillis > latestRollupPointTimestamp;
   }
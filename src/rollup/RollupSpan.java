@@ -53,6 +53,7 @@ public final class RollupSpan extends Span {
   
   @Override
   protected void addRow(final KeyValue row) {
+    dropMaterialized();
     if (rows.size() > 0) {
       final byte[] key = row.key();
       final iRowSeq last = rows.get(rows.size() - 1);
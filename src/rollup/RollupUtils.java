@@ -13,12 +13,14 @@
 package net.opentsdb.rollup;
 
 import java.util.Calendar;
+import java.util.TimeZone;
 
 import org.hbase.async.Bytes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.opentsdb.core.Const;
+import net.opentsdb.utils.DateTime;
 
 /**
  * Static util class for dealing with parsing and storing rolled up data points
@@ -253,6 +255,49 @@ public final class RollupUtils {
             .getBytes(Const.ASCII_CHARSET);
   }
 
+  /**
+   * Determines whether or not every window of the rollup interval falls within
+   * a single calendar downsampling interval over the range, i.e. whether the
+   * rollups can be re-aggregated into the calendar intervals. Rollups are
+   * aligned on UTC so each calendar boundary from the one before the start 
+   * through the one after the end, at the timezone's offset at that instant,
+   * must be a multiple of the rollup interval.
+   * @param interval The rollup interval.
+   * @param calendar_interval The downsampling interval, e.g. "1d".
+   * @param timezone The timezone of the calendar, UTC if null.
+   * @param start The start of the range in milliseconds.
+   * @param end The end of the range in milliseconds.
+   * @return True if the rollup windows align with the calendar intervals.
+   * @throws IllegalArgumentException if the calendar interval is invalid.
+   * @since 2.4
+   */
+  public static boolean alignsWithCalendar(final RollupInterval interval,
+      final String calendar_interval, final TimeZone timezone, 
+      final long start, final long end) {
+    final long width = interval.getIntervalSeconds() * 1000;
+    if (width <= 0) {
+      return false;
+    }
+    final int count = DateTime.getDurationInterval(calendar_interval);
+    final int unit = DateTime.unitsToCalendarType(
+        DateTime.getDurationUnits(calendar_interval));
+    final Calendar calendar = DateTime.previousInterval(start, count, unit,
+        timezone == null ? DateTime.timezones.get(DateTime.UTC_ID) : timezone);
+    while (true) {
+      if (calendar.getTimeInMillis() % width != 0) {
+        return false;
+      }
+      if (calendar.getTimeInMillis() > end) {
+        return true;
+      }
+      if (unit == Calendar.DAY_OF_WEEK) {
+        calendar.add(Calendar.DAY_OF_MONTH, count * 7);
+      } else {
+        calendar.add(unit, count);
+      }
+    }
+  }
+
   /**
    * Determines whether or not the column has been compacted or appended.
    * @param qualifier A non-null and non-empty byte array.
@@ -120,6 +120,9 @@ public class QueryStats {
   /** Holds a lis tof the scanner IDs for each scanner */
   private final Map<Integer, Map<Integer, String>> scanner_ids;
   
+  /** Holds the get request latency percentiles per storage lane */
+  private final Map<Integer, Map<String, Map<String, Integer>>> get_latencies;
+  
   /** Holds a copy of the headers from the request */
   private final Map<String, String> headers;
   
@@ -132,6 +135,12 @@ public class QueryStats {
   public enum QueryStat {
     // Query Setup stats
     STRING_TO_UID_TIME ("stringToUidTime", true),
+    RESULT_CACHE_HITS ("resultCacheHits", false),
+    RESULT_CACHE_MISSES ("resultCacheMisses", false),
+    COALESCED ("coalesced", false),
+    ROLLUP_HITS ("rollupHits", false),
+    ROLLUP_MISSES ("rollupMisses", false),
+    ROLLUP_SPLITS ("rollupSplits", false),
     
     // Storage stats
     COLUMNS_FROM_STORAGE ("columnsFromStorage", false),
@@ -144,6 +153,9 @@ public class QueryStats {
     ROWS_PRE_FILTER ("rowsPreFilter", false),
     DPS_POST_FILTER ("dpsPostFilter", false),
     ROWS_POST_FILTER ("rowsPostFilter", false),
+    ROWS_FILTERED_BY_UID ("rowsFilteredByUid", false),
+    ROWS_FILTERED_BY_NAME ("rowsFilteredByName", false),
+    ROW_CACHE_HITS ("rowCacheHits", false),
     SCANNER_UID_TO_STRING_TIME ("scannerUidToStringTime", true),
     COMPACTION_TIME ("compactionTime", true),
     HBASE_TIME ("hbaseTime", true),
@@ -152,10 +164,18 @@ public class QueryStats {
     
     // Overall Salt Scanner stats
     SCANNER_MERGE_TIME ("saltScannerMergeTime", true),
+    SCAN_PARTITIONS ("scanPartitions", false),
+    PLANNED_MULTI_GET ("plannedMultiGet", false),
+    PLANNED_FUZZY_SCAN ("plannedFuzzyScan", false),
+    PLANNED_SCAN ("plannedScan", false),
+    ESTIMATED_ROWS ("estimatedRows", false),
+    ACTUAL_ROWS ("actualRows", false),
+    PEAK_BYTES_RETAINED ("peakBytesRetained", false),
     
     // Post Scan stats
     QUERY_SCAN_TIME ("queryScanTime", true),
     GROUP_BY_TIME ("groupByTime", true),
+    AGGREGATION_CPU_TIME ("aggregationCpuTime", true),
     
     // Serialization time stats
     UID_TO_STRING_TIME ("uidToStringTime", true),
@@ -166,6 +186,7 @@ public class QueryStats {
     
     // Final stats
     PROCESSING_PRE_WRITE_TIME ("processingPreWriteTime", true),
+    TIME_TO_FIRST_BYTE ("timeToFirstByte", true),
     TOTAL_TIME ("totalTime", true),
     
     // MAX and Agg Times
@@ -185,6 +206,8 @@ public class QueryStats {
     AVG_SCAN_TIME ("avgQueryScanTime", true),
     MAX_AGGREGATION_TIME ("maxAggregationTime", true),
     AVG_AGGREGATION_TIME ("avgAggregationTime", true),
+    MAX_AGGREGATION_CPU_TIME ("maxAggregationCpuTime", true),
+    AVG_AGGREGATION_CPU_TIME ("avgAggregationCpuTime", true),
     MAX_SERIALIZATION_TIME ("maxSerializationTime", true),
     AVG_SERIALIZATION_TIME ("avgSerializationTime", true)
     ;
@@ -222,6 +245,8 @@ public class QueryStats {
         QueryStat.MAX_SCAN_TIME, QueryStat.AVG_SCAN_TIME));
     AGG_MAP.put(QueryStat.AGGREGATION_TIME, new Pair<QueryStat, QueryStat>(
         QueryStat.MAX_AGGREGATION_TIME, QueryStat.AVG_AGGREGATION_TIME));
+    AGG_MAP.put(QueryStat.AGGREGATION_CPU_TIME, new Pair<QueryStat, QueryStat>(
+        QueryStat.AVG_AGGREGATION_CPU_TIME, QueryStat.MAX_AGGREGATION_CPU_TIME));
     AGG_MAP.put(QueryStat.SERIALIZATION_TIME, new Pair<QueryStat, QueryStat>(
         QueryStat.MAX_SERIALIZATION_TIME, 
         QueryStat.AVG_SERIALIZATION_TIME));
@@ -255,6 +280,8 @@ public class QueryStats {
         Map<Integer, Map<QueryStat, Long>>>(1);
     scanner_servers = new ConcurrentHashMap<Integer, Map<Integer, Set<String>>>(1);
     scanner_ids = new ConcurrentHashMap<Integer, Map<Integer, String>>(1);
+    get_latencies = 
+        new ConcurrentHashMap<Integer, Map<String, Map<String, Integer>>>(1);
     if (LOG.isDebugEnabled()) {
       LOG.debug("New query for remote " + remote_address + " with hash " + 
           hashCode() + " on thread " + Thread.currentThread().getId());
@@ -371,6 +398,19 @@ public class QueryStats {
     }
   }
   
+  /**
+   * Records the time until the status and first bytes of the response were
+   * handed to the channel. For streamed responses this comes before the
+   * serialization completes. Only the first call is recorded.
+   * @since 2.4
+   */
+  public void markFirstByte() {
+    if (!overall_stats.containsKey(QueryStat.TIME_TO_FIRST_BYTE)) {
+      overall_stats.put(QueryStat.TIME_TO_FIRST_BYTE, 
+          DateTime.nanoTime() - query_start_ns);
+    }
+  }
+  
   /**
    * Marks the query as complete and logs it to the proper logs. This is called
    * after the data has been sent to the client.
@@ -671,6 +711,30 @@ public class QueryStats {
     scanner_stat_map.put(name, cum_time);
   }
 
+  /**
+   * Adds the latency percentiles of the get requests sent to a storage lane,
+   * e.g. a salt bucket, for a sub query.
+   * @param query_index The index of the sub query
+   * @param lane The name of the lane
+   * @param histogram The latencies of the requests in milliseconds
+   * @since 2.4
+   */
+  public void addGetLatencies(final int query_index, final String lane, 
+      final Histogram histogram) {
+    Map<String, Map<String, Integer>> lanes = get_latencies.get(query_index);
+    if (lanes == null) {
+      lanes = new ConcurrentHashMap<String, Map<String, Integer>>();
+      get_latencies.put(query_index, lanes);
+    }
+    final Map<String, Integer> percentiles = new TreeMap<String, Integer>();
+    percentiles.put("p50", histogram.percentile(50));
+    percentiles.put("p75", histogram.percentile(75));
+    percentiles.put("p90", histogram.percentile(90));
+    percentiles.put("p95", histogram.percentile(95));
+    percentiles.put("p99", histogram.percentile(99));
+    lanes.put(lane, percentiles);
+  }
+
   /**
    * Adds a scanner for a sub query to the stats along with the description of
    * the scanner.
@@ -868,6 +932,11 @@ public class QueryStats {
         }
       }
     }
+    
+    final Map<String, Map<String, Integer>> lanes = get_latencies.get(index);
+    if (lanes != null) {
+      query_map.put("getLatencies", new TreeMap<String, Object>(lanes));
+    }
     return query_map;
   }
   
@@ -18,6 +18,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.zip.GZIPInputStream;
 
 import com.stumbleupon.async.Callback;
@@ -34,6 +35,7 @@ import org.hbase.async.PutRequest;
 import net.opentsdb.core.Tags;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.WritableDataPoints;
+import net.opentsdb.core.WriteQueueFullException;
 import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.utils.Config;
 
@@ -107,8 +109,15 @@ final class TextImporter {
     final BufferedReader in = open(path);
     String line = null;
     int points = 0;
+    // points the write coalescing stage rejected, to write again
+    final ConcurrentLinkedQueue<Point> rejected = 
+        new ConcurrentLinkedQueue<Point>();
     try {
       final class Errback implements Callback<Object, Exception> {
+        private final Point point;
+        Errback(final Point point) {
+          this.point = point;
+        }
         public Object call(final Exception arg) {
           if (arg instanceof PleaseThrottleException) {
             final PleaseThrottleException e = (PleaseThrottleException) arg;
@@ -120,6 +129,12 @@ final class TextImporter {
             }
             return null;
           }
+          if (arg instanceof WriteQueueFullException) {
+            LOG.warn("Need to throttle, the write queue is full.", arg);
+            throttle = true;
+            rejected.add(point);  // Don't lose edits.
+            return null;
+          }
           LOG.error("Exception caught while processing file "
                     + path, arg);
           System.exit(2);
@@ -129,7 +144,6 @@ final class TextImporter {
           return "importFile errback";
         }
       };
-      final Errback errback = new Errback();
       LOG.info("reading from file:" + path);
       while ((line = in.readLine()) != null) {
         final String[] words = Tags.splitString(line, ' ');
@@ -188,14 +202,10 @@ final class TextImporter {
             }
           }
           
-          final WritableDataPoints dp = getDataPoints(tsdb, metric, tags);
-          Deferred<Object> d;
-          if (Tags.looksLikeInteger(value)) {
-            d = dp.addPoint(timestamp, Tags.parseLong(value));
-          } else {  // floating point value
-            d = dp.addPoint(timestamp, Float.parseFloat(value));
-          }
-          d.addErrback(errback);
+          final Point point = 
+              new Point(getDataPoints(tsdb, metric, tags), timestamp, value);
+          final Deferred<Object> d = 
+              point.write().addErrback(new Errback(point));
           points++;
           if (points % 1000000 == 0) {
             final long now = System.nanoTime();
@@ -225,6 +235,10 @@ final class TextImporter {
             }
             LOG.info("Done throttling...");
             throttle = false;
+            for (int i = rejected.size(); i > 0; i--) {
+              final Point retry = rejected.poll();
+              retry.write().addErrback(new Errback(retry));
+            }
           }
         } catch (final RuntimeException e) {
           if (skip_errors) {
@@ -237,6 +251,19 @@ final class TextImporter {
           }
         }
       }
+      while (!rejected.isEmpty()) {
+        LOG.info("Throttling to write " + rejected.size() 
+            + " rejected data points...");
+        try { 
+          Thread.sleep(1000); 
+        } catch (InterruptedException e) { 
+          throw new RuntimeException("interrupted", e); 
+        }
+        for (int i = rejected.size(); i > 0; i--) {
+          final Point retry = rejected.poll();
+          retry.write().addErrback(new Errback(retry));
+        }
+      }
     } catch (RuntimeException e) {
         LOG.error("Exception caught while processing file "
                   + path + " line=[" + line + "]", e);
@@ -252,6 +279,29 @@ final class TextImporter {
     return points;
   }
 
+  /** A data point to write, kept to write it again if it was rejected. */
+  private static final class Point {
+    private final WritableDataPoints dp;
+    private final long timestamp;
+    private final String value;
+
+    Point(final WritableDataPoints dp, final long timestamp, 
+        final String value) {
+      this.dp = dp;
+      this.timestamp = timestamp;
+      this.value = value;
+    }
+
+    /** @return The deferred result of writing the point. */
+    Deferred<Object> write() {
+      if (Tags.looksLikeInteger(value)) {
+        return dp.addPoint(timestamp, Tags.parseLong(value));
+      }
+      // floating point value
+      return dp.addPoint(timestamp, Float.parseFloat(value));
+    }
+  }
+
   /**
    * Opens a file for reading, handling gzipped files.
    * @param path The file to open.
@@ -27,7 +27,9 @@ import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
@@ -77,6 +79,9 @@ public abstract class AbstractHttpQuery {
   
   /** Used for recording query statistics */
   protected QueryStats stats;
+
+  /** Whether or not the headers of a chunked reply were sent */
+  private volatile boolean chunked_reply;
   
   /**
    * Set up required internal state.  For subclasses.
@@ -410,6 +415,10 @@ public abstract class AbstractHttpQuery {
       done();
       return;
     }
+    if (chunked_reply) {
+      abortChunkedReply();
+      return;
+    }
 
     response.setStatus(status);
     final boolean keepalive = HttpHeaders.isKeepAlive(request);
@@ -441,6 +450,10 @@ public abstract class AbstractHttpQuery {
       done();
       return;
     }
+    if (chunked_reply) {
+      abortChunkedReply();
+      return;
+    }
     response.headers().set(HttpHeaders.Names.CONTENT_TYPE, contentType);
 
     // TODO(tsuna): Server, X-Backend, etc. headers.
@@ -452,6 +465,9 @@ public abstract class AbstractHttpQuery {
     if (keepalive) {
       HttpHeaders.setContentLength(response, buf.readableBytes());
     }
+    if (stats != null) {
+      stats.markFirstByte();
+    }
     final ChannelFuture future = chan.write(response);
     if (stats != null) {
       future.addListener(new SendSuccess());
@@ -461,6 +477,64 @@ public abstract class AbstractHttpQuery {
     }
     done();
   }
+
+  /**
+   * Starts a chunked reply by sending the status and headers with
+   * {@code Transfer-Encoding: chunked}. The body then has to be written with
+   * {@link #writeChunk} and terminated with {@link #finishChunkedReply}.
+   * Once started, error replies can't be sent anymore so the channel is
+   * closed instead.
+   * @param contentType The content type of the body.
+   * @return The future of the write.
+   * @since 2.4
+   */
+  public ChannelFuture startChunkedReply(final String contentType) {
+    response.headers().set(HttpHeaders.Names.CONTENT_TYPE, contentType);
+    response.setStatus(HttpResponseStatus.OK);
+    response.setChunked(true);
+    HttpHeaders.setTransferEncodingChunked(response);
+    chunked_reply = true;
+    if (stats != null) {
+      stats.markFirstByte();
+    }
+    return chan.write(response);
+  }
+
+  /**
+   * Writes a chunk of the body of a reply started with
+   * {@link #startChunkedReply}.
+   * @param buf The content of the chunk, must not be empty.
+   * @return The future of the write.
+   * @since 2.4
+   */
+  public ChannelFuture writeChunk(final ChannelBuffer buf) {
+    return chan.write(new DefaultHttpChunk(buf));
+  }
+
+  /**
+   * Terminates a reply started with {@link #startChunkedReply}.
+   * @since 2.4
+   */
+  public void finishChunkedReply() {
+    final ChannelFuture future = chan.write(HttpChunk.LAST_CHUNK);
+    if (stats != null) {
+      future.addListener(new SendSuccess());
+    }
+    if (!HttpHeaders.isKeepAlive(request)) {
+      future.addListener(ChannelFutureListener.CLOSE);
+    }
+    done();
+  }
+
+  /** Closes the channel as the client can't tell a chunked reply failed */
+  private void abortChunkedReply() {
+    logWarn("Closing the channel of a chunked reply that failed");
+    chan.close();
+    if (stats != null) {
+      stats.markSendFailed();
+    }
+    done();
+  }
   
   /** A simple class that marks a query as complete when the stats are set */
   private class SendSuccess implements ChannelFutureListener {
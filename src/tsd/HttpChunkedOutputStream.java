@@ -0,0 +1,261 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.ClosedChannelException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+import com.stumbleupon.async.Deferred;
+
+/**
+ * An output stream that sends what is written to it as an HTTP chunked reply.
+ * Bytes are buffered until the chunk size is reached or {@link #flush} is
+ * called, then written to the channel as one chunk. The status and headers
+ * are sent with the first chunk.
+ * <p>
+ * Writes never block. Instead, writers should wait on {@link #awaitWindow}
+ * between logical pieces of the response: it is called back once the bytes
+ * handed to the channel but not yet written to the socket fall under the
+ * window and the channel is writable. This bounds the memory a reply holds
+ * to about the window plus one piece.
+ * <p>
+ * If nothing was flushed before {@link #close}, the content is sent as a
+ * regular reply with a content length instead.
+ * <p>
+ * Writes must not be concurrent but may come from different threads.
+ * @since 2.4
+ */
+public final class HttpChunkedOutputStream extends OutputStream {
+
+  /** The query to reply to */
+  private final AbstractHttpQuery query;
+
+  /** The content type of the reply */
+  private final String content_type;
+
+  /** The maximum size of a chunk in bytes */
+  private final int chunk_size;
+
+  /** The maximum number of bytes written to the channel but not flushed */
+  private final long window;
+
+  /** The bytes written since the last chunk */
+  private ChannelBuffer buffer;
+
+  /** Whether or not the status and headers were sent */
+  private boolean started;
+
+  /** Whether or not the stream was closed */
+  private boolean closed;
+
+  /** Bytes handed to the channel that haven't been written yet */
+  private long pending;
+
+  /** Called back when the pending bytes fall under the window */
+  private Deferred<Object> waiter;
+
+  /** The first write failure, if any */
+  private Throwable failure;
+
+  /** Total bytes of the body sent as chunks */
+  private long bytes_sent;
+
+  /**
+   * Default ctor.
+   * @param query The query to reply to.
+   * @param content_type The content type of the reply.
+   * @param chunk_size The maximum size of a chunk in bytes.
+   * @param window The maximum number of bytes to hand to the channel before
+   * {@link #awaitWindow} makes writers wait.
+   * @throws IllegalArgumentException if the chunk size or window is less than 1
+   */
+  public HttpChunkedOutputStream(final AbstractHttpQuery query,
+      final String content_type, final int chunk_size, final long window) {
+    if (chunk_size < 1) {
+      throw new IllegalArgumentException("Chunk size must be greater than 0");
+    }
+    if (window < 1) {
+      throw new IllegalArgumentException("Window must be greater than 0");
+    }
+    this.query = query;
+    this.content_type = content_type;
+    this.chunk_size = chunk_size;
+    this.window = window;
+    buffer = ChannelBuffers.dynamicBuffer(Math.min(chunk_size, 4096));
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    ensureOpen();
+    buffer.writeByte(b);
+    if (buffer.readableBytes() >= chunk_size) {
+      sendChunk();
+    }
+  }
+
+  @Override
+  public void write(final byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    while (len > 0) {
+      final int n = Math.min(len, chunk_size - buffer.readableBytes());
+      buffer.writeBytes(b, off, n);
+      off += n;
+      len -= n;
+      if (buffer.readableBytes() >= chunk_size) {
+        sendChunk();
+      }
+    }
+  }
+
+  /** Sends the buffered bytes, if any, as a chunk */
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    sendChunk();
+  }
+
+  /**
+   * Ends the reply. If nothing was flushed yet, the buffered bytes are sent
+   * as a regular reply. Closing twice is a no-op.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (!started) {
+      query.sendBuffer(HttpResponseStatus.OK, buffer, content_type);
+      return;
+    }
+    sendChunk();
+    query.finishChunkedReply();
+  }
+
+  /**
+   * Returns a deferred to wait on before writing more. It's called back
+   * immediately unless the bytes handed to the channel exceed the window or
+   * the channel isn't writable, in which case it's called back, on the
+   * channel's I/O thread, once enough was written to the socket.
+   * @return A deferred called back with null when writes can resume, or with
+   * the exception if a write to the channel failed.
+   */
+  public synchronized Deferred<Object> awaitWindow() {
+    if (failure != null) {
+      return Deferred.fromError(asException(failure));
+    }
+    if (pending > window || (pending > 0 && !query.channel().isWritable())) {
+      if (waiter == null) {
+        waiter = new Deferred<Object>();
+      }
+      return waiter;
+    }
+    return Deferred.fromResult(null);
+  }
+
+  /** @return Whether or not the status and headers were sent */
+  public boolean isStarted() {
+    return started;
+  }
+
+  /** @return The number of body bytes sent as chunks */
+  public long bytesSent() {
+    return bytes_sent;
+  }
+
+  /** @return The number of bytes handed to the channel but not written yet */
+  public synchronized long pendingBytes() {
+    return pending;
+  }
+
+  /** Writes the buffer as a chunk, starting the reply if necessary */
+  private void sendChunk() throws IOException {
+    if (buffer.readableBytes() < 1) {
+      return;
+    }
+    synchronized (this) {
+      if (failure != null) {
+        throw new IOException("Failed to write to the channel", failure);
+      }
+    }
+    if (!started) {
+      if (!query.channel().isConnected()) {
+        throw new ClosedChannelException();
+      }
+      started = true;
+      query.startChunkedReply(content_type)
+        .addListener(new Written(0));
+    }
+    final ChannelBuffer chunk = buffer;
+    buffer = ChannelBuffers.dynamicBuffer(Math.min(chunk_size, 4096));
+    final int size = chunk.readableBytes();
+    synchronized (this) {
+      pending += size;
+    }
+    bytes_sent += size;
+    query.writeChunk(chunk).addListener(new Written(size));
+  }
+
+  /** @throws IOException if the stream was closed */
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  /** @return The throwable as an exception, wrapped if needed */
+  private static Exception asException(final Throwable t) {
+    return t instanceof Exception ? (Exception) t : new IOException(t);
+  }
+
+  /** Releases the window once a write made it to the socket */
+  private final class Written implements ChannelFutureListener {
+    private final int size;
+
+    Written(final int size) {
+      this.size = size;
+    }
+
+    @Override
+    public void operationComplete(final ChannelFuture future) {
+      final Deferred<Object> resume;
+      final Throwable cause;
+      synchronized (HttpChunkedOutputStream.this) {
+        pending -= size;
+        if (!future.isSuccess() && failure == null) {
+          failure = future.getCause() != null ? future.getCause()
+              : new ClosedChannelException();
+        }
+        cause = failure;
+        if (waiter == null || (cause == null && pending > window)) {
+          return;
+        }
+        resume = waiter;
+        waiter = null;
+      }
+      // outside of the lock as the writer continues on this thread
+      if (cause != null) {
+        resume.callback(asException(cause));
+      } else {
+        resume.callback(null);
+      }
+    }
+  }
+}
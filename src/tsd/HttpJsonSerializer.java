@@ -641,14 +641,67 @@ class HttpJsonSerializer extends HttpSerializer {
   public Deferred<ChannelBuffer> formatQueryAsyncV1(final TSQuery data_query, 
       final List<DataPoints[]> results, final List<Annotation> globals) 
           throws IOException {
+    final ChannelBuffer response = ChannelBuffers.dynamicBuffer();
+    
+    /** Returns the buffer once the results were written */
+    class ReturnBuffer implements Callback<ChannelBuffer, Object> {
+      public ChannelBuffer call(final Object obj) throws Exception {
+        return response;
+      }
+    }
+    return writeQueryAsyncV1(data_query, results, globals, 
+        new ChannelBufferOutputStream(response), null)
+        .addCallback(new ReturnBuffer());
+  }
+  
+  /**
+   * Streams the results of a query, flushing a chunk after each series and
+   * waiting for the channel to drain whenever the stream's window is full.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @param stream The stream to write to, closed once the response is
+   * complete
+   * @return A deferred called back once the response was written
+   * @throws IOException if the stream could not be written to
+   * @since 2.4
+   */
+  @Override
+  public Deferred<Object> streamQueryAsyncV1(final TSQuery data_query, 
+      final List<DataPoints[]> results, final List<Annotation> globals, 
+      final HttpChunkedOutputStream stream) throws IOException {
+    
+    /** Ends the chunked response */
+    class CloseStream implements Callback<Object, Object> {
+      public Object call(final Object obj) throws Exception {
+        stream.close();
+        return null;
+      }
+    }
+    return writeQueryAsyncV1(data_query, results, globals, stream, stream)
+        .addCallback(new CloseStream());
+  }
+  
+  /**
+   * Writes the results of a query to the output.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @param output The stream to write to
+   * @param stream The output if it's a chunked stream that is flushed after
+   * each series and waited on before writing the next, null otherwise
+   * @return A deferred called back once everything was written
+   * @throws IOException if the output could not be written to
+   */
+  private Deferred<Object> writeQueryAsyncV1(final TSQuery data_query, 
+      final List<DataPoints[]> results, final List<Annotation> globals,
+      final OutputStream output, final HttpChunkedOutputStream stream) 
+          throws IOException {
     
     final long start = DateTime.currentTimeMillis();
     final boolean as_arrays = this.query.hasQueryStringParam("arrays");
     final String jsonp = this.query.getQueryStringParam("jsonp");
     
-    // buffers and an array list to stored the deferreds
-    final ChannelBuffer response = ChannelBuffers.dynamicBuffer();
-    final OutputStream output = new ChannelBufferOutputStream(response);
     // too bad an inner class can't modify a primitive. This is a work around 
     final List<Boolean> timeout_flag = new ArrayList<Boolean>(1);
     timeout_flag.add(false);
@@ -660,7 +713,19 @@ class HttpJsonSerializer extends HttpSerializer {
     
     // start the JSON generator and write the opening array
     final JsonGenerator json = JSON.getFactory().createGenerator(output);
+    if (stream != null) {
+      // the stream is closed once the JSONp suffix is written
+      json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
     json.writeStartArray();
+    
+    /** Flushes a series to the stream and waits for the window to free up */
+    class FlushAndWait implements Callback<Deferred<Object>, Object> {
+      public Deferred<Object> call(final Object obj) throws Exception {
+        json.flush();
+        return stream.awaitWindow();
+      }
+    }
  
     /**
      * Every individual data point set (the result of a query and possibly a
@@ -918,8 +983,12 @@ class HttpJsonSerializer extends HttpSerializer {
             .addCallback(new TagResolver()));
         resolve_deferreds.add(dps.getAggregatedTagsAsync()
             .addCallback(new AggTagResolver()));
-        return Deferred.group(resolve_deferreds)
+        final Deferred<Object> written = Deferred.group(resolve_deferreds)
             .addCallback(new WriteToBuffer(dps));
+        if (stream == null) {
+          return written;
+        }
+        return written.addCallbackDeferring(new FlushAndWait());
       }
 
     }
@@ -931,30 +1000,64 @@ class HttpJsonSerializer extends HttpSerializer {
     int counter = 0;
     Deferred<Object> cb_chain = new Deferred<Object>();
 
-    for (DataPoints[] separate_dps : results) {
-      for (DataPoints dps : separate_dps) {
-        try {
-          cb_chain.addCallback(new DPsResolver(dps));
-        } catch (Exception e) {
-          throw new RuntimeException("Unexpected error durring resolution", e);
+    /**
+     * Chains the next batch of series once the previous one is written.
+     * Used when streaming as waiting on the window must not block the thread
+     * that may have to complete the writes.
+     */
+    class NextBatch implements Callback<Deferred<Object>, Object> {
+      final List<DataPoints> series = new ArrayList<DataPoints>();
+      int index;
+      
+      public Deferred<Object> call(final Object obj) throws Exception {
+        if (index >= series.size()) {
+          return Deferred.fromResult(null);
+        }
+        final Deferred<Object> batch = new Deferred<Object>();
+        final int end = Math.min(index + LIMIT, series.size());
+        for (; index < end; index++) {
+          batch.addCallback(new DPsResolver(series.get(index)));
         }
-        if (++counter >= LIMIT) {
-          counter = 0;
-          // trigger the callback chain chunk here
-          cb_chain.callback(null);
+        batch.addCallbackDeferring(this);
+        batch.callback(null);
+        return batch;
+      }
+    }
+    
+    if (stream != null) {
+      final NextBatch next_batch = new NextBatch();
+      for (DataPoints[] separate_dps : results) {
+        for (DataPoints dps : separate_dps) {
+          next_batch.series.add(dps);
+        }
+      }
+      cb_chain.addCallbackDeferring(next_batch);
+    } else {
+      for (DataPoints[] separate_dps : results) {
+        for (DataPoints dps : separate_dps) {
           try {
-            cb_chain.joinUninterruptibly();
-          } catch (Exception e1) {
-            // chain already joined
+            cb_chain.addCallback(new DPsResolver(dps));
+          } catch (Exception e) {
+            throw new RuntimeException("Unexpected error durring resolution", e);
+          }
+          if (++counter >= LIMIT) {
+            counter = 0;
+            // trigger the callback chain chunk here
+            cb_chain.callback(null);
+            try {
+              cb_chain.joinUninterruptibly();
+            } catch (Exception e1) {
+              // chain already joined
+            }
+            cb_chain = new Deferred<Object>();
           }
-          cb_chain = new Deferred<Object>();
         }
       }
     }
   
     /** Final callback to close out the JSON array and return our results */
-    class FinalCB implements Callback<ChannelBuffer, Object> {
-      public ChannelBuffer call(final Object obj)
+    class FinalCB implements Callback<Object, Object> {
+      public Object call(final Object obj)
           throws Exception {
         
         // Call this here so we rollup sub metrics into a summary. It's not
@@ -979,7 +1082,7 @@ class HttpJsonSerializer extends HttpSerializer {
         if (jsonp != null && !jsonp.isEmpty()) {
           output.write(")".getBytes());
         }
-        return response;
+        return null;
       }
     }
 
@@ -28,6 +28,7 @@ import ch.qos.logback.classic.spi.ThrowableProxy;
 import ch.qos.logback.classic.spi.ThrowableProxyUtil;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
 import net.opentsdb.core.DataPoints;
@@ -522,6 +523,38 @@ public abstract class HttpSerializer {
         " has not implemented formatQueryV1");
   }
   
+  /**
+   * Streams the results from a timeseries data query to the client as they
+   * are serialized. The default implementation formats the whole response
+   * with {@link #formatQueryAsyncV1} and writes it to the stream.
+   * Serializers that can write incrementally should override this, flush the
+   * stream after each series and wait on
+   * {@link HttpChunkedOutputStream#awaitWindow} before writing the next.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @param stream The stream to write to, closed once the response is
+   * complete
+   * @return A deferred called back once the response was written
+   * @throws BadRequestException if the plugin has not implemented 
+   * {@link #formatQueryAsyncV1}
+   * @since 2.4
+   */
+  public Deferred<Object> streamQueryAsyncV1(final TSQuery data_query, 
+      final List<DataPoints[]> results, final List<Annotation> globals, 
+      final HttpChunkedOutputStream stream) throws IOException {
+    /** Writes the formatted response and closes the stream */
+    class WriteIt implements Callback<Object, ChannelBuffer> {
+      public Object call(final ChannelBuffer buffer) throws Exception {
+        buffer.readBytes(stream, buffer.readableBytes());
+        stream.close();
+        return null;
+      }
+    }
+    return formatQueryAsyncV1(data_query, results, globals)
+        .addCallback(new WriteIt());
+  }
+  
   /**
    * Format a list of last data points
    * @param data_points The results of the query
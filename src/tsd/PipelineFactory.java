@@ -63,6 +63,9 @@ public final class PipelineFactory implements ChannelPipelineFactory {
   /** The server side socket timeout. **/
   private final int socketTimeout;
   
+  /** Whether or not to parse telnet puts without splitting words. */
+  private final boolean fast_put;
+  
   /**
    * Constructor that initializes the RPC router and loads HTTP formatter 
    * plugins. This constructor creates its own {@link RpcManager}.
@@ -104,6 +107,7 @@ public final class PipelineFactory implements ChannelPipelineFactory {
       final int connections_limit) {
     this.tsdb = tsdb;
     socketTimeout = tsdb.getConfig().getInt("tsd.core.socket.timeout");
+    fast_put = tsdb.getConfig().getBoolean("tsd.rpc.telnet.fast_put.enable");
     timer = tsdb.getTimer();
     timeoutHandler = new IdleStateHandler(timer, 0, 0, socketTimeout);
     rpchandler = new RpcHandler(tsdb, manager);
@@ -159,7 +163,13 @@ public final class PipelineFactory implements ChannelPipelineFactory {
       } else {
         pipeline.addLast("framer", new LineBasedFrameDecoder(1024));
         pipeline.addLast("encoder", ENCODER);
-        pipeline.addLast("decoder", DECODER);
+        // the put decoder keeps state for the connection. Authentication
+        // expects the command words so it always uses the word splitter.
+        if (fast_put && tsdb.getAuth() == null) {
+          pipeline.addLast("decoder", new PutDataPointDecoder());
+        } else {
+          pipeline.addLast("decoder", DECODER);
+        }
       }
 
       if (tsdb.getAuth() != null) {
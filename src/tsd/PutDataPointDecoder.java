@@ -0,0 +1,408 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.Tags;
+
+/**
+ * An alternative to the {@link WordSplitter} that parses telnet style
+ * {@code put} commands straight from the frame bytes into a {@link PutPoint}
+ * instead of building a String for the line, an array of Strings for the
+ * words and more Strings for the timestamp, value and each tag pair.
+ * <p>
+ * The metric, tag keys and tag values are resolved through a small per
+ * channel cache of Strings so that a client sending the same series over and
+ * over doesn't allocate new Strings for each point. The tag map itself is
+ * allocated per point as {@code TSDB.addPoint()} may hold on to it.
+ * <p>
+ * Any line that isn't a well formed {@code put} is split into words exactly
+ * like the {@link WordSplitter} would so that the regular RPC handles it and
+ * reports errors the same way.
+ * <p>
+ * This decoder is stateful and is thus <strong>NOT</strong> shareable.
+ * @since 2.4
+ */
+final class PutDataPointDecoder extends OneToOneDecoder {
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Number of entries in the String cache. Must be a power of 2. */
+  private static final int STRING_CACHE_SIZE = 1024;
+
+  /** Powers of 10 that can be represented exactly as doubles. */
+  private static final double[] POWERS_OF_TEN = new double[23];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  /** Largest mantissa we'll convert to a double without a loss. */
+  private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+  /** Scratch array used when the frame isn't backed by an array. */
+  private byte[] line = new byte[128];
+
+  /** Scratch buffer used to parse numbers without creating Strings. */
+  private final StringBuilder number = new StringBuilder(24);
+
+  /** Offsets of the tag pairs in the line, start, equals sign and end. */
+  private int[] tag_offsets = new int[8 * 3];
+
+  /** Direct mapped cache of the metrics, tag keys and tag values seen. */
+  private final String[] strings = new String[STRING_CACHE_SIZE];
+
+  /** Constructor. */
+  public PutDataPointDecoder() {
+  }
+
+  @Override
+  protected Object decode(final ChannelHandlerContext ctx,
+                          final Channel channel,
+                          final Object msg) throws Exception {
+    final ChannelBuffer buffer = (ChannelBuffer) msg;
+    final int length = buffer.readableBytes();
+    final byte[] bytes;
+    final int offset;
+    if (buffer.hasArray()) {
+      bytes = buffer.array();
+      offset = buffer.arrayOffset() + buffer.readerIndex();
+    } else {
+      if (line.length < length) {
+        line = new byte[length];
+      }
+      buffer.getBytes(buffer.readerIndex(), line, 0, length);
+      bytes = line;
+      offset = 0;
+    }
+
+    final PutPoint point = parse(bytes, offset, offset + length);
+    if (point != null) {
+      return point;
+    }
+    return Tags.splitString(buffer.toString(CHARSET), ' ');
+  }
+
+  /**
+   * Attempts to parse a put command.
+   * @param bytes The bytes containing the line.
+   * @param start The offset of the first byte of the line.
+   * @param end The offset after the last byte of the line.
+   * @return The parsed data point or null if the line isn't a put or is
+   * invalid in any way.
+   */
+  PutPoint parse(final byte[] bytes, final int start, final int end) {
+    if (end - start < 4 || bytes[start] != 'p' || bytes[start + 1] != 'u'
+        || bytes[start + 2] != 't' || bytes[start + 3] != ' ') {
+      return null;
+    }
+
+    // metric
+    int pos = start + 4;
+    int word_end = nextSpace(bytes, pos, end);
+    if (word_end == pos || word_end == end) {
+      return null;
+    }
+    final int metric_start = pos;
+    final int metric_end = word_end;
+
+    // timestamp, dots are dropped as per PutDataPointRpc
+    pos = word_end + 1;
+    word_end = nextSpace(bytes, pos, end);
+    if (word_end == end) {
+      return null;
+    }
+    number.setLength(0);
+    for (int i = pos; i < word_end; i++) {
+      if (bytes[i] != '.') {
+        number.append((char) (bytes[i] & 0xFF));
+      }
+    }
+    final long timestamp;
+    try {
+      timestamp = Tags.parseLong(number);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (timestamp <= 0) {
+      return null;
+    }
+
+    // value
+    pos = word_end + 1;
+    word_end = nextSpace(bytes, pos, end);
+    if (word_end == pos || word_end == end) {
+      return null;
+    }
+    final int value_start = pos;
+    final int value_end = word_end;
+
+    // tags
+    int num_tags = 0;
+    pos = word_end + 1;
+    while (pos <= end) {
+      word_end = nextSpace(bytes, pos, end);
+      if (word_end > pos) {
+        int equals = -1;
+        for (int i = pos; i < word_end; i++) {
+          if (bytes[i] == '=') {
+            if (equals >= 0) {
+              return null;
+            }
+            equals = i;
+          }
+        }
+        if (equals <= pos || equals == word_end - 1) {
+          return null;
+        }
+        if ((num_tags + 1) * 3 > tag_offsets.length) {
+          final int[] grown = new int[tag_offsets.length * 2];
+          System.arraycopy(tag_offsets, 0, grown, 0, tag_offsets.length);
+          tag_offsets = grown;
+        }
+        tag_offsets[num_tags * 3] = pos;
+        tag_offsets[num_tags * 3 + 1] = equals;
+        tag_offsets[num_tags * 3 + 2] = word_end;
+        num_tags++;
+      }
+      pos = word_end + 1;
+    }
+    if (num_tags < 1) {
+      return null;
+    }
+
+    final PutPoint point = new PutPoint();
+    if (!parseValue(bytes, value_start, value_end, point)) {
+      return null;
+    }
+    final HashMap<String, String> tags =
+        new HashMap<String, String>((num_tags * 4 + 2) / 3);
+    for (int i = 0; i < num_tags; i++) {
+      final int tag_start = tag_offsets[i * 3];
+      final int equals = tag_offsets[i * 3 + 1];
+      final int tag_end = tag_offsets[i * 3 + 2];
+      final String key = intern(bytes, tag_start, equals);
+      final String value = intern(bytes, equals + 1, tag_end);
+      final String existing = tags.put(key, value);
+      if (existing != null && !existing.equals(value)) {
+        // let the regular path report the duplicate
+        return null;
+      }
+    }
+    point.metric = intern(bytes, metric_start, metric_end);
+    point.timestamp = timestamp;
+    point.tags = tags;
+    return point;
+  }
+
+  /**
+   * Parses the value in the same manner as {@link PutDataPointRpc}, i.e. an
+   * integer if there isn't a decimal point or exponent, a float if the double
+   * fits in a float without loss or a double otherwise.
+   * @return False if the value couldn't be parsed.
+   */
+  private boolean parseValue(final byte[] bytes, final int start,
+      final int end, final PutPoint point) {
+    boolean is_integer = true;
+    for (int i = start; i < end; i++) {
+      final byte b = bytes[i];
+      if (b == '.' || b == 'e' || b == 'E') {
+        is_integer = false;
+        break;
+      }
+    }
+
+    if (is_integer) {
+      number.setLength(0);
+      for (int i = start; i < end; i++) {
+        number.append((char) (bytes[i] & 0xFF));
+      }
+      try {
+        point.long_value = Tags.parseLong(number);
+      } catch (NumberFormatException e) {
+        return false;
+      }
+      point.type = PutPoint.LONG;
+      return true;
+    }
+
+    double value = parseSimpleDecimal(bytes, start, end);
+    if (Double.isNaN(value)) {
+      try {
+        value = Double.parseDouble(new String(bytes, start, end - start,
+            CHARSET));
+      } catch (NumberFormatException e) {
+        return false;
+      }
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+        return false;
+      }
+    }
+    point.double_value = value;
+    point.type = ((float) value) == value ? PutPoint.FLOAT : PutPoint.DOUBLE;
+    return true;
+  }
+
+  /**
+   * Parses plain decimals like {@code -42.125} when the digits fit in a
+   * double without loss so that a single division gives the correctly
+   * rounded result, the same as {@link Double#parseDouble}.
+   * @return The value or NaN if the fast path couldn't be used.
+   */
+  static double parseSimpleDecimal(final byte[] bytes, final int start,
+      final int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+      negative = bytes[i] == '-';
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int fraction_digits = -1;
+    for (; i < end; i++) {
+      final byte b = bytes[i];
+      if (b >= '0' && b <= '9') {
+        mantissa = mantissa * 10 + (b - '0');
+        if (mantissa > MAX_EXACT_MANTISSA) {
+          return Double.NaN;
+        }
+        digits++;
+        if (fraction_digits >= 0) {
+          fraction_digits++;
+        }
+      } else if (b == '.' && fraction_digits < 0) {
+        fraction_digits = 0;
+      } else {
+        return Double.NaN;
+      }
+    }
+    if (digits == 0 || fraction_digits >= POWERS_OF_TEN.length) {
+      return Double.NaN;
+    }
+    double value = mantissa;
+    if (fraction_digits > 0) {
+      value /= POWERS_OF_TEN[fraction_digits];
+    }
+    return negative ? -value : value;
+  }
+
+  /** @return The index of the next space or the end of the line. */
+  private static int nextSpace(final byte[] bytes, int pos, final int end) {
+    while (pos < end && bytes[pos] != ' ') {
+      pos++;
+    }
+    return pos;
+  }
+
+  /**
+   * Returns a String for the given bytes, re-using the String from the cache
+   * if it was seen recently.
+   */
+  private String intern(final byte[] bytes, final int start, final int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + bytes[i];
+    }
+    hash ^= hash >>> 16;
+    final int idx = hash & (STRING_CACHE_SIZE - 1);
+    final String cached = strings[idx];
+    if (cached != null && cached.length() == end - start) {
+      boolean match = true;
+      for (int i = start; i < end; i++) {
+        if (cached.charAt(i - start) != (char) (bytes[i] & 0xFF)) {
+          match = false;
+          break;
+        }
+      }
+      if (match) {
+        return cached;
+      }
+    }
+    final String string = new String(bytes, start, end - start, CHARSET);
+    strings[idx] = string;
+    return string;
+  }
+
+  /**
+   * A fully parsed {@code put} command ready to be written with
+   * {@code TSDB.addPoint()}.
+   */
+  static final class PutPoint {
+    static final byte LONG = 0;
+    static final byte FLOAT = 1;
+    static final byte DOUBLE = 2;
+
+    String metric;
+    long timestamp;
+    byte type;
+    long long_value;
+    double double_value;
+    HashMap<String, String> tags;
+
+    /** @return The value as a String for error reporting. */
+    String valueString() {
+      switch (type) {
+      case LONG:
+        return Long.toString(long_value);
+      case FLOAT:
+        return Float.toString((float) double_value);
+      default:
+        return Double.toString(double_value);
+      }
+    }
+
+    /** @return The point as the words the {@link WordSplitter} would give. */
+    String[] toWords() {
+      final String[] words = new String[4 + tags.size()];
+      words[0] = "put";
+      words[1] = metric;
+      words[2] = Long.toString(timestamp);
+      words[3] = valueString();
+      int i = 4;
+      for (final Map.Entry<String, String> tag : tags.entrySet()) {
+        words[i++] = tag.getKey() + "=" + tag.getValue();
+      }
+      return words;
+    }
+
+    /** @return An incoming data point for the storage exception handler. */
+    IncomingDataPoint toIncomingDataPoint() {
+      return new IncomingDataPoint(metric, timestamp, valueString(),
+          new HashMap<String, String>(tags));
+    }
+
+    @Override
+    public String toString() {
+      final StringBuilder buf = new StringBuilder();
+      for (final String word : toWords()) {
+        if (buf.length() > 0) {
+          buf.append(' ');
+        }
+        buf.append(word);
+      }
+      return buf.toString();
+    }
+  }
+}
@@ -46,9 +46,11 @@ import net.opentsdb.core.HistogramPojo;
 import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
+import net.opentsdb.core.WriteQueueFullException;
 import net.opentsdb.rollup.NoSuchRollupForIntervalException;
 import net.opentsdb.rollup.RollUpDataPoint;
 import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.tsd.PutDataPointDecoder.PutPoint;
 import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.utils.Config;
 
@@ -144,7 +146,41 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
     } else {
       throw new IllegalArgumentException("Unrecognized command: " + cmd[0]);
     }
-
+    return execute(tsdb, chan, type, command, cmd, null);
+  }
+  
+  /**
+   * Handles a telnet style put command that was already parsed by the
+   * {@link PutDataPointDecoder}.
+   * @param tsdb The TSDB to write to.
+   * @param chan The channel to respond on.
+   * @param point The parsed data point.
+   * @return A deferred to wait on for the write to complete.
+   * @since 2.4
+   */
+  Deferred<Object> execute(final TSDB tsdb, final Channel chan, 
+                           final PutPoint point) {
+    telnet_requests.incrementAndGet();
+    raw_dps.incrementAndGet();
+    return execute(tsdb, chan, DataPointType.PUT, "put", null, point);
+  }
+  
+  /**
+   * Writes a telnet style data point and handles errors. Exactly one of the
+   * command words or the parsed point must be set.
+   * @param tsdb The TSDB to write to.
+   * @param chan The channel to respond on.
+   * @param type The type of data point.
+   * @param command The lower case command.
+   * @param cmd The split command, may be null if the point is set.
+   * @param point The parsed put, may be null if the command is set.
+   * @return A deferred to wait on for the write to complete.
+   */
+  private Deferred<Object> execute(final TSDB tsdb, final Channel chan,
+                                   final DataPointType type,
+                                   final String command,
+                                   final String[] cmd,
+                                   final PutPoint point) {
     String errmsg = null;
     try {
 
@@ -159,7 +195,8 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
         @Override
         public Object call(final Exception arg) {
           String errmsg = null;
-          if (arg instanceof PleaseThrottleException) {
+          if (arg instanceof PleaseThrottleException
+              || arg instanceof WriteQueueFullException) {
             if (send_telnet_errors) {
               errmsg = type + ": Please throttle writes: " + arg.getMessage() + '\n';
             }
@@ -179,7 +216,7 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
           
           // we handle the storage exceptions here so as to avoid creating yet
           // another callback object on every data point.
-          handleStorageException(tsdb, getDataPointFromString(tsdb, cmd), arg);
+          handleStorageException(tsdb, getDataPoint(tsdb, cmd, point), arg);
           
           if (send_telnet_errors) {
             if (chan.isConnected()) {
@@ -217,7 +254,9 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
       
       // Rollups and histos override this method in their implementation so 
       // that it will route properly.
-      return importDataPoint(tsdb, cmd)
+      final Deferred<Object> result = point != null ? 
+          importDataPoint(tsdb, point) : importDataPoint(tsdb, cmd);
+      return result
           .addCallback(new SuccessCB())
           .addErrback(new PutErrback());
     } catch (NumberFormatException x) {
@@ -240,10 +279,10 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
     } catch (PleaseThrottleException x) {
       errmsg = type + ": Throttling exception: " + x.getMessage() + '\n';
       inflight_exceeded.incrementAndGet();
-      handleStorageException(tsdb, getDataPointFromString(tsdb, cmd), x);
+      handleStorageException(tsdb, getDataPoint(tsdb, cmd, point), x);
     } catch (TimeoutException tex) {
       errmsg = type + ": Request timed out: " + tex.getMessage() + '\n';
-      handleStorageException(tsdb, getDataPointFromString(tsdb, cmd), tex);
+      handleStorageException(tsdb, getDataPoint(tsdb, cmd, point), tex);
     } catch (RuntimeException rex) {
       errmsg = type + ": Unexpected runtime exception: " + rex.getMessage() + '\n';
       throw rex;
@@ -363,7 +402,8 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
        */
       final class PutErrback implements Callback<Boolean, Exception> {
         public Boolean call(final Exception arg) {
-          if (arg instanceof PleaseThrottleException) {
+          if (arg instanceof PleaseThrottleException
+              || arg instanceof WriteQueueFullException) {
             inflight_exceeded.incrementAndGet();
           } else {
             hbase_errors.incrementAndGet();
@@ -779,6 +819,40 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
     }
   }
   
+  /**
+   * Imports a single data point parsed by the {@link PutDataPointDecoder}.
+   * @param tsdb The TSDB to import the data point into.
+   * @param point The parsed data point.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws IllegalArgumentException if any argument is invalid.
+   * @throws NoSuchUniqueName if the metric isn't registered.
+   * @since 2.4
+   */
+  protected Deferred<Object> importDataPoint(final TSDB tsdb, 
+                                             final PutPoint point) {
+    switch (point.type) {
+    case PutPoint.LONG:
+      return tsdb.addPoint(point.metric, point.timestamp, point.long_value, 
+          point.tags);
+    case PutPoint.FLOAT:
+      return tsdb.addPoint(point.metric, point.timestamp, 
+          (float) point.double_value, point.tags);
+    default:
+      return tsdb.addPoint(point.metric, point.timestamp, point.double_value, 
+          point.tags);
+    }
+  }
+  
+  /**
+   * Returns the data point for the storage exception handler from either the
+   * parsed point or the command words.
+   */
+  private IncomingDataPoint getDataPoint(final TSDB tsdb, final String[] cmd,
+                                         final PutPoint point) {
+    return point != null ? point.toIncomingDataPoint() : 
+      getDataPointFromString(tsdb, cmd);
+  }
+  
   /**
    * Converts the string array to an IncomingDataPoint. WARNING: This method
    * does not perform validation. It should only be used by the Telnet style
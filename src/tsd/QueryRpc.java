@@ -30,6 +30,7 @@ import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,7 +42,9 @@ import net.opentsdb.auth.AuthState;
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.core.Query;
+import net.opentsdb.core.QueryCoalescer;
 import net.opentsdb.core.QueryException;
+import net.opentsdb.core.QueryResultCache;
 import net.opentsdb.core.RateOptions;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
@@ -163,6 +166,11 @@ final class QueryRpc implements HttpRpc {
     }
 
     checkAuthorization(tsdb, query.channel(), data_query);
+    
+    // expressions read each series several times so decode them only once
+    if (allow_expressions && expressions != null && !expressions.isEmpty()) {
+      data_query.setMaterializeSpans(true);
+    }
 
     // if the user tried this query multiple times from the same IP and src port
     // they'll be rejected on subsequent calls
@@ -262,11 +270,29 @@ final class QueryRpc implements HttpRpc {
           }
         }
 
+        /** Counts the query once the streamed response was written */
+        class StreamedIt implements Callback<Object, Object> {
+          public Object call(final Object obj) throws Exception {
+            query_success.incrementAndGet();
+            return null;
+          }
+        }
+
         switch (query.apiVersion()) {
         case 0:
         case 1:
+          if (streamResponse(tsdb, query)) {
+            final HttpChunkedOutputStream stream = new HttpChunkedOutputStream(
+                query, query.serializer().responseContentType(), 
+                tsdb.getConfig().getInt("tsd.http.query.streaming.chunk_size"), 
+                tsdb.getConfig().getLong("tsd.http.query.streaming.window"));
+            query.serializer().streamQueryAsyncV1(data_query, results, 
+                globals, stream).addCallback(new StreamedIt())
+                .addErrback(new ErrorCB());
+          } else {
             query.serializer().formatQueryAsyncV1(data_query, results, 
                globals).addCallback(new SendIt()).addErrback(new ErrorCB());
+          }
           break;
         default: 
           query_invalid.incrementAndGet();
@@ -283,9 +309,10 @@ final class QueryRpc implements HttpRpc {
      * values to their respective UIDs. This callback then runs the actual 
      * queries and fetches their results.
      */
-    class BuildCB implements Callback<Deferred<Object>, Query[]> {
+    class BuildCB implements 
+        Callback<Deferred<ArrayList<DataPoints[]>>, Query[]> {
       @Override
-      public Deferred<Object> call(final Query[] queries) {
+      public Deferred<ArrayList<DataPoints[]>> call(final Query[] queries) {
         final ArrayList<Deferred<DataPoints[]>> deferreds = 
             new ArrayList<Deferred<DataPoints[]>>(queries.length);
         for (final Query query : queries) {
@@ -296,15 +323,53 @@ final class QueryRpc implements HttpRpc {
             deferreds.add(query.runHistogramAsync());
           }
         }
-        return Deferred.groupInOrder(deferreds).addCallback(new QueriesCB());
+        return Deferred.groupInOrder(deferreds);
+      }
+    }
+    
+    /**
+     * Runs the queries through the result cache if it's enabled and can
+     * handle them, otherwise compiles and runs them directly.
+     */
+    class ExecuteCB implements 
+        Callback<Deferred<ArrayList<DataPoints[]>>, TSQuery> {
+      @Override
+      public Deferred<ArrayList<DataPoints[]>> call(final TSQuery ts_query) {
+        final QueryResultCache cache = tsdb.getQueryResultCache();
+        if (cache != null && !allow_expressions && 
+            cache.isCacheable(ts_query)) {
+          return cache.runAsync(ts_query);
+        }
+        return ts_query.buildQueriesAsync(tsdb)
+            .addCallbackDeferring(new BuildCB());
+      }
+    }
+    
+    /**
+     * Joins an identical query in flight if single flight is enabled, 
+     * otherwise executes the queries, then serializes the results.
+     */
+    class RunCB implements Callback<Deferred<Object>, Object> {
+      @Override
+      public Deferred<Object> call(final Object ignored) {
+        final QueryCoalescer coalescer = tsdb.getQueryCoalescer();
+        final Deferred<ArrayList<DataPoints[]>> deferred;
+        if (coalescer != null && !allow_expressions && 
+            coalescer.isCoalescable(data_query)) {
+          deferred = coalescer.runAsync(data_query, new ExecuteCB());
+        } else {
+          deferred = new ExecuteCB().call(data_query);
+        }
+        return deferred.addCallback(new QueriesCB());
       }
     }
     
     /** Handles storing the global annotations after fetching them */
-    class GlobalCB implements Callback<Object, List<Annotation>> {
-      public Object call(final List<Annotation> annotations) throws Exception {
+    class GlobalCB implements Callback<Deferred<Object>, List<Annotation>> {
+      public Deferred<Object> call(final List<Annotation> annotations) 
+          throws Exception {
         globals.addAll(annotations);
-        return data_query.buildQueriesAsync(tsdb).addCallback(new BuildCB());
+        return new RunCB().call(null);
       }
     }
  
@@ -314,13 +379,25 @@ final class QueryRpc implements HttpRpc {
     if (!data_query.getNoAnnotations() && data_query.getGlobalAnnotations()) {
       Annotation.getGlobalAnnotations(tsdb, 
         data_query.startTime() / 1000, data_query.endTime() / 1000)
-          .addCallback(new GlobalCB()).addErrback(new ErrorCB());
+          .addCallbackDeferring(new GlobalCB()).addErrback(new ErrorCB());
     } else {
-      data_query.buildQueriesAsync(tsdb).addCallback(new BuildCB())
-        .addErrback(new ErrorCB());
+      new RunCB().call(null).addErrback(new ErrorCB());
     }
   }
   
+  /**
+   * Whether or not the results should be streamed as a chunked response.
+   * HTTP/1.0 clients don't support chunked transfers so they always get a
+   * buffered response.
+   * @param tsdb The TSDB to which we belong
+   * @param query The HTTP query to respond to
+   * @return True if streaming is enabled and supported by the client
+   */
+  static boolean streamResponse(final TSDB tsdb, final HttpQuery query) {
+    return tsdb.getConfig().getBoolean("tsd.http.query.streaming.enable") &&
+        !query.request().getProtocolVersion().equals(HttpVersion.HTTP_1_0);
+  }
+  
   /**
    * Handles an expression query
    * @param tsdb The TSDB to which we belong
@@ -38,6 +38,7 @@ import org.slf4j.LoggerFactory;
 
 import net.opentsdb.core.TSDB;
 import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.tsd.PutDataPointDecoder.PutPoint;
 
 /**
  * Stateless handler for all RPCs: telnet-style, built-in or plugin
@@ -128,6 +129,8 @@ final class RpcHandler extends IdleStateAwareChannelUpstreamHandler {
       final Object message = msgevent.getMessage();
       if (message instanceof String[]) {
         handleTelnetRpc(msgevent.getChannel(), (String[]) message);
+      } else if (message instanceof PutPoint) {
+        handleTelnetPut(msgevent.getChannel(), (PutPoint) message);
       } else if (message instanceof HttpRequest) {
         handleHttpQuery(tsdb, msgevent.getChannel(), (HttpRequest) message);
       } else {
@@ -159,6 +162,23 @@ final class RpcHandler extends IdleStateAwareChannelUpstreamHandler {
     telnet_rpcs_received.incrementAndGet();
     rpc.execute(tsdb, chan, command);
   }
+  
+  /**
+   * Executes a put command parsed by the {@link PutDataPointDecoder}. If the
+   * put command isn't handled by the built-in RPC, e.g. in read-only mode,
+   * the point is converted back into words.
+   * @param chan The channel on which the RPC was received.
+   * @param point The parsed data point.
+   */
+  private void handleTelnetPut(final Channel chan, final PutPoint point) {
+    final TelnetRpc rpc = rpc_manager.lookupTelnetRpc("put");
+    if (!(rpc instanceof PutDataPointRpc)) {
+      handleTelnetRpc(chan, point.toWords());
+      return;
+    }
+    telnet_rpcs_received.incrementAndGet();
+    ((PutDataPointRpc) rpc).execute(tsdb, chan, point);
+  }
 
   /**
    * Using the request URI, creates a query instance capable of handling 
@@ -0,0 +1,470 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.util.Arrays;
+
+/**
+ * A compact, two way cache of UID mappings for a single {@link UniqueId}.
+ * <p>
+ * The default caches in {@link UniqueId} are {@code ConcurrentHashMap}s keyed
+ * on Strings, including a String built from the UID bytes for every reverse
+ * lookup. With tens of millions of tag values the map entry overhead and the
+ * duplicated names dwarf the actual data. This cache packs each UID into a
+ * primitive {@code long} for the reverse (ID to name) table and keeps both
+ * directions in open-addressing tables with linear probing. The name Strings
+ * are shared between the two tables so each name is only held once.
+ * <p>
+ * Each direction is split into lock striped segments so that lookups for
+ * different keys rarely contend. Lookups do not allocate: the cached name and
+ * UID instances are returned as is.
+ * <p>
+ * Note that the UIDs returned from {@link #getId} are the cached arrays and
+ * must not be modified by callers, just like those from the default cache.
+ * @since 2.4
+ */
+public final class PrimitiveUidCache {
+  /** Initial number of slots in each segment. Must be a power of 2. */
+  private static final int INITIAL_CAPACITY = 16;
+  /** Maximum number of segments. */
+  private static final int MAX_SEGMENTS = 1 << 16;
+
+  /** Number of bytes on which each ID is encoded. */
+  private final short id_width;
+  /** Mask used to pick a segment from a hash. */
+  private final int segment_mask;
+  /** Segments for the reverse mappings (ID to name). */
+  private final IdSegment[] id_segments;
+  /** Segments for the forward mappings (name to ID). */
+  private final NameSegment[] name_segments;
+
+  /**
+   * Default ctor.
+   * @param id_width The width of the UIDs, from 1 to 8 bytes.
+   * @param segments The number of lock stripes per direction. Rounded up to
+   * the next power of 2.
+   * @throws IllegalArgumentException if the width or segment count was
+   * invalid.
+   */
+  public PrimitiveUidCache(final int id_width, final int segments) {
+    if (id_width < 1 || id_width > 8) {
+      throw new IllegalArgumentException("Invalid width: " + id_width);
+    }
+    if (segments < 1 || segments > MAX_SEGMENTS) {
+      throw new IllegalArgumentException("Segments must be between 1 and "
+          + MAX_SEGMENTS + ": " + segments);
+    }
+    this.id_width = (short) id_width;
+    int count = 1;
+    while (count < segments) {
+      count <<= 1;
+    }
+    segment_mask = count - 1;
+    id_segments = new IdSegment[count];
+    name_segments = new NameSegment[count];
+    for (int i = 0; i < count; i++) {
+      id_segments[i] = new IdSegment();
+      name_segments[i] = new NameSegment();
+    }
+  }
+
+  /**
+   * Returns the name mapped to the given UID.
+   * @param id The UID to lookup.
+   * @return The name if cached, null if not.
+   * @throws IllegalArgumentException if the ID was the wrong width.
+   */
+  public String getName(final byte[] id) {
+    final long key = idToLong(id);
+    final long hash = mix(key);
+    return idSegmentFor(hash).get(key, hash);
+  }
+
+  /**
+   * Returns the UID mapped to the given name.
+   * @param name The name to lookup.
+   * @return The cached UID if present, null if not. Must not be modified.
+   */
+  public byte[] getId(final String name) {
+    final long hash = hashName(name);
+    return name_segments[segmentIndex(hash)].get(name, hash);
+  }
+
+  /**
+   * Stores the reverse mapping of the ID to the name if it isn't present.
+   * @param id The UID to map.
+   * @param name The name to map.
+   * @return The name already mapped to the ID if present, null if the given
+   * name was stored.
+   * @throws IllegalArgumentException if the ID was the wrong width.
+   */
+  public String putNameIfAbsent(final byte[] id, final String name) {
+    final long key = idToLong(id);
+    final long hash = mix(key);
+    return idSegmentFor(hash).put(key, hash, internName(name), false);
+  }
+
+  /**
+   * Stores the reverse mapping of the ID to the name, replacing any existing
+   * mapping. Used when renaming UIDs.
+   * @param id The UID to map.
+   * @param name The name to map.
+   * @throws IllegalArgumentException if the ID was the wrong width.
+   */
+  public void putName(final byte[] id, final String name) {
+    final long key = idToLong(id);
+    final long hash = mix(key);
+    idSegmentFor(hash).put(key, hash, internName(name), true);
+  }
+
+  /**
+   * Stores the forward mapping of the name to the ID if it isn't present.
+   * A copy of the ID is stored so the caller may modify the given array.
+   * @param name The name to map.
+   * @param id The UID to map.
+   * @return The UID already mapped to the name if present, null if the given
+   * UID was stored.
+   * @throws IllegalArgumentException if the ID was the wrong width.
+   */
+  public byte[] putIdIfAbsent(final String name, final byte[] id) {
+    final long key = idToLong(id);
+    final String interned = internName(key, name);
+    final long hash = hashName(interned);
+    return name_segments[segmentIndex(hash)].put(interned, hash,
+        Arrays.copyOf(id, id.length));
+  }
+
+  /**
+   * Removes the reverse mapping for the given UID if present.
+   * @param id The UID to remove.
+   * @throws IllegalArgumentException if the ID was the wrong width.
+   */
+  public void removeName(final byte[] id) {
+    final long key = idToLong(id);
+    final long hash = mix(key);
+    idSegmentFor(hash).remove(key, hash);
+  }
+
+  /**
+   * Removes the forward mapping for the given name if present.
+   * @param name The name to remove.
+   */
+  public void removeId(final String name) {
+    final long hash = hashName(name);
+    name_segments[segmentIndex(hash)].remove(name, hash);
+  }
+
+  /** Drops all of the mappings. */
+  public void clear() {
+    for (int i = 0; i < id_segments.length; i++) {
+      id_segments[i].clear();
+      name_segments[i].clear();
+    }
+  }
+
+  /** @return The number of reverse mappings (ID to name). */
+  public int reverseSize() {
+    int size = 0;
+    for (final IdSegment segment : id_segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  /** @return The number of forward mappings (name to ID). */
+  public int forwardSize() {
+    int size = 0;
+    for (final NameSegment segment : name_segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  /** @return The width of the UIDs in this cache. */
+  public short width() {
+    return id_width;
+  }
+
+  /**
+   * Returns the instance of a name already held by the forward table, if
+   * any, so that both directions share it.
+   */
+  private String internName(final String name) {
+    final long hash = hashName(name);
+    final String existing = name_segments[segmentIndex(hash)].getName(name,
+        hash);
+    return existing != null ? existing : name;
+  }
+
+  /**
+   * Returns the instance of a name already held by the reverse table for the
+   * ID, if it is the same name, so that both directions share it.
+   */
+  private String internName(final long key, final String name) {
+    final long hash = mix(key);
+    final String existing = idSegmentFor(hash).get(key, hash);
+    return existing != null && existing.equals(name) ? existing : name;
+  }
+
+  /** Packs a UID into a long, validating the width. */
+  private long idToLong(final byte[] id) {
+    if (id.length != id_width) {
+      throw new IllegalArgumentException("Wrong id.length = " + id.length
+          + " which is != " + id_width);
+    }
+    long key = 0;
+    for (int i = 0; i < id.length; i++) {
+      key = (key << 8) | (id[i] & 0xFF);
+    }
+    return key;
+  }
+
+  private IdSegment idSegmentFor(final long hash) {
+    return id_segments[segmentIndex(hash)];
+  }
+
+  private int segmentIndex(final long hash) {
+    return (int) (hash >>> 40) & segment_mask;
+  }
+
+  /** Spreads the String's cached hash code. */
+  private static long hashName(final String name) {
+    return mix(name.hashCode());
+  }
+
+  /** The MurmurHash3 64 bit finalizer. */
+  private static long mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+
+  /**
+   * A segment of the reverse table. A null name marks an empty slot so that
+   * any UID, including zero, can be stored.
+   */
+  private static final class IdSegment {
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int size;
+
+    synchronized String get(final long key, final long hash) {
+      final int mask = ids.length - 1;
+      int idx = (int) hash & mask;
+      while (names[idx] != null) {
+        if (ids[idx] == key) {
+          return names[idx];
+        }
+        idx = (idx + 1) & mask;
+      }
+      return null;
+    }
+
+    /**
+     * @return The previous name if present. If replace is false the previous
+     * name is left in place.
+     */
+    synchronized String put(final long key, final long hash,
+        final String name, final boolean replace) {
+      final int mask = ids.length - 1;
+      int idx = (int) hash & mask;
+      while (names[idx] != null) {
+        if (ids[idx] == key) {
+          final String existing = names[idx];
+          if (replace) {
+            names[idx] = name;
+          }
+          return existing;
+        }
+        idx = (idx + 1) & mask;
+      }
+      ids[idx] = key;
+      names[idx] = name;
+      if (++size > (ids.length >>> 1) + (ids.length >>> 2)) {
+        resize();
+      }
+      return null;
+    }
+
+    synchronized void remove(final long key, final long hash) {
+      final int mask = ids.length - 1;
+      int idx = (int) hash & mask;
+      while (names[idx] != null) {
+        if (ids[idx] == key) {
+          deleteSlot(idx);
+          return;
+        }
+        idx = (idx + 1) & mask;
+      }
+    }
+
+    synchronized void clear() {
+      ids = new long[INITIAL_CAPACITY];
+      names = new String[INITIAL_CAPACITY];
+      size = 0;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    /** Backward shift deletion so we never need tombstones. */
+    private void deleteSlot(int hole) {
+      final int mask = ids.length - 1;
+      int idx = hole;
+      while (true) {
+        idx = (idx + 1) & mask;
+        if (names[idx] == null) {
+          break;
+        }
+        final int home = (int) mix(ids[idx]) & mask;
+        // move the entry back if the hole lies between its home and its slot
+        if (((idx - home) & mask) >= ((idx - hole) & mask)) {
+          ids[hole] = ids[idx];
+          names[hole] = names[idx];
+          hole = idx;
+        }
+      }
+      names[hole] = null;
+      ids[hole] = 0;
+      size--;
+    }
+
+    private void resize() {
+      final long[] old_ids = ids;
+      final String[] old_names = names;
+      ids = new long[old_ids.length << 1];
+      names = new String[old_ids.length << 1];
+      final int mask = ids.length - 1;
+      for (int i = 0; i < old_ids.length; i++) {
+        if (old_names[i] == null) {
+          continue;
+        }
+        int idx = (int) mix(old_ids[i]) & mask;
+        while (names[idx] != null) {
+          idx = (idx + 1) & mask;
+        }
+        ids[idx] = old_ids[i];
+        names[idx] = old_names[i];
+      }
+    }
+  }
+
+  /** A segment of the forward table. A null name marks an empty slot. */
+  private static final class NameSegment {
+    private String[] names = new String[INITIAL_CAPACITY];
+    private byte[][] ids = new byte[INITIAL_CAPACITY][];
+    private int size;
+
+    synchronized byte[] get(final String name, final long hash) {
+      final int idx = find(name, hash);
+      return idx < 0 ? null : ids[idx];
+    }
+
+    synchronized String getName(final String name, final long hash) {
+      final int idx = find(name, hash);
+      return idx < 0 ? null : names[idx];
+    }
+
+    /** @return The existing UID if present, null if the UID was stored. */
+    synchronized byte[] put(final String name, final long hash,
+        final byte[] id) {
+      final int mask = names.length - 1;
+      int idx = (int) hash & mask;
+      while (names[idx] != null) {
+        if (names[idx].equals(name)) {
+          return ids[idx];
+        }
+        idx = (idx + 1) & mask;
+      }
+      names[idx] = name;
+      ids[idx] = id;
+      if (++size > (names.length >>> 1) + (names.length >>> 2)) {
+        resize();
+      }
+      return null;
+    }
+
+    synchronized void remove(final String name, final long hash) {
+      final int idx = find(name, hash);
+      if (idx >= 0) {
+        deleteSlot(idx);
+      }
+    }
+
+    synchronized void clear() {
+      names = new String[INITIAL_CAPACITY];
+      ids = new byte[INITIAL_CAPACITY][];
+      size = 0;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    private int find(final String name, final long hash) {
+      final int mask = names.length - 1;
+      int idx = (int) hash & mask;
+      while (names[idx] != null) {
+        if (names[idx].equals(name)) {
+          return idx;
+        }
+        idx = (idx + 1) & mask;
+      }
+      return -1;
+    }
+
+    /** Backward shift deletion so we never need tombstones. */
+    private void deleteSlot(int hole) {
+      final int mask = names.length - 1;
+      int idx = hole;
+      while (true) {
+        idx = (idx + 1) & mask;
+        if (names[idx] == null) {
+          break;
+        }
+        final int home = (int) hashName(names[idx]) & mask;
+        if (((idx - home) & mask) >= ((idx - hole) & mask)) {
+          names[hole] = names[idx];
+          ids[hole] = ids[idx];
+          hole = idx;
+        }
+      }
+      names[hole] = null;
+      ids[hole] = null;
+      size--;
+    }
+
+    private void resize() {
+      final String[] old_names = names;
+      final byte[][] old_ids = ids;
+      names = new String[old_names.length << 1];
+      ids = new byte[old_names.length << 1][];
+      final int mask = names.length - 1;
+      for (int i = 0; i < old_names.length; i++) {
+        if (old_names[i] == null) {
+          continue;
+        }
+        int idx = (int) hashName(old_names[i]) & mask;
+        while (names[idx] != null) {
+          idx = (idx + 1) & mask;
+        }
+        names[idx] = old_names[i];
+        ids[idx] = old_ids[i];
+      }
+    }
+  }
+}
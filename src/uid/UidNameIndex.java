@@ -0,0 +1,546 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * An in-memory index of every name assigned for one kind of UID, sorted by
+ * name. It lets filters such as regular expressions or wildcards be expanded
+ * into the explicit set of UIDs they match when a query is planned so that
+ * the scanners can use the row key filter or multi-gets instead of reading
+ * every row of the metric.
+ * <p>
+ * The index is loaded by scanning the forward mappings in the UID table and
+ * is kept current by the {@link UniqueId} it is attached to as names are
+ * assigned, renamed or deleted by this TSD. Names assigned by other TSDs are
+ * caught up with {@link #sync} before the index is used: it compares the
+ * highest UID indexed with the max ID of the UID table and reads the reverse
+ * mappings of any newer UIDs. To keep that read off the path of every query,
+ * a successful sync is trusted for "tsd.query.filter.tagv_index.sync_interval"
+ * milliseconds, so names assigned by other TSDs may be missed for that long.
+ * The periodic reload, configured through
+ * "tsd.query.filter.tagv_index.reload_interval", replaces the index with a
+ * fresh scan so that deleted names are dropped as well. Until the first load
+ * completes, {@link #isLoaded} returns false and callers must fall back to
+ * scanning.
+ * <p>
+ * If "tsd.query.filter.tagv_index.snapshot" is set, the index is written to
+ * that file on shutdown and read back on startup so that it's usable before
+ * the first scan of the UID table finishes, once it has caught up with the
+ * max ID.
+ * @since 2.4
+ */
+public final class UidNameIndex implements TimerTask {
+  private static final Logger LOG = LoggerFactory.getLogger(UidNameIndex.class);
+
+  /** Charset used to convert Strings to byte arrays and back. */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+  /** The column family of the forward mappings. */
+  private static final byte[] ID_FAMILY = "id".getBytes(CHARSET);
+  /** The column family of the reverse mappings. */
+  private static final byte[] NAME_FAMILY = "name".getBytes(CHARSET);
+  /** The row holding the max ID of each kind. */
+  private static final byte[] MAXID_ROW = { 0 };
+  /** Identifies snapshot files. */
+  private static final int SNAPSHOT_MAGIC = 0x4F544E49;
+
+  /** The TSDB to scan the UID table with. */
+  private final TSDB tsdb;
+  /** The kind of UIDs indexed. */
+  private final byte[] kind;
+  /** The width of the UIDs. */
+  private final short id_width;
+  /** Where to keep a snapshot of the index, may be null. */
+  private final File snapshot;
+  /** How often to reload the index in seconds, 0 to disable. */
+  private final long reload_interval;
+  /** How long a sync is trusted in milliseconds, 0 to always sync. */
+  private final long sync_interval;
+
+  /** The names, sorted, mapped to their UIDs. Replaced on reload. */
+  private volatile ConcurrentSkipListMap<String, byte[]> names =
+      new ConcurrentSkipListMap<String, byte[]>();
+
+  /** The map being filled by a reload, if any. Guarded by this. */
+  private ConcurrentSkipListMap<String, byte[]> reloading;
+
+  /** The highest UID in the index. */
+  private final AtomicLong max_indexed = new AtomicLong();
+
+  /** Whether or not the index was fully loaded or caught up at least once. */
+  private volatile boolean loaded;
+  /** Whether or not a snapshot was read, it still has to catch up. */
+  private volatile boolean snapshot_read;
+  /** Set when the TSD is shutting down to stop reloading. */
+  private volatile boolean shutdown;
+  /** The number of completed loads. */
+  private volatile long loads;
+  /** The number of times newer UIDs were read from the reverse mappings. */
+  private final AtomicLong catch_ups = new AtomicLong();
+  /** When the last successful sync started in milliseconds, -1 if none. */
+  private volatile long last_sync = -1;
+  /** The number of syncs that read the max ID. */
+  private final AtomicLong syncs = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param tsdb The TSDB to scan the UID table with.
+   * @param uid The UID instance to index, the index is attached to it.
+   */
+  public UidNameIndex(final TSDB tsdb, final UniqueId uid) {
+    this.tsdb = tsdb;
+    kind = uid.kind().getBytes(CHARSET);
+    id_width = uid.width();
+    final String path = tsdb.getConfig().getString(
+        "tsd.query.filter.tagv_index.snapshot");
+    snapshot = Strings.isNullOrEmpty(path) ? null : new File(path);
+    reload_interval = tsdb.getConfig().getLong(
+        "tsd.query.filter.tagv_index.reload_interval");
+    sync_interval = tsdb.getConfig().getLong(
+        "tsd.query.filter.tagv_index.sync_interval");
+    uid.setNameIndex(this);
+  }
+
+  /**
+   * Reads the snapshot, if configured and present, then starts loading the
+   * index from storage in the background. The snapshot is used as soon as it
+   * caught up with the UIDs assigned since it was written.
+   */
+  public void start() {
+    if (snapshot != null && snapshot.exists()) {
+      try {
+        readSnapshot(snapshot);
+        snapshot_read = true;
+        LOG.info("Loaded " + names.size() + " " + new String(kind, CHARSET)
+            + " names from snapshot " + snapshot);
+
+        /** Marks the index usable once the snapshot caught up */
+        final class SnapshotCB implements Callback<Object, Boolean> {
+          @Override
+          public Object call(final Boolean current) {
+            if (current) {
+              loaded = true;
+            }
+            return null;
+          }
+        }
+        sync().addCallback(new SnapshotCB());
+      } catch (IOException e) {
+        LOG.warn("Failed to read the UID name index snapshot " + snapshot, e);
+        names.clear();
+        max_indexed.set(0);
+      }
+    }
+    run(null);
+  }
+
+  /**
+   * Scans the forward mappings of the UID table and replaces the index with
+   * the names found, dropping any that were deleted. Names assigned or
+   * deleted through this TSD while the scan runs are kept in sync.
+   * @return A deferred called back with null once the scan completed.
+   */
+  public Deferred<Object> load() {
+    final ConcurrentSkipListMap<String, byte[]> fresh =
+        new ConcurrentSkipListMap<String, byte[]>();
+    synchronized (this) {
+      reloading = fresh;
+    }
+    final Scanner scanner = tsdb.getClient().newScanner(tsdb.uidTable());
+    scanner.setFamily(ID_FAMILY);
+    scanner.setQualifier(kind);
+    scanner.setMaxNumRows(4096);
+    final long start = System.currentTimeMillis();
+
+    /** Adds each batch of rows and loops until the scanner is exhausted */
+    final class ScanCB implements Callback<Deferred<Object>,
+        ArrayList<ArrayList<KeyValue>>> {
+      private long max_id;
+
+      @Override
+      public Deferred<Object> call(final ArrayList<ArrayList<KeyValue>> rows)
+          throws Exception {
+        if (rows == null) {
+          synchronized (UidNameIndex.this) {
+            if (reloading == fresh) {
+              names = fresh;
+              reloading = null;
+            }
+          }
+          updateMaxIndexed(max_id);
+          loaded = true;
+          loads++;
+          LOG.info("Indexed " + fresh.size() + " " + new String(kind, CHARSET)
+              + " names in " + (System.currentTimeMillis() - start) + "ms");
+          return Deferred.fromResult(null);
+        }
+        for (final ArrayList<KeyValue> row : rows) {
+          for (final KeyValue kv : row) {
+            // skip the max ID row
+            if (kv.key().length == 1 && kv.key()[0] == 0) {
+              continue;
+            }
+            if (kv.value().length != id_width) {
+              LOG.warn("Skipping " + new String(kind, CHARSET) + " name '"
+                  + new String(kv.key(), CHARSET) + "' with an invalid UID "
+                  + Arrays.toString(kv.value()));
+              continue;
+            }
+            fresh.put(new String(kv.key(), CHARSET), kv.value());
+            max_id = Math.max(max_id, UniqueId.uidToLong(kv.value(), id_width));
+          }
+        }
+        return scanner.nextRows().addCallbackDeferring(this);
+      }
+    }
+
+    /** Stops mirroring writes to the abandoned map */
+    final class ErrorCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) {
+        synchronized (UidNameIndex.this) {
+          if (reloading == fresh) {
+            reloading = null;
+          }
+        }
+        return e;
+      }
+    }
+
+    return scanner.nextRows().addCallbackDeferring(new ScanCB())
+        .addErrback(new ErrorCB());
+  }
+
+  /**
+   * Brings the index up to date with the UIDs assigned since it was loaded,
+   * e.g. by other TSDs, by reading the reverse mappings of every UID between
+   * the highest indexed and the max ID of the UID table. UIDs whose reverse
+   * mapping isn't written yet can't have data so they don't hold the index
+   * back; if they sort below a newer UID that was found they are picked up
+   * by the next reload.
+   * If the last successful sync started less than
+   * "tsd.query.filter.tagv_index.sync_interval" milliseconds ago, the UID
+   * table isn't read again.
+   * @return A deferred resolving to true if the index is loaded and covers
+   * every UID assigned when the call was made, or when the last sync started,
+   * false if it must not be used, including when the UID table couldn't be
+   * read.
+   */
+  public Deferred<Boolean> sync() {
+    if (!loaded && !snapshot_read) {
+      return Deferred.fromResult(false);
+    }
+    final long start = DateTime.currentTimeMillis();
+    final long last = last_sync;
+    if (last >= 0 && start - last < sync_interval) {
+      return Deferred.fromResult(true);
+    }
+    syncs.incrementAndGet();
+    final GetRequest get = new GetRequest(tsdb.uidTable(), MAXID_ROW);
+    get.family(ID_FAMILY);
+    get.qualifier(kind);
+
+    /** Reads the UIDs the index is missing, if any */
+    final class MaxIdCB implements Callback<Deferred<Boolean>,
+        ArrayList<KeyValue>> {
+      @Override
+      public Deferred<Boolean> call(final ArrayList<KeyValue> row) {
+        long max_id = 0;
+        if (row != null && !row.isEmpty() && row.get(0).value().length == 8) {
+          max_id = Bytes.getLong(row.get(0).value());
+        }
+        final long indexed = max_indexed.get();
+        if (max_id <= indexed) {
+          return Deferred.fromResult(true);
+        }
+        return catchUp(indexed + 1, max_id);
+      }
+    }
+
+    /** Falls back to not using the index */
+    final class ErrorCB implements Callback<Boolean, Exception> {
+      @Override
+      public Boolean call(final Exception e) {
+        LOG.warn("Failed to bring the UID name index up to date", e);
+        return false;
+      }
+    }
+
+    /** Trusts the index for the sync interval once it caught up */
+    final class SyncedCB implements Callback<Boolean, Boolean> {
+      @Override
+      public Boolean call(final Boolean current) {
+        if (current && start > last_sync) {
+          last_sync = start;
+        }
+        return current;
+      }
+    }
+
+    return tsdb.getClient().get(get).addCallbackDeferring(new MaxIdCB())
+        .addErrback(new ErrorCB()).addCallback(new SyncedCB());
+  }
+
+  /**
+   * Scans the reverse mappings of a range of UIDs into the index.
+   * @param from The first UID to read.
+   * @param to The last UID to read, inclusive.
+   * @return A deferred resolving to true once the scan completed.
+   */
+  private Deferred<Boolean> catchUp(final long from, final long to) {
+    final Scanner scanner = tsdb.getClient().newScanner(tsdb.uidTable());
+    scanner.setStartKey(UniqueId.longToUID(from, id_width));
+    final long width_max = id_width >= 8 ? Long.MAX_VALUE
+        : (1L << (id_width * 8)) - 1;
+    if (to < width_max) {
+      scanner.setStopKey(UniqueId.longToUID(to + 1, id_width));
+    }
+    scanner.setFamily(NAME_FAMILY);
+    scanner.setQualifier(kind);
+    scanner.setMaxNumRows(4096);
+
+    /** Adds each batch of rows and loops until the scanner is exhausted */
+    final class ScanCB implements Callback<Deferred<Boolean>,
+        ArrayList<ArrayList<KeyValue>>> {
+      @Override
+      public Deferred<Boolean> call(final ArrayList<ArrayList<KeyValue>> rows) {
+        if (rows == null) {
+          catch_ups.incrementAndGet();
+          return Deferred.fromResult(true);
+        }
+        for (final ArrayList<KeyValue> row : rows) {
+          for (final KeyValue kv : row) {
+            if (kv.key().length == id_width) {
+              put(new String(kv.value(), CHARSET), kv.key());
+            }
+          }
+        }
+        return scanner.nextRows().addCallbackDeferring(this);
+      }
+    }
+
+    return scanner.nextRows().addCallbackDeferring(new ScanCB());
+  }
+
+  /** Reloads the index and schedules the next reload. */
+  @Override
+  public void run(final Timeout timeout) {
+    if (shutdown) {
+      return;
+    }
+
+    /** Schedules the next reload whether or not this one failed */
+    final class ReloadCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object result) throws Exception {
+        if (result instanceof Exception) {
+          LOG.error("Failed to load the UID name index", (Exception) result);
+        }
+        if (!shutdown && reload_interval > 0) {
+          tsdb.getTimer().newTimeout(UidNameIndex.this, reload_interval,
+              TimeUnit.SECONDS);
+        }
+        return null;
+      }
+    }
+
+    try {
+      load().addBoth(new ReloadCB());
+    } catch (RuntimeException e) {
+      LOG.error("Failed to start loading the UID name index", e);
+    }
+  }
+
+  /** @return Whether or not the index was fully loaded at least once. */
+  public boolean isLoaded() {
+    return loaded;
+  }
+
+  /** @return The number of names in the index. */
+  public int size() {
+    return names.size();
+  }
+
+  /**
+   * Returns a live, sorted view of the names starting with the prefix.
+   * @param prefix A prefix to restrict the names to, may be empty.
+   * @return A read only view mapping names to their UIDs. The UIDs must not
+   * be modified.
+   */
+  public SortedMap<String, byte[]> range(final String prefix) {
+    if (prefix == null || prefix.isEmpty()) {
+      return Collections.unmodifiableSortedMap(names);
+    }
+    return Collections.unmodifiableSortedMap(
+        names.subMap(prefix, prefix + Character.MAX_VALUE));
+  }
+
+  /**
+   * Adds or updates a mapping.
+   * @param name The name.
+   * @param id The UID, copied.
+   */
+  void put(final String name, final byte[] id) {
+    if (id.length != id_width) {
+      return;
+    }
+    final byte[] copy = Arrays.copyOf(id, id.length);
+    synchronized (this) {
+      names.put(name, copy);
+      if (reloading != null) {
+        reloading.put(name, copy);
+      }
+    }
+    updateMaxIndexed(UniqueId.uidToLong(copy, id_width));
+  }
+
+  /** @param name The name to remove from the index. */
+  synchronized void remove(final String name) {
+    names.remove(name);
+    if (reloading != null) {
+      reloading.remove(name);
+    }
+  }
+
+  /** Raises the highest indexed UID if the given one is higher. */
+  private void updateMaxIndexed(final long id) {
+    long current = max_indexed.get();
+    while (id > current && !max_indexed.compareAndSet(current, id)) {
+      current = max_indexed.get();
+    }
+  }
+
+  /**
+   * Stops reloading the index and writes the snapshot if configured.
+   */
+  public void shutdown() {
+    shutdown = true;
+    if (snapshot != null && loaded) {
+      try {
+        writeSnapshot(snapshot);
+        LOG.info("Wrote " + names.size() + " " + new String(kind, CHARSET)
+            + " names to snapshot " + snapshot);
+      } catch (IOException e) {
+        LOG.error("Failed to write the UID name index snapshot " + snapshot, e);
+      }
+    }
+  }
+
+  /**
+   * Collects stats for the index.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    final String tag = "kind=" + new String(kind, CHARSET);
+    collector.record("uid.name_index.size", names.size(), tag);
+    collector.record("uid.name_index.loads", loads, tag);
+    collector.record("uid.name_index.catch_ups", catch_ups.get(), tag);
+    collector.record("uid.name_index.syncs", syncs.get(), tag);
+  }
+
+  /**
+   * Writes the index to a file, replacing it atomically.
+   * @param file The file to write.
+   * @throws IOException if the file couldn't be written.
+   */
+  void writeSnapshot(final File file) throws IOException {
+    final File tmp = new File(file.getPath() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeShort(id_width);
+      for (final Map.Entry<String, byte[]> entry : names.entrySet()) {
+        final byte[] name = entry.getKey().getBytes(CHARSET);
+        out.writeBoolean(true);
+        out.writeInt(name.length);
+        out.write(name);
+        out.write(entry.getValue());
+      }
+      out.writeBoolean(false);
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      // renameTo won't replace an existing file on some platforms
+      if (!file.delete() || !tmp.renameTo(file)) {
+        throw new IOException("Unable to move " + tmp + " to " + file);
+      }
+    }
+  }
+
+  /**
+   * Adds the mappings from a snapshot file to the index.
+   * @param file The file to read.
+   * @throws IOException if the file couldn't be read or was written for a
+   * different UID width.
+   */
+  void readSnapshot(final File file) throws IOException {
+    final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != SNAPSHOT_MAGIC) {
+        throw new IOException("Not a UID name index snapshot: " + file);
+      }
+      final short width = in.readShort();
+      if (width != id_width) {
+        throw new IOException("Snapshot has UIDs of width " + width
+            + " instead of " + id_width + ": " + file);
+      }
+      while (in.readBoolean()) {
+        final byte[] name = new byte[in.readInt()];
+        in.readFully(name);
+        final byte[] id = new byte[id_width];
+        in.readFully(id);
+        names.put(new String(name, CHARSET), id);
+        updateMaxIndexed(UniqueId.uidToLong(id, id_width));
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
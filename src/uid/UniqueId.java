@@ -23,6 +23,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.bind.DatatypeConverter;
 
@@ -113,6 +114,12 @@ public final class UniqueId implements UniqueIdInterface {
    * The ID in the key is a byte[] converted to a String to be Comparable. */
   private final Cache<String, String> lru_id_cache;
   
+  /** Compact cache for both mappings with the IDs packed into longs. */
+  private final PrimitiveUidCache primitive_cache;
+  
+  /** Optional index of all names, kept current with our mappings. */
+  private volatile UidNameIndex name_index;
+  
   /** Map of pending UID assignments */
   private final HashMap<String, Deferred<byte[]>> pending_assignments =
     new HashMap<String, Deferred<byte[]>>();
@@ -129,6 +136,8 @@ public final class UniqueId implements UniqueIdInterface {
   private volatile int random_id_collisions;
   /** How many times assignments have been rejected by the UID filter */
   private volatile int rejected_assignments;
+  /** Bumped whenever an existing mapping is renamed, removed or dropped */
+  private final AtomicLong cache_generation = new AtomicLong();
   
   /** The mode of operation for this TSD. */
   private OperationMode mode;
@@ -139,6 +148,9 @@ public final class UniqueId implements UniqueIdInterface {
   /** Whether or not to use the Guava LRU cache for IDs. */
   private boolean use_lru;
   
+  /** Whether or not to use the primitive cache for IDs. */
+  private boolean use_primitive;
+  
   /** TSDB object used for filtering and/or meta generation. */
   private TSDB tsdb;
   
@@ -186,7 +198,9 @@ public final class UniqueId implements UniqueIdInterface {
     id_cache = new ConcurrentHashMap<String, String>();
     lru_name_cache = null;
     lru_id_cache = null;
+    primitive_cache = null;
     use_lru = false;
+    use_primitive = false;
   }
   
   /**
@@ -218,6 +232,8 @@ public final class UniqueId implements UniqueIdInterface {
     mode = tsdb.getMode();
     use_mode = tsdb.getConfig().getBoolean("tsd.uid.use_mode");
     use_lru = tsdb.getConfig().getBoolean("tsd.uid.lru.enable");
+    use_primitive = !use_lru && 
+        tsdb.getConfig().getBoolean("tsd.uid.primitive_cache.enable");
     if (use_lru) {
       name_cache = null;
       id_cache = null;
@@ -227,14 +243,32 @@ public final class UniqueId implements UniqueIdInterface {
       lru_id_cache = CacheBuilder.newBuilder()
           .maximumSize(tsdb.getConfig().getInt("tsd.uid.lru.id.size"))
           .build();
+      primitive_cache = null;
+    } else if (use_primitive) {
+      name_cache = null;
+      id_cache = null;
+      lru_name_cache = null;
+      lru_id_cache = null;
+      primitive_cache = new PrimitiveUidCache(width, 
+          tsdb.getConfig().getInt("tsd.uid.primitive_cache.segments"));
     } else {
       name_cache = new ConcurrentHashMap<String, byte[]>();
       id_cache = new ConcurrentHashMap<String, String>();
       lru_name_cache = null;
       lru_id_cache = null;
+      primitive_cache = null;
     }
   }
 
+  /**
+   * Attaches an index that's updated whenever a mapping is cached, renamed
+   * or deleted.
+   * @param name_index The index to update.
+   */
+  void setNameIndex(final UidNameIndex name_index) {
+    this.name_index = name_index;
+  }
+
   /** The number of times we avoided reading from HBase thanks to the cache. */
   public long cacheHits() {
     return cache_hits;
@@ -245,11 +279,25 @@ public final class UniqueId implements UniqueIdInterface {
     return cache_misses;
   }
 
+  /**
+   * Returns a counter that changes whenever a cached mapping may have become
+   * stale, i.e. on a rename, a delete or when the caches are dropped. Callers
+   * caching data derived from UIDs can compare it to detect invalidations.
+   * @return The current cache generation.
+   * @since 2.4
+   */
+  public long cacheGeneration() {
+    return cache_generation.get();
+  }
+
   /** Returns the number of elements stored in the internal cache. */
   public long cacheSize() {
     if (use_lru) {
       return (int) (lru_name_cache.size() + lru_id_cache.size());
     }
+    if (use_primitive) {
+      return primitive_cache.forwardSize() + primitive_cache.reverseSize();
+    }
     return name_cache.size() + id_cache.size();
   }
 
@@ -315,9 +363,12 @@ public final class UniqueId implements UniqueIdInterface {
    * @since 1.1
    */
   public void dropCaches() {
+    cache_generation.incrementAndGet();
     if (use_lru) {
       lru_name_cache.invalidateAll();
       lru_id_cache.invalidateAll();
+    } else if (use_primitive) {
+      primitive_cache.clear();
     } else {
       name_cache.clear();
       id_cache.clear();
@@ -398,6 +449,9 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   private String getNameFromCache(final byte[] id) {
+    if (use_primitive) {
+      return primitive_cache.getName(id);
+    }
     return use_lru ? lru_id_cache.getIfPresent(fromBytes(id)) : 
                      id_cache.get(fromBytes(id));
   }
@@ -412,6 +466,14 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   private void addNameToCache(final byte[] id, final String name) {
+    if (use_primitive) {
+      final String found = primitive_cache.putNameIfAbsent(id, name);
+      if (found != null && !found.equals(name)) {
+        throw new IllegalStateException("id=" + Arrays.toString(id) 
+            + " => name=" + name + ", already mapped to " + found);
+      }
+      return;
+    }
     final String key = fromBytes(id);
     String found = use_lru ? lru_id_cache.getIfPresent(key) : id_cache.get(key);
     if (found == null) {
@@ -477,6 +539,9 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   private byte[] getIdFromCache(final String name) {
+    if (use_primitive) {
+      return primitive_cache.getId(name);
+    }
     return use_lru ? lru_name_cache.getIfPresent(name) : name_cache.get(name);
   }
 
@@ -485,9 +550,15 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   private void addIdToCache(final String name, final byte[] id) {
-    byte[] found = use_lru ? lru_name_cache.getIfPresent(name) : 
-                             name_cache.get(name);
-    if (found == null) {
+    byte[] found;
+    if (use_primitive) {
+      // the primitive cache stores its own copy of the ID.
+      found = primitive_cache.putIdIfAbsent(name, id);
+    } else {
+      found = use_lru ? lru_name_cache.getIfPresent(name) : 
+                        name_cache.get(name);
+    }
+    if (found == null && !use_primitive) {
       if (use_lru) {
         lru_name_cache.put(name, Arrays.copyOf(id, id.length));
       } else {
@@ -503,6 +574,10 @@ public final class UniqueId implements UniqueIdInterface {
           + Arrays.toString(id) + ", already mapped to "
           + Arrays.toString(found));
     }
+    // only index the mapping once the caches accepted it
+    if (name_index != null) {
+      name_index.put(name, id);
+    }
   }
 
   /**
@@ -766,6 +841,40 @@ public final class UniqueId implements UniqueIdInterface {
     addNameToCache(id, name);
   } 
   
+  /** Removes both mappings for the name and ID from whichever cache is used */
+  private void removeFromCache(final String name, final byte[] id) {
+    cache_generation.incrementAndGet();
+    if (name_index != null) {
+      name_index.remove(name);
+    }
+    if (use_lru) {
+      lru_name_cache.invalidate(name);
+      lru_id_cache.invalidate(fromBytes(id));
+    } else if (use_primitive) {
+      primitive_cache.removeId(name);
+      primitive_cache.removeName(id);
+    } else {
+      name_cache.remove(name);
+      id_cache.remove(fromBytes(id));
+    }
+  }
+  
+  /** @return The number of forward mappings (name to ID) in the cache. */
+  private long nameCacheSize() {
+    if (use_lru) {
+      return lru_name_cache.size();
+    }
+    return use_primitive ? primitive_cache.forwardSize() : name_cache.size();
+  }
+  
+  /** @return The number of backward mappings (ID to name) in the cache. */
+  private long idCacheSize() {
+    if (use_lru) {
+      return lru_id_cache.size();
+    }
+    return use_primitive ? primitive_cache.reverseSize() : id_cache.size();
+  }
+  
   /**
    * Finds the ID associated with a given name or creates it.
    * <p>
@@ -1051,8 +1160,7 @@ public final class UniqueId implements UniqueIdInterface {
         final byte[] key = row.get(0).key();
         final String name = fromBytes(key);
         final byte[] id = row.get(0).value();
-        final byte[] cached_id = use_lru ? lru_name_cache.getIfPresent(name) : 
-                                           name_cache.get(name);
+        final byte[] cached_id = getIdFromCache(name);
         if (cached_id == null) {
           cacheMapping(name, id); 
         } else if (!Arrays.equals(id, cached_id)) {
@@ -1155,13 +1263,20 @@ public final class UniqueId implements UniqueIdInterface {
 
     // Update cache.
     addIdToCache(newname, row);            // add     new name -> ID
+    if (name_index != null) {
+      name_index.remove(oldname);
+    }
     if (use_lru) {
       lru_id_cache.put(fromBytes(row), newname);
       lru_name_cache.invalidate(oldname);
+    } else if (use_primitive) {
+      primitive_cache.putName(row, newname);
+      primitive_cache.removeId(oldname);
     } else {
       id_cache.put(fromBytes(row), newname);  // update  ID -> new name
       name_cache.remove(oldname);             // remove  old name -> ID
     }
+    cache_generation.incrementAndGet();
 
     // Delete the old forward mapping.
     try {
@@ -1221,13 +1336,7 @@ public final class UniqueId implements UniqueIdInterface {
     class ErrCB implements Callback<Object, Exception> {
       @Override
       public Object call(final Exception ex) throws Exception {
-        if (use_lru) {
-          lru_name_cache.invalidate(name);
-          lru_id_cache.invalidate(fromBytes(uid));
-        } else {
-          name_cache.remove(name);
-          id_cache.remove(fromBytes(uid));
-        }
+        removeFromCache(name, uid);
         LOG.error("Failed to delete " + fromBytes(kind) + " UID " + name 
             + " but still cleared the cache", ex);
         return ex;
@@ -1239,13 +1348,7 @@ public final class UniqueId implements UniqueIdInterface {
       @Override
       public Deferred<Object> call(final ArrayList<Object> response) 
           throws Exception {
-        if (use_lru) {
-          lru_name_cache.invalidate(name);
-          lru_id_cache.invalidate(fromBytes(uid));
-        } else {
-          name_cache.remove(name);
-          id_cache.remove(fromBytes(uid));
-        }
+        removeFromCache(name, uid);
         LOG.info("Successfully deleted " + fromBytes(kind) + " UID " + name);
         return Deferred.fromResult(null);
       }
@@ -1274,8 +1377,7 @@ public final class UniqueId implements UniqueIdInterface {
       }
     }
     
-    final byte[] cached_uid = use_lru ? lru_name_cache.getIfPresent(name) : 
-                                        name_cache.get(name);
+    final byte[] cached_uid = getIdFromCache(name);
     if (cached_uid == null) {
       return getIdFromHBase(name).addCallbackDeferring(new LookupCB())
           .addErrback(new ErrCB());
@@ -1792,10 +1894,8 @@ public final class UniqueId implements UniqueIdInterface {
       for (UniqueId unique_id_table : uid_cache_map.values()) {
         LOG.info("After preloading, uid cache '{}' has {} ids and {} names.",
                  unique_id_table.kind(),
-                 unique_id_table.use_lru ? unique_id_table.lru_id_cache.size() : 
-                                           unique_id_table.id_cache.size(),
-                 unique_id_table.use_lru ? unique_id_table.lru_name_cache.size() : 
-                                           unique_id_table.name_cache.size());
+                 unique_id_table.idCacheSize(),
+                 unique_id_table.nameCacheSize());
       }
     } catch (Exception e) {
       if (e instanceof HBaseException) {
@@ -1831,4 +1931,9 @@ public final class UniqueId implements UniqueIdInterface {
   Cache<String, String> lruIdCache() {
     return lru_id_cache;
   }
+  
+  @VisibleForTesting
+  PrimitiveUidCache primitiveCache() {
+    return primitive_cache;
+  }
 }
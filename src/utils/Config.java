@@ -553,12 +553,19 @@ public class Config {
     default_map.put("tsd.core.tree.enable_processing", "false");
     default_map.put("tsd.core.preload_uid_cache", "false");
     default_map.put("tsd.core.preload_uid_cache.max_entries", "300000");
+    default_map.put("tsd.core.row_key_cache.enable", "false");
+    default_map.put("tsd.core.row_key_cache.size", "1000000");
     default_map.put("tsd.core.storage_exception_handler.enable", "false");
     default_map.put("tsd.core.uid.random_metrics", "false");
     default_map.put("tsd.core.bulk.allow_out_of_order_timestamps", "false");
     default_map.put("tsd.gnuplot.options.allowlist", ";axis x1y2");
     default_map.put("tsd.query.filter.expansion_limit", "4096");
+    default_map.put("tsd.query.filter.tagv_index.enable", "false");
+    default_map.put("tsd.query.filter.tagv_index.reload_interval", "3600");
+    default_map.put("tsd.query.filter.tagv_index.sync_interval", "1000");
+    default_map.put("tsd.query.filter.tagv_index.snapshot", "");
     default_map.put("tsd.query.skip_unresolved_tagvs", "false");
+    default_map.put("tsd.query.filter.uid_match", "true");
     default_map.put("tsd.query.allow_simultaneous_duplicates", "true");
     default_map.put("tsd.query.enable_fuzzy_filter", "true");
     default_map.put("tsd.query.limits.bytes.default", "0");
@@ -567,11 +574,41 @@ public class Config {
     default_map.put("tsd.query.limits.data_points.allow_override", "false");
     default_map.put("tsd.query.limits.overrides.interval", "60000");
     default_map.put("tsd.query.multi_get.enable", "false");
+    default_map.put("tsd.query.materialize_spans", "false");
+    default_map.put("tsd.query.aggregation.parallel.enable", "false");
+    default_map.put("tsd.query.aggregation.parallel.threads", "0");
+    default_map.put("tsd.query.aggregation.parallel.max_pending", "4096");
+    default_map.put("tsd.query.aggregation.parallel.min_groups", "2");
+    default_map.put("tsd.query.aggregation.block.enable", "true");
+    default_map.put("tsd.query.downsample.calendar_table.enable", "true");
+    default_map.put("tsd.query.downsample.accumulator.enable", "true");
+    default_map.put("tsd.query.percentile.sketch.relative_accuracy", "0.01");
+    default_map.put("tsd.query.percentile.sketch.max_buckets", "2048");
+    default_map.put("tsd.query.row_cache.enable", "false");
+    default_map.put("tsd.query.row_cache.max_bytes", "268435456");
+    default_map.put("tsd.query.row_cache.immutable_after", "1h");
+    default_map.put("tsd.query.row_cache.key_only_hit_ratio", "0.8");
+    default_map.put("tsd.query.cache.enable", "false");
+    default_map.put("tsd.query.cache.max_bytes", "268435456");
+    default_map.put("tsd.query.cache.slice", "1h");
+    default_map.put("tsd.query.cache.settle_time", "5m");
+    default_map.put("tsd.query.single_flight.enable", "false");
+    default_map.put("tsd.query.scan.partition.enable", "false");
+    default_map.put("tsd.query.scan.partition.interval", "1d");
+    default_map.put("tsd.query.scan.partition.max_scanners", "64");
+    default_map.put("tsd.query.scan.streaming_decode", "false");
+    default_map.put("tsd.query.planner.enable", "false");
+    default_map.put("tsd.query.planner.get_cost", "4");
+    default_map.put("tsd.query.planner.seek_cost", "2");
     default_map.put("tsd.query.multi_get.limit", "131072");
     default_map.put("tsd.query.multi_get.batch_size", "1024");
     default_map.put("tsd.query.multi_get.concurrent", "20");
     default_map.put("tsd.query.multi_get.get_all_salts", "false");
+    default_map.put("tsd.query.multi_get.pipeline.enable", "false");
+    default_map.put("tsd.query.multi_get.pipeline.window", "4");
+    default_map.put("tsd.query.multi_get.pipeline.batch_size", "32");
     default_map.put("tsd.rpc.telnet.return_errors", "true");
+    default_map.put("tsd.rpc.telnet.fast_put.enable", "false");
     // Rollup related settings
     default_map.put("tsd.rollups.enable", "false");
     default_map.put("tsd.rollups.tag_raw", "false");
@@ -579,6 +616,14 @@ public class Config {
     default_map.put("tsd.rollups.raw_agg_tag_value", "RAW");
     default_map.put("tsd.rollups.block_derived", "true");
     default_map.put("tsd.rollups.split_query.enable", "false");
+    default_map.put("tsd.rollups.engine.enable", "false");
+    default_map.put("tsd.rollups.engine.lateness", "5m");
+    default_map.put("tsd.rollups.engine.windows", "4");
+    default_map.put("tsd.rollups.engine.flush_interval", "10000");
+    default_map.put("tsd.rollups.engine.max_bytes", "268435456");
+    default_map.put("tsd.rollups.engine.shard_id", "0");
+    default_map.put("tsd.rollups.engine.shard_count", "1");
+    default_map.put("tsd.rollups.engine.complete", "false");
     default_map.put("tsd.rtpublisher.enable", "false");
     default_map.put("tsd.rtpublisher.plugin", "");
     default_map.put("tsd.search.enable", "false");
@@ -597,21 +642,32 @@ public class Config {
     default_map.put("tsd.storage.hbase.zk_basedir", "/hbase");
     default_map.put("tsd.storage.hbase.prefetch_meta", "false");
     default_map.put("tsd.storage.enable_appends", "false");
+    default_map.put("tsd.storage.write_coalescing.enable", "false");
+    default_map.put("tsd.storage.write_coalescing.interval", "10");
+    default_map.put("tsd.storage.write_coalescing.max_batch", "128");
+    default_map.put("tsd.storage.write_coalescing.max_pending", "100000");
     default_map.put("tsd.storage.repair_appends", "false");
     default_map.put("tsd.storage.enable_compaction", "true");
     default_map.put("tsd.storage.compaction.flush_interval", "10");
     default_map.put("tsd.storage.compaction.min_flush_threshold", "100");
     default_map.put("tsd.storage.compaction.max_concurrent_flushes", "10000");
     default_map.put("tsd.storage.compaction.flush_speed", "2");
+    default_map.put("tsd.storage.compaction.shards", "1");
+    default_map.put("tsd.storage.compaction.flush_threads", "1");
     default_map.put("tsd.timeseriesfilter.enable", "false");
     default_map.put("tsd.uid.use_mode", "false");
     default_map.put("tsd.uid.lru.enable", "false");
     default_map.put("tsd.uid.lru.name.size", "5000000");
     default_map.put("tsd.uid.lru.id.size", "5000000");
+    default_map.put("tsd.uid.primitive_cache.enable", "false");
+    default_map.put("tsd.uid.primitive_cache.segments", "16");
     default_map.put("tsd.uidfilter.enable", "false");
     default_map.put("tsd.core.stats_with_port", "false");
     default_map.put("tsd.http.show_stack_trace", "true");
     default_map.put("tsd.http.query.allow_delete", "false");
+    default_map.put("tsd.http.query.streaming.enable", "false");
+    default_map.put("tsd.http.query.streaming.chunk_size", "65536");
+    default_map.put("tsd.http.query.streaming.window", "1048576");
     default_map.put("tsd.http.header_tag", "");
     default_map.put("tsd.http.request.enable_chunked", "false");
     default_map.put("tsd.http.request.max_chunk", "4096");
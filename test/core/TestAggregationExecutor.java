@@ -0,0 +1,151 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+
+import org.hbase.async.Scanner;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Scanner.class, SpanGroup.class })
+public class TestAggregationExecutor extends BaseTsdbTest {
+  private AggregationExecutor executor;
+
+  @After
+  public void afterLocal() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void groupsAggregatedInParallel() throws Exception {
+    setupExecutor(1);
+    storeLongTimeSeriesSeconds(true, false);
+
+    tags.clear();
+    tags.put(TAGK_STRING , "*");
+    final TsdbQuery query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+
+    final DataPoints[] dps = query.run();
+    assertEquals(2, dps.length);
+    assertMeta(dps, 0, false);
+    assertMeta(dps, 1, false);
+    assertTrue(((SpanGroup) dps[0]).isMaterialized());
+    assertTrue(((SpanGroup) dps[1]).isMaterialized());
+
+    int value = 1;
+    long timestamp = 1356998430000L;
+    for (DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      assertEquals(timestamp, dp.timestamp());
+      value++;
+      timestamp += 30000;
+    }
+    assertEquals(300, dps[0].size());
+
+    value = 300;
+    timestamp = 1356998430000L;
+    for (DataPoint dp : dps[1]) {
+      assertEquals(value, dp.longValue());
+      assertEquals(timestamp, dp.timestamp());
+      value--;
+      timestamp += 30000;
+    }
+    assertEquals(300, dps[1].size());
+    assertEquals(150, dps[1].longValue(150));
+  }
+
+  @Test
+  public void belowMinGroups() throws Exception {
+    setupExecutor(2);
+    storeLongTimeSeriesSeconds(true, false);
+
+    final TsdbQuery query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertFalse(((SpanGroup) dps[0]).isMaterialized());
+    assertEquals(300, dps[0].size());
+  }
+
+  @Test
+  public void recordsCpuTime() throws Exception {
+    setupExecutor(1);
+    final QueryStats stats = mock(QueryStats.class);
+    final SpanGroup group = PowerMockito.mock(SpanGroup.class);
+    final DataPoints[] groups = new DataPoints[] { group, group };
+
+    assertSame(groups, executor.aggregate(groups, stats, 1)
+        .joinUninterruptibly());
+    verify(group, times(2)).materialize();
+    if (Whitebox.getInternalState(executor, "thread_mx") != null) {
+      verify(stats).addStat(eq(1), eq(QueryStat.AGGREGATION_CPU_TIME),
+          anyLong());
+    }
+  }
+
+  @Test
+  public void exceptionPropagated() throws Exception {
+    setupExecutor(1);
+    final SpanGroup good = PowerMockito.mock(SpanGroup.class);
+    final SpanGroup bad = PowerMockito.mock(SpanGroup.class);
+    doThrow(new IllegalDataException("Boo!")).when(bad).materialize();
+
+    try {
+      executor.aggregate(new DataPoints[] { good, bad }, null, 0)
+        .joinUninterruptibly();
+      fail("Expected an IllegalDataException");
+    } catch (IllegalDataException e) { }
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void badMaxPending() throws Exception {
+    config.overrideConfig("tsd.query.aggregation.parallel.max_pending", "0");
+    new AggregationExecutor(tsdb);
+  }
+
+  private void setupExecutor(final int min_groups) {
+    config.overrideConfig("tsd.query.aggregation.parallel.threads", "2");
+    config.overrideConfig("tsd.query.aggregation.parallel.min_groups",
+        Integer.toString(min_groups));
+    executor = new AggregationExecutor(tsdb);
+    Whitebox.setInternalState(tsdb, "aggregation_executor", executor);
+  }
+}
@@ -0,0 +1,218 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import net.opentsdb.rollup.RollupInterval;
+import net.opentsdb.rollup.RollupQuery;
+
+import org.junit.Test;
+
+/** Tests {@link BlockAggregationIterator} against {@link AggregationIterator} */
+public class TestBlockAggregationIterator {
+  private static final long BASE_TIME = 1356998400000L;
+  private static final long INTERVAL = 60000L;
+
+  private static final Aggregator[] AGGREGATORS = new Aggregator[] {
+    Aggregators.SUM, Aggregators.ZIMSUM, Aggregators.PFSUM,
+    Aggregators.SQUARESUM, Aggregators.MIN, Aggregators.MIMMIN,
+    Aggregators.MAX, Aggregators.MIMMAX, Aggregators.AVG, Aggregators.COUNT
+  };
+
+  @Test
+  public void canAggregate() throws Exception {
+    final DownsamplingSpecification filled =
+        new DownsamplingSpecification("1m-avg-nan");
+    assertTrue(BlockAggregationIterator.canAggregate(Aggregators.SUM, filled,
+        false, null));
+    assertTrue(BlockAggregationIterator.canAggregate(Aggregators.MIMMAX,
+        new DownsamplingSpecification("1m-sum-zero"), false, null));
+
+    assertFalse(BlockAggregationIterator.canAggregate(Aggregators.DEV, filled,
+        false, null));
+    assertFalse(BlockAggregationIterator.canAggregate(Aggregators.SUM, filled,
+        true, null));
+    assertFalse(BlockAggregationIterator.canAggregate(Aggregators.SUM,
+        new DownsamplingSpecification("1m-avg"), false, null));
+    assertFalse(BlockAggregationIterator.canAggregate(Aggregators.SUM,
+        new DownsamplingSpecification("1dc-avg-nan"), false, null));
+    assertFalse(BlockAggregationIterator.canAggregate(Aggregators.SUM,
+        new DownsamplingSpecification("0all-avg-nan"), false, null));
+    assertFalse(BlockAggregationIterator.canAggregate(Aggregators.SUM,
+        DownsamplingSpecification.NO_DOWNSAMPLER, false, null));
+    assertFalse(BlockAggregationIterator.canAggregate(Aggregators.SUM, null,
+        false, null));
+    assertFalse(BlockAggregationIterator.canAggregate(Aggregators.SUM, filled,
+        false, new RollupQuery(RollupInterval.builder().setTable("tsdb-rollup-10m")
+            .setPreAggregationTable("tsdb-rollup-agg-10m").setInterval("10m")
+            .setRowSpan("1d").build(), Aggregators.SUM, 600000,
+            Aggregators.SUM)));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorUnsupportedAggregator() throws Exception {
+    new BlockAggregationIterator(new SeekableView[0], BASE_TIME,
+        BASE_TIME + INTERVAL, Aggregators.DEV);
+  }
+
+  @Test
+  public void empty() throws Exception {
+    final BlockAggregationIterator it = new BlockAggregationIterator(
+        new SeekableView[0], BASE_TIME, BASE_TIME + INTERVAL, Aggregators.SUM);
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void sameAsAggregationIterator() throws Exception {
+    // several blocks with a partial one at the end
+    final int points = BlockAggregationIterator.BLOCK_SIZE * 2 + 17;
+    final DataPoint[][] series = series(12, points, 42);
+    for (final Aggregator aggregator : AGGREGATORS) {
+      assertSameResults(series, BASE_TIME, BASE_TIME + points * INTERVAL,
+          aggregator);
+      // trimmed on both ends
+      assertSameResults(series, BASE_TIME + 10 * INTERVAL,
+          BASE_TIME + (points - 10) * INTERVAL, aggregator);
+    }
+  }
+
+  @Test
+  public void allNaN() throws Exception {
+    final DataPoint[][] series = new DataPoint[3][2];
+    for (int i = 0; i < series.length; i++) {
+      for (int j = 0; j < 2; j++) {
+        series[i][j] = MutableDataPoint.ofDoubleValue(
+            BASE_TIME + j * INTERVAL, Double.NaN);
+      }
+    }
+    for (final Aggregator aggregator : AGGREGATORS) {
+      assertSameResults(series, BASE_TIME, BASE_TIME + INTERVAL, aggregator);
+    }
+  }
+
+  @Test
+  public void infinity() throws Exception {
+    final DataPoint[][] series = new DataPoint[][] {
+      { MutableDataPoint.ofDoubleValue(BASE_TIME, Double.MAX_VALUE) },
+      { MutableDataPoint.ofDoubleValue(BASE_TIME, Double.MAX_VALUE) }
+    };
+    final BlockAggregationIterator it = new BlockAggregationIterator(
+        views(series), BASE_TIME, BASE_TIME, Aggregators.SUM);
+    assertTrue(it.hasNext());
+    it.next();
+    assertEquals(BASE_TIME, it.timestamp());
+    try {
+      it.doubleValue();
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) { }
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void unaligned() throws Exception {
+    final DataPoint[][] series = new DataPoint[][] {
+      { MutableDataPoint.ofDoubleValue(BASE_TIME, 1),
+        MutableDataPoint.ofDoubleValue(BASE_TIME + INTERVAL, 2) },
+      { MutableDataPoint.ofDoubleValue(BASE_TIME, 1),
+        MutableDataPoint.ofDoubleValue(BASE_TIME + 2 * INTERVAL, 2) }
+    };
+    new BlockAggregationIterator(views(series), BASE_TIME,
+        BASE_TIME + 2 * INTERVAL, Aggregators.SUM);
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void missingInterval() throws Exception {
+    final DataPoint[][] series = new DataPoint[][] {
+      { MutableDataPoint.ofDoubleValue(BASE_TIME, 1),
+        MutableDataPoint.ofDoubleValue(BASE_TIME + INTERVAL, 2) },
+      { MutableDataPoint.ofDoubleValue(BASE_TIME, 1) }
+    };
+    new BlockAggregationIterator(views(series), BASE_TIME,
+        BASE_TIME + 2 * INTERVAL, Aggregators.SUM);
+  }
+
+  @Test
+  public void seek() throws Exception {
+    final DataPoint[][] series = series(3, 10, 7);
+    final BlockAggregationIterator it = new BlockAggregationIterator(
+        views(series), BASE_TIME, BASE_TIME + 10 * INTERVAL, Aggregators.SUM);
+    it.seek(BASE_TIME + 5 * INTERVAL);
+    assertTrue(it.hasNext());
+    assertEquals(BASE_TIME + 5 * INTERVAL, it.next().timestamp());
+  }
+
+  /** Runs both iterators and compares every data point bit for bit */
+  private static void assertSameResults(final DataPoint[][] series,
+      final long start, final long end, final Aggregator aggregator) {
+    final AggregationIterator expected = AggregationIterator.createForTesting(
+        views(series), start, end, aggregator,
+        aggregator.interpolationMethod(), false);
+    final BlockAggregationIterator actual = new BlockAggregationIterator(
+        views(series), start, end, aggregator);
+    int i = 0;
+    while (expected.hasNext()) {
+      assertTrue(aggregator + " ended early at " + i, actual.hasNext());
+      final DataPoint e = expected.next();
+      final DataPoint a = actual.next();
+      assertEquals(aggregator + " at " + i, e.timestamp(), a.timestamp());
+      assertFalse(a.isInteger());
+      assertEquals(aggregator + " at " + i,
+          Double.doubleToRawLongBits(e.doubleValue()),
+          Double.doubleToRawLongBits(a.doubleValue()));
+      i++;
+    }
+    assertFalse(aggregator + " has more", actual.hasNext());
+    assertTrue(i > 0);
+  }
+
+  /** @return Aligned series of doubles with NaNs and signed zeros */
+  private static DataPoint[][] series(final int count, final int points,
+      final long seed) {
+    final Random random = new Random(seed);
+    final DataPoint[][] series = new DataPoint[count][points];
+    for (int i = 0; i < count; i++) {
+      for (int j = 0; j < points; j++) {
+        final double value;
+        switch (random.nextInt(10)) {
+        case 0:
+          value = Double.NaN;
+          break;
+        case 1:
+          value = -0.0;
+          break;
+        case 2:
+          value = 0.0;
+          break;
+        default:
+          value = (random.nextDouble() - 0.5) * 1000;
+        }
+        series[i][j] = MutableDataPoint.ofDoubleValue(
+            BASE_TIME + j * INTERVAL, value);
+      }
+    }
+    return series;
+  }
+
+  private static SeekableView[] views(final DataPoint[][] series) {
+    final SeekableView[] views = new SeekableView[series.length];
+    for (int i = 0; i < series.length; i++) {
+      views[i] = SeekableViewsForTest.fromArray(series[i]);
+    }
+    return views;
+  }
+}
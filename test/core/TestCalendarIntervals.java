@@ -0,0 +1,215 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import net.opentsdb.utils.DateTime;
+
+import org.junit.Test;
+
+/** Makes sure the boundary tables match the calendar */
+public class TestCalendarIntervals {
+  /** 2016-01-01T00:00:00Z */
+  private static final long START = 1451606400000L;
+  /** 2017-01-01T00:00:00Z */
+  private static final long END = 1483228800000L;
+
+  private static final TimeZone DENVER = DateTime.timezones.get(
+      "America/Denver");
+  private static final TimeZone KABUL = DateTime.timezones.get("Asia/Kabul");
+
+  @Test
+  public void matchesCalendarAcrossDST() throws Exception {
+    for (final TimeZone tz : new TimeZone[] { DENVER, KABUL, null }) {
+      assertSameBoundaries(1, Calendar.DAY_OF_MONTH, tz);
+      assertSameBoundaries(2, Calendar.DAY_OF_MONTH, tz);
+      assertSameBoundaries(1, Calendar.DAY_OF_WEEK, tz);
+      assertSameBoundaries(1, Calendar.MONTH, tz);
+      assertSameBoundaries(6, Calendar.HOUR_OF_DAY, tz);
+      assertSameBoundaries(1, Calendar.HOUR_OF_DAY, tz);
+    }
+  }
+
+  @Test
+  public void floor() throws Exception {
+    final CalendarIntervals table = CalendarIntervals.create(1,
+        Calendar.DAY_OF_MONTH, DENVER, START, END);
+    for (long ts = START; ts < END; ts += 7 * 3600000L + 17) {
+      assertEquals(DateTime.previousInterval(ts, 1, Calendar.DAY_OF_MONTH,
+          DENVER).getTimeInMillis(), table.floor(ts));
+    }
+  }
+
+  @Test
+  public void floorMatchesCalendar() throws Exception {
+    // "5d" and "7m" restart at the top of the year and day, "2w" aligns on
+    // single weeks, so some of their intervals differ from the table's
+    final int[][] intervals = { { 1, Calendar.DAY_OF_MONTH }, 
+        { 5, Calendar.DAY_OF_MONTH }, { 1, Calendar.DAY_OF_WEEK }, 
+        { 2, Calendar.DAY_OF_WEEK }, { 1, Calendar.MONTH }, 
+        { 6, Calendar.HOUR_OF_DAY }, { 7, Calendar.MINUTE } };
+    for (final TimeZone tz : new TimeZone[] { DENVER, KABUL, null }) {
+      for (final int[] interval : intervals) {
+        final boolean minutes = interval[1] == Calendar.MINUTE;
+        final long end = minutes ? START + 86400000L * 3 : END;
+        final long step = minutes ? 600000L + 13 : 3600000L + 17;
+        final long margin = minutes ? 86400000L : 86400000L * 40;
+        final CalendarIntervals table = CalendarIntervals.create(interval[0],
+            interval[1], tz, START, end);
+        assertNotNull(table);
+        // twice to also read the outcome of the checks
+        for (int i = 0; i < 2; i++) {
+          for (long ts = START - margin; ts < end + margin; ts += step) {
+            assertEquals(interval[0] + " " + interval[1] + " at " + ts, 
+                DateTime.previousInterval(ts, interval[0], interval[1], tz)
+                  .getTimeInMillis(), table.floor(ts));
+          }
+        }
+      }
+    }
+  }
+  
+  @Test
+  public void cursorOutsideOfTable() throws Exception {
+    final CalendarIntervals table = CalendarIntervals.create(1,
+        Calendar.DAY_OF_MONTH, DENVER, START + 86400000L * 100,
+        START + 86400000L * 110);
+    // starts before the table, walks through it and past the end
+    final long first = DateTime.previousInterval(START, 1,
+        Calendar.DAY_OF_MONTH, DENVER).getTimeInMillis();
+    final CalendarIntervals.Cursor cursor = table.cursor(first);
+    final Calendar calendar = DateTime.previousInterval(START, 1,
+        Calendar.DAY_OF_MONTH, DENVER);
+    for (int i = 0; i < 366; i++) {
+      assertEquals(calendar.getTimeInMillis(), cursor.time());
+      cursor.next();
+      calendar.add(Calendar.DAY_OF_MONTH, 1);
+    }
+  }
+
+  @Test
+  public void create() throws Exception {
+    assertNotNull(CalendarIntervals.create(1, Calendar.DAY_OF_MONTH, DENVER,
+        START, END));
+    assertNull(CalendarIntervals.create(1, Calendar.SECOND, DENVER,
+        START, END));
+    assertNull(CalendarIntervals.create(1, Calendar.DAY_OF_MONTH, DENVER,
+        0, Long.MAX_VALUE));
+    assertNull(CalendarIntervals.create(1, Calendar.DAY_OF_MONTH, DENVER,
+        END, START));
+  }
+
+  @Test
+  public void sharedBySpecification() throws Exception {
+    final DownsamplingSpecification specification =
+        new DownsamplingSpecification("1dc-sum");
+    specification.setTimezone(DENVER);
+    final CalendarIntervals table = specification.calendarIntervals(1,
+        Calendar.DAY_OF_MONTH, START, END);
+    assertNotNull(table);
+    assertSame(table, specification.calendarIntervals(1,
+        Calendar.DAY_OF_MONTH, START, END));
+    assertSame(table, specification.calendarIntervals(1,
+        Calendar.DAY_OF_MONTH, START + 86400000L, END - 86400000L));
+    assertFalse(table == specification.calendarIntervals(1,
+        Calendar.DAY_OF_MONTH, START, END + 86400000L));
+
+    specification.setCalendarTables(false);
+    assertNull(specification.calendarIntervals(1, Calendar.DAY_OF_MONTH, 
+        START, END));
+  }
+
+  @Test
+  public void downsamplersMatchWithoutTable() throws Exception {
+    for (final String spec : new String[] { "1dc-sum", "1wc-avg", "6hc-max",
+        "1nc-count", "1dc-sum-nan", "1wc-avg-zero", "6hc-max-nan" }) {
+      for (final TimeZone tz : new TimeZone[] { DENVER, KABUL }) {
+        final List<DataPoint> with_table = downsample(spec, tz, true);
+        final List<DataPoint> without_table = downsample(spec, tz, false);
+        assertTrue(with_table.size() > 0);
+        assertEquals(spec, without_table.size(), with_table.size());
+        for (int i = 0; i < with_table.size(); i++) {
+          assertEquals(spec + " at " + i, without_table.get(i).timestamp(),
+              with_table.get(i).timestamp());
+          assertEquals(spec + " at " + i,
+              Double.doubleToLongBits(without_table.get(i).doubleValue()),
+              Double.doubleToLongBits(with_table.get(i).doubleValue()));
+        }
+      }
+    }
+  }
+
+  /** Compares the table with a calendar walked from the same boundary */
+  private static void assertSameBoundaries(final int interval, final int unit,
+      final TimeZone tz) {
+    final CalendarIntervals table = CalendarIntervals.create(interval, unit,
+        tz, START, END);
+    final Calendar calendar = Calendar.getInstance(tz == null ?
+        DateTime.timezones.get(DateTime.UTC_ID) : tz);
+    calendar.setTimeInMillis(table.get(0));
+    for (int i = 0; i < table.size(); i++) {
+      assertEquals(unit + " at " + i, calendar.getTimeInMillis(),
+          table.get(i));
+      CalendarIntervals.add(calendar, interval, unit);
+    }
+    assertTrue(table.get(table.size() - 1) > END);
+
+    // the first boundary of a series matches the previous interval
+    final long floor = DateTime.previousInterval(START + 3600000, interval,
+        unit, tz).getTimeInMillis();
+    assertTrue(table.indexOf(floor) >= 0);
+  }
+
+  /** @return The data points of a year of 30 minute data downsampled */
+  private static List<DataPoint> downsample(final String spec,
+      final TimeZone tz, final boolean tables) {
+    final List<DataPoint> dps = new ArrayList<DataPoint>();
+    for (long ts = START + 1800000; ts < END; ts += 1800000) {
+      // a hole every so often for the fills
+      if ((ts / 1800000) % 97 < 60) {
+        dps.add(MutableDataPoint.ofLongValue(ts, ts % 7));
+      }
+    }
+    final DownsamplingSpecification specification =
+        new DownsamplingSpecification(spec);
+    specification.setTimezone(tz);
+    specification.setCalendarTables(tables);
+    final SeekableView source = SeekableViewsForTest.fromArray(
+        dps.toArray(new DataPoint[dps.size()]));
+    final Downsampler downsampler;
+    if (specification.getFillPolicy() == FillPolicy.NONE) {
+      downsampler = new Downsampler(source, specification, START, END);
+    } else {
+      downsampler = new FillingDownsampler(source, START, END, specification,
+          START, END);
+    }
+    final List<DataPoint> results = new ArrayList<DataPoint>();
+    while (downsampler.hasNext()) {
+      final DataPoint dp = downsampler.next();
+      results.add(MutableDataPoint.ofDoubleValue(dp.timestamp(),
+          dp.doubleValue()));
+    }
+    return results;
+  }
+}
@@ -15,6 +15,7 @@ package net.opentsdb.core;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -23,6 +24,8 @@ import com.stumbleupon.async.Deferred;
 
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
@@ -93,7 +96,7 @@ public final class TestCompactionQueue {
     Whitebox.setInternalState(tsdb, "config", config);
     when(tsdb.getConfig()).thenReturn(config);
     // Stub out the compaction thread, so it doesn't even start.
-    PowerMockito.whenNew(CompactionQueue.Thrd.class).withNoArguments()
+    PowerMockito.whenNew(CompactionQueue.Thrd.class).withAnyArguments()
       .thenReturn(mock(CompactionQueue.Thrd.class));
     PowerMockito.when(config.enable_compactions()).thenReturn(true);
     PowerMockito.when(config.fix_duplicates()).thenReturn(true);
@@ -1542,6 +1545,109 @@ public final class TestCompactionQueue {
     return new KeyValue(KEY, FAMILY, qualifier, ts, value);
   }
 
+  @Test
+  public void shardedAdd() throws Exception {
+    when(config.getInt("tsd.storage.compaction.shards")).thenReturn(4);
+    compactionq = new CompactionQueue(tsdb);
+    assertEquals(4, compactionq.shardCount());
+    for (int i = 0; i < 32; i++) {
+      final byte[] key = Arrays.copyOf(KEY, KEY.length);
+      key[key.length - 1] = (byte) i;
+      compactionq.add(key);
+      compactionq.add(Arrays.copyOf(key, key.length));
+    }
+    assertEquals(32, compactionq.size());
+  }
+
+  @Test
+  public void shardedFlush() throws Exception {
+    when(config.getInt("tsd.storage.compaction.shards")).thenReturn(4);
+    when(config.getInt("tsd.storage.compaction.flush_threads")).thenReturn(2);
+    when(config.getInt("tsd.storage.compaction.max_concurrent_flushes"))
+      .thenReturn(10000);
+    final List<byte[]> fetched = new ArrayList<byte[]>();
+    when(tsdb.get(anyBytes())).thenAnswer(
+        new Answer<Deferred<ArrayList<KeyValue>>>() {
+      @Override
+      public Deferred<ArrayList<KeyValue>> answer(
+          final InvocationOnMock invocation) {
+        fetched.add((byte[]) invocation.getArguments()[0]);
+        return Deferred.fromResult(new ArrayList<KeyValue>());
+      }
+    });
+    compactionq = new CompactionQueue(tsdb);
+    for (int i = 0; i < 32; i++) {
+      final byte[] key = Arrays.copyOf(KEY, KEY.length);
+      key[key.length - 1] = (byte) i;
+      compactionq.add(key);
+    }
+    final Object[] shards = Whitebox.getInternalState(compactionq, "shards");
+    final List<List<byte[]>> queued = new ArrayList<List<byte[]>>();
+    int total = 0;
+    for (final Object shard : shards) {
+      @SuppressWarnings("unchecked")
+      final Map<byte[], Boolean> rows = (Map<byte[], Boolean>) shard;
+      queued.add(new ArrayList<byte[]>(rows.keySet()));
+      total += rows.size();
+    }
+    assertEquals(32, total);
+
+    compactionq.flush().joinUninterruptibly();
+
+    // each shard flush skips the rows whose hash matches a random seed from
+    // 0 to 2 to avoid contention between TSDs, everything else is fetched
+    // exactly once
+    int flushed = 0;
+    for (int i = 0; i < shards.length; i++) {
+      @SuppressWarnings("unchecked")
+      final Map<byte[], Boolean> rows = (Map<byte[], Boolean>) shards[i];
+      final List<byte[]> shard_flushed = new ArrayList<byte[]>();
+      final List<byte[]> shard_kept = new ArrayList<byte[]>();
+      for (final byte[] row : queued.get(i)) {
+        if (containsSame(fetched, row)) {
+          shard_flushed.add(row);
+        } else {
+          shard_kept.add(row);
+        }
+      }
+      boolean seed_found = false;
+      for (int seed = 0; seed < 3 && !seed_found; seed++) {
+        seed_found = true;
+        for (final byte[] row : queued.get(i)) {
+          if ((row.hashCode() % 3 == seed) != shard_kept.contains(row)) {
+            seed_found = false;
+            break;
+          }
+        }
+      }
+      assertTrue("shard " + i + " flushed the wrong rows", seed_found);
+      assertEquals(shard_kept.size(), rows.size());
+      for (final byte[] row : shard_kept) {
+        assertTrue(rows.containsKey(row));
+      }
+      flushed += shard_flushed.size();
+    }
+    assertEquals(flushed, fetched.size());
+    assertEquals(32 - flushed, compactionq.size());
+    verify(tsdb, times(flushed)).get(anyBytes());
+  }
+
+  /** @return Whether or not the exact array instance is in the list. */
+  private static boolean containsSame(final List<byte[]> list,
+      final byte[] row) {
+    for (final byte[] entry : list) {
+      if (entry == row) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void shardsDefault() throws Exception {
+    assertEquals(1, compactionq.shardCount());
+  }
+
   private static byte[] anyBytes() {
     return any(byte[].class);
   }
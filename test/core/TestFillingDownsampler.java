@@ -1108,6 +1108,83 @@ public class TestFillingDownsampler {
     }
   }
   
+  @Test
+  public void testDownsampler_rollupDevOtherFunction() {
+    final RollupInterval interval = RollupInterval.builder()
+        .setTable("tsdb-rollup-1h")
+        .setPreAggregationTable("tsdb-agg-rollup-1h")
+        .setInterval("1h")
+        .setRowSpan("1d")
+        .build();
+    final RollupQuery rollup_query = new RollupQuery(interval, Aggregators.DEV,
+        3600000, Aggregators.SUM);
+    final long baseTime = 1000L;
+    final DataPoint[] points = new DataPoint[] {
+        MutableDataPoint.ofDoubleValue(baseTime + 25L *  0L, 12.),
+        MutableDataPoint.ofDoubleValue(baseTime + 25L *  1L, 11.),
+        MutableDataPoint.ofDoubleValue(baseTime + 25L *  4L,  8.),
+        MutableDataPoint.ofDoubleValue(baseTime + 25L *  5L,  7.),
+        MutableDataPoint.ofDoubleValue(baseTime + 25L *  8L,  4.),
+        MutableDataPoint.ofDoubleValue(baseTime + 25L *  9L,  3.),
+      };
+
+    // only a dev downsampler throws, the others still yield every interval
+    for (final String function : new String[] { "sum", "avg", "max" }) {
+      specification = new DownsamplingSpecification("100ms-" + function 
+          + "-nan");
+      final Downsampler downsampler = new FillingDownsampler(
+          SeekableViewsForTest.fromArray(points), baseTime,
+          baseTime + 12L * 25L, specification, 0, 0, rollup_query);
+      assertTrue(downsampler.hasNext());
+      assertEquals(baseTime, downsampler.next().timestamp());
+      assertTrue(downsampler.hasNext());
+      assertEquals(baseTime + 100, downsampler.next().timestamp());
+      assertTrue(downsampler.hasNext());
+      assertEquals(baseTime + 200, downsampler.next().timestamp());
+      assertFalse(downsampler.hasNext());
+    }
+  }
+
+  @Test
+  public void alignsWith() {
+    specification = new DownsamplingSpecification("1m-sum-nan");
+    final FillingDownsampler first = new FillingDownsampler(
+        SeekableViewsForTest.fromArray(new DataPoint[0]), BASE_TIME, 
+        BASE_TIME + 3600000L, specification, 0, 0);
+    final FillingDownsampler second = new FillingDownsampler(
+        SeekableViewsForTest.fromArray(new DataPoint[] {
+            MutableDataPoint.ofDoubleValue(BASE_TIME + 30000L, 1.) }), 
+        BASE_TIME, BASE_TIME + 3600000L, specification, 0, 0);
+    assertTrue(first.alignsWith(second));
+    assertTrue(second.alignsWith(first));
+
+    // a different range, interval or an iterated one doesn't
+    assertFalse(first.alignsWith(new FillingDownsampler(
+        SeekableViewsForTest.fromArray(new DataPoint[0]), BASE_TIME, 
+        BASE_TIME + 7200000L, specification, 0, 0)));
+    assertFalse(first.alignsWith(new FillingDownsampler(
+        SeekableViewsForTest.fromArray(new DataPoint[0]), BASE_TIME, 
+        BASE_TIME + 3600000L, new DownsamplingSpecification("2m-sum-nan"), 
+        0, 0)));
+    second.next();
+    assertFalse(first.alignsWith(second));
+
+    // "all" and calendar intervals never do
+    final DownsamplingSpecification all = 
+        new DownsamplingSpecification("0all-sum-nan");
+    final FillingDownsampler run_all = new FillingDownsampler(
+        SeekableViewsForTest.fromArray(new DataPoint[0]), BASE_TIME, 
+        BASE_TIME + 3600000L, all, BASE_TIME, BASE_TIME + 3600000L);
+    assertFalse(run_all.alignsWith(run_all));
+    final DownsamplingSpecification calendar = 
+        new DownsamplingSpecification("1hc-sum-nan");
+    calendar.setTimezone(DateTime.timezones.get("UTC"));
+    final FillingDownsampler calendar_ds = new FillingDownsampler(
+        SeekableViewsForTest.fromArray(new DataPoint[0]), BASE_TIME, 
+        BASE_TIME + 3600000L, calendar, BASE_TIME, BASE_TIME + 3600000L);
+    assertFalse(calendar_ds.alignsWith(calendar_ds));
+  }
+
   private void step(final Downsampler downsampler, final long expected_timestamp, 
       final double expected_value) {
     assertTrue(downsampler.hasNext());
@@ -14,6 +14,8 @@ package net.opentsdb.core;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import net.opentsdb.uid.NoSuchUniqueName;
 
@@ -21,6 +23,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
 
 @RunWith(PowerMockRunner.class)
 public class TestIncomingDataPoints extends BaseTsdbTest {
@@ -102,6 +105,25 @@ public class TestIncomingDataPoints extends BaseTsdbTest {
     assertArrayEquals(expected, key);
   }
 
+  @Test
+  public void rowKeyTemplateCached() throws Exception {
+    Whitebox.setInternalState(tsdb, "row_key_cache", 
+        new RowKeyTemplateCache(16));
+    final byte[] key = IncomingDataPoints.rowKeyTemplate(tsdb, 
+        METRIC_STRING, tags);
+    final byte[] expected = key.clone();
+    key[0] = 42;
+    assertArrayEquals(expected, IncomingDataPoints.rowKeyTemplate(tsdb, 
+        METRIC_STRING, tags));
+    verify(metrics, times(1)).getOrCreateId(METRIC_STRING);
+    
+    // a rename or delete of any UID invalidates the template
+    when(tag_values.cacheGeneration()).thenReturn(1L);
+    assertArrayEquals(expected, IncomingDataPoints.rowKeyTemplate(tsdb, 
+        METRIC_STRING, tags));
+    verify(metrics, times(2)).getOrCreateId(METRIC_STRING);
+  }
+  
   @Test (expected = NoSuchUniqueName.class)
   public void rowKeyTemplateNoSuchMetric() throws Exception {
     IncomingDataPoints.rowKeyTemplate(tsdb, NSUN_METRIC, tags);
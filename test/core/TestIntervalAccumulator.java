@@ -0,0 +1,169 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestIntervalAccumulator {
+  private static final double[] SPECIALS = { Double.NaN, 0.0, -0.0,
+    Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MAX_VALUE,
+    -Double.MAX_VALUE };
+
+  private static final String[] FUNCTIONS = { "sum", "zimsum", "pfsum", "min",
+    "mimmin", "max", "mimmax", "avg", "count", "first", "last", "median",
+    "dev", "p99" };
+
+  @Test
+  public void matchesAggregators() throws Exception {
+    final Random random = new Random(42);
+    for (final String name : FUNCTIONS) {
+      final Aggregator function = Aggregators.get(name);
+      final IntervalAccumulator accumulator =
+          new IntervalAccumulator(function);
+      for (int i = 0; i < 1000; i++) {
+        final double[] values = new double[1 + random.nextInt(8)];
+        for (int j = 0; j < values.length; j++) {
+          values[j] = random.nextInt(4) == 0
+              ? SPECIALS[random.nextInt(SPECIALS.length)]
+              : random.nextGaussian() * 100;
+        }
+        accumulator.reset();
+        for (final double value : values) {
+          accumulator.add(value);
+        }
+        assertEquals(name + " " + Arrays.toString(values),
+            Double.doubleToLongBits(function.runDouble(new Values(values))),
+            Double.doubleToLongBits(accumulator.result()));
+      }
+    }
+  }
+
+  @Test
+  public void primitiveKinds() throws Exception {
+    assertTrue(new IntervalAccumulator(Aggregators.SUM).isPrimitive());
+    assertTrue(new IntervalAccumulator(Aggregators.MIMMAX).isPrimitive());
+    assertTrue(new IntervalAccumulator(Aggregators.LAST).isPrimitive());
+    assertFalse(new IntervalAccumulator(Aggregators.DEV).isPrimitive());
+    assertFalse(new IntervalAccumulator(Aggregators.p99).isPrimitive());
+  }
+
+  @Test
+  public void bufferReused() throws Exception {
+    final IntervalAccumulator accumulator =
+        new IntervalAccumulator(Aggregators.MEDIAN);
+    for (int i = 0; i < 100; i++) {
+      accumulator.add(i);
+    }
+    assertEquals(50, accumulator.result(), 0);
+    accumulator.reset();
+    accumulator.add(3);
+    accumulator.add(1);
+    accumulator.add(2);
+    assertEquals(2, accumulator.result(), 0);
+  }
+
+  @Test
+  public void downsamplersMatchWithoutAccumulator() throws Exception {
+    for (final String function : FUNCTIONS) {
+      for (final String spec : new String[] { "1m-" + function,
+          "1m-" + function + "-nan", "1mc-" + function, "0all-" + function }) {
+        for (final boolean materialized : new boolean[] { false, true }) {
+          final List<DataPoint> primitive =
+              downsample(spec, materialized, true);
+          final List<DataPoint> expected =
+              downsample(spec, materialized, false);
+          assertFalse(spec, expected.isEmpty());
+          assertEquals(spec, expected.size(), primitive.size());
+          for (int i = 0; i < expected.size(); i++) {
+            assertEquals(spec + " at " + i, expected.get(i).timestamp(),
+                primitive.get(i).timestamp());
+            assertEquals(spec + " at " + i,
+                Double.doubleToLongBits(expected.get(i).doubleValue()),
+                Double.doubleToLongBits(primitive.get(i).doubleValue()));
+          }
+        }
+      }
+    }
+  }
+
+  /** @return The data points of two hours of irregular data downsampled */
+  private static List<DataPoint> downsample(final String spec,
+      final boolean materialized, final boolean accumulate) {
+    final long start = 1356998400000L;
+    final long end = start + 7200000L;
+    final Random random = new Random(42);
+    final List<DataPoint> dps = new ArrayList<DataPoint>();
+    long ts = start + 500;
+    while (ts < end) {
+      // gaps of up to three minutes with integers, floats and NaNs
+      if (random.nextInt(3) == 0) {
+        dps.add(MutableDataPoint.ofLongValue(ts, random.nextInt(100)));
+      } else {
+        dps.add(MutableDataPoint.ofDoubleValue(ts, random.nextInt(10) == 0
+            ? Double.NaN : random.nextGaussian() * 10));
+      }
+      ts += 1 + random.nextInt(random.nextInt(10) == 0 ? 180000 : 20000);
+    }
+    SeekableView source = SeekableViewsForTest.fromArray(
+        dps.toArray(new DataPoint[dps.size()]));
+    if (materialized) {
+      source = MaterializedDataPoints.fromView(source, dps.size()).iterator();
+    }
+    final DownsamplingSpecification specification =
+        new DownsamplingSpecification(spec);
+    specification.setIntervalAccumulator(accumulate);
+    final Downsampler downsampler;
+    if (specification.getFillPolicy() == FillPolicy.NONE) {
+      downsampler = new Downsampler(source, specification, start, end);
+    } else {
+      downsampler = new FillingDownsampler(source, start, end, specification,
+          start, end);
+    }
+    final List<DataPoint> results = new ArrayList<DataPoint>();
+    while (downsampler.hasNext()) {
+      final DataPoint dp = downsampler.next();
+      results.add(MutableDataPoint.ofDoubleValue(dp.timestamp(),
+          dp.doubleValue()));
+    }
+    return results;
+  }
+
+  /** Iterates over an array */
+  private static final class Values implements Aggregator.Doubles {
+    private final double[] values;
+    private int index;
+
+    Values(final double[] values) {
+      this.values = values;
+    }
+
+    @Override
+    public boolean hasNextValue() {
+      return index < values.length;
+    }
+
+    @Override
+    public double nextDoubleValue() {
+      return values[index++];
+    }
+  }
+}
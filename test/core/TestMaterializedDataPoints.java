@@ -0,0 +1,118 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public final class TestMaterializedDataPoints {
+  private static final long START = 1356998400000L;
+
+  @Test
+  public void integers() throws Exception {
+    final MaterializedDataPoints dps = MaterializedDataPoints.fromView(
+        SeekableViewsForTest.generator(START, 1000, 100, true), 100);
+    assertEquals(100, dps.size());
+    for (int i = 0; i < 100; i++) {
+      assertTrue(dps.isInteger(i));
+      assertEquals(START + (i * 1000), dps.timestamp(i));
+      assertEquals(i, dps.longValue(i));
+    }
+  }
+
+  @Test
+  public void growsPastHint() throws Exception {
+    final MaterializedDataPoints dps = MaterializedDataPoints.fromView(
+        SeekableViewsForTest.generator(START, 1000, 1000, false, 0.5, 1), 0);
+    assertEquals(1000, dps.size());
+    for (int i = 0; i < 1000; i++) {
+      assertFalse(dps.isInteger(i));
+      assertEquals(START + (i * 1000), dps.timestamp(i));
+      assertEquals(i + 0.5, dps.doubleValue(i), 0.0001);
+    }
+  }
+
+  @Test
+  public void mixedTypes() throws Exception {
+    final DataPoint[] points = new DataPoint[130];
+    for (int i = 0; i < points.length; i++) {
+      points[i] = i % 3 == 0 
+          ? MutableDataPoint.ofDoubleValue(START + i, i * 1.5)
+          : MutableDataPoint.ofLongValue(START + i, i);
+    }
+    final MaterializedDataPoints dps = MaterializedDataPoints.fromView(
+        SeekableViewsForTest.fromArray(points), 16);
+    
+    final SeekableView it = dps.iterator();
+    int i = 0;
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      assertEquals(START + i, dp.timestamp());
+      assertEquals(i % 3 != 0, dp.isInteger());
+      assertEquals(i % 3 == 0 ? i * 1.5 : i, dp.toDouble(), 0.0001);
+      assertEquals(1, dp.valueCount());
+      i++;
+    }
+    assertEquals(130, i);
+  }
+
+  @Test
+  public void seek() throws Exception {
+    final MaterializedDataPoints dps = MaterializedDataPoints.fromView(
+        SeekableViewsForTest.generator(START, 1000, 10, true), 10);
+    final SeekableView it = dps.iterator();
+    
+    it.seek(START + 2500);
+    assertEquals(START + 3000, it.next().timestamp());
+    it.seek(START + 5000);
+    assertEquals(START + 5000, it.next().timestamp());
+    it.seek(START);
+    assertEquals(START, it.next().timestamp());
+    it.seek(START - 1);
+    assertEquals(START, it.next().timestamp());
+    it.seek(START + 10000);
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void empty() throws Exception {
+    final MaterializedDataPoints dps = MaterializedDataPoints.fromView(
+        SeekableViewsForTest.fromArray(new DataPoint[0]), 0);
+    assertEquals(0, dps.size());
+    assertFalse(dps.iterator().hasNext());
+  }
+
+  @Test (expected = IndexOutOfBoundsException.class)
+  public void indexOutOfBounds() throws Exception {
+    final MaterializedDataPoints dps = MaterializedDataPoints.fromView(
+        SeekableViewsForTest.generator(START, 1000, 10, true), 16);
+    dps.timestamp(10);
+  }
+
+  @Test (expected = ClassCastException.class)
+  public void longValueOnFloat() throws Exception {
+    final MaterializedDataPoints dps = MaterializedDataPoints.fromView(
+        SeekableViewsForTest.generator(START, 1000, 10, false), 10);
+    dps.longValue(0);
+  }
+
+  @Test (expected = ClassCastException.class)
+  public void doubleValueOnLong() throws Exception {
+    final MaterializedDataPoints dps = MaterializedDataPoints.fromView(
+        SeekableViewsForTest.generator(START, 1000, 10, true), 10);
+    dps.iterator().next().doubleValue();
+  }
+}
@@ -18,11 +18,15 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyList;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -31,14 +35,18 @@ import java.util.SortedMap;
 
 import org.hbase.async.Bytes.ByteMap;
 import org.hbase.async.GetRequest;
+import org.hbase.async.HRegionLocation;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
 
 import com.google.common.collect.Lists;
+import com.stumbleupon.async.Deferred;
 
 import net.opentsdb.core.MultiGetQuery.MultiGetTask;
 import net.opentsdb.rollup.RollupConfig;
@@ -767,7 +775,88 @@ public class TestMultiGetQuery extends BaseTsdbTest {
     verify(client, times(4)).get(anyList());
     validateSpans();
   }
-  
+
+  @Test
+  public void prepareConcurrentMultiGetTasksPipelined() throws Exception {
+    config.overrideConfig("tsd.query.multi_get.pipeline.enable", "true");
+    config.overrideConfig("tsd.query.multi_get.pipeline.batch_size", "16");
+    MultiGetQuery mgq = new MultiGetQuery(tsdb, query, METRIC_BYTES, q_tags,
+        start_ts, end_ts, tsdb.dataTable(), spans, null, 0, null, query_stats,
+        0, max_bytes, false, multiget_no_meta);
+    locateRegions();
+    mgq.prepareConcurrentMultiGetTasks().join();
+    final List<List<MultiGetTask>> tasks = mgq.getMultiGetTasks();
+    final List<String> servers = Whitebox.getInternalState(mgq, 
+        "lane_servers");
+
+    // one lane per region server
+    assertEquals(tasks.size(), servers.size());
+    assertEquals(tasks.size(), new HashSet<String>(servers).size());
+    int gets = 0;
+    for (int i = 0; i < tasks.size(); i++) {
+      for (MultiGetTask task : tasks.get(i)) {
+        assertTrue(task.getGets().size() <= 16);
+        for (GetRequest request : task.getGets()) {
+          assertEquals(serverOf(request.key()), servers.get(i));
+          gets++;
+        }
+      }
+    }
+    assertEquals(51, gets);
+  }
+
+  @Test
+  public void prepareConcurrentMultiGetTasksPipelinedUnlocated() 
+      throws Exception {
+    config.overrideConfig("tsd.query.multi_get.pipeline.enable", "true");
+    when(client.locateRegion(any(byte[].class), any(byte[].class)))
+      .thenReturn(Deferred.<HRegionLocation>fromError(
+          new RuntimeException("Boo!")));
+    MultiGetQuery mgq = new MultiGetQuery(tsdb, query, METRIC_BYTES, q_tags,
+        start_ts, end_ts, tsdb.dataTable(), spans, null, 0, null, query_stats,
+        0, max_bytes, false, multiget_no_meta);
+    mgq.prepareConcurrentMultiGetTasks().join();
+
+    // falls back to a lane per salt bucket
+    assertEquals(Const.SALT_WIDTH() > 0 ? Const.SALT_BUCKETS() : 1,
+        mgq.getMultiGetTasks().size());
+    final List<String> servers = Whitebox.getInternalState(mgq, 
+        "lane_servers");
+    assertTrue(servers.contains("salt_0"));
+  }
+
+  @Test
+  public void fetchPipelined() throws Exception {
+    setupStorage();
+    config.overrideConfig("tsd.query.multi_get.pipeline.enable", "true");
+    config.overrideConfig("tsd.query.multi_get.pipeline.batch_size", "16");
+    config.overrideConfig("tsd.query.multi_get.pipeline.window", "2");
+    locateRegions();
+
+    MultiGetQuery mgq = new MultiGetQuery(tsdb, query, METRIC_BYTES, q_tags,
+        start_ts, end_ts, tsdb.dataTable(), spans, null, 0, null, query_stats,
+        0, max_bytes, false, multiget_no_meta);
+
+    final SortedMap<byte[], Span> results = mgq.fetch().join();
+    assertSame(spans, results);
+    verify(client, times(4)).get(anyList());
+    validateSpans();
+  }
+
+  @Test
+  public void fetchPipelinedNoMeta() throws Exception {
+    setupStorageNoMeta();
+    config.overrideConfig("tsd.query.multi_get.pipeline.enable", "true");
+    locateRegions();
+    MultiGetQuery mgq = new MultiGetQuery(tsdb, query, METRIC_BYTES,
+        q_tags_nometa, start_ts, end_ts, tsdb.dataTable(), spans, null, 0,
+        null, query_stats, 0, max_bytes, false, true);
+
+    final SortedMap<byte[], Span> results = mgq.fetch().join();
+    assertSame(spans, results);
+    validateSpansNometa();
+  }
+
   @Test
   public void fetchException() throws Exception {
     setupStorage();
@@ -1098,6 +1187,26 @@ public class TestMultiGetQuery extends BaseTsdbTest {
 //      ts += 3600;
 //    }
   }
-}
 
+  /** Spreads the rows across two region servers by their last byte */
+  private void locateRegions() {
+    when(client.locateRegion(any(byte[].class), any(byte[].class)))
+      .thenAnswer(new Answer<Deferred<HRegionLocation>>() {
+        @Override
+        public Deferred<HRegionLocation> answer(
+            final InvocationOnMock invocation) throws Throwable {
+          final byte[] key = (byte[]) invocation.getArguments()[1];
+          final HRegionLocation location = mock(HRegionLocation.class);
+          when(location.getHostname()).thenReturn(
+              "rs" + (key[key.length - 1] & 1));
+          when(location.getPort()).thenReturn(16020);
+          return Deferred.fromResult(location);
+        }
+      });
+  }
 
+  /** @return The server {@link #locateRegions} puts the row on */
+  private static String serverOf(final byte[] key) {
+    return "rs" + (key[key.length - 1] & 1) + ":16020";
+  }
+}
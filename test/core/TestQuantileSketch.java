@@ -0,0 +1,220 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestQuantileSketch {
+  private static final double[] QUANTILES =
+    { 0, 0.01, 0.25, 0.5, 0.75, 0.9, 0.95, 0.99, 0.999, 1 };
+
+  @Test
+  public void accuracyUniform() throws Exception {
+    final Random random = new Random(42);
+    final double[] values = new double[100000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextDouble() * 1000;
+    }
+    assertAccuracy(values, 0.01, 2048);
+    // nine orders of magnitude at 0.1% need more buckets
+    assertAccuracy(values, 0.001, 16384);
+  }
+
+  @Test
+  public void accuracyLongTail() throws Exception {
+    final Random random = new Random(42);
+    final double[] values = new double[100000];
+    for (int i = 0; i < values.length; i++) {
+      // latencies in microseconds
+      values[i] = Math.exp(random.nextGaussian() * 2 + 8);
+    }
+    assertAccuracy(values, 0.01, 2048);
+    assertAccuracy(values, 0.05, 2048);
+  }
+
+  @Test
+  public void accuracyMixedSigns() throws Exception {
+    final Random random = new Random(42);
+    final double[] values = new double[10000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = i % 10 == 0 ? 0 : random.nextGaussian() * 100;
+    }
+    assertAccuracy(values, 0.01, 2048);
+  }
+
+  @Test
+  public void merge() throws Exception {
+    final Random random = new Random(42);
+    final QuantileSketch all = new QuantileSketch();
+    final QuantileSketch merged = new QuantileSketch();
+    for (int i = 0; i < 10; i++) {
+      final QuantileSketch part = new QuantileSketch();
+      for (int j = 0; j < 1000; j++) {
+        final double value = random.nextGaussian() * 1000 * (i + 1);
+        part.add(value);
+        all.add(value);
+      }
+      merged.merge(part);
+    }
+    assertEquals(all.count(), merged.count());
+    for (final double q : QUANTILES) {
+      assertEquals(all.quantile(q), merged.quantile(q), 0);
+    }
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void mergeDifferentAccuracy() throws Exception {
+    new QuantileSketch(0.01, 2048).merge(new QuantileSketch(0.02, 2048));
+  }
+
+  @Test
+  public void boundedBuckets() throws Exception {
+    // values over 20 orders of magnitude with only 64 buckets
+    final QuantileSketch sketch = new QuantileSketch(0.01, 64);
+    final double[] values = new double[2000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = Math.pow(10, i / 100.0);
+      sketch.add(values[i]);
+    }
+    // the upper quantiles are still accurate
+    assertRelative(values[1997], sketch.quantile(0.999), 0.01);
+    assertRelative(values[1989], sketch.quantile(0.995), 0.01);
+    // the extremes are tracked exactly
+    assertEquals(values[1999], sketch.quantile(1), 0);
+    assertEquals(1, sketch.quantile(0), 0);
+  }
+
+  @Test
+  public void clearAndEmpty() throws Exception {
+    final QuantileSketch sketch = new QuantileSketch();
+    assertTrue(Double.isNaN(sketch.quantile(0.5)));
+    sketch.add(42);
+    sketch.add(Double.NaN);
+    sketch.add(Double.POSITIVE_INFINITY);
+    assertEquals(1, sketch.count());
+    assertEquals(42, sketch.quantile(0.99), 0);
+    sketch.clear();
+    assertEquals(0, sketch.count());
+    assertTrue(Double.isNaN(sketch.quantile(0.5)));
+    sketch.add(-1);
+    assertEquals(-1, sketch.quantile(0.5), 0);
+  }
+
+  @Test
+  public void invalid() throws Exception {
+    try {
+      new QuantileSketch(0, 2048);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new QuantileSketch(1, 2048);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new QuantileSketch(0.01, 1);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      new QuantileSketch().quantile(1.5);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    try {
+      Aggregators.withSketchSettings(Aggregators.get("sp99"), Double.NaN,
+          2048);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+
+  @Test
+  public void aggregatorsFollowSettings() throws Exception {
+    final double[] values = new double[1000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = i + 1;
+    }
+    assertRelative(990, runDouble(Aggregators.get("sp99"), values), 0.01);
+    final Aggregator coarse_agg = Aggregators.withSketchSettings(
+        Aggregators.get("sp99"), 0.1, 2048);
+    assertEquals("sp99", coarse_agg.toString());
+    final double coarse = runDouble(coarse_agg, values);
+    assertRelative(990, coarse, 0.1);
+    assertTrue(Math.abs(coarse - 990) > 990 * 0.01);
+    // the singleton keeps the defaults
+    assertRelative(990, runDouble(Aggregators.get("sp99"), values), 0.01);
+
+    assertSame(Aggregators.get("sp99"), Aggregators.withSketchSettings(
+        Aggregators.get("sp99"), QuantileSketch.DEFAULT_RELATIVE_ACCURACY,
+        QuantileSketch.DEFAULT_MAX_BUCKETS));
+    assertSame(Aggregators.SUM, Aggregators.withSketchSettings(
+        Aggregators.SUM, 0.1, 2048));
+  }
+
+  @Test
+  public void aggregatorsSkipNaNs() throws Exception {
+    assertTrue(Double.isNaN(runDouble(Aggregators.get("sp50"),
+        new double[] { Double.NaN, Double.NaN })));
+    assertEquals(2, runDouble(Aggregators.get("sp50"),
+        new double[] { Double.NaN, 1, 2, 3 }), 0.02);
+  }
+
+  /**
+   * Compares the sketch with the exact values of the same rank and with the
+   * commons math percentiles for each quantile.
+   */
+  private static void assertAccuracy(final double[] values,
+      final double accuracy, final int max_buckets) {
+    final QuantileSketch sketch = new QuantileSketch(accuracy, max_buckets);
+    for (final double value : values) {
+      sketch.add(value);
+    }
+    final double[] sorted = Arrays.copyOf(values, values.length);
+    Arrays.sort(sorted);
+    for (final double q : QUANTILES) {
+      final double exact = sorted[(int) (q * (sorted.length - 1))];
+      assertRelative(exact, sketch.quantile(q), accuracy);
+    }
+
+    // and against the existing aggregator, allowing for its interpolation
+    final double exact = runDouble(Aggregators.get("p99"), values);
+    final double estimate = sketch.quantile(0.99);
+    assertEquals(exact, estimate, Math.abs(exact) * accuracy * 2 + 1e-9);
+  }
+
+  private static void assertRelative(final double expected,
+      final double actual, final double accuracy) {
+    assertEquals(expected, actual, Math.abs(expected) * accuracy + 1e-12);
+  }
+
+  private static double runDouble(final Aggregator agg, final double[] values) {
+    return agg.runDouble(new Aggregator.Doubles() {
+      int i = 0;
+
+      @Override
+      public boolean hasNextValue() {
+        return i < values.length;
+      }
+
+      @Override
+      public double nextDoubleValue() {
+        return values[i++];
+      }
+    });
+  }
+}
@@ -0,0 +1,264 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.opentsdb.query.filter.TagVFilter;
+
+import org.hbase.async.Bytes.ByteMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+public class TestQueryCoalescer extends BaseTsdbTest {
+  private QueryCoalescer coalescer;
+  private MockExecution execution;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    coalescer = new QueryCoalescer();
+    execution = new MockExecution();
+  }
+
+  @Test
+  public void isCoalescable() throws Exception {
+    assertTrue(coalescer.isCoalescable(query("1h-ago", "sum")));
+
+    TSQuery query = query("1h-ago", "sum");
+    query.setDelete(true);
+    assertFalse(coalescer.isCoalescable(query));
+
+    query = query("1h-ago", "sum");
+    query.setOverrideByteLimit(true);
+    assertFalse(coalescer.isCoalescable(query));
+  }
+
+  @Test
+  public void flightKey() throws Exception {
+    assertEquals(QueryCoalescer.flightKey(query("1h-ago", "sum")),
+        QueryCoalescer.flightKey(query("1h-ago", "sum")));
+    assertNotEquals(QueryCoalescer.flightKey(query("1h-ago", "sum")),
+        QueryCoalescer.flightKey(query("2h-ago", "sum")));
+    assertNotEquals(QueryCoalescer.flightKey(query("1h-ago", "sum")),
+        QueryCoalescer.flightKey(query("1h-ago", "max")));
+
+    final TSQuery rate = query("1h-ago", "sum");
+    rate.getQueries().get(0).setRate(true);
+    assertNotEquals(QueryCoalescer.flightKey(query("1h-ago", "sum")),
+        QueryCoalescer.flightKey(rate));
+  }
+
+  @Test
+  public void identicalQueriesShareOneExecution() throws Exception {
+    final Deferred<ArrayList<DataPoints[]>> first =
+        coalescer.runAsync(query("1h-ago", "sum"), execution);
+    final Deferred<ArrayList<DataPoints[]>> second =
+        coalescer.runAsync(query("1h-ago", "sum"), execution);
+    assertEquals(1, execution.calls);
+    assertEquals(1, coalescer.executions());
+    assertEquals(1, coalescer.coalesced());
+    assertEquals(1, coalescer.inFlight());
+
+    final DataPoints[] dps = new DataPoints[0];
+    final ArrayList<DataPoints[]> results = new ArrayList<DataPoints[]>();
+    results.add(dps);
+    execution.deferred.callback(results);
+
+    final ArrayList<DataPoints[]> first_results = first.joinUninterruptibly();
+    final ArrayList<DataPoints[]> second_results =
+        second.joinUninterruptibly();
+    // each query gets its own list of the same results
+    assertNotSame(first_results, second_results);
+    assertSame(dps, first_results.get(0));
+    assertSame(dps, second_results.get(0));
+    assertEquals(0, coalescer.inFlight());
+
+    // the next one runs again
+    coalescer.runAsync(query("1h-ago", "sum"), execution);
+    assertEquals(2, execution.calls);
+  }
+
+  @Test
+  public void differentQueriesRunSeparately() throws Exception {
+    coalescer.runAsync(query("1h-ago", "sum"), execution);
+    coalescer.runAsync(query("1h-ago", "max"), execution);
+    assertEquals(2, execution.calls);
+    assertEquals(0, coalescer.coalesced());
+    assertEquals(2, coalescer.inFlight());
+  }
+
+  @Test
+  public void exceptionReachesEveryQuery() throws Exception {
+    final Deferred<ArrayList<DataPoints[]>> first =
+        coalescer.runAsync(query("1h-ago", "sum"), execution);
+    final Deferred<ArrayList<DataPoints[]>> second =
+        coalescer.runAsync(query("1h-ago", "sum"), execution);
+    execution.deferred.callback(new QueryException("Boo!"));
+
+    for (final Deferred<ArrayList<DataPoints[]>> deferred : list(first, second)) {
+      try {
+        deferred.joinUninterruptibly();
+        fail("Expected a QueryException");
+      } catch (QueryException e) { }
+    }
+    assertEquals(0, coalescer.inFlight());
+  }
+
+  @Test
+  public void executionThrows() throws Exception {
+    final Deferred<ArrayList<DataPoints[]>> deferred = coalescer.runAsync(
+        query("1h-ago", "sum"),
+        new Callback<Deferred<ArrayList<DataPoints[]>>, TSQuery>() {
+          @Override
+          public Deferred<ArrayList<DataPoints[]>> call(final TSQuery query) {
+            throw new QueryException("Boo!");
+          }
+        });
+    try {
+      deferred.joinUninterruptibly();
+      fail("Expected a QueryException");
+    } catch (QueryException e) { }
+    assertEquals(0, coalescer.inFlight());
+  }
+
+  @Test
+  public void concurrentSerializationsResolveTagsOnce() throws Exception {
+    final ByteMap<byte[]> uids = new ByteMap<byte[]>();
+    uids.put(TAGK_BYTES, TAGV_BYTES);
+    final Span span = mock(Span.class);
+    when(span.getTagUids()).thenReturn(uids);
+    final SpanGroup group = new SpanGroup(tsdb, 1356998400L, 1356998600L, 
+        null, false, Aggregators.SUM, 0, null);
+    final ArrayList<Span> spans = Whitebox.getInternalState(group, "spans");
+    spans.add(span);
+
+    // the names are resolved after both queries asked for them
+    final Deferred<String> tagk = new Deferred<String>();
+    final Deferred<String> tagv = new Deferred<String>();
+    when(tag_names.getNameAsync(TAGK_BYTES)).thenReturn(tagk);
+    when(tag_values.getNameAsync(TAGV_BYTES)).thenReturn(tagv);
+
+    final Deferred<ArrayList<DataPoints[]>> first =
+        coalescer.runAsync(query("1h-ago", "sum"), execution);
+    final Deferred<ArrayList<DataPoints[]>> second =
+        coalescer.runAsync(query("1h-ago", "sum"), execution);
+    final ArrayList<DataPoints[]> results = new ArrayList<DataPoints[]>();
+    results.add(new DataPoints[] { group });
+    execution.deferred.callback(results);
+
+    final ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      final CountDownLatch latch = new CountDownLatch(1);
+      final List<Future<Deferred<Map<String, String>>>> serializations = 
+          new ArrayList<Future<Deferred<Map<String, String>>>>();
+      for (final Deferred<ArrayList<DataPoints[]>> deferred : 
+          list(first, second)) {
+        final DataPoints dps = deferred.joinUninterruptibly().get(0)[0];
+        assertSame(group, dps);
+        serializations.add(pool.submit(
+            new Callable<Deferred<Map<String, String>>>() {
+          @Override
+          public Deferred<Map<String, String>> call() throws Exception {
+            latch.await();
+            return dps.getTagsAsync();
+          }
+        }));
+      }
+      latch.countDown();
+      final List<Deferred<Map<String, String>>> tags = 
+          new ArrayList<Deferred<Map<String, String>>>();
+      for (final Future<Deferred<Map<String, String>>> serialization : 
+          serializations) {
+        tags.add(serialization.get());
+      }
+      tagk.callback(TAGK_STRING);
+      tagv.callback(TAGV_STRING);
+
+      for (final Deferred<Map<String, String>> deferred : tags) {
+        final Map<String, String> resolved = deferred.joinUninterruptibly();
+        assertEquals(1, resolved.size());
+        assertEquals(TAGV_STRING, resolved.get(TAGK_STRING));
+      }
+      assertEquals(TAGV_STRING, group.getTags().get(TAGK_STRING));
+      verify(tag_names, times(1)).getNameAsync(TAGK_BYTES);
+      verify(tag_values, times(1)).getNameAsync(TAGV_BYTES);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /** Records the executions and leaves them in flight until called back */
+  private static final class MockExecution implements
+      Callback<Deferred<ArrayList<DataPoints[]>>, TSQuery> {
+    int calls;
+    Deferred<ArrayList<DataPoints[]>> deferred;
+
+    @Override
+    public Deferred<ArrayList<DataPoints[]>> call(final TSQuery query) {
+      ++calls;
+      deferred = new Deferred<ArrayList<DataPoints[]>>();
+      return deferred;
+    }
+  }
+
+  private static TSQuery query(final String start, final String agg) {
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setMetric(METRIC_STRING);
+    sub.setAggregator(agg);
+    final List<TagVFilter> filters = new ArrayList<TagVFilter>();
+    filters.add(TagVFilter.Builder().setType("wildcard").setTagk(TAGK_STRING)
+        .setFilter("*").setGroupBy(true).build());
+    sub.setFilters(filters);
+    final TSQuery query = new TSQuery();
+    query.setStart(start);
+    final List<TSSubQuery> subs = new ArrayList<TSSubQuery>();
+    subs.add(sub);
+    query.setQueries(subs);
+    query.validateAndSetQuery();
+    return query;
+  }
+
+  private static <T> List<T> list(final T... items) {
+    final List<T> list = new ArrayList<T>(items.length);
+    for (final T item : items) {
+      list.add(item);
+    }
+    return list;
+  }
+}
@@ -0,0 +1,214 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.core.QueryPlanner.Strategy;
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.storage.MockBase.MockScanner;
+
+import org.hbase.async.FilterList;
+import org.hbase.async.FuzzyRowFilter;
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Scanner.class })
+public class TestQueryPlanner extends BaseTsdbTest {
+  private QueryPlanner planner;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    planner = new QueryPlanner(tsdb);
+  }
+
+  @Test
+  public void unknownSeriesPrefersMultiGet() throws Exception {
+    assertEquals(Strategy.MULTI_GET,
+        planner.plan(METRIC_BYTES, 3, 24, true, true).strategy());
+    // over the multi-get limit
+    assertEquals(Strategy.FUZZY_SCAN,
+        planner.plan(METRIC_BYTES, 10000, 24, true, true).strategy());
+    assertEquals(Strategy.SCAN,
+        planner.plan(METRIC_BYTES, 10000, 24, true, false).strategy());
+    assertEquals(Strategy.SCAN,
+        planner.plan(METRIC_BYTES, 0, 24, false, false).strategy());
+  }
+
+  @Test
+  public void knownSeries() throws Exception {
+    planner.observe(METRIC_BYTES, 100);
+
+    // a few series out of many
+    assertEquals(Strategy.FUZZY_SCAN,
+        planner.plan(METRIC_BYTES, 3, 24, true, true).strategy());
+    assertEquals(Strategy.MULTI_GET,
+        planner.plan(METRIC_BYTES, 3, 24, true, false).strategy());
+
+    // most of the series
+    assertEquals(Strategy.SCAN,
+        planner.plan(METRIC_BYTES, 90, 24, true, true).strategy());
+    // more combinations than series
+    assertEquals(Strategy.SCAN,
+        planner.plan(METRIC_BYTES, 1000, 24, true, false).strategy());
+  }
+
+  @Test
+  public void observeKeepsTheLargest() throws Exception {
+    assertEquals(0, planner.knownSeries(METRIC_BYTES));
+    planner.observe(METRIC_BYTES, 10);
+    planner.observe(METRIC_BYTES, 5);
+    planner.observe(METRIC_BYTES, 0);
+    assertEquals(10, planner.knownSeries(METRIC_BYTES));
+    assertEquals(0, planner.knownSeries(METRIC_B_BYTES));
+  }
+
+  @Test
+  public void estimatedRows() throws Exception {
+    assertEquals(-1, planner.plan(METRIC_BYTES, 0, 24, false, false)
+        .estimatedRows());
+    assertEquals(72, planner.plan(METRIC_BYTES, 3, 24, true, true)
+        .estimatedRows());
+
+    planner.observe(METRIC_BYTES, 2);
+    assertEquals(48, planner.plan(METRIC_BYTES, 3, 24, true, true)
+        .estimatedRows());
+    assertEquals(48, planner.plan(METRIC_BYTES, 0, 24, false, false)
+        .estimatedRows());
+  }
+
+  @Test
+  public void overflow() throws Exception {
+    planner.observe(METRIC_BYTES, Long.MAX_VALUE / 2);
+    assertEquals(Strategy.SCAN, planner.plan(METRIC_BYTES, Long.MAX_VALUE,
+        Long.MAX_VALUE, true, true).strategy());
+  }
+
+  @Test
+  public void runPlannedQueries() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    Whitebox.setInternalState(tsdb, "query_planner", planner);
+
+    // nothing known about the metric yet so we fetch the single series
+    TsdbQuery query = new TsdbQuery(tsdb);
+    query.configureFromQuery(explicitQuery(), 0).joinUninterruptibly();
+    assertSeries(query.run());
+    assertTrue(storage.getScanners().isEmpty());
+    assertEquals(0, planner.knownSeries(METRIC_BYTES));
+
+    // with many series known a fuzzy scan is cheaper
+    planner.observe(METRIC_BYTES, 1000);
+    query = new TsdbQuery(tsdb);
+    query.configureFromQuery(explicitQuery(), 0).joinUninterruptibly();
+    assertSeries(query.run());
+    assertFalse(storage.getScanners().isEmpty());
+    for (final MockScanner scanner : storage.getScanners()) {
+      assertTrue(scanner.getFilter() instanceof FilterList);
+      assertTrue(((FilterList) scanner.getFilter()).filters().get(0)
+          instanceof FuzzyRowFilter);
+    }
+  }
+
+  @Test
+  public void narrowQueriesDontShrinkTheMetric() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    // plenty of other hosts in the first hour
+    for (int i = 3; i < 100; i++) {
+      storage.addColumn(getRowKey(METRIC_BYTES, 1356998400, TAGK_BYTES, 
+          new byte[] { 0, 0, (byte) i }), new byte[] { 0, 0 }, 
+          new byte[] { 1 });
+    }
+    Whitebox.setInternalState(tsdb, "query_planner", planner);
+
+    // a narrow query only sees its own series so it doesn't teach anything
+    for (int i = 0; i < 2; i++) {
+      final TsdbQuery query = new TsdbQuery(tsdb);
+      query.configureFromQuery(explicitQuery(), 0).joinUninterruptibly();
+      assertSeries(query.run());
+      assertTrue(storage.getScanners().isEmpty());
+      assertEquals(0, planner.knownSeries(METRIC_BYTES));
+    }
+
+    // a wide one scans every series of the metric
+    TsdbQuery query = new TsdbQuery(tsdb);
+    query.configureFromQuery(wideQuery(), 0).joinUninterruptibly();
+    assertEquals(1, query.run().length);
+    assertEquals(99, planner.knownSeries(METRIC_BYTES));
+
+    // so the narrow one keeps seeking to its series
+    storage.getScanners().clear();
+    query = new TsdbQuery(tsdb);
+    query.configureFromQuery(explicitQuery(), 0).joinUninterruptibly();
+    assertSeries(query.run());
+    assertFalse(storage.getScanners().isEmpty());
+    for (final MockScanner scanner : storage.getScanners()) {
+      assertTrue(((FilterList) scanner.getFilter()).filters().get(0)
+          instanceof FuzzyRowFilter);
+    }
+    assertEquals(99, planner.knownSeries(METRIC_BYTES));
+  }
+
+  private static void assertSeries(final DataPoints[] dps) {
+    assertEquals(1, dps.length);
+    int value = 1;
+    for (final DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      value++;
+    }
+    assertEquals(300, dps[0].aggregatedSize());
+  }
+
+  private static TSQuery wideQuery() {
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setMetric(METRIC_STRING);
+    sub.setAggregator("sum");
+    final TSQuery query = new TSQuery();
+    query.setStart("1356998400");
+    query.setEnd("1357041600");
+    final List<TSSubQuery> subs = new ArrayList<TSSubQuery>();
+    subs.add(sub);
+    query.setQueries(subs);
+    query.validateAndSetQuery();
+    return query;
+  }
+
+  private static TSQuery explicitQuery() {
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setMetric(METRIC_STRING);
+    sub.setAggregator("sum");
+    sub.setExplicitTags(true);
+    final List<TagVFilter> filters = new ArrayList<TagVFilter>();
+    filters.add(TagVFilter.Builder().setType("literal_or").setTagk(TAGK_STRING)
+        .setFilter(TAGV_STRING).build());
+    sub.setFilters(filters);
+    final TSQuery query = new TSQuery();
+    query.setStart("1356998400");
+    query.setEnd("1357041600");
+    final List<TSSubQuery> subs = new ArrayList<TSSubQuery>();
+    subs.add(sub);
+    query.setQueries(subs);
+    query.validateAndSetQuery();
+    return query;
+  }
+}
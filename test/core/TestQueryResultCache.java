@@ -0,0 +1,318 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.query.filter.TagVFilter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+public class TestQueryResultCache extends BaseTsdbTest {
+  private static final long HOUR = 3600000L;
+  private static final long BASE = 1356998400000L;
+
+  private QueryResultCache cache;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    cache = new QueryResultCache(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroSize() throws Exception {
+    config.overrideConfig("tsd.query.cache.max_bytes", "0");
+    new QueryResultCache(tsdb);
+  }
+
+  @Test
+  public void isCacheable() throws Exception {
+    assertTrue(cache.isCacheable(query("1356998400", "zimsum", "10m-sum")));
+    assertTrue(cache.isCacheable(query("1356998400", "none", "1m-avg")));
+    assertTrue(cache.isCacheable(query("1356998400", "mimmax", "1h-max")));
+
+    // interpolating aggregators
+    assertFalse(cache.isCacheable(query("1356998400", "sum", "10m-sum")));
+    assertFalse(cache.isCacheable(query("1356998400", "count", "10m-sum")));
+    // not downsampled, not aligned with the slices or filled
+    assertFalse(cache.isCacheable(query("1356998400", "zimsum", null)));
+    assertFalse(cache.isCacheable(query("1356998400", "zimsum", "7m-sum")));
+    assertFalse(cache.isCacheable(query("1356998400", "zimsum", "0all-sum")));
+    assertFalse(cache.isCacheable(query("1356998400", "zimsum", "1hc-sum")));
+    assertFalse(cache.isCacheable(
+        query("1356998400", "zimsum", "10m-sum-zero")));
+
+    TSQuery query = query("1356998400", "zimsum", "10m-sum");
+    query.getQueries().get(0).setRate(true);
+    assertFalse(cache.isCacheable(query));
+
+    query = query("1356998400", "zimsum", "10m-sum");
+    query.setPadding(true);
+    assertFalse(cache.isCacheable(query));
+
+    query = query("1356998400", "zimsum", "10m-sum");
+    query.setDelete(true);
+    assertFalse(cache.isCacheable(query));
+  }
+
+  @Test
+  public void cacheKey() throws Exception {
+    final TSQuery query = query("1356998400", "zimsum", "10m-sum");
+    final TSQuery later = query("1357002000", "zimsum", "10m-sum");
+    assertEquals(QueryResultCache.cacheKey(query),
+        QueryResultCache.cacheKey(later));
+
+    // filter order doesn't matter
+    final TSQuery filtered = query("1356998400", "zimsum", "10m-sum");
+    filtered.getQueries().get(0).getFilters().add(TagVFilter.Builder()
+        .setType("literal_or").setTagk(TAGK_B_STRING).setFilter("web01")
+        .build());
+    final TSQuery reordered = query("1356998400", "zimsum", "10m-sum");
+    reordered.getQueries().get(0).getFilters().add(0, TagVFilter.Builder()
+        .setType("literal_or").setTagk(TAGK_B_STRING).setFilter("web01")
+        .build());
+    assertEquals(QueryResultCache.cacheKey(filtered),
+        QueryResultCache.cacheKey(reordered));
+    assertNotEquals(QueryResultCache.cacheKey(query),
+        QueryResultCache.cacheKey(filtered));
+
+    assertNotEquals(QueryResultCache.cacheKey(query), QueryResultCache
+        .cacheKey(query("1356998400", "zimsum", "10m-max")));
+    assertNotEquals(QueryResultCache.cacheKey(query), QueryResultCache
+        .cacheKey(query("1356998400", "mimmax", "10m-sum")));
+  }
+
+  @Test
+  public void copyQuery() throws Exception {
+    final TSQuery query = query("1356998400", "zimsum", "10m-sum");
+    final TSQuery copy = QueryResultCache.copyQuery(query, BASE + 1000,
+        BASE + HOUR);
+    assertEquals(BASE + 1000, copy.startTime());
+    assertEquals(BASE + HOUR, copy.endTime());
+    assertEquals(QueryResultCache.cacheKey(query),
+        QueryResultCache.cacheKey(copy));
+    assertEquals(600000, copy.getQueries().get(0).downsamplingSpecification()
+        .getInterval());
+  }
+
+  @Test
+  public void missThenHit() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+
+    final List<DataPoints[]> expected = QueryResultCache.runQueries(tsdb,
+        query("1356998400", "zimsum", "10m-sum")).joinUninterruptibly();
+    assertEquals(1, expected.size());
+    assertEquals(2, expected.get(0).length);
+
+    // the query covers 2.5 hours so the first two are cached
+    final List<DataPoints[]> first = cache.runAsync(
+        query("1356998400", "zimsum", "10m-sum")).joinUninterruptibly();
+    assertSameResults(expected, first);
+    assertEquals(0, cache.hits());
+    assertEquals(2, cache.misses());
+    assertTrue(cache.bytes() > 0);
+
+    final List<DataPoints[]> second = cache.runAsync(
+        query("1356998400", "zimsum", "10m-sum")).joinUninterruptibly();
+    assertSameResults(expected, second);
+    assertEquals(2, cache.hits());
+    assertEquals(2, cache.misses());
+  }
+
+  @Test
+  public void hitWithHeadAndTail() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    cache.runAsync(query("1356998400", "zimsum", "10m-sum"))
+      .joinUninterruptibly();
+
+    // starts 10 minutes into the first slice so the second one is served
+    final TSQuery query = query("1356999000", "zimsum", "10m-sum");
+    final List<DataPoints[]> expected = QueryResultCache.runQueries(tsdb,
+        query("1356999000", "zimsum", "10m-sum")).joinUninterruptibly();
+    final List<DataPoints[]> results =
+        cache.runAsync(query).joinUninterruptibly();
+    assertSameResults(expected, results);
+    assertEquals(1, cache.hits());
+  }
+
+  @Test
+  public void hitWithoutGroupBy() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    final TSQuery query = query("1356998400", "zimsum", "10m-sum");
+    query.getQueries().get(0).getFilters().clear();
+    cache.runAsync(query).joinUninterruptibly();
+
+    final TSQuery again = query("1356998400", "zimsum", "10m-sum");
+    again.getQueries().get(0).getFilters().clear();
+    final List<DataPoints[]> expected = QueryResultCache.runQueries(tsdb,
+        query).joinUninterruptibly();
+    final List<DataPoints[]> results =
+        cache.runAsync(again).joinUninterruptibly();
+    assertEquals(1, results.get(0).length);
+    assertSameResults(expected, results);
+    assertEquals(2, cache.hits());
+  }
+
+  @Test
+  public void invalidateAll() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    cache.runAsync(query("1356998400", "zimsum", "10m-sum"))
+      .joinUninterruptibly();
+    cache.invalidateAll();
+    assertEquals(0, cache.bytes());
+
+    cache.runAsync(query("1356998400", "zimsum", "10m-sum"))
+      .joinUninterruptibly();
+    assertEquals(0, cache.hits());
+    assertEquals(4, cache.misses());
+  }
+
+  @Test
+  public void bypassUnclosed() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    final List<DataPoints[]> results = cache.runAsync(
+        query("1356998400", "1357000000", "zimsum", "10m-sum"))
+          .joinUninterruptibly();
+    assertEquals(2, results.get(0).length);
+    assertEquals(0, cache.hits());
+    assertEquals(0, cache.misses());
+  }
+
+  @Test
+  public void sliceAndJoin() throws Exception {
+    final Map<String, String> tags_a = new HashMap<String, String>();
+    tags_a.put("host", "web01");
+    tags_a.put("dc", "lga");
+    final Map<String, String> tags_b = new HashMap<String, String>();
+    tags_b.put("host", "web01");
+    tags_b.put("dc", "phx");
+    final Annotation note = new Annotation();
+    note.setStartTime((BASE + HOUR) / 1000);
+
+    final CachedDataPoints head = new CachedDataPoints(METRIC_STRING, tags_a,
+        Collections.<String>emptyList(), list("000001"),
+        Collections.<Annotation>emptyList(), 0,
+        new long[] { BASE, BASE + 1000 }, new long[] { 1, 2 },
+        new boolean[] { true, true });
+    final CachedDataPoints tail = new CachedDataPoints(METRIC_STRING, tags_b,
+        list("owner"), list("000002"), list(note), 0,
+        new long[] { BASE + HOUR, BASE + HOUR + 1000 },
+        new long[] { Double.doubleToRawLongBits(1.5), 3 },
+        new boolean[] { false, true });
+
+    final List<CachedDataPoints> parts = new ArrayList<CachedDataPoints>();
+    parts.add(head);
+    parts.add(tail);
+    final CachedDataPoints joined = CachedDataPoints.join(parts);
+    assertEquals(4, joined.size());
+    assertEquals(Collections.singletonMap("host", "web01"), joined.getTags());
+    assertEquals(list("dc", "owner"), joined.getAggregatedTags());
+    assertEquals(list("000001", "000002"), joined.getTSUIDs());
+    assertEquals(1, joined.getAnnotations().size());
+    assertEquals(1.5, joined.doubleValue(2), 0.0001);
+    assertEquals(3, joined.longValue(3));
+
+    final CachedDataPoints sliced = joined.slice(BASE + 1000, BASE + HOUR + 1);
+    assertEquals(2, sliced.size());
+    assertEquals(BASE + 1000, sliced.timestamp(0));
+    assertEquals(BASE + HOUR, sliced.timestamp(1));
+    assertEquals(1, sliced.getAnnotations().size());
+    assertEquals(0, joined.slice(BASE + 2 * HOUR, BASE + 3 * HOUR).size());
+
+    final SeekableView it = joined.iterator();
+    it.seek(BASE + 1);
+    final DataPoint dp = it.next();
+    assertEquals(BASE + 1000, dp.timestamp());
+    assertEquals(2, dp.longValue());
+  }
+
+  /** Compares the series and points of two results */
+  private static void assertSameResults(final List<DataPoints[]> expected,
+      final List<DataPoints[]> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      final Map<Map<String, String>, DataPoints> by_tags =
+          new HashMap<Map<String, String>, DataPoints>();
+      for (final DataPoints dps : actual.get(i)) {
+        by_tags.put(dps.getTags(), dps);
+      }
+      assertEquals(expected.get(i).length, by_tags.size());
+      for (final DataPoints dps : expected.get(i)) {
+        final DataPoints other = by_tags.get(dps.getTags());
+        assertEquals(dps.metricName(), other.metricName());
+        final List<Long> timestamps = new ArrayList<Long>();
+        final List<Double> values = new ArrayList<Double>();
+        for (final DataPoint dp : dps) {
+          timestamps.add(dp.timestamp());
+          values.add(dp.toDouble());
+        }
+        final List<Long> other_timestamps = new ArrayList<Long>();
+        final List<Double> other_values = new ArrayList<Double>();
+        for (final DataPoint dp : other) {
+          other_timestamps.add(dp.timestamp());
+          other_values.add(dp.toDouble());
+        }
+        assertEquals(timestamps, other_timestamps);
+        assertArrayEquals(values.toArray(), other_values.toArray());
+      }
+    }
+  }
+
+  private static TSQuery query(final String start, final String agg,
+      final String downsample) {
+    return query(start, "1357007400", agg, downsample);
+  }
+
+  private static TSQuery query(final String start, final String end,
+      final String agg, final String downsample) {
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setMetric(METRIC_STRING);
+    sub.setAggregator(agg);
+    sub.setDownsample(downsample);
+    final List<TagVFilter> filters = new ArrayList<TagVFilter>();
+    filters.add(TagVFilter.Builder().setType("wildcard").setTagk(TAGK_STRING)
+        .setFilter("*").setGroupBy(true).build());
+    sub.setFilters(filters);
+    final TSQuery query = new TSQuery();
+    query.setStart(start);
+    query.setEnd(end);
+    final List<TSSubQuery> subs = new ArrayList<TSSubQuery>();
+    subs.add(sub);
+    query.setQueries(subs);
+    query.validateAndSetQuery();
+    return query;
+  }
+
+  private static <T> List<T> list(final T... items) {
+    final List<T> list = new ArrayList<T>(items.length);
+    for (final T item : items) {
+      list.add(item);
+    }
+    return list;
+  }
+}
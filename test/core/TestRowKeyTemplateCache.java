@@ -0,0 +1,120 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRowKeyTemplateCache {
+  private static final byte[] ROW = new byte[] { 0, 0, 1, 0, 0, 0, 0,
+      0, 0, 1, 0, 0, 1 };
+
+  private Map<String, String> tags;
+
+  @Before
+  public void before() {
+    tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    tags.put("dc", "lga");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroSize() {
+    new RowKeyTemplateCache(0);
+  }
+
+  @Test
+  public void getAndPut() {
+    final RowKeyTemplateCache cache = new RowKeyTemplateCache(16);
+    assertNull(cache.get("sys.cpu.user", tags, 0));
+    cache.put("sys.cpu.user", tags, ROW, 0);
+    assertArrayEquals(ROW, cache.get("sys.cpu.user", tags, 0));
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void tagOrderDoesNotMatter() {
+    final RowKeyTemplateCache cache = new RowKeyTemplateCache(16);
+    cache.put("sys.cpu.user", tags, ROW, 0);
+    final Map<String, String> sorted = new TreeMap<String, String>(tags);
+    assertArrayEquals(ROW, cache.get("sys.cpu.user", sorted, 0));
+  }
+
+  @Test
+  public void differentSeries() {
+    final RowKeyTemplateCache cache = new RowKeyTemplateCache(16);
+    cache.put("sys.cpu.user", tags, ROW, 0);
+    assertNull(cache.get("sys.cpu.system", tags, 0));
+    tags.put("host", "web02");
+    assertNull(cache.get("sys.cpu.user", tags, 0));
+    tags.remove("host");
+    assertNull(cache.get("sys.cpu.user", tags, 0));
+  }
+
+  @Test
+  public void copiesTemplatesAndTags() {
+    final RowKeyTemplateCache cache = new RowKeyTemplateCache(16);
+    final byte[] row = ROW.clone();
+    cache.put("sys.cpu.user", tags, row, 0);
+    row[0] = 42;
+    final Map<String, String> original = new HashMap<String, String>(tags);
+    tags.put("host", "web02");
+
+    final byte[] cached = cache.get("sys.cpu.user", original, 0);
+    assertArrayEquals(ROW, cached);
+    cached[0] = 42;
+    assertArrayEquals(ROW, cache.get("sys.cpu.user", original, 0));
+  }
+
+  @Test
+  public void staleGeneration() {
+    final RowKeyTemplateCache cache = new RowKeyTemplateCache(16);
+    cache.put("sys.cpu.user", tags, ROW, 0);
+    assertNull(cache.get("sys.cpu.user", tags, 1));
+    assertEquals(0, cache.size());
+    assertEquals(1, cache.misses());
+
+    cache.put("sys.cpu.user", tags, ROW, 1);
+    assertArrayEquals(ROW, cache.get("sys.cpu.user", tags, 1));
+  }
+
+  @Test
+  public void evictions() {
+    final RowKeyTemplateCache cache = new RowKeyTemplateCache(2);
+    for (int i = 0; i < 10; i++) {
+      cache.put("metric." + i, tags, ROW, 0);
+    }
+    assertTrue(cache.size() <= 2);
+    assertEquals(10 - cache.size(), cache.evictions());
+  }
+
+  @Test
+  public void invalidateAll() {
+    final RowKeyTemplateCache cache = new RowKeyTemplateCache(16);
+    cache.put("sys.cpu.user", tags, ROW, 0);
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+    assertNull(cache.get("sys.cpu.user", tags, 0));
+  }
+}
@@ -0,0 +1,348 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Test;
+
+public class TestRowSegmentCache {
+  private static final long BASE_TIME = 1356998400L;
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroSize() {
+    new RowSegmentCache(0, 0, 1);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorLessThanAChunk() {
+    new RowSegmentCache(RowSegmentCache.CHUNK_SIZE - 1, 0, 1);
+  }
+
+  @Test
+  public void isImmutable() {
+    final RowSegmentCache cache = new RowSegmentCache(1024, 3600000, 1);
+    assertTrue(cache.isImmutable(rowKey(BASE_TIME)));
+
+    final long now = System.currentTimeMillis() / 1000;
+    assertFalse(cache.isImmutable(rowKey(now - (now % 3600))));
+    // the hour is over but not long enough ago
+    assertFalse(cache.isImmutable(rowKey(now - (now % 3600) - 3600)));
+  }
+
+  @Test
+  public void putAndGet() {
+    final RowSegmentCache cache = new RowSegmentCache(1024, 0, 1);
+    final byte[] key = rowKey(BASE_TIME);
+    final List<KeyValue> row = row(key, 10, 20);
+    final KeyValue compacted = compacted(key, 20);
+
+    assertNull(cache.get(key, row));
+    cache.put(key, row, compacted);
+    final KeyValue cached = cache.get(key, row);
+    assertNotNull(cached);
+    assertArrayEquals(key, cached.key());
+    assertArrayEquals(compacted.qualifier(), cached.qualifier());
+    assertArrayEquals(compacted.value(), cached.value());
+    assertEquals(20, cached.timestamp());
+
+    assertNotNull(cache.get(key, row));
+    assertEquals(2, cache.hits());
+    assertEquals(1, cache.misses());
+    assertEquals(1, cache.size());
+    assertTrue(cache.bytes() > 0);
+    // two raw cells of 2 byte qualifiers and 1 byte values, twice
+    assertEquals(12, cache.bytesSaved());
+  }
+
+  @Test
+  public void changedRowIsAMiss() {
+    final RowSegmentCache cache = new RowSegmentCache(1024, 0, 1);
+    final byte[] key = rowKey(BASE_TIME);
+    cache.put(key, row(key, 10, 20), compacted(key, 20));
+
+    // a late write shows up with a newer timestamp
+    final List<KeyValue> late = row(key, 10, 20);
+    late.add(new KeyValue(key, TSDB.FAMILY(), new byte[] { 0, 0x30 }, 30,
+        new byte[] { 3 }));
+    assertNull(cache.get(key, late));
+    assertEquals(0, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  public void mutableRowsAreIgnored() {
+    final RowSegmentCache cache = new RowSegmentCache(1024, 0, 1);
+    final long now = System.currentTimeMillis() / 1000;
+    final byte[] key = rowKey(now - (now % 3600));
+    final List<KeyValue> row = row(key, 10, 20);
+    cache.put(key, row, compacted(key, 20));
+    assertEquals(0, cache.size());
+    assertNull(cache.get(key, row));
+    // not even counted as a miss
+    assertEquals(0, cache.misses());
+  }
+
+  @Test
+  public void copiesTheKeyAndCell() {
+    final RowSegmentCache cache = new RowSegmentCache(1024, 0, 1);
+    final byte[] key = rowKey(BASE_TIME);
+    final KeyValue compacted = compacted(key, 20);
+    cache.put(key, row(key, 10, 20), compacted);
+    compacted.value()[0] = 42;
+    final byte[] original = key.clone();
+    key[0] = 42;
+
+    final KeyValue cached = cache.get(original, row(original, 10, 20));
+    assertNotNull(cached);
+    assertEquals(1, cached.value()[0]);
+    assertNull(cache.get(key, row(key, 10, 20)));
+
+    // handing out a copy keeps the entry intact
+    cached.value()[0] = 42;
+    assertEquals(1, cache.get(original, row(original, 10, 20)).value()[0]);
+  }
+
+  @Test
+  public void evictsBySize() {
+    final RowSegmentCache cache = new RowSegmentCache(256, 0, 1);
+    for (int i = 0; i < 8; i++) {
+      final byte[] key = rowKey(BASE_TIME + (i * 3600));
+      cache.put(key, row(key, 10, 20), compacted(key, 20));
+    }
+    assertTrue(cache.size() < 8);
+    assertTrue(cache.evictions() > 0);
+    assertTrue(cache.bytes() <= 256);
+  }
+
+  @Test
+  public void deletedCellIsAMiss() {
+    final RowSegmentCache cache = new RowSegmentCache(1024, 0, 1);
+    final byte[] key = rowKey(BASE_TIME);
+    cache.put(key, row(key, 10, 20), compacted(key, 20));
+
+    final List<KeyValue> deleted = row(key, 10, 20);
+    deleted.remove(0);
+    assertNull(cache.get(key, deleted));
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  public void singleCellRow() {
+    final RowSegmentCache cache = new RowSegmentCache(1024, 0, 1);
+    final byte[] key = rowKey(BASE_TIME);
+    final List<KeyValue> row = new ArrayList<KeyValue>(1);
+    row.add(compacted(key, 20));
+    cache.put(key, row, row.get(0));
+
+    final KeyValue cached = cache.get(key, row);
+    assertNotNull(cached);
+    assertArrayEquals(row.get(0).value(), cached.value());
+    assertEquals(1, cache.hits());
+  }
+
+  @Test
+  public void keyOnlyRowIsAHit() {
+    final RowSegmentCache cache = new RowSegmentCache(1024, 0, 1);
+    final byte[] key = rowKey(BASE_TIME);
+    final KeyValue compacted = compacted(key, 20);
+    cache.put(key, row(key, 10, 20), compacted);
+
+    final List<KeyValue> keys = new ArrayList<KeyValue>(2);
+    for (final KeyValue kv : row(key, 10, 20)) {
+      keys.add(new KeyValue(key, TSDB.FAMILY(), kv.qualifier(), 
+          kv.timestamp(), new byte[0]));
+    }
+    final KeyValue cached = cache.get(key, keys);
+    assertNotNull(cached);
+    assertArrayEquals(compacted.value(), cached.value());
+  }
+
+  @Test
+  public void spansChunks() {
+    final RowSegmentCache cache = new RowSegmentCache(
+        RowSegmentCache.CHUNK_SIZE * 4, 0, 1);
+    final byte[] key = rowKey(BASE_TIME);
+    final byte[] qualifier = new byte[RowSegmentCache.CHUNK_SIZE];
+    final byte[] value = new byte[RowSegmentCache.CHUNK_SIZE * 2];
+    for (int i = 0; i < qualifier.length; i++) {
+      qualifier[i] = (byte) i;
+    }
+    for (int i = 0; i < value.length; i++) {
+      value[i] = (byte) (i * 7);
+    }
+    cache.put(key, row(key, 10, 20), 
+        new KeyValue(key, TSDB.FAMILY(), qualifier, 20, value));
+    assertEquals(RowSegmentCache.CHUNK_SIZE * 3, cache.bytes());
+
+    final KeyValue cached = cache.get(key, row(key, 10, 20));
+    assertArrayEquals(qualifier, cached.qualifier());
+    assertArrayEquals(value, cached.value());
+  }
+
+  @Test
+  public void tooLargeForTheArena() {
+    final RowSegmentCache cache = new RowSegmentCache(
+        RowSegmentCache.CHUNK_SIZE, 0, 1);
+    final byte[] key = rowKey(BASE_TIME);
+    cache.put(key, row(key, 10, 20), new KeyValue(key, TSDB.FAMILY(), 
+        new byte[] { 0, 0x10 }, 20, new byte[RowSegmentCache.CHUNK_SIZE]));
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.bytes());
+  }
+
+  @Test
+  public void reusesEvictedChunks() {
+    final RowSegmentCache cache = new RowSegmentCache(
+        RowSegmentCache.CHUNK_SIZE * 2, 0, 1);
+    for (int i = 0; i < 8; i++) {
+      final byte[] key = rowKey(BASE_TIME + (i * 3600));
+      final byte[] value = new byte[] { (byte) i, 0, 0 };
+      cache.put(key, row(key, 10, 20), new KeyValue(key, TSDB.FAMILY(), 
+          new byte[] { 0, 0x10, 0, 0x20 }, 20, value));
+    }
+    assertEquals(2, cache.size());
+    assertEquals(6, cache.evictions());
+    assertEquals(RowSegmentCache.CHUNK_SIZE * 2, cache.bytes());
+    // the least recently used rows were evicted
+    assertNull(get(cache, BASE_TIME + (5 * 3600)));
+    assertEquals(6, get(cache, BASE_TIME + (6 * 3600)).value()[0]);
+    assertEquals(7, get(cache, BASE_TIME + (7 * 3600)).value()[0]);
+
+    // a read keeps a row around
+    cache.put(rowKey(BASE_TIME), row(rowKey(BASE_TIME), 10, 20), 
+        compacted(rowKey(BASE_TIME), 20));
+    assertNull(get(cache, BASE_TIME + (6 * 3600)));
+    assertNotNull(get(cache, BASE_TIME + (7 * 3600)));
+  }
+
+  @Test
+  public void replacesARow() {
+    final RowSegmentCache cache = new RowSegmentCache(1024, 0, 1);
+    final byte[] key = rowKey(BASE_TIME);
+    cache.put(key, row(key, 10, 20), compacted(key, 20));
+    cache.put(key, row(key, 10, 30), compacted(key, 30));
+    assertEquals(1, cache.size());
+    assertEquals(RowSegmentCache.CHUNK_SIZE, cache.bytes());
+    assertEquals(0, cache.evictions());
+    assertEquals(30, cache.get(key, row(key, 10, 30)).timestamp());
+  }
+
+  @Test
+  public void invalidateAll() {
+    final RowSegmentCache cache = new RowSegmentCache(1024, 0, 1);
+    final byte[] key = rowKey(BASE_TIME);
+    cache.put(key, row(key, 10, 20), compacted(key, 20));
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.bytes());
+    assertNull(cache.get(key, row(key, 10, 20)));
+  }
+
+  @Test
+  public void keysOnlyAfterEnoughHits() {
+    final RowSegmentCache cache = new RowSegmentCache(1024, 0, 0.8);
+    final byte[] key = rowKey(BASE_TIME);
+    final byte[] metric = new byte[] { 0, 0, 1 };
+    final List<KeyValue> row = row(key, 10, 20);
+    cache.put(key, row, compacted(key, 20));
+    for (int i = 0; i < RowSegmentCache.MIN_LOOKUPS - 1; i++) {
+      assertNotNull(cache.get(key, row));
+    }
+    // not enough lookups yet
+    assertFalse(cache.keysOnly(metric, BASE_TIME, BASE_TIME + 3600));
+    assertNotNull(cache.get(key, row));
+    assertTrue(cache.keysOnly(metric, BASE_TIME, BASE_TIME + 3600));
+
+    // other metrics, days the cache wasn't asked for and open ends aren't
+    assertFalse(cache.keysOnly(new byte[] { 0, 0, 2 }, BASE_TIME, 
+        BASE_TIME + 3600));
+    assertFalse(cache.keysOnly(metric, BASE_TIME, BASE_TIME + 86400 + 3600));
+    assertFalse(cache.keysOnly(metric, BASE_TIME, -1));
+  }
+
+  @Test
+  public void keysOnlyNotAfterMisses() {
+    final RowSegmentCache cache = new RowSegmentCache(1024, 0, 0.8);
+    final byte[] key = rowKey(BASE_TIME);
+    final byte[] metric = new byte[] { 0, 0, 1 };
+    final List<KeyValue> row = row(key, 10, 20);
+    cache.put(key, row, compacted(key, 20));
+    for (int i = 0; i < RowSegmentCache.MIN_LOOKUPS; i++) {
+      assertNotNull(cache.get(key, row));
+    }
+    assertTrue(cache.keysOnly(metric, BASE_TIME, BASE_TIME + 3600));
+
+    // the row was evicted
+    cache.invalidateAll();
+    for (int i = 0; i < RowSegmentCache.MIN_LOOKUPS / 4 + 1; i++) {
+      assertNull(cache.get(key, row));
+    }
+    assertFalse(cache.keysOnly(metric, BASE_TIME, BASE_TIME + 3600));
+  }
+
+  @Test
+  public void keysOnlyDecays() {
+    final RowSegmentCache cache = new RowSegmentCache(1024, 0, 0.8);
+    final byte[] key = rowKey(BASE_TIME);
+    final byte[] metric = new byte[] { 0, 0, 1 };
+    final List<KeyValue> row = row(key, 10, 20);
+    for (int i = 0; i < RowSegmentCache.DECAY_LOOKUPS * 4; i++) {
+      assertNull(cache.get(key, row));
+    }
+    // the old misses fade out once the row is cached
+    cache.put(key, row, compacted(key, 20));
+    for (int i = 0; i < RowSegmentCache.DECAY_LOOKUPS * 2; i++) {
+      assertNotNull(cache.get(key, row));
+    }
+    assertTrue(cache.keysOnly(metric, BASE_TIME, BASE_TIME + 3600));
+  }
+
+  /** @return The cached row with the given base time and default cells */
+  private static KeyValue get(final RowSegmentCache cache, 
+      final long base_time) {
+    final byte[] key = rowKey(base_time);
+    return cache.get(key, row(key, 10, 20));
+  }
+
+  private static byte[] rowKey(final long base_time) {
+    final byte[] key = new byte[] { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1 };
+    Bytes.setInt(key, (int) base_time, 3);
+    return key;
+  }
+
+  private static List<KeyValue> row(final byte[] key, final long ts1,
+      final long ts2) {
+    final List<KeyValue> row = new ArrayList<KeyValue>(2);
+    row.add(new KeyValue(key, TSDB.FAMILY(), new byte[] { 0, 0x10 }, ts1,
+        new byte[] { 1 }));
+    row.add(new KeyValue(key, TSDB.FAMILY(), new byte[] { 0, 0x20 }, ts2,
+        new byte[] { 2 }));
+    return row;
+  }
+
+  private static KeyValue compacted(final byte[] key, final long timestamp) {
+    return new KeyValue(key, TSDB.FAMILY(), new byte[] { 0, 0x10, 0, 0x20 },
+        timestamp, new byte[] { 1, 2, 0 });
+  }
+}
@@ -17,6 +17,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
@@ -31,6 +32,8 @@ import java.util.List;
 import java.util.TreeMap;
 
 import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
 import net.opentsdb.query.filter.TagVWildcardFilter;
 import net.opentsdb.uid.UniqueId;
 
@@ -40,6 +43,7 @@ import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
@@ -175,6 +179,48 @@ public class TestSaltScanner extends BaseTsdbTest {
     verify(tag_values, never()).getNameAsync(TAGV_B_BYTES);
   }
   
+  @Test
+  public void scanStreaming() throws Exception {
+    config.overrideConfig("tsd.query.scan.streaming_decode", "true");
+    setupMockScanners(false);
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        spans, filters);
+    assertTrue(Maps.difference(spans, scanner.scan().joinUninterruptibly()).areEqual());
+    assertEquals(3, spans.size());
+
+    Span span = spans.get(KEY_A);
+    assertEquals(2, span.size());
+    assertEquals(VALUE_LONG, span.longValue(0));
+    assertEquals(1356998400000L, span.timestamp(0));
+    assertEquals(VALUE_LONG, span.longValue(1));
+    assertEquals(1356998401000L, span.timestamp(1));
+    assertEquals(1, span.getAnnotations().size());
+
+    span = spans.get(KEY_B);
+    assertEquals(1, span.size());
+    assertEquals(0, span.getAnnotations().size());
+    
+    span = spans.get(KEY_C);
+    assertEquals(2, span.size());
+    assertEquals(1359680400000L, span.timestamp(0));
+    assertEquals(1359680401000L, span.timestamp(1));
+  }
+  
+  @Test
+  public void scanStreamingRetainsLess() throws Exception {
+    setupMockScanners(false);
+    final long batch = peakBytesRetained();
+    
+    config.overrideConfig("tsd.query.scan.streaming_decode", "true");
+    spans.clear();
+    setupMockScanners(false);
+    final long streaming = peakBytesRetained();
+    
+    // the decoded rows keep the column arrays so only the KeyValues are saved
+    assertTrue(streaming > 3 * SaltScanner.ROW_SEQ_OVERHEAD);
+    assertTrue(streaming < batch);
+  }
+  
   @Test
   public void scanWithFilter() throws Exception {
     setupMockScanners(false);
@@ -452,6 +498,18 @@ public class TestSaltScanner extends BaseTsdbTest {
    * Sets up a pair of scanners with either a list of values or no data
    * @param no_data Whether or not to return 0 data.
    */
+  /** @return The peak bytes retained recorded by a scan of the scanners */
+  private long peakBytesRetained() throws Exception {
+    final QueryStats query_stats = mock(QueryStats.class);
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        spans, filters, false, null, query_stats, 0, null, 0, 0);
+    scanner.scan().joinUninterruptibly();
+    final ArgumentCaptor<Long> peak = ArgumentCaptor.forClass(Long.class);
+    verify(query_stats).addStat(eq(0), eq(QueryStat.PEAK_BYTES_RETAINED), 
+        peak.capture());
+    return peak.getValue();
+  }
+  
   protected void setupMockScanners(final boolean no_data) throws Exception {
     if (Const.SALT_WIDTH() > 0) {
       scanners = new ArrayList<Scanner>(Const.SALT_BUCKETS());
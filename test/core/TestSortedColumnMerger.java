@@ -0,0 +1,158 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+
+import net.opentsdb.storage.MockBase;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Test;
+
+public final class TestSortedColumnMerger {
+  private static final byte[] KEY = { 0, 0, 1, 78, 36, -84, 42, 0, 0, 1, 0, 0, 2 };
+  private static final byte[] FAMILY = { 't' };
+  private static final byte[] ZERO = { 0 };
+  private static final byte[] MIXED_FLAG = { Const.MS_MIXED_COMPACT };
+
+  private static final byte[] QUAL1 = { 0x00, 0x07 };
+  private static final byte[] VAL1 = Bytes.fromLong(4L);
+  private static final byte[] QUAL2 = { 0x00, 0x17 };
+  private static final byte[] VAL2 = Bytes.fromLong(5L);
+  private static final byte[] QUAL3 = { 0x00, 0x27 };
+  private static final byte[] VAL3 = Bytes.fromLong(6L);
+
+  @Test
+  public void emptyRow() throws Exception {
+    assertNull(SortedColumnMerger.merge(new ArrayList<KeyValue>(0)));
+  }
+
+  @Test
+  public void singlePoint() throws Exception {
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(makekv(QUAL1, VAL1));
+    assertSame(kvs.get(0), SortedColumnMerger.merge(kvs));
+  }
+
+  @Test
+  public void sortedColumns() throws Exception {
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(3);
+    kvs.add(makekv(QUAL1, VAL1));
+    kvs.add(makekv(QUAL2, VAL2));
+    kvs.add(makekv(QUAL3, VAL3));
+    final KeyValue kv = SortedColumnMerger.merge(kvs);
+    assertArrayEquals(KEY, kv.key());
+    assertArrayEquals(MockBase.concatByteArrays(QUAL1, QUAL2, QUAL3),
+        kv.qualifier());
+    assertArrayEquals(MockBase.concatByteArrays(VAL1, VAL2, VAL3, ZERO),
+        kv.value());
+  }
+
+  @Test
+  public void outOfOrderColumns() throws Exception {
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(3);
+    kvs.add(makekv(QUAL3, VAL3));
+    kvs.add(makekv(QUAL1, VAL1));
+    kvs.add(makekv(QUAL2, VAL2));
+    final KeyValue kv = SortedColumnMerger.merge(kvs);
+    assertArrayEquals(MockBase.concatByteArrays(QUAL1, QUAL2, QUAL3),
+        kv.qualifier());
+    assertArrayEquals(MockBase.concatByteArrays(VAL1, VAL2, VAL3, ZERO),
+        kv.value());
+  }
+
+  @Test
+  public void overlappingCompactedColumns() throws Exception {
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    kvs.add(makekv(MockBase.concatByteArrays(QUAL1, QUAL3),
+        MockBase.concatByteArrays(VAL1, VAL3, ZERO)));
+    kvs.add(makekv(QUAL2, VAL2));
+    final KeyValue kv = SortedColumnMerger.merge(kvs);
+    assertArrayEquals(MockBase.concatByteArrays(QUAL1, QUAL2, QUAL3),
+        kv.qualifier());
+    assertArrayEquals(MockBase.concatByteArrays(VAL1, VAL2, VAL3, ZERO),
+        kv.value());
+  }
+
+  @Test
+  public void secondsAndMs() throws Exception {
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    final byte[] qual_ms = { (byte) 0xF0, 0x00, 0x02, 0x07 };
+    kvs.add(makekv(QUAL2, VAL2));
+    kvs.add(makekv(qual_ms, VAL1));
+    final KeyValue kv = SortedColumnMerger.merge(kvs);
+    assertArrayEquals(MockBase.concatByteArrays(qual_ms, QUAL2),
+        kv.qualifier());
+    assertArrayEquals(MockBase.concatByteArrays(VAL1, VAL2, MIXED_FLAG),
+        kv.value());
+  }
+
+  @Test
+  public void duplicateFallsBack() throws Exception {
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(3);
+    kvs.add(makekv(QUAL1, VAL1));
+    kvs.add(makekv(MockBase.concatByteArrays(QUAL1, QUAL2),
+        MockBase.concatByteArrays(VAL1, VAL2, ZERO)));
+    kvs.add(makekv(QUAL2, VAL2));
+    assertNull(SortedColumnMerger.merge(kvs));
+  }
+
+  @Test
+  public void fixupFallsBack() throws Exception {
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    kvs.add(makekv(new byte[] { 0x00, 0x03 }, VAL1));
+    kvs.add(makekv(QUAL2, VAL2));
+    assertNull(SortedColumnMerger.merge(kvs));
+  }
+
+  @Test
+  public void floatingPointFixupFallsBack() throws Exception {
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    kvs.add(makekv(new byte[] { 0x00, 0x0B },
+        Bytes.fromLong(Float.floatToRawIntBits(4.2F))));
+    kvs.add(makekv(QUAL2, VAL2));
+    assertNull(SortedColumnMerger.merge(kvs));
+  }
+
+  @Test
+  public void annotationFallsBack() throws Exception {
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    kvs.add(makekv(QUAL1, VAL1));
+    kvs.add(makekv(new byte[] { 1, 0, 0 }, new byte[] { '{', '}' }));
+    assertNull(SortedColumnMerger.merge(kvs));
+  }
+
+  @Test
+  public void appendFallsBack() throws Exception {
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(makekv(AppendDataPoints.APPEND_COLUMN_QUALIFIER,
+        MockBase.concatByteArrays(QUAL1, VAL1)));
+    assertNull(SortedColumnMerger.merge(kvs));
+  }
+
+  @Test
+  public void truncatedValueFallsBack() throws Exception {
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(makekv(MockBase.concatByteArrays(QUAL1, QUAL2), VAL1));
+    assertNull(SortedColumnMerger.merge(kvs));
+  }
+
+  private static KeyValue makekv(final byte[] qualifier, final byte[] value) {
+    return new KeyValue(KEY, FAMILY, qualifier, value);
+  }
+}
@@ -334,6 +334,109 @@ public final class TestSpan {
     
   }
 
+  @Test
+  public void materialize() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x1B };
+    final byte[] val2 = Bytes.fromInt(Float.floatToRawIntBits(4.5F));
+    final byte[] qual3 = { 0x00, 0x27 };
+    final byte[] val3 = Bytes.fromLong(5L);
+    final byte[] qual123 = MockBase.concatByteArrays(qual1, qual2, qual3);
+    
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR2, FAMILY, qual123, 
+        MockBase.concatByteArrays(val1, val2, val3, ZERO)));
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual123, 
+        MockBase.concatByteArrays(val1, val2, val3, ZERO)));
+    span.materialize();
+    assertTrue(span.isMaterialized());
+    
+    assertEquals(6, span.size());
+    assertEquals(1356998400000L, span.timestamp(0));
+    assertEquals(1357002002000L, span.timestamp(5));
+    assertTrue(span.isInteger(0));
+    assertEquals(4, span.longValue(0));
+    assertFalse(span.isInteger(4));
+    assertEquals(4.5, span.doubleValue(4), 0.0001);
+    
+    final SeekableView it = span.iterator();
+    int i = 0;
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      assertEquals(span.timestamp(i), dp.timestamp());
+      assertEquals(span.isInteger(i), dp.isInteger());
+      assertEquals(1, dp.valueCount());
+      i++;
+    }
+    assertEquals(6, i);
+  }
+  
+  @Test
+  public void materializeSeek() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] qual12 = MockBase.concatByteArrays(qual1, qual2);
+    
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual12, 
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    span.addRow(new KeyValue(HOUR2, FAMILY, qual12, 
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    span.materialize();
+    
+    final SeekableView it = span.iterator();
+    it.seek(1356998401000L);
+    assertEquals(1356998402000L, it.next().timestamp());
+    it.seek(1357002000000L);
+    assertEquals(1357002000000L, it.next().timestamp());
+    it.seek(1356998400000L);
+    assertEquals(1356998400000L, it.next().timestamp());
+    it.seek(1357002003000L);
+    assertFalse(it.hasNext());
+  }
+  
+  @Test
+  public void materializeDroppedOnAddRow() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] qual12 = MockBase.concatByteArrays(qual1, qual2);
+    
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual12, 
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    span.materialize();
+    assertEquals(2, span.size());
+    
+    span.addRow(new KeyValue(HOUR2, FAMILY, qual12, 
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    assertFalse(span.isMaterialized());
+    assertEquals(4, span.size());
+  }
+  
+  @Test
+  public void materializeEmpty() throws Exception {
+    final Span span = new Span(tsdb);
+    span.materialize();
+    assertFalse(span.isMaterialized());
+    assertEquals(0, span.size());
+  }
+  
+  @Test (expected = ClassCastException.class)
+  public void materializeLongValueOnFloat() throws Exception {
+    final byte[] qual = { 0x00, 0x1B };
+    final byte[] val = Bytes.fromInt(Float.floatToRawIntBits(4.5F));
+    
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual, val));
+    span.materialize();
+    span.longValue(0);
+  }
+
   @Test
   public void downsampler() throws Exception {
     final byte[] val40 = Bytes.fromLong(40L);
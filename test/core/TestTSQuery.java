@@ -25,6 +25,7 @@ import java.util.HashMap;
 
 import com.stumbleupon.async.Deferred;
 import net.opentsdb.utils.DateTime;
+import net.opentsdb.utils.JSON;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -672,6 +673,14 @@ public final class TestTSQuery {
     verifyZeroInteractions(mockedSplitQuery);
   }
   
+  @Test
+  public void materializeSpansNotSetFromJson() throws Exception {
+    final TSQuery query = JSON.parseToObject(
+        "{\"start\":\"1h-ago\",\"materializeSpans\":true}", TSQuery.class);
+    assertFalse(query.materializeSpans());
+    assertFalse(JSON.serializeToString(query).contains("aterialize"));
+  }
+
   /**
    * Sets up an object with good, common values for testing the validation
    * function with an query string query. Each test can "set" the 
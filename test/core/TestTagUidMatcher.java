@@ -0,0 +1,187 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.core.TagUidMatcher.UidStates;
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.query.filter.TagVNotKeyFilter;
+import net.opentsdb.query.filter.TagVRegexFilter;
+import net.opentsdb.query.filter.TagVWildcardFilter;
+import net.opentsdb.uid.NoSuchUniqueId;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
+
+@RunWith(PowerMockRunner.class)
+public class TestTagUidMatcher extends BaseTsdbTest {
+  private List<TagVFilter> filters;
+  private byte[] key_a;
+  private byte[] key_b;
+  private byte[] key_no_tag;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    filters = new ArrayList<TagVFilter>();
+    key_a = getRowKey(METRIC_BYTES, 1356998400, TAGK_BYTES, TAGV_BYTES);
+    key_b = getRowKey(METRIC_BYTES, 1356998400, TAGK_BYTES, TAGV_B_BYTES);
+    key_no_tag = getRowKey(METRIC_BYTES, 1356998400, TAGK_B_BYTES,
+        TAGV_BYTES);
+  }
+
+  @Test
+  public void compileNoFilters() throws Exception {
+    assertNull(TagUidMatcher.compile(tsdb, null));
+    assertNull(TagUidMatcher.compile(tsdb, filters));
+  }
+
+  @Test
+  public void compileUnresolvedTagk() throws Exception {
+    filters.add(new TagVRegexFilter(TAGK_STRING, "web.*"));
+    assertNull(TagUidMatcher.compile(tsdb, filters));
+  }
+
+  @Test
+  public void compileFullTagMapFilter() throws Exception {
+    filters.add(resolved(new TagVRegexFilter(TAGK_STRING, "web.*")));
+    filters.add(resolved(new TagVFilter(TAGK_STRING, "web01") {
+      @Override
+      public Deferred<Boolean> match(final java.util.Map<String, String> tags) {
+        return Deferred.fromResult(true);
+      }
+      @Override
+      public String getType() {
+        return "plugin";
+      }
+      @Override
+      public String debugInfo() {
+        return "{}";
+      }
+    }));
+    assertNull(TagUidMatcher.compile(tsdb, filters));
+  }
+
+  @Test
+  public void matchResolvesOncePerTagValue() throws Exception {
+    filters.add(resolved(new TagVRegexFilter(TAGK_STRING, "web01")));
+    final TagUidMatcher matcher = TagUidMatcher.compile(tsdb, filters);
+    assertNotNull(matcher);
+
+    assertNull(matcher.match(key_a));
+    assertNull(matcher.match(key_b));
+    assertTrue(matcher.resolveAndMatch(key_a).joinUninterruptibly());
+    assertEquals(false, matcher.resolveAndMatch(key_b).joinUninterruptibly());
+    verify(tag_values, times(1)).getNameAsync(TAGV_BYTES);
+    verify(tag_values, times(1)).getNameAsync(TAGV_B_BYTES);
+
+    assertSame(Boolean.TRUE, matcher.match(key_a));
+    assertSame(Boolean.FALSE, matcher.match(key_b));
+    // the same tag values in other rows are decided as well
+    assertSame(Boolean.TRUE, matcher.match(
+        getRowKey(METRIC_BYTES, 1357002000, TAGK_BYTES, TAGV_BYTES)));
+    verify(tag_values, times(1)).getNameAsync(TAGV_BYTES);
+  }
+
+  @Test
+  public void matchMissingTag() throws Exception {
+    filters.add(resolved(new TagVNotKeyFilter(TAGK_STRING, "")));
+    final TagUidMatcher matcher = TagUidMatcher.compile(tsdb, filters);
+
+    assertNull(matcher.match(key_no_tag));
+    assertTrue(matcher.resolveAndMatch(key_no_tag).joinUninterruptibly());
+    assertSame(Boolean.TRUE, matcher.match(key_no_tag));
+
+    assertNull(matcher.match(key_a));
+    assertEquals(false, matcher.resolveAndMatch(key_a).joinUninterruptibly());
+    assertSame(Boolean.FALSE, matcher.match(key_a));
+  }
+
+  @Test
+  public void matchTwoFilters() throws Exception {
+    filters.add(resolved(new TagVRegexFilter(TAGK_STRING, "web.*")));
+    filters.add(resolved(new TagVWildcardFilter(TAGK_B_STRING, "web*")));
+    final TagUidMatcher matcher = TagUidMatcher.compile(tsdb, filters);
+    final byte[] key = getRowKey(METRIC_BYTES, 1356998400,
+        TAGK_BYTES, TAGV_BYTES, TAGK_B_BYTES, TAGV_B_BYTES);
+
+    assertNull(matcher.match(key));
+    assertTrue(matcher.resolveAndMatch(key).joinUninterruptibly());
+    assertSame(Boolean.TRUE, matcher.match(key));
+
+    // one known mismatch is enough to reject the row
+    assertEquals(false, matcher.resolveAndMatch(key_a).joinUninterruptibly());
+    assertSame(Boolean.FALSE, matcher.match(key_a));
+    assertSame(Boolean.FALSE, matcher.match(key_b));
+  }
+
+  @Test
+  public void resolveAndMatchNoSuchUniqueId() throws Exception {
+    filters.add(resolved(new TagVRegexFilter(TAGK_STRING, "web.*")));
+    final TagUidMatcher matcher = TagUidMatcher.compile(tsdb, filters);
+    final byte[] key = getRowKey(METRIC_BYTES, 1356998400,
+        TAGK_BYTES, NSUI_TAGV);
+    try {
+      matcher.resolveAndMatch(key).joinUninterruptibly();
+      fail("Expected a DeferredGroupException");
+    } catch (DeferredGroupException e) {
+      assertTrue(e.getCause() instanceof NoSuchUniqueId);
+    }
+    assertNull(matcher.match(key));
+    verify(tag_values, never()).getNameAsync(TAGV_BYTES);
+  }
+
+  @Test
+  public void uidStates() throws Exception {
+    final UidStates states = new UidStates();
+    assertEquals(0, states.get(42));
+    assertEquals(0, states.get(0));
+    for (long uid = 0; uid < 10000; uid++) {
+      states.put(uid, (byte) (uid % 2 + 1));
+    }
+    assertEquals(10000, states.size());
+    for (long uid = 0; uid < 10000; uid++) {
+      assertEquals((byte) (uid % 2 + 1), states.get(uid));
+    }
+    assertEquals(0, states.get(10000));
+    assertEquals(0, states.get(Long.MAX_VALUE));
+
+    states.put(42, (byte) 2);
+    assertEquals(2, states.get(42));
+    assertEquals(10000, states.size());
+  }
+
+  /** @return The filter with its tag key UID set */
+  private static TagVFilter resolved(final TagVFilter filter) {
+    Whitebox.setInternalState(filter, "tagk_bytes",
+        TAGK_STRING.equals(filter.getTagk()) ? TAGK_BYTES : TAGK_B_BYTES);
+    return filter;
+  }
+}
@@ -21,6 +21,7 @@ import net.opentsdb.core.TsdbQuery.ForTesting;
 import net.opentsdb.query.QueryLimitOverride;
 import net.opentsdb.query.filter.TagVFilter;
 import net.opentsdb.query.filter.TagVWildcardFilter;
+import net.opentsdb.rollup.RollupConfig;
 import net.opentsdb.rollup.RollupInterval;
 import net.opentsdb.rollup.RollupQuery;
 import net.opentsdb.storage.MockBase;
@@ -763,6 +764,98 @@ public final class TestTsdbQuery extends BaseTsdbTest {
     PowerMockito.when(DateTime.parseDuration(anyString())).thenCallRealMethod();
   }
 
+  @Test
+  public void needsSplittingWithMaximumLagOverride() {
+    long mockNowTimestamp = 1356998400000L;
+    mockSystemTime(mockNowTimestamp);
+    Whitebox.setInternalState(tsdb, "rollups_split_queries", true);
+    final RollupQuery rollup_query = new RollupQuery(
+        RollupInterval.builder()
+            .setTable("fake-rollup-table")
+            .setPreAggregationTable("fake-preagg-table")
+            .setInterval("1h")
+            .setRowSpan("1d")
+            .build(),
+        Aggregators.SUM,
+        3600000,
+        Aggregators.SUM);
+    rollup_query.setMaximumLag(3900);
+    Whitebox.setInternalState(query, "rollup_query", rollup_query);
+
+    query.setStartTime(0L);
+    query.setEndTime(mockNowTimestamp);
+
+    assertTrue(query.needsSplitting());
+  }
+
+  @Test
+  public void rollupPlannerCoarsestMultiple() throws Exception {
+    mockRollupConfig();
+    assertEquals("1h", planRollup("2h-sum", null));
+    assertEquals("1d", planRollup("2d-sum", null));
+    assertEquals("10m", planRollup("30m-sum", null));
+    assertNull(planRollup("5m-sum", null));
+  }
+
+  @Test
+  public void rollupPlannerCalendarAligned() throws Exception {
+    mockRollupConfig();
+    assertEquals("1d", planRollup("1dc-sum", "UTC"));
+    assertEquals("1d", planRollup("1nc-sum", "UTC"));
+    // rollup days straddle the local midnights
+    assertEquals("1h", planRollup("1dc-sum", "America/Denver"));
+    assertEquals("1h", planRollup("1wc-sum", "America/Denver"));
+    // and so do rollup hours with a half hour offset
+    assertEquals("10m", planRollup("1dc-sum", "Asia/Kabul"));
+    assertEquals("10m", planRollup("1hc-sum", "Asia/Kabul"));
+  }
+
+  private void mockRollupConfig() {
+    final RollupConfig rollup_config = RollupConfig.builder()
+        .addAggregationId("sum", 0)
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb")
+            .setPreAggregationTable("tsdb")
+            .setInterval("1m")
+            .setRowSpan("1h")
+            .setDefaultInterval(true))
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb-rollup-10m")
+            .setPreAggregationTable("tsdb-rollup-agg-10m")
+            .setInterval("10m")
+            .setRowSpan("1d"))
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb-rollup-1h")
+            .setPreAggregationTable("tsdb-rollup-agg-1h")
+            .setInterval("1h")
+            .setRowSpan("1d"))
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb-rollup-1d")
+            .setPreAggregationTable("tsdb-rollup-agg-1d")
+            .setInterval("1d")
+            .setRowSpan("1n"))
+        .build();
+    Whitebox.setInternalState(tsdb, "rollup_config", rollup_config);
+  }
+
+  /** @return The rollup interval picked for the downsampler, null for raw */
+  private String planRollup(final String downsample, final String timezone) {
+    final DownsamplingSpecification downsampler =
+        new DownsamplingSpecification(downsample);
+    if (timezone != null) {
+      downsampler.setTimezone(DateTime.timezones.get(timezone));
+    }
+    query = new TsdbQuery(tsdb);
+    // 2013-01-01 to 2014-01-01 UTC, across the DST changes
+    query.setStartTime(1356998400L);
+    query.setEndTime(1388534400L);
+    Whitebox.setInternalState(query, "downsampler", downsampler);
+    query.transformDownSamplerToRollupQuery(Aggregators.SUM,
+        downsampler.getStringInterval());
+    return query.getRollupQuery() == null ? null
+        : query.getRollupQuery().getRollupInterval().getInterval();
+  }
+
   private void mockEnableRollupQuerySplitting() {
     Whitebox.setInternalState(tsdb, "rollups_split_queries", true);
     Whitebox.setInternalState(query, "rollup_query", makeRollupQuery());
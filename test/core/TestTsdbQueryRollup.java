@@ -18,6 +18,9 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 import java.util.Arrays;
 import java.util.HashMap;
@@ -27,6 +30,8 @@ import java.util.List;
 
 import net.opentsdb.rollup.RollupConfig;
 import net.opentsdb.rollup.RollupInterval;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.utils.Config;
@@ -216,6 +221,54 @@ public class TestTsdbQueryRollup extends BaseTsdbTest {
     final DataPoints[] dps = query.run();
     assertEquals(0, dps.length);
   }
+
+  @Test
+  public void run10mCountsRollupHit() throws Exception {
+    final RollupInterval interval = rollup_config.getRollupInterval("10m");
+    final Aggregator aggr = Aggregators.SUM;
+    storeLongRollup(1356998400L, 1357041599L, false, false, interval, aggr);
+
+    setQuery(interval.getInterval(), aggr, tags, aggr);
+    query.configureFromQuery(ts_query, 0);
+    final QueryStats stats = mock(QueryStats.class);
+    Whitebox.setInternalState(query, "query_stats", stats);
+
+    assertEquals(1, query.run().length);
+    verify(stats).addStat(0, QueryStat.ROLLUP_HITS, 1);
+    verify(stats, never()).addStat(0, QueryStat.ROLLUP_MISSES, 1);
+  }
+
+  @Test
+  public void run10mEmptyRollupIsNotAHit() throws Exception {
+    final RollupInterval interval = rollup_config.getRollupInterval("10m");
+    storeLongRollup(1356998400L, 1357041599L, false, false, interval,
+        Aggregators.SUM);
+
+    setQuery(interval.getInterval(), Aggregators.MAX, tags, Aggregators.MAX);
+    query.configureFromQuery(ts_query, 0);
+    final QueryStats stats = mock(QueryStats.class);
+    Whitebox.setInternalState(query, "query_stats", stats);
+
+    assertEquals(0, query.run().length);
+    verify(stats, never()).addStat(0, QueryStat.ROLLUP_HITS, 1);
+  }
+
+  @Test
+  public void run10mFallbackRawIsOnlyAMiss() throws Exception {
+    final RollupInterval interval = rollup_config.getRollupInterval("10m");
+    storeLongRollup(1356998400L, 1357041599L, false, false, interval,
+        Aggregators.SUM);
+
+    setQuery(interval.getInterval(), Aggregators.MAX, tags, Aggregators.MAX);
+    ts_query.getQueries().get(0).setRollupUsage("ROLLUP_FALLBACK_RAW");
+    query.configureFromQuery(ts_query, 0);
+    final QueryStats stats = mock(QueryStats.class);
+    Whitebox.setInternalState(query, "query_stats", stats);
+
+    assertEquals(1, query.run().length);
+    verify(stats, never()).addStat(0, QueryStat.ROLLUP_HITS, 1);
+    verify(stats).addStat(0, QueryStat.ROLLUP_MISSES, 1);
+  }
   
   @Test
   public void run10mSumLongSingleTS() throws Exception {
@@ -0,0 +1,301 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.opentsdb.storage.MockBase.MockScanner;
+
+import org.hbase.async.FilterList;
+import org.hbase.async.KeyOnlyFilter;
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+/**
+ * Makes sure queries return the same data when their scans are split into
+ * time partitions.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Scanner.class })
+public class TestTsdbQueryScanPartitions extends BaseTsdbTest {
+  protected TsdbQuery query = null;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    query = new TsdbQuery(tsdb);
+  }
+
+  @Test
+  public void disabledByDefault() throws Exception {
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    assertArrayEquals(new long[] { 1356998400, query.getScanEndTimeSeconds() },
+        query.getScanPartitions());
+  }
+
+  @Test
+  public void partitionsAlignedOnRows() throws Exception {
+    enable("1h", 64);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+
+    final long end = query.getScanEndTimeSeconds();
+    final long[] partitions = query.getScanPartitions();
+    assertEquals(1356998400, partitions[0]);
+    assertEquals(end, partitions[partitions.length - 1]);
+    assertEquals((end - 1356998400 + 3599) / 3600, partitions.length - 1);
+    for (int i = 1; i < partitions.length - 1; i++) {
+      assertEquals(3600, partitions[i] - partitions[i - 1]);
+    }
+  }
+
+  @Test
+  public void partitionsWidenedToMaxScanners() throws Exception {
+    enable("1h", 4 * buckets());
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+
+    final long[] partitions = query.getScanPartitions();
+    assertEquals(5, partitions.length);
+    for (int i = 1; i < partitions.length - 1; i++) {
+      assertEquals(0, (partitions[i] - partitions[i - 1]) % Const.MAX_TIMESPAN);
+    }
+  }
+
+  @Test
+  public void shortRangeNotSplit() throws Exception {
+    enable("1d", 64);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    assertEquals(2, query.getScanPartitions().length);
+  }
+
+  @Test
+  public void openEnded() throws Exception {
+    enable("1d", 64);
+    query.setStartTime(1356998400);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+
+    final long[] partitions = query.getScanPartitions();
+    assertTrue(partitions.length > 2);
+    assertEquals(-1, partitions[partitions.length - 1]);
+  }
+
+  @Test
+  public void runLongSingleTS() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    enable("1h", 64);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+
+    final DataPoints[] dps = query.run();
+    assertMeta(dps, 0, false);
+    int value = 1;
+    long timestamp = 1356998430000L;
+    for (final DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      assertEquals(timestamp, dp.timestamp());
+      value++;
+      timestamp += 30000;
+    }
+    assertEquals(300, dps[0].aggregatedSize());
+
+    final int partitions = query.getScanPartitions().length - 1;
+    assertTrue(partitions > 1);
+    assertEquals(partitions * buckets(), storage.getScanners().size());
+  }
+
+  @Test
+  public void runLongSingleTSStreaming() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    enable("1h", 64);
+    config.overrideConfig("tsd.query.scan.streaming_decode", "true");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    int value = 1;
+    long timestamp = 1356998430000L;
+    for (final DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      assertEquals(timestamp, dp.timestamp());
+      value++;
+      timestamp += 30000;
+    }
+    assertEquals(300, dps[0].aggregatedSize());
+  }
+
+  @Test
+  public void runGroupBy() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    enable("1h", 64);
+    tags.clear();
+    tags.put(TAGK_STRING, "*");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+
+    final DataPoints[] dps = query.run();
+    assertEquals(2, dps.length);
+    for (final DataPoints series : dps) {
+      long timestamp = 1356998430000L;
+      for (final DataPoint dp : series) {
+        assertEquals(timestamp, dp.timestamp());
+        timestamp += 30000;
+      }
+      assertEquals(300, series.aggregatedSize());
+    }
+  }
+
+  @Test
+  public void runKeyOnlyFromRowCache() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    enable("1h", 64);
+    final RowSegmentCache row_cache = new RowSegmentCache(1024 * 1024, 0, 
+        0.8);
+    Whitebox.setInternalState(tsdb, "row_segment_cache", row_cache);
+
+    // cold, the rows are scanned in full and cached
+    runCachedQuery();
+    for (final MockScanner scanner : storage.getScanners()) {
+      assertFalse(isKeyOnly(scanner));
+    }
+    final long cached = row_cache.size();
+    assertTrue(cached > 0);
+    assertEquals(0, row_cache.hits());
+    assertEquals(cached, row_cache.misses());
+
+    // warm, still scanned in full until there were enough lookups
+    while (row_cache.hits() + row_cache.misses() < 
+        RowSegmentCache.MIN_LOOKUPS) {
+      storage.getScanners().clear();
+      runCachedQuery();
+      for (final MockScanner scanner : storage.getScanners()) {
+        assertFalse(isKeyOnly(scanner));
+      }
+    }
+
+    // hot, only the keys are scanned where the cache hit
+    final long hits = row_cache.hits();
+    storage.getScanners().clear();
+    runCachedQuery();
+    boolean key_only = false;
+    for (final MockScanner scanner : storage.getScanners()) {
+      key_only |= isKeyOnly(scanner);
+    }
+    assertTrue(key_only);
+    assertEquals(hits + cached, row_cache.hits());
+    assertEquals(cached, row_cache.misses());
+    assertEquals(cached, row_cache.size());
+  }
+
+  @Test
+  public void runEvictedRowsNotKeyOnly() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    enable("1h", 64);
+    final RowSegmentCache row_cache = new RowSegmentCache(1024 * 1024, 0, 
+        0.8);
+    Whitebox.setInternalState(tsdb, "row_segment_cache", row_cache);
+    while (row_cache.hits() + row_cache.misses() < 
+        RowSegmentCache.MIN_LOOKUPS) {
+      runCachedQuery();
+    }
+    
+    // the misses after the eviction drag the ratio down again
+    row_cache.invalidateAll();
+    while (row_cache.hits() * 10 >= 
+        (row_cache.hits() + row_cache.misses()) * 8) {
+      row_cache.invalidateAll();
+      runCachedQuery();
+    }
+    storage.getScanners().clear();
+    runCachedQuery();
+    for (final MockScanner scanner : storage.getScanners()) {
+      assertFalse(isKeyOnly(scanner));
+    }
+  }
+
+  @Test
+  public void runMutableRowsNotKeyOnly() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    enable("1h", 64);
+    final RowSegmentCache row_cache = new RowSegmentCache(1024 * 1024, 
+        Long.MAX_VALUE / 2, 0.8);
+    Whitebox.setInternalState(tsdb, "row_segment_cache", row_cache);
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    assertLongSingleTS(query.run());
+    for (final MockScanner scanner : storage.getScanners()) {
+      assertFalse(isKeyOnly(scanner));
+    }
+    assertEquals(0, row_cache.size());
+  }
+
+  /** Runs a new query over the stored series and checks the results */
+  private void runCachedQuery() throws Exception {
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    assertLongSingleTS(query.run());
+  }
+
+  /** @return Whether or not the scanner only fetches the keys */
+  private static boolean isKeyOnly(final MockScanner scanner) {
+    return scanner.getFilter() instanceof FilterList ||
+        scanner.getFilter() instanceof KeyOnlyFilter;
+  }
+
+  /** Checks the results of {@link #runLongSingleTS} */
+  private void assertLongSingleTS(final DataPoints[] dps) {
+    assertEquals(1, dps.length);
+    int value = 1;
+    long timestamp = 1356998430000L;
+    for (final DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      assertEquals(timestamp, dp.timestamp());
+      value++;
+      timestamp += 30000;
+    }
+    assertEquals(300, dps[0].aggregatedSize());
+  }
+
+  /** Enables partitioning with the given width and scanner cap */
+  private void enable(final String interval, final int max_scanners) {
+    config.overrideConfig("tsd.query.scan.partition.enable", "true");
+    config.overrideConfig("tsd.query.scan.partition.interval", interval);
+    config.overrideConfig("tsd.query.scan.partition.max_scanners",
+        Integer.toString(max_scanners));
+  }
+
+  private static int buckets() {
+    return Const.SALT_WIDTH() > 0 ? Const.SALT_BUCKETS() : 1;
+  }
+}
@@ -0,0 +1,227 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.hbase.async.AppendRequest;
+import org.hbase.async.PutRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
+
+public class TestWriteCoalescer extends BaseTsdbTest {
+  private byte[] row;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    row = getRowKey(METRIC_STRING, 1356998400, TAGK_STRING, TAGV_STRING);
+    setDataPointStorage();
+  }
+
+  @Test
+  public void coalescesRow() throws Exception {
+    setupCoalescer();
+    final Deferred<Object> d1 = tsdb.addPoint(METRIC_STRING, 1356998400, 42,
+        tags);
+    final Deferred<Object> d2 = tsdb.addPoint(METRIC_STRING, 1356998401, 24,
+        tags);
+    verify(client, never()).put(any(PutRequest.class));
+    assertNull(storage.getColumn(row, new byte[] { 0, 0 }));
+
+    timer.continuePausedTask();
+    d1.joinUninterruptibly();
+    d2.joinUninterruptibly();
+    verify(client, times(1)).put(any(PutRequest.class));
+    assertArrayEquals(new byte[] { 42 },
+        storage.getColumn(row, new byte[] { 0, 0 }));
+    assertArrayEquals(new byte[] { 24 },
+        storage.getColumn(row, new byte[] { 0, 16 }));
+  }
+
+  @Test
+  public void separateRows() throws Exception {
+    setupCoalescer();
+    final Deferred<Object> d1 = tsdb.addPoint(METRIC_STRING, 1356998400, 42,
+        tags);
+    final Deferred<Object> d2 = tsdb.addPoint(METRIC_STRING, 1357002000, 24,
+        tags);
+    timer.continuePausedTask();
+    d1.joinUninterruptibly();
+    d2.joinUninterruptibly();
+    verify(client, times(2)).put(any(PutRequest.class));
+  }
+
+  @Test
+  public void duplicateQualifierLastWins() throws Exception {
+    setupCoalescer();
+    final Deferred<Object> d1 = tsdb.addPoint(METRIC_STRING, 1356998400, 42,
+        tags);
+    final Deferred<Object> d2 = tsdb.addPoint(METRIC_STRING, 1356998400, 24,
+        tags);
+    timer.continuePausedTask();
+    d1.joinUninterruptibly();
+    d2.joinUninterruptibly();
+    verify(client, times(1)).put(any(PutRequest.class));
+    assertArrayEquals(new byte[] { 24 },
+        storage.getColumn(row, new byte[] { 0, 0 }));
+  }
+
+  @Test
+  public void maxBatch() throws Exception {
+    config.overrideConfig("tsd.storage.write_coalescing.max_batch", "2");
+    setupCoalescer();
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    verify(client, never()).put(any(PutRequest.class));
+    tsdb.addPoint(METRIC_STRING, 1356998401, 24, tags).joinUninterruptibly();
+    verify(client, times(1)).put(any(PutRequest.class));
+    assertEquals(0, getCoalescer().pending());
+  }
+
+  @Test
+  public void appends() throws Exception {
+    Whitebox.setInternalState(config, "enable_appends", true);
+    setupCoalescer();
+    final Deferred<Object> d1 = tsdb.addPoint(METRIC_STRING, 1356998400, 42,
+        tags);
+    final Deferred<Object> d2 = tsdb.addPoint(METRIC_STRING, 1356998401, 24,
+        tags);
+    timer.continuePausedTask();
+    d1.joinUninterruptibly();
+    d2.joinUninterruptibly();
+    verify(client, times(1)).append(any(AppendRequest.class));
+    assertArrayEquals(new byte[] { 0, 0, 42, 0, 16, 24 },
+        storage.getColumn(row, AppendDataPoints.APPEND_COLUMN_QUALIFIER));
+  }
+
+  @Test
+  public void queueFull() throws Exception {
+    config.overrideConfig("tsd.storage.write_coalescing.max_pending", "1");
+    setupCoalescer();
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    try {
+      tsdb.addPoint(METRIC_STRING, 1356998401, 24, tags).joinUninterruptibly();
+      fail("Expected a WriteQueueFullException");
+    } catch (WriteQueueFullException e) { }
+    assertEquals(1, getCoalescer().pending());
+  }
+
+  @Test
+  public void writeError() throws Exception {
+    setupCoalescer();
+    storage.throwException(row, new RuntimeException("Boo!"));
+    final Deferred<Object> d1 = tsdb.addPoint(METRIC_STRING, 1356998400, 42,
+        tags);
+    final Deferred<Object> d2 = tsdb.addPoint(METRIC_STRING, 1356998401, 24,
+        tags);
+    timer.continuePausedTask();
+    try {
+      d1.joinUninterruptibly();
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) { }
+    try {
+      d2.joinUninterruptibly();
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) { }
+  }
+
+  @Test
+  public void tsdbFlush() throws Exception {
+    setupCoalescer();
+    when(client.flush()).thenReturn(Deferred.fromResult(null));
+    final Deferred<Object> d1 = tsdb.addPoint(METRIC_STRING, 1356998400, 42,
+        tags);
+    tsdb.flush().joinUninterruptibly();
+    assertTrue(d1.isDone());
+    verify(client, times(1)).put(any(PutRequest.class));
+    assertEquals(0, getCoalescer().pending());
+  }
+
+  @Test
+  public void tsdbFlushWaitsForCoalescedWrites() throws Exception {
+    setupCoalescer();
+    when(client.flush()).thenReturn(Deferred.fromResult(null));
+    storage.throwException(row, new RuntimeException("Boo!"));
+    final Deferred<Object> d1 = tsdb.addPoint(METRIC_STRING, 1356998400, 42,
+        tags);
+    try {
+      tsdb.flush().joinUninterruptibly();
+      fail("Expected a DeferredGroupException");
+    } catch (DeferredGroupException e) { }
+    assertTrue(d1.isDone());
+  }
+
+  @Test
+  public void shutdown() throws Exception {
+    setupCoalescer();
+    final Deferred<Object> d1 = tsdb.addPoint(METRIC_STRING, 1356998400, 42,
+        tags);
+    getCoalescer().shutdown().joinUninterruptibly();
+    d1.joinUninterruptibly();
+    assertArrayEquals(new byte[] { 42 },
+        storage.getColumn(row, new byte[] { 0, 0 }));
+
+    // the timer isn't re-armed
+    timer.continuePausedTask();
+    assertNull(timer.pausedTask);
+  }
+
+  @Test
+  public void addAfterShutdown() throws Exception {
+    setupCoalescer();
+    getCoalescer().shutdown().joinUninterruptibly();
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags).joinUninterruptibly();
+    verify(client, times(1)).put(any(PutRequest.class));
+    assertEquals(0, getCoalescer().pending());
+    assertArrayEquals(new byte[] { 42 },
+        storage.getColumn(row, new byte[] { 0, 0 }));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadInterval() throws Exception {
+    config.overrideConfig("tsd.storage.write_coalescing.interval", "0");
+    new WriteCoalescer(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadMaxBatch() throws Exception {
+    config.overrideConfig("tsd.storage.write_coalescing.max_batch", "0");
+    new WriteCoalescer(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadMaxPending() throws Exception {
+    config.overrideConfig("tsd.storage.write_coalescing.max_pending", "0");
+    new WriteCoalescer(tsdb);
+  }
+
+  private void setupCoalescer() {
+    Whitebox.setInternalState(tsdb, "write_coalescer", new WriteCoalescer(tsdb));
+  }
+
+  private WriteCoalescer getCoalescer() {
+    return Whitebox.getInternalState(tsdb, "write_coalescer");
+  }
+}
@@ -19,31 +19,41 @@ import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import net.opentsdb.core.BaseTsdbTest;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UidNameIndex;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
 
+import com.stumbleupon.async.Deferred;
 import com.stumbleupon.async.DeferredGroupException;
 
 @RunWith(PowerMockRunner.class)
 @PowerMockIgnore({"javax.management.*", "javax.xml.*",
   "ch.qos.*", "org.slf4j.*",
   "com.sum.*", "org.xml.*"})
-@PrepareForTest({ TSDB.class })
+@PrepareForTest({ TSDB.class, UidNameIndex.class })
 public class TestTagVFilter extends BaseTsdbTest {
 
   @Test (expected = IllegalArgumentException.class)
@@ -252,6 +262,96 @@ public class TestTagVFilter extends BaseTsdbTest {
     new TagVWildcardFilter("host", "*omnia").resolveTagkName(null);
   }
   
+  @Test
+  public void resolveNameRegexIndex() throws Exception {
+    final UidNameIndex index = mockTagValueIndex();
+    final TagVFilter filter = new TagVRegexFilter(TAGK_STRING, "^web0[12]$");
+    filter.resolveTagkName(tsdb).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertEquals(2, filter.getTagVUids().size());
+    assertArrayEquals(TAGV_BYTES, filter.getTagVUids().get(0));
+    assertArrayEquals(TAGV_B_BYTES, filter.getTagVUids().get(1));
+    verify(index).range("web0");
+  }
+  
+  @Test
+  public void resolveNameRegexIndexNoMatch() throws Exception {
+    mockTagValueIndex();
+    final TagVFilter filter = new TagVRegexFilter(TAGK_STRING, "^nope");
+    filter.resolveTagkName(tsdb).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertTrue(filter.getTagVUids().isEmpty());
+    assertTrue(filter.matchesNothing());
+  }
+  
+  @Test
+  public void resolveNameRegexIndexTooMany() throws Exception {
+    config.overrideConfig("tsd.query.filter.expansion_limit", "1");
+    mockTagValueIndex();
+    final TagVFilter filter = new TagVRegexFilter(TAGK_STRING, "web.*");
+    filter.resolveTagkName(tsdb).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertTrue(filter.getTagVUids().isEmpty());
+    assertFalse(filter.matchesNothing());
+  }
+  
+  @Test
+  public void resolveNameRegexIndexNotCurrent() throws Exception {
+    final UidNameIndex index = mockTagValueIndex();
+    when(index.sync()).thenReturn(Deferred.fromResult(false));
+    final TagVFilter filter = new TagVRegexFilter(TAGK_STRING, "^nope");
+    filter.resolveTagkName(tsdb).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertTrue(filter.getTagVUids().isEmpty());
+    assertFalse(filter.matchesNothing());
+    verify(index, never()).range(anyString());
+  }
+  
+  @Test
+  public void resolveNameWildcardIndex() throws Exception {
+    final UidNameIndex index = mockTagValueIndex();
+    TagVFilter filter = new TagVWildcardFilter(TAGK_STRING, "web*");
+    filter.resolveTagkName(tsdb).join();
+    assertEquals(2, filter.getTagVUids().size());
+    verify(index).range("web");
+    
+    filter = new TagVWildcardFilter(TAGK_STRING, "*01");
+    filter.resolveTagkName(tsdb).join();
+    assertEquals(2, filter.getTagVUids().size());
+    assertArrayEquals(new byte[] { 0, 0, 9 }, filter.getTagVUids().get(0));
+    assertArrayEquals(TAGV_BYTES, filter.getTagVUids().get(1));
+    verify(index).range("");
+  }
+  
+  @Test
+  public void resolveNameWildcardIndexCaseInsensitive() throws Exception {
+    final UidNameIndex index = mockTagValueIndex();
+    final TagVFilter filter = new TagVWildcardFilter(TAGK_STRING, "WEB*", true);
+    filter.resolveTagkName(tsdb).join();
+    assertEquals(2, filter.getTagVUids().size());
+    verify(index).range("");
+  }
+  
+  @Test
+  public void expandTagValuesNotSupported() throws Exception {
+    final UidNameIndex index = mockTagValueIndex();
+    final TagVFilter filter = new TagVNotKeyFilter(TAGK_STRING, "");
+    assertFalse(filter.expandTagValues(tsdb, "").join());
+    assertFalse(filter.matchesTagValue(TAGV_STRING));
+    verify(index, never()).sync();
+    verify(index, never()).range(anyString());
+  }
+
+  @Test
+  public void resolveNameWildcardIndexMatchAll() throws Exception {
+    final UidNameIndex index = mockTagValueIndex();
+    final TagVFilter filter = new TagVWildcardFilter(TAGK_STRING, "*");
+    filter.resolveTagkName(tsdb).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertTrue(filter.getTagVUids().isEmpty());
+    verify(index, never()).range(anyString());
+  }
+  
   @Test
   public void comparableTest() throws Exception {
     final TagVFilter filter_a = new TagVWildcardFilter("host", "*omnia");
@@ -418,4 +518,26 @@ public class TestTagVFilter extends BaseTsdbTest {
   }
   
   // TODO - test the plugin loader similar to the other plugins
+
+  /** @return A mocked, loaded tag value index with three values */
+  private UidNameIndex mockTagValueIndex() {
+    final TreeMap<String, byte[]> names = new TreeMap<String, byte[]>();
+    names.put("db01", new byte[] { 0, 0, 9 });
+    names.put(TAGV_STRING, TAGV_BYTES);
+    names.put(TAGV_B_STRING, TAGV_B_BYTES);
+    final UidNameIndex index = mock(UidNameIndex.class);
+    when(index.isLoaded()).thenReturn(true);
+    when(index.sync()).thenAnswer(new Answer<Deferred<Boolean>>() {
+      @Override
+      public Deferred<Boolean> answer(final InvocationOnMock invocation) {
+        return Deferred.fromResult(true);
+      }
+    });
+    when(index.range("")).thenReturn(names);
+    when(index.range("web")).thenReturn(names.subMap("web", "wf"));
+    when(index.range("web0")).thenReturn(names.subMap("web0", "web1"));
+    when(index.range("nope")).thenReturn(names.subMap("nope", "nopf"));
+    when(tsdb.getTagValueIndex()).thenReturn(index);
+    return index;
+  }
 }
@@ -123,4 +123,17 @@ public class TestTagVRegexFilter {
     assertFalse(filter_a.equals(filter_c));
     assertFalse(filter_a.equals(filter_d));
   }
+  
+  @Test
+  public void literalPrefix() throws Exception {
+    assertEquals("ogg-", TagVRegexFilter.literalPrefix("^ogg-\\d+.ops"));
+    assertEquals("ogg-01", TagVRegexFilter.literalPrefix("^ogg-01"));
+    assertEquals("ogg-0", TagVRegexFilter.literalPrefix("^ogg-01?"));
+    assertEquals("ogg-01", TagVRegexFilter.literalPrefix("^ogg-01+"));
+    assertEquals("", TagVRegexFilter.literalPrefix("^o*"));
+    assertEquals("", TagVRegexFilter.literalPrefix("^(ogg|nanny)"));
+    assertEquals("", TagVRegexFilter.literalPrefix("^ogg|nanny"));
+    assertEquals("", TagVRegexFilter.literalPrefix("ogg-01"));
+    assertEquals("", TagVRegexFilter.literalPrefix("^"));
+  }
 }
@@ -0,0 +1,551 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.jboss.netty.util.Timer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ TSDB.class, HBaseClient.class })
+public class TestRollupEngine {
+  private static final String METRIC = "sys.cpu.user";
+  /** 2013-01-01 00:00:00 UTC */
+  private static final long BASE = 1356998400L;
+
+  private TSDB tsdb;
+  private Config config;
+  private Timer timer;
+  private RollupConfig.Builder builder;
+  private Map<String, String> tags;
+  private Map<String, Integer> uids;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = PowerMockito.mock(TSDB.class);
+    config = new Config(false);
+    config.overrideConfig("tsd.rollups.engine.lateness", "1m");
+    timer = Mockito.mock(Timer.class);
+    when(tsdb.getConfig()).thenReturn(config);
+    when(tsdb.getTimer()).thenReturn(timer);
+    when(tsdb.addAggregatePoint(anyString(), anyLong(), anyLong(),
+        anyMapOf(String.class, String.class), anyBoolean(), anyString(),
+        anyString(), anyString())).thenReturn(Deferred.fromResult(null));
+    when(tsdb.addAggregatePoint(anyString(), anyLong(), anyDouble(),
+        anyMapOf(String.class, String.class), anyBoolean(), anyString(),
+        anyString(), anyString())).thenReturn(Deferred.fromResult(null));
+
+    builder = RollupConfig.builder()
+        .addAggregationId("sum", 0)
+        .addAggregationId("count", 1)
+        .addAggregationId("min", 2)
+        .addAggregationId("max", 3)
+        .addAggregationId("avg", 4)
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb")
+            .setPreAggregationTable("tsdb")
+            .setInterval("1m")
+            .setRowSpan("1h")
+            .setDefaultInterval(true))
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb-rollup-10m")
+            .setPreAggregationTable("tsdb-rollup-agg-10m")
+            .setInterval("10m")
+            .setRowSpan("1d"))
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb-rollup-1h")
+            .setPreAggregationTable("tsdb-rollup-agg-1h")
+            .setInterval("1h")
+            .setRowSpan("1d"));
+
+    tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    uids = new HashMap<String, Integer>();
+  }
+
+  @Test
+  public void ctor() throws Exception {
+    final RollupEngine engine = newEngine();
+    verify(timer, times(1)).newTimeout(engine, 10000, TimeUnit.MILLISECONDS);
+    assertEquals(0, engine.seriesCount());
+    assertEquals(0, engine.memory());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNoRollupConfig() throws Exception {
+    new RollupEngine(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNoAggregators() throws Exception {
+    builder = RollupConfig.builder()
+        .addAggregationId("avg", 0)
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb-rollup-1h")
+            .setPreAggregationTable("tsdb-rollup-agg-1h")
+            .setInterval("1h")
+            .setRowSpan("1d"));
+    newEngine();
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorOnlyDefaultInterval() throws Exception {
+    builder = RollupConfig.builder()
+        .addAggregationId("sum", 0)
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb")
+            .setPreAggregationTable("tsdb")
+            .setInterval("1m")
+            .setRowSpan("1h")
+            .setDefaultInterval(true));
+    newEngine();
+  }
+
+  @Test
+  public void ctorBadShard() throws Exception {
+    config.overrideConfig("tsd.rollups.engine.shard_count", "2");
+    config.overrideConfig("tsd.rollups.engine.shard_id", "2");
+    try {
+      newEngine();
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    config.overrideConfig("tsd.rollups.engine.shard_id", "-1");
+    try {
+      newEngine();
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+    config.overrideConfig("tsd.rollups.engine.shard_count", "0");
+    config.overrideConfig("tsd.rollups.engine.shard_id", "0");
+    try {
+      newEngine();
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorTooFewWindows() throws Exception {
+    config.overrideConfig("tsd.rollups.engine.windows", "1");
+    newEngine();
+  }
+
+  @Test
+  public void flushesClosedWindows() throws Exception {
+    final RollupEngine engine = newEngine();
+    add(engine, METRIC, BASE, encode(1), (short) 7, tags);
+    add(engine, METRIC, BASE + 60, encode(2), (short) 7, tags);
+    add(engine, METRIC, BASE + 120, encode(3), (short) 7, tags);
+    assertEquals(1, engine.seriesCount());
+
+    // the latest point is not far enough past the end of the window yet
+    engine.flush(now(BASE + 3600), false);
+    verifyWrites(0);
+    assertEquals(BASE + 60, engine.watermark());
+
+    add(engine, METRIC, BASE + 700, encode(4), (short) 7, tags);
+    engine.flush(now(BASE + 3600), false);
+    assertEquals(BASE + 640, engine.watermark());
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 6L, tags, false, "10m",
+        "sum", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 3L, tags, false, "10m",
+        "count", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 1L, tags, false, "10m",
+        "min", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 3L, tags, false, "10m",
+        "max", null);
+    verifyWrites(4);
+
+    // written windows are not written again
+    engine.flush(now(BASE + 3600), false);
+    verifyWrites(4);
+  }
+
+  @Test
+  public void floatingPoint() throws Exception {
+    final RollupEngine engine = newEngine();
+    add(engine, METRIC, BASE, encode(1.5f), (short) (Const.FLAG_FLOAT | 3),
+        tags);
+    add(engine, METRIC, BASE + 1, encode(2), (short) 7, tags);
+    add(engine, METRIC, BASE + 3700, encode(1), (short) 7, tags);
+    engine.flush(now(BASE + 7200), false);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 3.5, tags, false, "10m",
+        "sum", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 2L, tags, false, "10m",
+        "count", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 1.5, tags, false, "10m",
+        "min", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 2.0, tags, false, "10m",
+        "max", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 3.5, tags, false, "1h",
+        "sum", null);
+  }
+
+  @Test
+  public void integersAreExact() throws Exception {
+    final RollupEngine engine = newEngine();
+    final long big = (1L << 53) + 1;
+    add(engine, METRIC, BASE, encode(big), (short) 7, tags);
+    add(engine, METRIC, BASE + 1, encode(2), (short) 7, tags);
+    engine.shutdown();
+    verify(tsdb).addAggregatePoint(METRIC, BASE, big + 2, tags, false, "10m",
+        "sum", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 2L, tags, false, "10m",
+        "min", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, big, tags, false, "10m",
+        "max", null);
+  }
+
+  @Test
+  public void integersThenFloatingPoint() throws Exception {
+    final RollupEngine engine = newEngine();
+    add(engine, METRIC, BASE, encode(4), (short) 7, tags);
+    add(engine, METRIC, BASE + 1, encode(0.5f), (short) (Const.FLAG_FLOAT | 3),
+        tags);
+    engine.shutdown();
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 4.5, tags, false, "10m",
+        "sum", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 0.5, tags, false, "10m",
+        "min", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 4.0, tags, false, "10m",
+        "max", null);
+  }
+
+  @Test
+  public void overflowingSumIsFloatingPoint() throws Exception {
+    final RollupEngine engine = newEngine();
+    add(engine, METRIC, BASE, encode(Long.MAX_VALUE), (short) 7, tags);
+    add(engine, METRIC, BASE + 1, encode(Long.MAX_VALUE), (short) 7, tags);
+    engine.shutdown();
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 2.0 * Long.MAX_VALUE, tags,
+        false, "10m", "sum", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, (double) Long.MAX_VALUE, tags,
+        false, "10m", "max", null);
+  }
+
+  @Test
+  public void milliseconds() throws Exception {
+    final RollupEngine engine = newEngine();
+    add(engine, METRIC, BASE * 1000 + 500, encode(42), (short) 7, tags);
+    add(engine, METRIC, (BASE + 3700) * 1000, encode(1), (short) 7, tags);
+    engine.flush(now(BASE + 7200), false);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 42L, tags, false, "10m",
+        "sum", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 42L, tags, false, "1h",
+        "sum", null);
+  }
+
+  @Test
+  public void lateDataAmends() throws Exception {
+    final RollupEngine engine = newEngine();
+    add(engine, METRIC, BASE, encode(1), (short) 7, tags);
+    add(engine, METRIC, BASE + 700, encode(4), (short) 7, tags);
+    engine.flush(now(BASE + 3600), false);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 1L, tags, false, "10m",
+        "sum", null);
+
+    add(engine, METRIC, BASE + 30, encode(2), (short) 7, tags);
+    assertEquals(1, counter(engine, "late_amended"));
+    engine.flush(now(BASE + 3600), false);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 3L, tags, false, "10m",
+        "sum", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 2L, tags, false, "10m",
+        "count", null);
+  }
+
+  @Test
+  public void evictsAndDrops() throws Exception {
+    final RollupEngine engine = newEngine();
+    add(engine, METRIC, BASE, encode(1), (short) 7, tags);
+    // four windows of 10m per series so this one replaces the first
+    add(engine, METRIC, BASE + 2400, encode(2), (short) 7, tags);
+    assertEquals(1, counter(engine, "evicted"));
+    // queued for the next flush instead of written by the add
+    verifyWrites(0);
+    engine.flush(now(BASE + 2400), false);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 1L, tags, false, "10m",
+        "sum", null);
+    verify(tsdb, never()).addAggregatePoint(METRIC, BASE + 2400, 2L, tags, 
+        false, "10m", "sum", null);
+
+    add(engine, METRIC, BASE + 10, encode(3), (short) 7, tags);
+    assertEquals(1, counter(engine, "late_dropped"));
+    // the 1h window still takes it
+    engine.shutdown();
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 6L, tags, false, "1h",
+        "sum", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE + 2400, 2L, tags, false,
+        "10m", "sum", null);
+    verify(tsdb, never()).addAggregatePoint(METRIC, BASE, 3L, tags, false,
+        "10m", "sum", null);
+  }
+
+  @Test
+  public void idleFollowsWallClock() throws Exception {
+    final RollupEngine engine = newEngine();
+    add(engine, METRIC, BASE, encode(1), (short) 7, tags);
+    engine.flush(now(BASE + 7200), false);
+    verifyWrites(0);
+
+    // nothing arrived within the lateness
+    engine.flush(now(BASE + 7260), false);
+    assertEquals(BASE + 7200, engine.watermark());
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 1L, tags, false, "10m",
+        "sum", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 1L, tags, false, "1h",
+        "sum", null);
+  }
+
+  @Test
+  public void futurePointsCappedAtWallClock() throws Exception {
+    final RollupEngine engine = newEngine();
+    add(engine, METRIC, BASE, encode(1), (short) 7, tags);
+    add(engine, METRIC, BASE + 90600, encode(1), (short) 7, tags);
+    engine.flush(now(BASE + 300), false);
+    assertEquals(BASE + 240, engine.watermark());
+    verifyWrites(0);
+  }
+
+  @Test
+  public void shutdownWritesEverything() throws Exception {
+    final RollupEngine engine = newEngine();
+    add(engine, METRIC, BASE, encode(1), (short) 7, tags);
+    engine.shutdown().joinUninterruptibly();
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 1L, tags, false, "10m",
+        "sum", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 1L, tags, false, "1h",
+        "sum", null);
+    verifyWrites(8);
+  }
+
+  @Test
+  public void seriesByTags() throws Exception {
+    final RollupEngine engine = newEngine();
+    final Map<String, String> other = new HashMap<String, String>(tags);
+    other.put("dc", "lga");
+    add(engine, METRIC, BASE, encode(1), (short) 7, tags);
+    add(engine, METRIC, BASE, encode(2), (short) 7, other);
+    add(engine, "sys.cpu.nice", BASE, encode(3), (short) 7, tags);
+    final Map<String, String> same = new HashMap<String, String>(other);
+    add(engine, METRIC, BASE, encode(4), (short) 7, same);
+    assertEquals(3, engine.seriesCount());
+    assertEquals(RollupEngine.PAGE_BYTES / (8 * RollupEngine.WINDOW_BYTES)
+        * 8 * RollupEngine.WINDOW_BYTES, engine.memory());
+    engine.shutdown();
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 6L, other, false, "10m",
+        "sum", null);
+    verify(tsdb).addAggregatePoint("sys.cpu.nice", BASE, 3L, tags, false,
+        "10m", "sum", null);
+  }
+
+  @Test
+  public void reclaimsIdleSeries() throws Exception {
+    final RollupEngine engine = newEngine();
+    add(engine, METRIC, BASE, encode(1), (short) 7, tags);
+    engine.flush(now(BASE + 7200), false);
+    assertEquals(1, engine.seriesCount());
+
+    // nothing arrived within the lateness so all windows are written
+    engine.flush(now(BASE + 7260), false);
+    assertEquals(0, engine.seriesCount());
+    assertEquals(1, counter(engine, "reclaimed"));
+    final long memory = engine.memory();
+
+    // too late to amend the written windows
+    add(engine, METRIC, BASE + 30, encode(2), (short) 7, tags);
+    assertEquals(2, counter(engine, "late_dropped"));
+
+    final Map<String, String> other = new HashMap<String, String>(tags);
+    other.put("dc", "lga");
+    add(engine, METRIC, BASE + 7300, encode(3), (short) 7, other);
+    assertEquals(2, engine.seriesCount());
+    assertEquals(memory, engine.memory());
+    engine.shutdown();
+    verify(tsdb).addAggregatePoint(METRIC, BASE, 1L, tags, false, "10m",
+        "sum", null);
+    verify(tsdb, never()).addAggregatePoint(METRIC, BASE, 2L, tags, false, 
+        "10m", "sum", null);
+    verify(tsdb).addAggregatePoint(METRIC, BASE + 7200, 3L, other, false,
+        "10m", "sum", null);
+  }
+
+  @Test
+  public void skipsForeignShards() throws Exception {
+    config.overrideConfig("tsd.rollups.engine.shard_count", "2");
+    final int shard = (METRIC.hashCode() & 0x7FFFFFFF) % 2;
+    config.overrideConfig("tsd.rollups.engine.shard_id", 
+        Integer.toString(1 - shard));
+    RollupEngine engine = newEngine();
+    add(engine, METRIC, BASE, encode(1), (short) 7, tags);
+    assertEquals(0, engine.seriesCount());
+    assertEquals(1, counter(engine, "foreign"));
+
+    config.overrideConfig("tsd.rollups.engine.shard_id", 
+        Integer.toString(shard));
+    engine = newEngine();
+    add(engine, METRIC, BASE, encode(1), (short) 7, tags);
+    assertEquals(1, engine.seriesCount());
+    assertEquals(0, counter(engine, "foreign"));
+  }
+
+  @Test
+  public void rejectsWhenFull() throws Exception {
+    config.overrideConfig("tsd.rollups.engine.max_bytes",
+        Integer.toString(8 * RollupEngine.WINDOW_BYTES));
+    final RollupEngine engine = newEngine();
+    final Map<String, String> other = new HashMap<String, String>(tags);
+    other.put("dc", "lga");
+    add(engine, METRIC, BASE, encode(1), (short) 7, tags);
+    add(engine, METRIC, BASE, encode(2), (short) 7, other);
+    assertEquals(1, engine.seriesCount());
+    assertEquals(1, counter(engine, "rejected"));
+    engine.shutdown();
+    verifyWrites(8);
+  }
+
+  @Test
+  public void writeErrorsCounted() throws Exception {
+    when(tsdb.addAggregatePoint(anyString(), anyLong(), anyLong(),
+        anyMapOf(String.class, String.class), anyBoolean(), anyString(),
+        eq("sum"), anyString()))
+      .thenThrow(new IllegalArgumentException("Boo!"));
+    final RollupEngine engine = newEngine();
+    add(engine, METRIC, BASE, encode(1), (short) 7, tags);
+    engine.shutdown().joinUninterruptibly();
+    assertEquals(2, counter(engine, "errors"));
+    assertEquals(6, counter(engine, "flushed"));
+  }
+
+  @Test
+  public void maximumLag() throws Exception {
+    config.overrideConfig("tsd.rollups.engine.flush_interval", "1500");
+    final RollupEngine engine = newEngine();
+    final RollupConfig rollup_config = tsdb.getRollupConfig();
+    assertEquals(600 + 60 + 2,
+        engine.getMaximumLag(rollup_config.getRollupInterval("10m")));
+    assertEquals(3600 + 60 + 2,
+        engine.getMaximumLag(rollup_config.getRollupInterval("1h")));
+    assertEquals(0,
+        engine.getMaximumLag(rollup_config.getRollupInterval("1m")));
+  }
+
+  @Test
+  public void isComplete() throws Exception {
+    assertFalse(newEngine().isComplete());
+    config.overrideConfig("tsd.rollups.engine.complete", "true");
+    assertTrue(newEngine().isComplete());
+  }
+
+  @Test
+  public void runReschedules() throws Exception {
+    final RollupEngine engine = newEngine();
+    engine.run(null);
+    verify(timer, times(2)).newTimeout(engine, 10000, TimeUnit.MILLISECONDS);
+    engine.shutdown();
+    engine.run(null);
+    verify(timer, times(2)).newTimeout(engine, 10000, TimeUnit.MILLISECONDS);
+  }
+
+  private RollupEngine newEngine() {
+    when(tsdb.getRollupConfig()).thenReturn(builder.build());
+    return new RollupEngine(tsdb);
+  }
+
+  /** Adds the point with a row key made of made up UIDs */
+  private void add(final RollupEngine engine, final String metric,
+      final long timestamp, final byte[] value, final short flags,
+      final Map<String, String> tags) {
+    final Map<String, String> sorted = new TreeMap<String, String>(tags);
+    final byte[] row = new byte[Const.SALT_WIDTH() + TSDB.metrics_width()
+        + Const.TIMESTAMP_BYTES + sorted.size()
+          * (TSDB.tagk_width() + TSDB.tagv_width())];
+    int pos = Const.SALT_WIDTH();
+    pos = uid(row, pos, metric, TSDB.metrics_width());
+    Bytes.setInt(row, (int) (timestamp - timestamp % 3600), pos);
+    pos += Const.TIMESTAMP_BYTES;
+    for (final Map.Entry<String, String> tag : sorted.entrySet()) {
+      pos = uid(row, pos, tag.getKey(), TSDB.tagk_width());
+      pos = uid(row, pos, tag.getValue(), TSDB.tagv_width());
+    }
+    engine.add(row, metric, timestamp, value, flags, tags);
+  }
+
+  /** Writes the UID of the name at the position and returns the next one */
+  private int uid(final byte[] row, final int pos, final String name,
+      final int width) {
+    Integer id = uids.get(name);
+    if (id == null) {
+      id = uids.size() + 1;
+      uids.put(name, id);
+    }
+    for (int i = 0; i < width; i++) {
+      row[pos + i] = (byte) (id >>> ((width - 1 - i) * 8));
+    }
+    return pos + width;
+  }
+
+  private void verifyWrites(final int writes) {
+    verify(tsdb, times(writes)).addAggregatePoint(anyString(), anyLong(),
+        anyLong(), anyMapOf(String.class, String.class), anyBoolean(),
+        anyString(), anyString(), anyString());
+  }
+
+  private static long counter(final RollupEngine engine, final String name) {
+    return ((AtomicLong) Whitebox.getInternalState(engine, name)).get();
+  }
+
+  private static long now(final long seconds) {
+    return seconds * 1000;
+  }
+
+  private static byte[] encode(final long value) {
+    return Bytes.fromLong(value);
+  }
+
+  private static byte[] encode(final float value) {
+    return Bytes.fromInt(Float.floatToRawIntBits(value));
+  }
+}
@@ -72,4 +72,17 @@ public class TestRollupQuery {
         long threeDaysAgo = MOCK_TIMESTAMP - 3 * ONE_DAY_SECONDS * 1000;
         assertFalse(query.isInBlackoutPeriod(threeDaysAgo));
     }
+
+    @Test
+    public void testMaximumLagOverride() {
+        assertEquals(TWO_DAYS_SECONDS, query.getMaximumLag());
+        query.setMaximumLag(ONE_HOUR_SECONDS);
+
+        long nowSeconds = MOCK_TIMESTAMP / 1000;
+        assertEquals(nowSeconds - ONE_HOUR_SECONDS,
+                query.getLastRollupTimestampSeconds());
+        assertTrue(query.isInBlackoutPeriod(MOCK_TIMESTAMP - 1000));
+        assertFalse(query.isInBlackoutPeriod(
+                MOCK_TIMESTAMP - 2 * ONE_HOUR_SECONDS * 1000));
+    }
 }
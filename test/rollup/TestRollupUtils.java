@@ -17,10 +17,13 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.TimeZone;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import net.opentsdb.core.Const;
+import net.opentsdb.utils.DateTime;
 
 public class TestRollupUtils {
   private static final String temporal_table = "tsdb-rollup-10m";
@@ -1127,6 +1130,66 @@ public class TestRollupUtils {
     assertArrayEquals(expected_qual, q);
   }
   
+  @Test
+  public void alignsWithCalendar() throws Exception {
+    final TimeZone utc = DateTime.timezones.get("UTC");
+    final TimeZone denver = DateTime.timezones.get("America/Denver");
+    final TimeZone kabul = DateTime.timezones.get("Asia/Kabul");
+    final RollupInterval day = RollupInterval.builder()
+        .setTable(temporal_table)
+        .setPreAggregationTable(groupby_table)
+        .setInterval("1d")
+        .setRowSpan("1n")
+        .build();
+
+    // 2013-01-01 to 2014-01-01 UTC
+    final long start = 1356998400000L;
+    final long end = 1388534400000L;
+
+    assertTrue(RollupUtils.alignsWithCalendar(day, "1d", utc, start, end));
+    assertTrue(RollupUtils.alignsWithCalendar(day, "1n", utc, start, end));
+    assertTrue(RollupUtils.alignsWithCalendar(day, "1d", null, start, end));
+    assertFalse(RollupUtils.alignsWithCalendar(day, "1d", denver, start, 
+        end));
+    assertTrue(RollupUtils.alignsWithCalendar(month_interval, "1d", denver,
+        start, end));
+    assertTrue(RollupUtils.alignsWithCalendar(month_interval, "1w", denver,
+        start, end));
+    assertFalse(RollupUtils.alignsWithCalendar(month_interval, "1d", kabul,
+        start, end));
+    assertTrue(RollupUtils.alignsWithCalendar(tenmin_oneday, "1d", kabul,
+        start, end));
+    assertTrue(RollupUtils.alignsWithCalendar(tenmin_oneday, "1h", kabul, 
+        start, end));
+    // not a multiple of the rollup interval
+    assertFalse(RollupUtils.alignsWithCalendar(month_interval, "30m", utc, 
+        start, end));
+  }
+
+  @Test
+  public void alignsWithCalendarOffsetAtBoundaries() throws Exception {
+    // +11:00 in the southern summer and +10:30 otherwise
+    final TimeZone lord_howe = DateTime.timezones.get("Australia/Lord_Howe");
+    // January 2013
+    assertTrue(RollupUtils.alignsWithCalendar(month_interval, "1d", 
+        lord_howe, 1356998400000L, 1359676800000L));
+    // July 2013
+    assertFalse(RollupUtils.alignsWithCalendar(month_interval, "1d", 
+        lord_howe, 1372636800000L, 1375315200000L));
+    // January through July 2013
+    assertFalse(RollupUtils.alignsWithCalendar(month_interval, "1d", 
+        lord_howe, 1356998400000L, 1375315200000L));
+
+    // +09:00 until August 2015, then +08:30 until May 2018
+    final TimeZone pyongyang = DateTime.timezones.get("Asia/Pyongyang");
+    // January 2013
+    assertTrue(RollupUtils.alignsWithCalendar(month_interval, "1d", 
+        pyongyang, 1356998400000L, 1359676800000L));
+    // January 2016
+    assertFalse(RollupUtils.alignsWithCalendar(month_interval, "1d", 
+        pyongyang, 1451606400000L, 1454284800000L));
+  }
+
   @Test
   public void mask() throws Exception {
     byte[] header = { (byte) 0x81 };
@@ -48,6 +48,7 @@ import org.hbase.async.FilterList;
 import org.hbase.async.GetRequest;
 import org.hbase.async.GetResultOrException;
 import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyOnlyFilter;
 import org.hbase.async.KeyRegexpFilter;
 import org.hbase.async.KeyValue;
 import org.hbase.async.PutRequest;
@@ -1648,6 +1649,16 @@ public final class MockBase {
         }
       }
 
+      // key only filters strip the values
+      boolean key_only = filter instanceof KeyOnlyFilter;
+      if (filter instanceof FilterList) {
+        for (final ScanFilter f : ((FilterList)filter).filters()) {
+          if (f instanceof KeyOnlyFilter) {
+            key_only = true;
+          }
+        }
+      }
+
       // return all matches
       final ArrayList<ArrayList<KeyValue>> results =
         new ArrayList<ArrayList<KeyValue>>();
@@ -1765,7 +1776,8 @@ public final class MockBase {
             
             kvs.add(new KeyValue(row.getValue().getKey(), row.getKey(),
                 column.getKey(), column.getValue().firstKey(),
-                column.getValue().firstEntry().getValue()));
+                key_only ? new byte[0] : 
+                  column.getValue().firstEntry().getValue()));
           }
         }
 
@@ -14,6 +14,8 @@ package net.opentsdb.tools;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Matchers.anyString;
 import static org.powermock.api.mockito.PowerMockito.mock;
@@ -31,6 +33,7 @@ import java.util.HashMap;
 
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.WritableDataPoints;
+import net.opentsdb.core.WriteQueueFullException;
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.uid.NoSuchUniqueName;
@@ -730,7 +733,24 @@ public class TestTextImporter {
     assertEquals(0, (int)points);
   }
   
-  // TODO - figure out how to trigger a throttling exception
+  @SuppressWarnings("unchecked")
+  @Test
+  public void importFileWriteQueueFull() throws Exception {
+    final WritableDataPoints dp = mock(WritableDataPoints.class);
+    when(dp.addPoint(1356998400L, 42L))
+      .thenReturn(Deferred.<Object>fromError(
+          new WriteQueueFullException("Please throttle writes")))
+      .thenReturn(Deferred.<Object>fromResult(null));
+    ((HashMap<String, WritableDataPoints>) datapoints.get(null))
+      .put("sys.cpu.user{host=web01}", dp);
+    setData("sys.cpu.user 1356998400 42 host=web01");
+    Integer points = (Integer)importFile.invoke(null, client, tsdb, "file", false);
+    assertEquals(1, (int)points);
+    // the rejected point was written again once throttled
+    verify(dp, times(2)).addPoint(1356998400L, 42L);
+  }
+
+  // TODO - figure out how to trigger a PleaseThrottleException
   
   /**
    * Helper to set the reader buffer. Just pass a string to use for the unit test
@@ -0,0 +1,290 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.utils.Config;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ TSDB.class, Config.class, HttpQuery.class, QueryStats.class })
+public final class TestHttpChunkedOutputStream {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final String CONTENT_TYPE = "application/json";
+
+  private HttpQuery query;
+  private Channel chan;
+  private List<Object> writes;
+  private List<DefaultChannelFuture> futures;
+
+  @Before
+  public void before() throws Exception {
+    final TSDB tsdb = NettyMocks.getMockedHTTPTSDB();
+    query = NettyMocks.getQuery(tsdb, "/api/query");
+    chan = query.channel();
+    writes = new ArrayList<Object>();
+    futures = new ArrayList<DefaultChannelFuture>();
+    when(chan.write(any())).thenAnswer(new Answer<ChannelFuture>() {
+      @Override
+      public ChannelFuture answer(final InvocationOnMock invocation)
+          throws Throwable {
+        final DefaultChannelFuture future = new DefaultChannelFuture(chan, false);
+        writes.add(invocation.getArguments()[0]);
+        futures.add(future);
+        return future;
+      }
+    });
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroChunkSize() throws Exception {
+    new HttpChunkedOutputStream(query, CONTENT_TYPE, 0, 1024);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroWindow() throws Exception {
+    new HttpChunkedOutputStream(query, CONTENT_TYPE, 1024, 0);
+  }
+
+  @Test
+  public void closeWithoutFlushSendsBuffered() throws Exception {
+    final HttpChunkedOutputStream stream =
+        new HttpChunkedOutputStream(query, CONTENT_TYPE, 1024, 1024);
+    stream.write("[]".getBytes(UTF8));
+    stream.close();
+
+    assertFalse(stream.isStarted());
+    assertEquals(1, writes.size());
+    final HttpResponse response = (HttpResponse) writes.get(0);
+    assertFalse(response.isChunked());
+    assertEquals("[]", response.getContent().toString(UTF8));
+    assertEquals(2, HttpHeaders.getContentLength(response));
+    assertEquals(CONTENT_TYPE,
+        response.headers().get(HttpHeaders.Names.CONTENT_TYPE));
+  }
+
+  @Test
+  public void flushStartsChunkedReply() throws Exception {
+    final HttpChunkedOutputStream stream =
+        new HttpChunkedOutputStream(query, CONTENT_TYPE, 1024, 1024);
+    stream.write("[1,".getBytes(UTF8));
+    stream.flush();
+    assertTrue(stream.isStarted());
+    stream.write("2]".getBytes(UTF8));
+    stream.close();
+
+    assertEquals(4, writes.size());
+    final HttpResponse response = (HttpResponse) writes.get(0);
+    assertTrue(response.isChunked());
+    assertEquals(HttpResponseStatus.OK, response.getStatus());
+    assertTrue(HttpHeaders.isTransferEncodingChunked(response));
+    assertEquals("[1,", ((HttpChunk) writes.get(1)).getContent().toString(UTF8));
+    assertEquals("2]", ((HttpChunk) writes.get(2)).getContent().toString(UTF8));
+    assertTrue(((HttpChunk) writes.get(3)).isLast());
+    assertEquals(5, stream.bytesSent());
+  }
+
+  @Test
+  public void flushEmptyIsNoop() throws Exception {
+    final HttpChunkedOutputStream stream =
+        new HttpChunkedOutputStream(query, CONTENT_TYPE, 1024, 1024);
+    stream.flush();
+    assertFalse(stream.isStarted());
+    assertTrue(writes.isEmpty());
+  }
+
+  @Test
+  public void splitsAtChunkSize() throws Exception {
+    final HttpChunkedOutputStream stream =
+        new HttpChunkedOutputStream(query, CONTENT_TYPE, 4, 1024);
+    stream.write("abcdefghij".getBytes(UTF8));
+    stream.write('k');
+
+    assertEquals(3, writes.size());
+    assertEquals("abcd", ((HttpChunk) writes.get(1)).getContent().toString(UTF8));
+    assertEquals("efgh", ((HttpChunk) writes.get(2)).getContent().toString(UTF8));
+    stream.write('l');
+    assertEquals(4, writes.size());
+    assertEquals("ijkl", ((HttpChunk) writes.get(3)).getContent().toString(UTF8));
+  }
+
+  @Test (expected = IOException.class)
+  public void writeAfterClose() throws Exception {
+    final HttpChunkedOutputStream stream =
+        new HttpChunkedOutputStream(query, CONTENT_TYPE, 1024, 1024);
+    stream.close();
+    stream.write('a');
+  }
+
+  @Test
+  public void awaitWindowUnderWindow() throws Exception {
+    final HttpChunkedOutputStream stream =
+        new HttpChunkedOutputStream(query, CONTENT_TYPE, 1024, 1024);
+    stream.write("hello".getBytes(UTF8));
+    stream.flush();
+    assertEquals(5, stream.pendingBytes());
+    assertNull(stream.awaitWindow().joinUninterruptibly());
+  }
+
+  @Test
+  public void awaitWindowWaitsForWrites() throws Exception {
+    final HttpChunkedOutputStream stream =
+        new HttpChunkedOutputStream(query, CONTENT_TYPE, 1024, 4);
+    stream.write("hello".getBytes(UTF8));
+    stream.flush();
+    stream.write("world".getBytes(UTF8));
+    stream.flush();
+    assertEquals(10, stream.pendingBytes());
+
+    final List<Object> resumed = new ArrayList<Object>();
+    final Deferred<Object> deferred = stream.awaitWindow();
+    assertSame(deferred, stream.awaitWindow());
+    deferred.addBoth(new Recorder(resumed));
+
+    futures.get(0).setSuccess(); // headers
+    futures.get(1).setSuccess();
+    assertTrue(resumed.isEmpty());
+    assertEquals(5, stream.pendingBytes());
+
+    futures.get(2).setSuccess();
+    assertEquals(1, resumed.size());
+    assertNull(resumed.get(0));
+    assertEquals(0, stream.pendingBytes());
+  }
+
+  @Test
+  public void awaitWindowNotWritable() throws Exception {
+    final HttpChunkedOutputStream stream =
+        new HttpChunkedOutputStream(query, CONTENT_TYPE, 1024, 1024);
+    stream.write("hello".getBytes(UTF8));
+    stream.flush();
+    when(chan.isWritable()).thenReturn(false);
+
+    final List<Object> resumed = new ArrayList<Object>();
+    stream.awaitWindow().addBoth(new Recorder(resumed));
+    assertTrue(resumed.isEmpty());
+
+    futures.get(1).setSuccess();
+    assertEquals(1, resumed.size());
+
+    // nothing pending so there won't be anything to wait for
+    assertNull(stream.awaitWindow().joinUninterruptibly());
+  }
+
+  @Test
+  public void writeFailure() throws Exception {
+    final HttpChunkedOutputStream stream =
+        new HttpChunkedOutputStream(query, CONTENT_TYPE, 1024, 4);
+    stream.write("hello".getBytes(UTF8));
+    stream.flush();
+
+    final List<Object> resumed = new ArrayList<Object>();
+    stream.awaitWindow().addBoth(new Recorder(resumed));
+    futures.get(1).setFailure(new IOException("Boo!"));
+    assertEquals(1, resumed.size());
+    assertTrue(resumed.get(0) instanceof IOException);
+
+    try {
+      stream.awaitWindow().joinUninterruptibly();
+      fail("Expected an IOException");
+    } catch (IOException e) { }
+
+    stream.write("world".getBytes(UTF8));
+    try {
+      stream.flush();
+      fail("Expected an IOException");
+    } catch (IOException e) { }
+  }
+
+  @Test
+  public void sendBufferAfterStartClosesChannel() throws Exception {
+    final HttpChunkedOutputStream stream =
+        new HttpChunkedOutputStream(query, CONTENT_TYPE, 1024, 1024);
+    stream.write("[".getBytes(UTF8));
+    stream.flush();
+
+    query.badRequest(new BadRequestException("Boo!"));
+    verify(chan, times(1)).close();
+    assertEquals(2, writes.size());
+  }
+
+  @Test
+  public void timeToFirstByte() throws Exception {
+    final QueryStats stats = mock(QueryStats.class);
+    query.setStats(stats);
+    final HttpChunkedOutputStream stream =
+        new HttpChunkedOutputStream(query, CONTENT_TYPE, 1024, 1024);
+    stream.write("[".getBytes(UTF8));
+    verify(stats, never()).markFirstByte();
+    stream.flush();
+    verify(stats, times(1)).markFirstByte();
+
+    stream.write("]".getBytes(UTF8));
+    stream.close();
+    verify(stats, times(1)).markFirstByte();
+    verify(stats, never()).markSent();
+    futures.get(futures.size() - 1).setSuccess();
+    verify(stats, times(1)).markSent();
+  }
+
+  /** Records the result of a deferred */
+  private static final class Recorder implements Callback<Object, Object> {
+    private final List<Object> results;
+
+    Recorder(final List<Object> results) {
+      this.results = results;
+    }
+
+    @Override
+    public Object call(final Object obj) {
+      results.add(obj);
+      return null;
+    }
+  }
+}
@@ -16,6 +16,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.when;
 
@@ -41,6 +42,10 @@ import net.opentsdb.utils.Config;
 import net.opentsdb.utils.DateTime;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -465,6 +470,61 @@ public final class TestHttpJsonSerializer {
     assertEquals("[]", json);
   }
   
+  @Test
+  public void streamQueryAsyncV1() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "?jsonp=func");
+    final List<Object> writes = mockWrites(query);
+    final HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock(), 
+        new MockDataPoints().getMock() });
+
+    serdes.streamQueryAsyncV1(data_query, results, 
+        Collections.<Annotation> emptyList(), 
+        new HttpChunkedOutputStream(query, serdes.responseContentType(), 
+            65536, 1024)).joinUninterruptibly();
+    
+    // headers, one chunk per series, the closing bracket, the JSONp suffix
+    // and the last chunk
+    assertEquals(6, writes.size());
+    assertTrue(((HttpResponse) writes.get(0)).isChunked());
+    final StringBuilder json = new StringBuilder();
+    for (int i = 1; i < writes.size() - 1; i++) {
+      json.append(((HttpChunk) writes.get(i)).getContent()
+          .toString(Charset.forName("UTF-8")));
+    }
+    assertTrue(((HttpChunk) writes.get(writes.size() - 1)).isLast());
+    assertTrue(json.toString().startsWith("func([{\"metric\":\"system.cpu.user\","));
+    assertTrue(json.toString().endsWith("}])"));
+    assertTrue(json.toString().contains("\"1357058700\":201"));
+    assertTrue(json.toString().contains("},{\"metric\":"));
+  }
+  
+  @Test
+  public void streamQueryAsyncV1EmptyDPs() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final List<Object> writes = mockWrites(query);
+    final HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+
+    serdes.streamQueryAsyncV1(data_query, results, 
+        Collections.<Annotation> emptyList(), 
+        new HttpChunkedOutputStream(query, serdes.responseContentType(), 
+            65536, 1024)).joinUninterruptibly();
+    
+    // small enough to go out as a regular response
+    assertEquals(1, writes.size());
+    final HttpResponse response = (HttpResponse) writes.get(0);
+    assertFalse(response.isChunked());
+    assertEquals("[]", response.getContent().toString(Charset.forName("UTF-8")));
+  }
+  
   @Test (expected = DeferredGroupException.class)
   public void formatQueryAsyncV1NoSuchMetricId() throws Exception {
     setupFormatQuery();
@@ -600,6 +660,23 @@ public final class TestHttpJsonSerializer {
    * Helper to reset the query stats and mock the time calls before each
    * data point query. 
    */
+  /**
+   * Completes every write to the query's channel immediately.
+   * @return The list the written objects are added to
+   */
+  private List<Object> mockWrites(final HttpQuery query) {
+    final List<Object> writes = new ArrayList<Object>();
+    when(query.channel().write(any())).thenAnswer(new Answer<ChannelFuture>() {
+      @Override
+      public ChannelFuture answer(final InvocationOnMock invocation)
+          throws Throwable {
+        writes.add(invocation.getArguments()[0]);
+        return Channels.succeededFuture(query.channel());
+      }
+    });
+    return writes;
+  }
+  
   private void setupFormatQuery() throws Exception {
     mockTime();
     running_queries.set(null, new ConcurrentHashMap<Integer, QueryStats>());
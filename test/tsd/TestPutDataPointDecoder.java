@@ -0,0 +1,200 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.opentsdb.tsd.PutDataPointDecoder.PutPoint;
+
+public final class TestPutDataPointDecoder {
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  private PutDataPointDecoder decoder;
+
+  @Before
+  public void before() {
+    decoder = new PutDataPointDecoder();
+  }
+
+  @Test
+  public void putLong() throws Exception {
+    final PutPoint point = (PutPoint) decode(
+        "put sys.cpu.user 1356998400 42 host=web01 dc=lga");
+    assertEquals("sys.cpu.user", point.metric);
+    assertEquals(1356998400L, point.timestamp);
+    assertEquals(PutPoint.LONG, point.type);
+    assertEquals(42, point.long_value);
+    assertEquals(2, point.tags.size());
+    assertEquals("web01", point.tags.get("host"));
+    assertEquals("lga", point.tags.get("dc"));
+  }
+
+  @Test
+  public void putNegativeLong() throws Exception {
+    final PutPoint point = (PutPoint) decode(
+        "put sys.cpu.user 1356998400 -9223372036854775808 host=web01");
+    assertEquals(PutPoint.LONG, point.type);
+    assertEquals(Long.MIN_VALUE, point.long_value);
+  }
+
+  @Test
+  public void putFloat() throws Exception {
+    final PutPoint point = (PutPoint) decode(
+        "put sys.cpu.user 1356998400 42.5 host=web01");
+    assertEquals(PutPoint.FLOAT, point.type);
+    assertEquals(42.5, point.double_value, 0.0);
+  }
+
+  @Test
+  public void putDouble() throws Exception {
+    final PutPoint point = (PutPoint) decode(
+        "put sys.cpu.user 1356998400 -0.1 host=web01");
+    assertEquals(PutPoint.DOUBLE, point.type);
+    assertEquals(-0.1, point.double_value, 0.0);
+  }
+
+  @Test
+  public void putExponent() throws Exception {
+    final PutPoint point = (PutPoint) decode(
+        "put sys.cpu.user 1356998400 1.5e300 host=web01");
+    assertEquals(PutPoint.DOUBLE, point.type);
+    assertEquals(1.5e300, point.double_value, 0.0);
+  }
+
+  @Test
+  public void putMilliseconds() throws Exception {
+    final PutPoint point = (PutPoint) decode(
+        "put sys.cpu.user 1356998400.500 42 host=web01");
+    assertEquals(1356998400500L, point.timestamp);
+  }
+
+  @Test
+  public void putExtraSpaces() throws Exception {
+    final PutPoint point = (PutPoint) decode(
+        "put sys.cpu.user 1356998400 42  host=web01 ");
+    assertEquals(1, point.tags.size());
+    assertEquals("web01", point.tags.get("host"));
+  }
+
+  @Test
+  public void putDuplicateTagSameValue() throws Exception {
+    final PutPoint point = (PutPoint) decode(
+        "put sys.cpu.user 1356998400 42 host=web01 host=web01");
+    assertEquals(1, point.tags.size());
+  }
+
+  @Test
+  public void putDirectBuffer() throws Exception {
+    final byte[] line = "put sys.cpu.user 1356998400 42 host=web01"
+        .getBytes(CHARSET);
+    final ChannelBuffer buffer = ChannelBuffers.directBuffer(line.length);
+    buffer.writeBytes(line);
+    final PutPoint point = (PutPoint) decoder.decode(null, null, buffer);
+    assertEquals("sys.cpu.user", point.metric);
+    assertEquals(42, point.long_value);
+  }
+
+  @Test
+  public void putReusesStrings() throws Exception {
+    final PutPoint first = (PutPoint) decode(
+        "put sys.cpu.user 1356998400 42 host=web01");
+    final PutPoint second = (PutPoint) decode(
+        "put sys.cpu.user 1356998460 24 host=web01");
+    assertSame(first.metric, second.metric);
+    assertSame(first.tags.get("host"), second.tags.get("host"));
+    assertTrue(first.tags != second.tags);
+  }
+
+  @Test
+  public void notAPut() throws Exception {
+    assertArrayEquals(new String[] { "version" },
+        (String[]) decode("version"));
+    assertArrayEquals(new String[] { "rollup", "1h-sum", "sys.cpu.user",
+        "1356998400", "42", "host=web01" },
+        (String[]) decode("rollup 1h-sum sys.cpu.user 1356998400 42 host=web01"));
+    assertArrayEquals(new String[] { "PUT", "sys.cpu.user", "1356998400",
+        "42", "host=web01" },
+        (String[]) decode("PUT sys.cpu.user 1356998400 42 host=web01"));
+  }
+
+  @Test
+  public void invalidPutsFallBackToWords() throws Exception {
+    assertEquals(4, ((String[]) decode("put sys.cpu.user 1356998400 42"))
+        .length);
+    assertEquals(5, ((String[]) decode(
+        "put  1356998400 42 host=web01")).length);
+    assertEquals(5, ((String[]) decode(
+        "put sys.cpu.user notatime 42 host=web01")).length);
+    assertEquals(5, ((String[]) decode(
+        "put sys.cpu.user 1356998400 notanum host=web01")).length);
+    assertEquals(5, ((String[]) decode(
+        "put sys.cpu.user 1356998400 NaN host=web01")).length);
+    assertEquals(5, ((String[]) decode(
+        "put sys.cpu.user 1356998400 1e999 host=web01")).length);
+    assertEquals(5, ((String[]) decode(
+        "put sys.cpu.user 1356998400 42 host")).length);
+    assertEquals(5, ((String[]) decode(
+        "put sys.cpu.user 1356998400 42 host=")).length);
+    assertEquals(5, ((String[]) decode(
+        "put sys.cpu.user 1356998400 42 =web01")).length);
+    assertEquals(5, ((String[]) decode(
+        "put sys.cpu.user 1356998400 42 host=web=01")).length);
+    assertEquals(6, ((String[]) decode(
+        "put sys.cpu.user 1356998400 42 host=web01 host=web02")).length);
+    assertEquals(5, ((String[]) decode(
+        "put sys.cpu.user -1356998400 42 host=web01")).length);
+  }
+
+  @Test
+  public void parseSimpleDecimal() throws Exception {
+    final String[] values = { "0.1", "-0.1", "42.", ".5", "+1.25",
+        "123456789.123456", "3.14159265358979", "0.000000000000000000001" };
+    for (final String value : values) {
+      final byte[] bytes = value.getBytes(CHARSET);
+      assertEquals(Double.parseDouble(value),
+          PutDataPointDecoder.parseSimpleDecimal(bytes, 0, bytes.length), 0.0);
+    }
+    final String[] slow_path = { ".", "1e5", "12345678901234567890.1",
+        "1.2.3", "0x1p3", "-" };
+    for (final String value : slow_path) {
+      final byte[] bytes = value.getBytes(CHARSET);
+      assertTrue(Double.isNaN(
+          PutDataPointDecoder.parseSimpleDecimal(bytes, 0, bytes.length)));
+    }
+  }
+
+  @Test
+  public void toWords() throws Exception {
+    final PutPoint point = (PutPoint) decode(
+        "put sys.cpu.user 1356998400 42.5 host=web01");
+    assertArrayEquals(new String[] { "put", "sys.cpu.user", "1356998400",
+        "42.5", "host=web01" }, point.toWords());
+    assertEquals("put sys.cpu.user 1356998400 42.5 host=web01",
+        point.toString());
+  }
+
+  private Object decode(final String line) throws Exception {
+    return decoder.decode(null, null,
+        ChannelBuffers.wrappedBuffer(line.getBytes(CHARSET)));
+  }
+}
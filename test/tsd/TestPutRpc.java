@@ -41,6 +41,8 @@ import org.powermock.modules.junit4.PowerMockRunner;
 
 import com.stumbleupon.async.Deferred;
 
+import net.opentsdb.tsd.PutDataPointDecoder.PutPoint;
+
 @RunWith(PowerMockRunner.class)
 //"Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
 //because they fiddle with the class loader.  We don't test them anyway.
@@ -69,6 +71,24 @@ public final class TestPutRpc extends BaseTestPutRpc {
     validateSEH(false);
   }
 
+  @Test
+  public void executePutPoint() throws Exception {
+    final PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    final Channel chan = NettyMocks.fakeChannel();
+    final PutPoint point = new PutPoint();
+    point.metric = METRIC_STRING;
+    point.timestamp = 1365465600;
+    point.type = PutPoint.LONG;
+    point.long_value = 42;
+    point.tags = new HashMap<String, String>(1);
+    point.tags.put(TAGK_STRING, TAGV_STRING);
+    put.execute(tsdb, chan, point).joinUninterruptibly();
+    validateCounters(1, 0, 1, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+    verify(chan, never()).write(any());
+    verify(chan, never()).isConnected();
+    validateSEH(false);
+  }
+
   @Test
   public void executeBadValue() throws Exception {
     final PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
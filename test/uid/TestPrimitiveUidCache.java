@@ -0,0 +1,220 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestPrimitiveUidCache {
+  private static final byte[] UID1 = new byte[] { 0, 0, 1 };
+  private static final byte[] UID2 = new byte[] { 0, 0, 2 };
+  private static final byte[] UID_ZERO = new byte[] { 0, 0, 0 };
+
+  @Test
+  public void ctor() {
+    final PrimitiveUidCache cache = new PrimitiveUidCache(3, 16);
+    assertEquals(3, cache.width());
+    assertEquals(0, cache.forwardSize());
+    assertEquals(0, cache.reverseSize());
+  }
+
+  @Test
+  public void ctorRoundsSegments() {
+    final PrimitiveUidCache cache = new PrimitiveUidCache(3, 3);
+    cache.putIdIfAbsent("foo", UID1);
+    assertArrayEquals(UID1, cache.getId("foo"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void ctorZeroWidth() {
+    new PrimitiveUidCache(0, 16);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void ctorWidthTooLarge() {
+    new PrimitiveUidCache(9, 16);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void ctorZeroSegments() {
+    new PrimitiveUidCache(3, 0);
+  }
+
+  @Test
+  public void forwardMapping() {
+    final PrimitiveUidCache cache = new PrimitiveUidCache(3, 16);
+    assertNull(cache.getId("foo"));
+    assertNull(cache.putIdIfAbsent("foo", UID1));
+    assertArrayEquals(UID1, cache.getId("foo"));
+    assertEquals(1, cache.forwardSize());
+    assertEquals(0, cache.reverseSize());
+
+    // existing mappings are not replaced
+    assertArrayEquals(UID1, cache.putIdIfAbsent("foo", UID2));
+    assertArrayEquals(UID1, cache.getId("foo"));
+
+    cache.removeId("foo");
+    assertNull(cache.getId("foo"));
+    assertEquals(0, cache.forwardSize());
+  }
+
+  @Test
+  public void forwardMappingStoresACopy() {
+    final PrimitiveUidCache cache = new PrimitiveUidCache(3, 16);
+    final byte[] id = new byte[] { 0, 0, 1 };
+    cache.putIdIfAbsent("foo", id);
+    id[2] = 42;
+    assertArrayEquals(UID1, cache.getId("foo"));
+  }
+
+  @Test
+  public void lookupsReturnCachedInstances() {
+    final PrimitiveUidCache cache = new PrimitiveUidCache(3, 16);
+    cache.putIdIfAbsent("foo", UID1);
+    cache.putNameIfAbsent(UID1, new String("foo"));
+    assertSame(cache.getId("foo"), cache.getId("foo"));
+    assertSame(cache.getName(UID1), cache.getName(UID1));
+    // both directions share the name instance
+    assertSame("foo", cache.getName(UID1));
+  }
+
+  @Test
+  public void reverseMapping() {
+    final PrimitiveUidCache cache = new PrimitiveUidCache(3, 16);
+    assertNull(cache.getName(UID1));
+    assertNull(cache.putNameIfAbsent(UID1, "foo"));
+    assertEquals("foo", cache.getName(UID1));
+    assertEquals(0, cache.forwardSize());
+    assertEquals(1, cache.reverseSize());
+
+    assertEquals("foo", cache.putNameIfAbsent(UID1, "bar"));
+    assertEquals("foo", cache.getName(UID1));
+
+    cache.putName(UID1, "bar");
+    assertEquals("bar", cache.getName(UID1));
+    assertEquals(1, cache.reverseSize());
+
+    cache.removeName(UID1);
+    assertNull(cache.getName(UID1));
+    assertEquals(0, cache.reverseSize());
+  }
+
+  @Test
+  public void reverseMappingZeroId() {
+    final PrimitiveUidCache cache = new PrimitiveUidCache(3, 16);
+    assertNull(cache.getName(UID_ZERO));
+    cache.putNameIfAbsent(UID_ZERO, "zero");
+    assertEquals("zero", cache.getName(UID_ZERO));
+  }
+
+  @Test
+  public void eightByteIds() {
+    final PrimitiveUidCache cache = new PrimitiveUidCache(8, 16);
+    final byte[] id = new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF };
+    cache.putIdIfAbsent("max", id);
+    cache.putNameIfAbsent(id, "max");
+    assertArrayEquals(id, cache.getId("max"));
+    assertEquals("max", cache.getName(id));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void getNameWrongWidth() {
+    new PrimitiveUidCache(3, 16).getName(new byte[] { 0, 1 });
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void putIdWrongWidth() {
+    new PrimitiveUidCache(3, 16).putIdIfAbsent("foo", new byte[] { 0, 1 });
+  }
+
+  @Test
+  public void nonLatinNames() {
+    final PrimitiveUidCache cache = new PrimitiveUidCache(3, 16);
+    cache.putIdIfAbsent("?", UID1);
+    assertNull(cache.getId("\u4e2d"));
+    cache.putIdIfAbsent("\u4e2d", UID2);
+    cache.putNameIfAbsent(UID2, "\u4e2d");
+    assertArrayEquals(UID1, cache.getId("?"));
+    assertArrayEquals(UID2, cache.getId("\u4e2d"));
+    assertEquals("\u4e2d", cache.getName(UID2));
+  }
+
+  @Test
+  public void latinNames() {
+    final PrimitiveUidCache cache = new PrimitiveUidCache(3, 16);
+    cache.putIdIfAbsent("caf\u00e9", UID1);
+    cache.putNameIfAbsent(UID1, "caf\u00e9");
+    assertArrayEquals(UID1, cache.getId("caf\u00e9"));
+    assertEquals("caf\u00e9", cache.getName(UID1));
+  }
+
+  @Test
+  public void clear() {
+    final PrimitiveUidCache cache = new PrimitiveUidCache(3, 16);
+    cache.putIdIfAbsent("foo", UID1);
+    cache.putNameIfAbsent(UID1, "foo");
+    cache.clear();
+    assertEquals(0, cache.forwardSize());
+    assertEquals(0, cache.reverseSize());
+    assertNull(cache.getId("foo"));
+    assertNull(cache.getName(UID1));
+  }
+
+  @Test
+  public void randomOperations() {
+    final PrimitiveUidCache cache = new PrimitiveUidCache(3, 4);
+    final Map<String, Integer> forward = new HashMap<String, Integer>();
+    final Map<Integer, String> reverse = new HashMap<Integer, String>();
+    final Random rnd = new Random(42);
+
+    for (int i = 0; i < 100000; i++) {
+      final int uid = rnd.nextInt(20000);
+      final String name = "name" + uid;
+      final byte[] id = new byte[] { (byte) (uid >>> 16), (byte) (uid >>> 8),
+          (byte) uid };
+      switch (rnd.nextInt(4)) {
+      case 0:
+        cache.putIdIfAbsent(name, id);
+        cache.putNameIfAbsent(id, name);
+        forward.put(name, uid);
+        reverse.put(uid, name);
+        break;
+      case 1:
+        cache.removeId(name);
+        cache.removeName(id);
+        forward.remove(name);
+        reverse.remove(uid);
+        break;
+      default:
+        if (forward.containsKey(name)) {
+          assertArrayEquals(id, cache.getId(name));
+          assertEquals(name, cache.getName(id));
+        } else {
+          assertNull(cache.getId(name));
+          assertNull(cache.getName(id));
+        }
+      }
+    }
+    assertEquals(forward.size(), cache.forwardSize());
+    assertEquals(reverse.size(), cache.reverseSize());
+  }
+}
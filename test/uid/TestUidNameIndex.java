@@ -0,0 +1,350 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2026  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.core.BaseTsdbTest;
+import net.opentsdb.storage.MockBase;
+
+import org.hbase.async.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+public class TestUidNameIndex extends BaseTsdbTest {
+  private static final byte[] UID_TABLE = "tsdb-uid".getBytes(MockBase.ASCII());
+  private static final byte[] ID_FAMILY = "id".getBytes(MockBase.ASCII());
+  private static final byte[] NAME_FAMILY = "name".getBytes(MockBase.ASCII());
+  private static final byte[] TAGV_QUAL = "tagv".getBytes(MockBase.ASCII());
+  private static final byte[] DB_UID = { 0, 0, 9 };
+
+  private File snapshot;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    setDataPointStorage();
+    timer.pausedTask = null;
+    when(tag_values.kind()).thenReturn("tagv");
+    storage.addColumn(UID_TABLE, TAGV_STRING.getBytes(MockBase.ASCII()),
+        ID_FAMILY, TAGV_QUAL, TAGV_BYTES);
+    storage.addColumn(UID_TABLE, TAGV_B_STRING.getBytes(MockBase.ASCII()),
+        ID_FAMILY, TAGV_QUAL, TAGV_B_BYTES);
+    storage.addColumn(UID_TABLE, "db01".getBytes(MockBase.ASCII()),
+        ID_FAMILY, TAGV_QUAL, DB_UID);
+    // other kinds and the max ID row must be skipped
+    storage.addColumn(UID_TABLE, METRIC_STRING.getBytes(MockBase.ASCII()),
+        ID_FAMILY, "metrics".getBytes(MockBase.ASCII()), METRIC_BYTES);
+    storage.addColumn(UID_TABLE, new byte[] { 0 }, ID_FAMILY, TAGV_QUAL,
+        new byte[] { 0, 0, 0, 0, 0, 0, 0, 9 });
+  }
+
+  @After
+  public void afterLocal() throws Exception {
+    if (snapshot != null) {
+      snapshot.delete();
+    }
+  }
+
+  @Test
+  public void load() throws Exception {
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    assertFalse(index.isLoaded());
+    assertEquals(0, index.size());
+
+    index.load().joinUninterruptibly();
+    assertTrue(index.isLoaded());
+    assertEquals(3, index.size());
+    assertEquals(names("db01", TAGV_STRING, TAGV_B_STRING),
+        new ArrayList<String>(index.range("").keySet()));
+    assertArrayEquals(DB_UID, index.range(null).get("db01"));
+  }
+
+  @Test
+  public void range() throws Exception {
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    index.load().joinUninterruptibly();
+
+    final SortedMap<String, byte[]> web = index.range("web");
+    assertEquals(names(TAGV_STRING, TAGV_B_STRING),
+        new ArrayList<String>(web.keySet()));
+    assertArrayEquals(TAGV_BYTES, web.get(TAGV_STRING));
+    assertTrue(index.range("nope").isEmpty());
+
+    // the views are live
+    index.put("web03", new byte[] { 0, 0, 3 });
+    assertEquals(3, web.size());
+    index.remove(TAGV_STRING);
+    assertEquals(names(TAGV_B_STRING, "web03"),
+        new ArrayList<String>(web.keySet()));
+  }
+
+  @Test (expected = UnsupportedOperationException.class)
+  public void rangeReadOnly() throws Exception {
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    index.range("").put("web03", new byte[] { 0, 0, 3 });
+  }
+
+  @Test
+  public void putCopiesAndChecksWidth() throws Exception {
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    final byte[] uid = { 0, 0, 3 };
+    index.put("web03", uid);
+    uid[2] = 4;
+    assertArrayEquals(new byte[] { 0, 0, 3 }, index.range("").get("web03"));
+
+    index.put("web04", new byte[] { 4 });
+    assertNull(index.range("").get("web04"));
+  }
+
+  @Test
+  public void snapshot() throws Exception {
+    snapshot = File.createTempFile("tagv_index", ".snap");
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    index.load().joinUninterruptibly();
+    index.put("r\u00e9seau", new byte[] { 0, 0, 10 });
+    index.writeSnapshot(snapshot);
+
+    final UidNameIndex restored = new UidNameIndex(tsdb, tag_values);
+    restored.readSnapshot(snapshot);
+    assertEquals(4, restored.size());
+    assertEquals(new ArrayList<String>(index.range("").keySet()),
+        new ArrayList<String>(restored.range("").keySet()));
+    assertArrayEquals(new byte[] { 0, 0, 10 },
+        restored.range("").get("r\u00e9seau"));
+  }
+
+  @Test
+  public void startFromSnapshotAndReload() throws Exception {
+    snapshot = File.createTempFile("tagv_index", ".snap");
+    config.overrideConfig("tsd.query.filter.tagv_index.snapshot",
+        snapshot.getPath());
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    index.put("gone01", new byte[] { 0, 0, 11 });
+    index.writeSnapshot(snapshot);
+
+    final UidNameIndex started = new UidNameIndex(tsdb, tag_values);
+    started.start();
+    assertTrue(started.isLoaded());
+    // the scan replaced the snapshot, dropping the name that's not stored
+    assertEquals(3, started.size());
+    assertNull(started.range("").get("gone01"));
+    assertSame(started, timer.pausedTask);
+
+    storage.addColumn(UID_TABLE, "web03".getBytes(MockBase.ASCII()),
+        ID_FAMILY, TAGV_QUAL, new byte[] { 0, 0, 3 });
+    timer.pausedTask = null;
+    started.run(null);
+    assertEquals(4, started.size());
+    assertSame(started, timer.pausedTask);
+
+    started.shutdown();
+    timer.pausedTask = null;
+    started.run(null);
+    assertNull(timer.pausedTask);
+
+    final UidNameIndex restored = new UidNameIndex(tsdb, tag_values);
+    restored.readSnapshot(snapshot);
+    assertEquals(4, restored.size());
+  }
+
+  @Test
+  public void reloadDropsDeletedNames() throws Exception {
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    index.load().joinUninterruptibly();
+    assertEquals(3, index.size());
+
+    storage.flushRow(UID_TABLE, "db01".getBytes(MockBase.ASCII()));
+    index.load().joinUninterruptibly();
+    assertEquals(names(TAGV_STRING, TAGV_B_STRING),
+        new ArrayList<String>(index.range("").keySet()));
+  }
+
+  @Test
+  public void syncBeforeLoad() throws Exception {
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    assertFalse(index.sync().joinUninterruptibly());
+  }
+
+  @Test
+  public void syncCurrent() throws Exception {
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    index.load().joinUninterruptibly();
+    assertTrue(index.sync().joinUninterruptibly());
+    assertEquals(3, index.size());
+    assertEquals(0L, catchUps(index));
+  }
+
+  @Test
+  public void syncCatchesUp() throws Exception {
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    index.load().joinUninterruptibly();
+
+    // another TSD assigned two more values
+    addReverseMapping(new byte[] { 0, 0, 10 }, "web10");
+    addReverseMapping(new byte[] { 0, 0, 11 }, "web11");
+    setMaxId(11);
+    assertNull(index.range("").get("web10"));
+
+    assertTrue(index.sync().joinUninterruptibly());
+    assertEquals(5, index.size());
+    assertArrayEquals(new byte[] { 0, 0, 10 }, index.range("").get("web10"));
+    assertArrayEquals(new byte[] { 0, 0, 11 }, index.range("").get("web11"));
+    assertEquals(1L, catchUps(index));
+
+    // nothing new to read
+    assertTrue(index.sync().joinUninterruptibly());
+    assertEquals(1L, catchUps(index));
+  }
+
+  @Test
+  public void syncUnwrittenReverseMapping() throws Exception {
+    config.overrideConfig("tsd.query.filter.tagv_index.sync_interval", "0");
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    index.load().joinUninterruptibly();
+
+    // the UID was allocated but its mappings aren't written yet
+    addReverseMapping(new byte[] { 0, 0, 10 }, "web10");
+    setMaxId(11);
+    assertTrue(index.sync().joinUninterruptibly());
+    assertEquals(4, index.size());
+
+    // so it's read again next time
+    addReverseMapping(new byte[] { 0, 0, 11 }, "web11");
+    assertTrue(index.sync().joinUninterruptibly());
+    assertEquals(5, index.size());
+  }
+
+  @Test
+  public void syncInterval() throws Exception {
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    index.load().joinUninterruptibly();
+    assertTrue(index.sync().joinUninterruptibly());
+    assertEquals(1L, syncs(index));
+
+    // trusted until the interval elapsed
+    addReverseMapping(new byte[] { 0, 0, 10 }, "web10");
+    setMaxId(10);
+    assertTrue(index.sync().joinUninterruptibly());
+    assertEquals(1L, syncs(index));
+    assertEquals(3, index.size());
+
+    Whitebox.setInternalState(index, "last_sync", 0L);
+    assertTrue(index.sync().joinUninterruptibly());
+    assertEquals(2L, syncs(index));
+    assertEquals(4, index.size());
+  }
+
+  @Test
+  public void syncErrorIsNotTrusted() throws Exception {
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    index.load().joinUninterruptibly();
+    storage.throwException(new byte[] { 0 }, new RuntimeException("Boo!"),
+        true);
+    assertFalse(index.sync().joinUninterruptibly());
+    assertFalse(index.sync().joinUninterruptibly());
+    assertEquals(2L, syncs(index));
+  }
+
+  @Test
+  public void syncSnapshot() throws Exception {
+    snapshot = File.createTempFile("tagv_index", ".snap");
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    index.put(TAGV_STRING, TAGV_BYTES);
+    index.writeSnapshot(snapshot);
+
+    final UidNameIndex restored = new UidNameIndex(tsdb, tag_values);
+    restored.readSnapshot(snapshot);
+    Whitebox.setInternalState(restored, "snapshot_read", true);
+    assertFalse(restored.isLoaded());
+
+    addReverseMapping(TAGV_B_BYTES, TAGV_B_STRING);
+    addReverseMapping(DB_UID, "db01");
+    assertTrue(restored.sync().joinUninterruptibly());
+    assertEquals(names("db01", TAGV_STRING, TAGV_B_STRING),
+        new ArrayList<String>(restored.range("").keySet()));
+  }
+
+  @Test
+  public void syncError() throws Exception {
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    index.load().joinUninterruptibly();
+    storage.throwException(new byte[] { 0 }, new RuntimeException("Boo!"),
+        true);
+    assertFalse(index.sync().joinUninterruptibly());
+  }
+
+  private void addReverseMapping(final byte[] uid, final String name) {
+    storage.addColumn(UID_TABLE, uid, NAME_FAMILY, TAGV_QUAL,
+        name.getBytes(MockBase.ASCII()));
+  }
+
+  private void setMaxId(final long max_id) {
+    storage.addColumn(UID_TABLE, new byte[] { 0 }, ID_FAMILY, TAGV_QUAL,
+        Bytes.fromLong(max_id));
+  }
+
+  private static long syncs(final UidNameIndex index) {
+    final AtomicLong syncs = Whitebox.getInternalState(index, "syncs");
+    return syncs.get();
+  }
+
+  private static long catchUps(final UidNameIndex index) {
+    final AtomicLong catch_ups = Whitebox.getInternalState(index, "catch_ups");
+    return catch_ups.get();
+  }
+
+  @Test
+  public void startBadSnapshot() throws Exception {
+    snapshot = File.createTempFile("tagv_index", ".snap");
+    config.overrideConfig("tsd.query.filter.tagv_index.snapshot",
+        snapshot.getPath());
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    index.start();
+    assertTrue(index.isLoaded());
+    assertEquals(3, index.size());
+  }
+
+  @Test
+  public void noReload() throws Exception {
+    config.overrideConfig("tsd.query.filter.tagv_index.reload_interval", "0");
+    final UidNameIndex index = new UidNameIndex(tsdb, tag_values);
+    index.start();
+    assertTrue(index.isLoaded());
+    assertNull(timer.pausedTask);
+  }
+
+  private static List<String> names(final String... names) {
+    final List<String> list = new ArrayList<String>(names.length);
+    for (final String name : names) {
+      list.add(name);
+    }
+    return list;
+  }
+}
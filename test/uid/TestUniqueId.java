@@ -73,7 +73,7 @@ import static org.powermock.api.mockito.PowerMockito.mock;
                   "ch.qos.*", "org.slf4j.*",
                   "com.sum.*", "org.xml.*"})
 @PrepareForTest({ HBaseClient.class, TSDB.class, Config.class, Scanner.class, 
-  RandomUniqueId.class, Const.class, Deferred.class })
+  RandomUniqueId.class, Const.class, Deferred.class, UidNameIndex.class })
 public final class TestUniqueId {
   private static final byte[] table = { 't', 's', 'd', 'b', '-', 'u', 'i', 'd' };
   private static final byte[] ID = { 'i', 'd' };
@@ -1558,6 +1558,75 @@ public final class TestUniqueId {
     verify(client, times(3)).get(anyGet());
   }
 
+  @Test
+  public void usePrimitiveCache() throws Exception {
+    config.overrideConfig("tsd.uid.primitive_cache.enable", "true");
+    uid = new UniqueId(tsdb, table, METRIC, 3, false);
+    final byte[] id = { 0, 'a', 0x42 };
+    final byte[] byte_name = { 'f', 'o', 'o' };
+
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(id, ID, METRIC_ARRAY, byte_name));
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.fromResult(kvs));
+
+    assertEquals("foo", uid.getName(id));
+    // Should be a cache hit ...
+    assertEquals("foo", uid.getName(id));
+    // ... and the forward mapping was cached too.
+    assertArrayEquals(id, uid.getId("foo"));
+
+    assertEquals(2, uid.cacheHits());
+    assertEquals(1, uid.cacheMisses());
+    assertEquals(2, uid.cacheSize());
+
+    // ... so verify there was only one HBase Get.
+    verify(client).get(anyGet());
+    assertNull(uid.nameCache());
+    assertNull(uid.idCache());
+    assertNotNull(uid.primitiveCache());
+    
+    uid.dropCaches();
+    assertEquals(0, uid.cacheSize());
+  }
+  
+  @Test
+  public void usePrimitiveCacheConflictNotIndexed() throws Exception {
+    config.overrideConfig("tsd.uid.primitive_cache.enable", "true");
+    uid = new UniqueId(tsdb, table, METRIC, 3, false);
+    final UidNameIndex index = mock(UidNameIndex.class);
+    uid.setNameIndex(index);
+    final byte[] id = { 0, 'a', 0x42 };
+    final byte[] other_id = { 0, 'a', 0x43 };
+    final byte[] byte_name = { 'f', 'o', 'o' };
+
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(id, ID, METRIC_ARRAY, byte_name));
+    ArrayList<KeyValue> other_kvs = new ArrayList<KeyValue>(1);
+    other_kvs.add(new KeyValue(other_id, ID, METRIC_ARRAY, byte_name));
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.fromResult(kvs))
+      .thenReturn(Deferred.fromResult(other_kvs));
+
+    assertEquals("foo", uid.getName(id));
+    try {
+      uid.getName(other_id);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) { }
+    verify(index).put("foo", id);
+    verify(index, never()).put("foo", other_id);
+    assertArrayEquals(id, uid.getId("foo"));
+  }
+
+  @Test
+  public void usePrimitiveCacheLruTakesPrecedence() throws Exception {
+    config.overrideConfig("tsd.uid.primitive_cache.enable", "true");
+    config.overrideConfig("tsd.uid.lru.enable", "true");
+    uid = new UniqueId(tsdb, table, METRIC, 3, false);
+    assertNotNull(uid.lruNameCache());
+    assertNull(uid.primitiveCache());
+  }
+
   @Test
   public void useModeRWGetName() throws Exception {
     when(tsdb.getMode()).thenReturn(OperationMode.READWRITE);